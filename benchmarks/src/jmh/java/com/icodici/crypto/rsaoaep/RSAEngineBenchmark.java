@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.crypto.rsaoaep;
+
+import com.icodici.crypto.HashType;
+import com.icodici.crypto.rsaoaep.scrsa.NativeRSAEngine;
+import net.sergeych.tools.Do;
+import org.openjdk.jmh.annotations.*;
+import org.spongycastle.crypto.CryptoException;
+import org.spongycastle.crypto.engines.RSAEngine;
+import org.spongycastle.crypto.params.ParametersWithRandom;
+import org.spongycastle.crypto.signers.PSSSigner;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RSA-PSS signing and checking the way {@link RSAOAEPPrivateKey} and {@link RSAOAEPPublicKey} do it, with the native
+ * GMP engine and with the pure Java one, which {@link RSAEngineFactory} falls back to when libgmp is not available.
+ * Lives in this package to reach the key parameters, like the RSABenchmark test does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RSAEngineBenchmark {
+
+    @Param({"native", "java"})
+    public String engine;
+
+    @Param({"2048", "4096"})
+    public int keyBits;
+
+    private RSAOAEPPrivateKey privateKey;
+    private RSAOAEPPublicKey publicKey;
+    private final SecureRandom rng = new SecureRandom();
+    private byte[] data;
+    private byte[] signature;
+
+    @Setup
+    public void setup() throws CryptoException {
+        privateKey = new RSAOAEPPrivateKey();
+        // the same way PrivateKey generates it
+        privateKey.generate(keyBits, HashType.SHA1);
+        publicKey = (RSAOAEPPublicKey) privateKey.getPublicKey();
+        data = Do.randomBytes(4096);
+        signature = sign();
+    }
+
+    private RSAEngine makeEngine() {
+        return engine.equals("native") ? new NativeRSAEngine() : new RSAEngine();
+    }
+
+    private PSSSigner makeSigner() {
+        // maximum salt length for the SHA-512, as the keys compute it
+        return new PSSSigner(makeEngine(), HashType.SHA512.makeDigest(), HashType.SHA1.makeDigest(),
+                (keyBits + 7) / 8 - 64 - 2);
+    }
+
+    @Benchmark
+    public byte[] sign() throws CryptoException {
+        PSSSigner signer = makeSigner();
+        signer.init(true, new ParametersWithRandom(privateKey.state.keyParameters, rng));
+        signer.update(data, 0, data.length);
+        return signer.generateSignature();
+    }
+
+    @Benchmark
+    public boolean verify() {
+        PSSSigner checker = makeSigner();
+        checker.init(false, new ParametersWithRandom(publicKey.state.keyParameters, rng));
+        checker.update(data, 0, data.length);
+        return checker.verifySignature(signature);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.benchmarks;
+
+import com.icodici.universa.contract.Contract;
+import net.sergeych.biserializer.BossBiMapper;
+import net.sergeych.boss.Boss;
+import net.sergeych.tools.Binder;
+import net.sergeych.tools.Do;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Boss packing of the plain structure similar to the network notifications, and {@link BossBiMapper}
+ * serialization of the contract, the way it is sealed and transferred.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BossBenchmark {
+
+    private Binder structure;
+    private byte[] packedStructure;
+    private Contract contract;
+    private Binder serializedContract;
+
+    @Setup
+    public void setup() {
+        List<Binder> items = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            items.add(Binder.of(
+                    "id", Do.randomBytes(48),
+                    "state", i % 2 == 0 ? "APPROVED" : "PENDING_POSITIVE",
+                    "haveCopy", true,
+                    "createdAt", ZonedDateTime.now(),
+                    "expiresAt", ZonedDateTime.now().plusDays(i),
+                    "number", i
+            ));
+        }
+        structure = Binder.of("type", "results", "node", "node-1-com", "items", items);
+        packedStructure = Boss.pack(structure);
+
+        contract = new Transactions(2048).create(Transactions.Kind.SPLIT);
+        serializedContract = BossBiMapper.serialize(contract);
+    }
+
+    @Benchmark
+    public byte[] pack() {
+        return Boss.pack(structure);
+    }
+
+    @Benchmark
+    public Binder unpack() {
+        return Boss.unpack(packedStructure);
+    }
+
+    @Benchmark
+    public Binder serializeContract() {
+        return BossBiMapper.serialize(contract);
+    }
+
+    @Benchmark
+    public Contract deserializeContract() {
+        return BossBiMapper.deserialize(serializedContract);
+    }
+}
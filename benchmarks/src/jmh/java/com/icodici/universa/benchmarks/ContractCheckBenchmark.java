@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.benchmarks;
+
+import com.icodici.universa.contract.Contract;
+import com.icodici.universa.contract.TransactionPack;
+import com.icodici.universa.node2.Quantiser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the node does with each registered item before voting: unpacks the transaction pack and checks the contract
+ * with its referenced, new and revoking items.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ContractCheckBenchmark {
+
+    @Param({"SPLIT", "JOIN", "REVOKE"})
+    public Transactions.Kind kind;
+
+    private byte[] packedTransaction;
+
+    @Setup
+    public void setup() {
+        packedTransaction = new Transactions(2048).create(kind).getPackedTransaction();
+    }
+
+    @Benchmark
+    public TransactionPack unpack() throws IOException {
+        return TransactionPack.unpack(packedTransaction);
+    }
+
+    @Benchmark
+    public boolean unpackAndCheck() throws IOException, Quantiser.QuantiserException {
+        Contract contract = TransactionPack.unpack(packedTransaction).getContract();
+        if (!contract.check())
+            throw new IllegalStateException("transaction is not valid: " + contract.getErrors());
+        return true;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.benchmarks;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Do;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HashId} of the data of typical contract sizes and of the big attachment, and its {@link
+ * HashId.CompositeDigest} with the algorithms run sequentially, to compare with the parallel update of the big data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HashIdBenchmark {
+
+    @Param({"1024", "16384", "1048576"})
+    public int size;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        data = Do.randomBytes(size);
+    }
+
+    @Benchmark
+    public HashId of() {
+        return HashId.of(data);
+    }
+
+    @Benchmark
+    public byte[] sequentialCompositeDigest() {
+        return new HashId.CompositeDigest(Integer.MAX_VALUE).digest(data);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.benchmarks;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node2.ItemLock;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ItemLock} taken by 64 threads for the random items, with a short work under the lock, and the set of the
+ * item and its subitems locked at once as the rollback does. A single stripe is the same as the global lock, the
+ * default number of stripes should let almost all the threads work in parallel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Threads(64)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ItemLockBenchmark {
+
+    @Param({"1", "1024"})
+    public int stripes;
+
+    private ItemLock itemLock;
+    private HashId[] ids;
+
+    @Setup
+    public void setup() {
+        itemLock = new ItemLock(stripes);
+        ids = new HashId[4096];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = HashId.createRandom();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println(String.format("\n%d stripes: contended %.2f%%", itemLock.size(),
+                itemLock.getContentions() * 100.0 / Math.max(1, itemLock.getAcquisitions())));
+    }
+
+    private HashId randomId() {
+        return ids[ThreadLocalRandom.current().nextInt(ids.length)];
+    }
+
+    @Benchmark
+    public Object synchronize() throws Exception {
+        return itemLock.synchronize(randomId(), (lock) -> {
+            Blackhole.consumeCPU(100);
+            return lock;
+        });
+    }
+
+    @Benchmark
+    public Object synchronizeAll() throws Exception {
+        return itemLock.synchronizeAll(Arrays.asList(randomId(), randomId(), randomId()), (lock) -> {
+            Blackhole.consumeCPU(100);
+            return lock;
+        });
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.benchmarks;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.Ledger;
+import com.icodici.universa.node.PostgresLedger;
+import com.icodici.universa.node.SqliteLedger;
+import com.icodici.universa.node.StateRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.time.ZonedDateTime;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ledger operations the node performs for every item, without the records cache, so the database is really hit.
+ * <p>
+ * Only SQLite is benchmarked by default. Postgres is benchmarked only when the database is given by the
+ * <code>benchmark.postgres</code> system property (gradle <code>-Ppostgres=...</code>, which adds "postgres" to the
+ * ledger types). The database is cleared before the run, so never point it to the database of a node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LedgerBenchmark {
+
+    private static final int RECORDS = 10_000;
+
+    @Param({"sqlite"})
+    public String ledgerType;
+
+    private Ledger ledger;
+    private File sqliteFile;
+    private HashId[] ids;
+    private StateRecord[] records;
+
+    @Setup
+    public void setup() throws Exception {
+        if (ledgerType.equals("sqlite")) {
+            sqliteFile = File.createTempFile("ledger_benchmark", ".db");
+            SqliteLedger sqliteLedger = new SqliteLedger("jdbc:sqlite:" + sqliteFile.getPath());
+            sqliteLedger.enableCache(false);
+            ledger = sqliteLedger;
+        } else {
+            String database = System.getProperty("benchmark.postgres");
+            if (database == null)
+                throw new IllegalStateException("set the scratch database with -Ppostgres=jdbc:postgresql://...");
+            PostgresLedger postgresLedger = new PostgresLedger(database);
+            postgresLedger.testClearLedger();
+            postgresLedger.enableCache(false);
+            ledger = postgresLedger;
+        }
+        ids = new HashId[RECORDS];
+        records = new StateRecord[RECORDS];
+        ZonedDateTime expiresAt = ZonedDateTime.now().plusMonths(1);
+        ledger.transaction(() -> {
+            for (int i = 0; i < RECORDS; i++) {
+                ids[i] = HashId.createRandom();
+                StateRecord r = ledger.findOrCreate(ids[i]);
+                r.setState(ItemState.APPROVED).setExpiresAt(expiresAt);
+                r.save();
+                records[i] = r;
+            }
+            return null;
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (ledger instanceof SqliteLedger) {
+            ((SqliteLedger) ledger).close();
+            sqliteFile.delete();
+        } else {
+            ((PostgresLedger) ledger).testClearLedger();
+            ((PostgresLedger) ledger).close();
+        }
+    }
+
+    @Benchmark
+    public StateRecord getRecord() {
+        return ledger.getRecord(ids[ThreadLocalRandom.current().nextInt(RECORDS)]);
+    }
+
+    @Benchmark
+    public StateRecord save() {
+        StateRecord r = records[ThreadLocalRandom.current().nextInt(RECORDS)];
+        r.setState(r.getState() == ItemState.APPROVED ? ItemState.LOCKED : ItemState.APPROVED);
+        r.save();
+        return r;
+    }
+
+    @Benchmark
+    public StateRecord findOrCreate() {
+        return ledger.findOrCreate(HashId.createRandom());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.benchmarks;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares two JMH JSON result files, e.g. of the previous release and of the current build, printing the scores of
+ * each benchmark and parameters combination found in both, and the change in percents. Positive change means the
+ * current version is slower for the time modes, and faster for the throughput one.
+ */
+public class ResultsComparator {
+
+    private static class Score {
+        final double score;
+        final double error;
+        final String unit;
+
+        Score(double score, double error, String unit) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+    }
+
+    static Map<String, Score> load(String fileName) throws IOException {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        try (Reader reader = new FileReader(fileName)) {
+            for (JsonValue value : Json.parse(reader).asArray()) {
+                JsonObject result = value.asObject();
+                StringBuilder key = new StringBuilder(result.getString("benchmark", "?"));
+                JsonValue params = result.get("params");
+                if (params != null) {
+                    for (JsonObject.Member param : params.asObject())
+                        key.append(' ').append(param.getName()).append('=').append(param.getValue().asString());
+                }
+                JsonObject metric = result.get("primaryMetric").asObject();
+                JsonValue error = metric.get("scoreError");
+                scores.put(key.toString(), new Score(
+                        metric.getDouble("score", 0),
+                        error != null && error.isNumber() ? error.asDouble() : 0,
+                        metric.getString("scoreUnit", "")
+                ));
+            }
+        }
+        return scores;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: ResultsComparator baseline.json current.json");
+            System.exit(1);
+        }
+        Map<String, Score> baseline = load(args[0]);
+        Map<String, Score> current = load(args[1]);
+        current.forEach((name, score) -> {
+            Score base = baseline.get(name);
+            if (base == null)
+                System.out.printf("%-80s %14s %14.3f %-10s   new%n", name, "", score.score, score.unit);
+            else
+                System.out.printf("%-80s %14.3f %14.3f %-10s %+7.1f%% (+-%.3f)%n", name, base.score, score.score,
+                        score.unit, (score.score - base.score) * 100 / base.score, score.error);
+        });
+        baseline.keySet().stream()
+                .filter(name -> !current.containsKey(name))
+                .forEach(name -> System.out.printf("%-80s   removed%n", name));
+    }
+}
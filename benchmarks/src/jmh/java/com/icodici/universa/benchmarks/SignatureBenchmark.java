@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.benchmarks;
+
+import com.icodici.crypto.EncryptionError;
+import com.icodici.crypto.HashType;
+import com.icodici.crypto.PrivateKey;
+import com.icodici.crypto.PublicKey;
+import net.sergeych.tools.Do;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing and checking the signature of the contract-sized data with {@link PrivateKey} and {@link PublicKey}, with
+ * whatever RSA engine is available, see {@link com.icodici.crypto.rsaoaep.RSAEngineBenchmark} for the engines
+ * comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SignatureBenchmark {
+
+    @Param({"2048", "4096"})
+    public int keyBits;
+
+    private PrivateKey privateKey;
+    private PublicKey publicKey;
+    private byte[] data;
+    private byte[] signature;
+
+    @Setup
+    public void setup() throws EncryptionError {
+        privateKey = new PrivateKey(keyBits);
+        publicKey = privateKey.getPublicKey();
+        data = Do.randomBytes(4096);
+        signature = privateKey.sign(data, HashType.SHA512);
+    }
+
+    @Benchmark
+    public byte[] sign() throws EncryptionError {
+        return privateKey.sign(data, HashType.SHA512);
+    }
+
+    @Benchmark
+    public boolean verify() throws EncryptionError {
+        return publicKey.verify(data, signature, HashType.SHA512);
+    }
+}
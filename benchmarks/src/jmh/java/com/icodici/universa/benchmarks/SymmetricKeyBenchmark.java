@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.benchmarks;
+
+import com.icodici.crypto.EncryptionError;
+import com.icodici.crypto.SymmetricKey;
+import net.sergeych.tools.Do;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authenticated encryption and decryption with {@link SymmetricKey}, as used by the node-to-node and client sessions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SymmetricKeyBenchmark {
+
+    @Param({"128", "4096", "262144"})
+    public int size;
+
+    private SymmetricKey key;
+    private byte[] data;
+    private byte[] encrypted;
+
+    @Setup
+    public void setup() throws EncryptionError {
+        key = new SymmetricKey();
+        data = Do.randomBytes(size);
+        encrypted = key.etaEncrypt(data);
+    }
+
+    @Benchmark
+    public byte[] etaEncrypt() throws EncryptionError {
+        return key.etaEncrypt(data);
+    }
+
+    @Benchmark
+    public byte[] etaDecrypt() throws EncryptionError, SymmetricKey.AuthenticationFailed {
+        return key.etaDecrypt(encrypted);
+    }
+}
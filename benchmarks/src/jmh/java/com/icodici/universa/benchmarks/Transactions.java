@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.benchmarks;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.crypto.PublicKey;
+import com.icodici.universa.contract.Contract;
+import com.icodici.universa.contract.ContractsService;
+import com.icodici.universa.contract.permissions.SplitJoinPermission;
+import net.sergeych.tools.Binder;
+
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Realistic transactions for the benchmarks: token contracts with the split-join and revoke permissions, and their
+ * split, join and revocation, as the client builds them with {@link ContractsService}.
+ */
+class Transactions {
+
+    enum Kind {
+        SPLIT, JOIN, REVOKE
+    }
+
+    private final PrivateKey key;
+    private final Set<PrivateKey> keys;
+    private final Set<PublicKey> publicKeys;
+
+    Transactions(int keyBits) {
+        key = new PrivateKey(keyBits);
+        keys = Collections.singleton(key);
+        publicKeys = Collections.singleton(key.getPublicKey());
+    }
+
+    PrivateKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return new sealed token contract, as if it was already registered
+     */
+    Contract createToken(String amount) {
+        Contract token = ContractsService.createTokenContract(keys, publicKeys, amount);
+        // the service passes join_match_fields as the string, which the permission does not read, so its token could
+        // not be split or joined: replace the permission with the one that has the list
+        token.getPermissions().remove("split_join");
+        token.addPermission(new SplitJoinPermission(token.getRole("owner"), Binder.of(
+                "min_value", 0.01,
+                "min_unit", 0.001,
+                "field_name", "amount",
+                "join_match_fields", Collections.singletonList("state.origin"))));
+        // the service sets the fixed expiration date, which could be already in the past
+        token.getDefinition().setExpiresAt(ZonedDateTime.now().plusYears(1));
+        token.addSignerKey(key);
+        token.seal();
+        return token;
+    }
+
+    /**
+     * @return sealed transaction of the given kind over the new token contracts
+     */
+    Contract create(Kind kind) {
+        switch (kind) {
+            case SPLIT:
+                return ContractsService.createSplit(createToken("1000"), 100, "amount", keys);
+            case JOIN:
+                Contract split = ContractsService.createSplit(createToken("1000"), 100, "amount", keys);
+                return ContractsService.createJoin(split, split.getNew().get(0), "amount", keys);
+            case REVOKE:
+                return ContractsService.createRevocation(createToken("1000"), key);
+        }
+        throw new IllegalArgumentException("unknown transaction kind: " + kind);
+    }
+}
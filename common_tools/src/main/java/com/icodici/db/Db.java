@@ -84,6 +84,13 @@ public class Db implements Cloneable, AutoCloseable {
         return connectionString;
     }
 
+    /**
+     * @return the underlying JDBC connection, e.g. to use the driver-specific API like bulk copy
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
     public Integer getIntParam(String name) throws SQLException {
         return queryOne("SELECT ivalue FROM vars WHERE name=?", name);
     }
@@ -69,6 +69,20 @@ public class DbPool implements AutoCloseable {
         }
     }
 
+    /**
+     * @return number of connections opened by the pool
+     */
+    public int getTotalConnections() {
+        return total;
+    }
+
+    /**
+     * @return number of connections in the pool not used by any thread
+     */
+    public int getIdleConnections() {
+        return pool.size();
+    }
+
     void returnToPool(PooledDb db) {
         threadDb.set(null);
         pool.add(db);
@@ -2,12 +2,17 @@ package net.sergeych.informer;
 
 import net.sergeych.utils.LogPrinter;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The mechanism to convey any type of events to subscribers. Inspired by the EventBus. Unlike the
@@ -35,19 +40,39 @@ import java.util.WeakHashMap;
  * (e.g. subscrive to event superclass or any type with Object). See {@link #post(Object)}, {@link
  * #registerStrong(Object)}, {@link #registerWeak(Object)} for further details.
  * <p>
+ * The informer is thread safe: subscribers are kept in the copy-on-write snapshot, so posting never
+ * locks and subscribers could register and unregister from inside the event processing. Subscriber
+ * methods are compiled to method handles on registration, and the list of methods to call is built
+ * once per event class. Events could also be posted asynchronously with {@link #postAsync(Object)},
+ * through the bounded queue served by the informer's own thread, and delayed with {@link
+ * #postAfter(Object, long)}, scheduled by the single thread shared by all informers.
+ * <p>
  * Created by sergeych on 13/02/16.
  */
 public class Informer {
 
     static LogPrinter log = new LogPrinter("");
 
+    /**
+     * Default capacity of the queue of events posted with {@link #postAsync(Object)}
+     */
+    public static final int DEFAULT_ASYNC_QUEUE_SIZE = 1024;
+
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class, Object.class);
+
+    private static final Dispatch[] NO_DISPATCH = new Dispatch[0];
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Informer_scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
      * Context to carry subscriber exception information
      */
     public class ExceptionContext {
 
-        SubInvocation si;
-
         public Informer getInformer() {
             return Informer.this;
         }
@@ -56,28 +81,29 @@ public class Informer {
          * Which subscriber method has thrown and exception
          */
         public Method getMethod() {
-            return si.method;
+            return invocation.method;
         }
 
         /**
          * @return subscriber object whose method caused the exception
          */
         public Object getSubscriber() {
-            return si.weakObject.get();
+            return subscriber;
         }
 
         public Exception getException() {
             return exception;
         }
 
-        private ExceptionContext(SubInvocation invocation, Exception e) {
+        private ExceptionContext(Invocation invocation, Object subscriber, Exception e) {
+            this.invocation = invocation;
+            this.subscriber = subscriber;
             exception = e;
-            si = invocation;
         }
 
-        private Method method;
-        private Object subscriber;
-        private Exception exception;
+        private final Invocation invocation;
+        private final Object subscriber;
+        private final Exception exception;
     }
 
     /**
@@ -89,7 +115,12 @@ public class Informer {
 
     private ExceptionListener exceptionListener = null;
 
+    private final int asyncQueueSize;
+    private volatile ThreadPoolExecutor asyncExecutor;
+    private final LongAdder droppedCount = new LongAdder();
+
     public Informer() {
+        this(null);
     }
 
     /**
@@ -99,56 +130,109 @@ public class Informer {
      * @param listener
      */
     public Informer(ExceptionListener listener) {
+        this(listener, DEFAULT_ASYNC_QUEUE_SIZE);
+    }
+
+    /**
+     * @param listener
+     *         subscriber exceptions listener, could be null
+     * @param asyncQueueSize
+     *         maximum number of events posted with {@link #postAsync(Object)} and waiting to be
+     *         processed
+     */
+    public Informer(ExceptionListener listener, int asyncQueueSize) {
+        if (asyncQueueSize < 1)
+            throw new IllegalArgumentException("async queue size must be positive");
         exceptionListener = listener;
+        this.asyncQueueSize = asyncQueueSize;
     }
 
     enum Result {
         NO_MATCH, PROCESSED, CONSUMED
     }
 
-    private class SubInvocation {
+    /**
+     * Subscriber method compiled to the method handle.
+     */
+    private static class Invocation {
 
-        private Class eventClass;
-        private boolean canConsume = false;
-        private Method method;
-        private WeakReference<Object> weakObject;
+        private final Method method;
+        private final Class eventClass;
+        private final boolean canConsume;
+        private final MethodHandle handle;
 
-        SubInvocation(Object object, Method method) {
+        Invocation(Method method) {
             this.method = method;
-            weakObject = new WeakReference<Object>(object);
             Class[] pt = method.getParameterTypes();
             if (pt.length != 1)
                 throw new IllegalArgumentException("@Subscriber must take only one parameter");
             eventClass = pt[0];
-            if (method.getReturnType().getCanonicalName().equals("boolean")) {
-                canConsume = true;
-            }
+            canConsume = method.getReturnType() == boolean.class;
+            handle = unreflect(method).asType(INVOKER_TYPE);
         }
 
-        Result invokeIfMatch(Object parameter) {
-            if (eventClass.isInstance(parameter)) {
-                Object receiver = weakObject.get();
+        private static MethodHandle unreflect(Method method) {
+            try {
+                return MethodHandles.publicLookup().unreflect(method);
+            } catch (IllegalAccessException e) {
+                // public method of a class that is not public itself, e.g. an anonymous one
                 try {
-                    if (receiver != null) {
-                        Object result = method.invoke(receiver, parameter);
-                        return (canConsume && (boolean) result) ? Result.CONSUMED : Result.PROCESSED;
-                    }
-                } catch (Exception e) {
-                    if( e instanceof IllegalAccessException)
-                        throw new RuntimeException("Informer has no access to subscriber", e);
-                    if (exceptionListener != null) {
-                        exceptionListener.onSubscriberException(new ExceptionContext(this, e));
-                    }
+                    method.setAccessible(true);
+                    return MethodHandles.lookup().unreflect(method);
+                } catch (RuntimeException | IllegalAccessException e2) {
+                    throw new RuntimeException("Informer has no access to subscriber", e2);
                 }
             }
-            return Result.NO_MATCH;
         }
     }
 
-    private WeakHashMap<Object, ArrayList<SubInvocation>> weakInvocations =
-            new WeakHashMap<>();
+    /**
+     * Registered subscriber object with all its subscriber methods.
+     */
+    private static class Subscription {
+
+        private final Object strongObject;
+        private final WeakReference<Object> weakObject;
+        private final Invocation[] invocations;
+
+        Subscription(Object subscriber, boolean weak, Invocation[] invocations) {
+            strongObject = weak ? null : subscriber;
+            weakObject = weak ? new WeakReference<>(subscriber) : null;
+            this.invocations = invocations;
+        }
+
+        /**
+         * @return subscriber object or null if it was weak and has been collected
+         */
+        Object get() {
+            return weakObject == null ? strongObject : weakObject.get();
+        }
+    }
+
+    /**
+     * Methods of the subscription matching some event class.
+     */
+    private static class Dispatch {
+
+        private final Subscription subscription;
+        private final Invocation[] invocations;
+
+        Dispatch(Subscription subscription, Invocation[] invocations) {
+            this.subscription = subscription;
+            this.invocations = invocations;
+        }
+    }
+
+    /**
+     * Current subscriptions. Never changed, replaced by the copy on any registration change.
+     */
+    private volatile Subscription[] subscriptions = new Subscription[0];
 
-    private HashMap<Object, ArrayList<SubInvocation>> strongInvocations = new HashMap<>();
+    /**
+     * What to invoke for each event class, built from the current subscriptions on demand. Replaced
+     * by the empty map after each change of subscriptions, so it should be read before them.
+     */
+    private volatile ConcurrentHashMap<Class, Dispatch[]> dispatchTables = new ConcurrentHashMap<>();
 
     /**
      * Synchronously post an event. Will block until all matching subscribers will be called.
@@ -156,19 +240,16 @@ public class Informer {
      * @param event
      */
     public void post(Object event) {
-        int result;
-        int processedCount = invokeCollection(weakInvocations, event);
-        processedCount += invokeCollection(strongInvocations, event);
-        if (processedCount == 0 && !(event instanceof LostEvent)) {
-            post(new LostEvent(event));
-        }
-    }
-
-    private int invokeCollection(Map<Object, ArrayList<SubInvocation>> collection, Object event) {
         int processedCount = 0;
-        for (ArrayList<SubInvocation> list : collection.values()) {
-            for (SubInvocation si : list) {
-                Result result = si.invokeIfMatch(event);
+        boolean hasCollected = false;
+        for (Dispatch dispatch : getDispatchTable(event)) {
+            Object receiver = dispatch.subscription.get();
+            if (receiver == null) {
+                hasCollected = true;
+                continue;
+            }
+            for (Invocation invocation : dispatch.invocations) {
+                Result result = invoke(invocation, receiver, event);
                 if (result == Result.NO_MATCH)
                     continue;
                 processedCount++;
@@ -176,13 +257,110 @@ public class Informer {
                     break;
             }
         }
-        return processedCount;
+        if (hasCollected)
+            removeCollected();
+        if (processedCount == 0 && !(event instanceof LostEvent)) {
+            post(new LostEvent(event));
+        }
+    }
+
+    private Result invoke(Invocation invocation, Object receiver, Object event) {
+        try {
+            Object result = invocation.handle.invokeExact(receiver, event);
+            return (invocation.canConsume && (boolean) result) ? Result.CONSUMED : Result.PROCESSED;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            if (exceptionListener != null) {
+                exceptionListener.onSubscriberException(
+                        new ExceptionContext(invocation, receiver, new InvocationTargetException(t)));
+            }
+        }
+        return Result.NO_MATCH;
+    }
+
+    private Dispatch[] getDispatchTable(Object event) {
+        if (event == null)
+            return NO_DISPATCH;
+        Class eventClass = event.getClass();
+        ConcurrentHashMap<Class, Dispatch[]> tables = dispatchTables;
+        Dispatch[] table = tables.get(eventClass);
+        if (table == null) {
+            List<Dispatch> dispatches = new ArrayList<>();
+            for (Subscription s : subscriptions) {
+                Invocation[] matching = Arrays.stream(s.invocations)
+                        .filter(i -> i.eventClass.isAssignableFrom(eventClass))
+                        .toArray(Invocation[]::new);
+                if (matching.length > 0)
+                    dispatches.add(new Dispatch(s, matching));
+            }
+            table = dispatches.toArray(NO_DISPATCH);
+            tables.putIfAbsent(eventClass, table);
+        }
+        return table;
+    }
+
+    /**
+     * Post the event from the informer's thread, see {@link #post(Object)} for details. Events are
+     * processed one by one in the order they are posted. The call never blocks: if the queue already
+     * has as many events as was specified in the constructor, the event is dropped.
+     *
+     * @param event
+     *         event to post
+     *
+     * @return true if the event is queued, false if it is dropped
+     */
+    public boolean postAsync(Object event) {
+        if (enqueue(event))
+            return true;
+        droppedCount.increment();
+        return false;
+    }
+
+    /**
+     * @return number of events dropped by {@link #postAsync(Object)} because its queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    private boolean enqueue(Object event) {
+        try {
+            getAsyncExecutor().execute(() -> post(event));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private ThreadPoolExecutor getAsyncExecutor() {
+        ThreadPoolExecutor executor = asyncExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = asyncExecutor;
+                if (executor == null) {
+                    executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(asyncQueueSize), r -> {
+                        Thread thread = new Thread(r, "Informer_async_" + this);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    // the thread is not kept when there is nothing to post
+                    executor.allowCoreThreadTimeOut(true);
+                    asyncExecutor = executor;
+                }
+            }
+        }
+        return executor;
     }
 
     /**
      * Post an event to subscribers after the specified timeout, see {@link #post(Object)} for
      * details. Subscribers will be informed adter specified interval from some other thread. The
      * call returns immediately.
+     * <p>
+     * When the time comes, the event goes to the {@link #postAsync(Object)} queue, or if it is full,
+     * is posted right from the scheduler thread, so delayed events are never dropped.
      *
      * @param event
      *         event to post
@@ -190,16 +368,10 @@ public class Informer {
      *         timeout to wait before posting
      */
     public void postAfter(final Object event, final long millis) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    Thread.currentThread().sleep(millis);
-                    post(event);
-                } catch (InterruptedException e) {
-                }
-            }
-        }).start();
+        scheduler.schedule(() -> {
+            if (!enqueue(event))
+                post(event);
+        }, millis, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -231,9 +403,18 @@ public class Informer {
      *
      * @return true if this subscriber was previously registered.
      */
-    public boolean unregister(Object subscriber) {
-        boolean found = (weakInvocations.remove(subscriber) != null);
-        found = found || (strongInvocations.remove(subscriber) != null);
+    public synchronized boolean unregister(Object subscriber) {
+        List<Subscription> list = new ArrayList<>(subscriptions.length);
+        boolean found = false;
+        for (Subscription s : subscriptions) {
+            Object object = s.get();
+            if (object != null && object.equals(subscriber))
+                found = true;
+            else
+                list.add(s);
+        }
+        if (found)
+            setSubscriptions(list);
         return found;
     }
 
@@ -269,19 +450,34 @@ public class Informer {
      */
 
     public void register(Object subscriber, boolean registerWeak) {
-        unregister(subscriber);
-        Map<Object, ArrayList<SubInvocation>> map = registerWeak ? weakInvocations :
-                strongInvocations;
+        List<Invocation> invocations = new ArrayList<>();
         for (Method m : subscriber.getClass().getMethods()) {
-            if (m.isAnnotationPresent(Subscriber.class)) {
-                SubInvocation si = new SubInvocation(subscriber, m);
-                ArrayList<SubInvocation> ii = map.get(subscriber);
-                if (ii == null) {
-                    ii = new ArrayList<>();
-                    map.put(subscriber, ii);
-                }
-                ii.add(si);
+            if (m.isAnnotationPresent(Subscriber.class))
+                invocations.add(new Invocation(m));
+        }
+        synchronized (this) {
+            unregister(subscriber);
+            if (!invocations.isEmpty()) {
+                List<Subscription> list = new ArrayList<>(Arrays.asList(subscriptions));
+                list.add(new Subscription(subscriber, registerWeak, invocations.toArray(new Invocation[0])));
+                setSubscriptions(list);
             }
         }
     }
+
+    private synchronized void removeCollected() {
+        List<Subscription> list = new ArrayList<>(subscriptions.length);
+        for (Subscription s : subscriptions) {
+            if (s.get() != null)
+                list.add(s);
+        }
+        if (list.size() < subscriptions.length)
+            setSubscriptions(list);
+    }
+
+    // should be called synchronized
+    private void setSubscriptions(List<Subscription> list) {
+        subscriptions = list.toArray(new Subscription[0]);
+        dispatchTables = new ConcurrentHashMap<>();
+    }
 }
@@ -26,6 +26,23 @@ public class StructureDescriptor {
         return currentOffset;
     }
 
+    /**
+     * Get the offset of the field in the packed structure, e.g. to read it right from some buffer without unpacking
+     * the whole structure.
+     *
+     * @param name of the field
+     *
+     * @return offset in bytes
+     *
+     * @throws IllegalArgumentException if there is no such field
+     */
+    public int getOffset(String name) {
+        FieldDef fd = fields.get(name);
+        if (fd == null)
+            throw new IllegalArgumentException("undefined field: " + name);
+        return fd.offset;
+    }
+
     /**
      * unpack packed binary data
      *
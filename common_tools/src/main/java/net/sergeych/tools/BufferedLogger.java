@@ -11,20 +11,25 @@ import java.io.*;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-
-import static java.util.Collections.reverse;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Navigable fast asynchronous buffered logger, thread safe. It's main features are:
  * <p>
- * - it does not block caller on {@link #log(String)} using daemon thread to queue all logging requests
+ * - it does not block caller on {@link #log(String)}: entries are put to the fixed size lock-free ring buffer, and
+ * only printing to the {@link PrintStream} is done by the daemon thread
  * <p>
  * - it holds lasst records in memory from where it could be easily obtained using {@link #slice(long, int)}, {@link
- * #getLast(int)} and {@link #getCopy()} calls.
+ * #getLast(int)} and {@link #getCopy()} calls, which copy only the requested entries and never block the logging.
+ * <p>
+ * Entries are numbered sequentially in each logger, so the entry with a given id is found in the buffer at once. If
+ * the print stream can't keep up with the log rate, the entries the buffer has no room for are not printed and are
+ * counted, see {@link #getOverflowCount()}.
  * <p>
  * It is possible to connect a logger to a {@link PrintStream} using {@link #printTo(PrintStream, boolean)}.
  * <p>
@@ -47,14 +52,12 @@ public class BufferedLogger implements AutoCloseable {
      */
     public static class Entry implements Comparable<Entry> {
 
-        static private AtomicLong serial = new AtomicLong(System.currentTimeMillis());
-
         public final long id;
         public final Instant instant;
         public final String message;
 
-        private Entry(String message) {
-            id = serial.getAndIncrement();
+        private Entry(long id, String message) {
+            this.id = id;
             this.message = message.trim();
             instant = Instant.now();
         }
@@ -65,12 +68,6 @@ public class BufferedLogger implements AutoCloseable {
             message = b.getString("message");
         }
 
-        private Entry(long id) {
-            this.id = id;
-            message = "";
-            instant = Instant.now();
-        }
-
         @Override
         public String toString() {
             return "" + fmt.format(instant) + " " + message;
@@ -114,12 +111,31 @@ public class BufferedLogger implements AutoCloseable {
     }
 
     static DateTimeFormatter fmt = DateTimeFormatter.ISO_INSTANT;
-    private PrintStream printStream;
+    private volatile PrintStream printStream;
 
-    private int maxLines;
-    private final LinkedList<Entry> buffer = new LinkedList<>();
-    private PrintStream pstream = null;
-    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final int maxLines;
+    /**
+     * Entry with sequence number n is stored in the slot n % maxLines, until it is overwritten by the newer one.
+     */
+    private final AtomicReferenceArray<Entry> slots;
+    /**
+     * Ids are the sequence numbers plus this base, to keep them growing between restarts as they used to be.
+     */
+    private final long idBase = System.currentTimeMillis();
+    /**
+     * Next sequence number to assign.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Entries with lesser sequence numbers are cleared.
+     */
+    private volatile long clearedBefore = 0;
+    /**
+     * Next sequence number to print, owned by the logger thread.
+     */
+    private volatile long printed = 0;
+    private volatile boolean printerWaiting = false;
+    private final LongAdder overflows = new LongAdder();
     private final Object queueEmpty = new Object();
 
     /**
@@ -130,26 +146,29 @@ public class BufferedLogger implements AutoCloseable {
      */
     public BufferedLogger(int maxEntries) {
         this.maxLines = maxEntries;
+        slots = new AtomicReferenceArray<>(maxEntries);
         loggerThread = new Thread(() -> {
-            while (true) {
-                Entry entry = null;
-                if (queue.size() == 0) {
+            while (!Thread.currentThread().isInterrupted()) {
+                long seq = printed;
+                if (seq == head.get()) {
                     synchronized (queueEmpty) {
                         queueEmpty.notifyAll();
                     }
                 }
-                try {
-                    entry = queue.take();
-                } catch (InterruptedException e) {
-                    return;
+                Entry entry = waitEntry(seq);
+                if (entry == null)
+                    continue;
+                PrintStream ps = printStream;
+                if (ps == null) {
+                    // nothing to print, so nothing to wait for
+                    printed = Math.max(seq + 1, head.get());
+                } else {
+                    if (entry.id == idBase + seq)
+                        ps.println(printTimestamp ? entry.toString() : entry.message);
+                    else
+                        overflows.increment();
+                    printed = seq + 1;
                 }
-                synchronized (buffer) {
-                    buffer.add(entry);
-                    while (buffer.size() > maxLines)
-                        buffer.poll();
-                }
-                if (printStream != null)
-                    printStream.println(printTimestamp ? entry.toString() : entry.message);
             }
         });
         loggerThread.setName("BufferedLogger_" + this);
@@ -157,16 +176,36 @@ public class BufferedLogger implements AutoCloseable {
         loggerThread.start();
     }
 
+    /**
+     * Wait until the entry with the specified sequence number is stored.
+     *
+     * @return the entry with this or greater sequence number occupying its slot, null if interrupted or if it has taken
+     * too long
+     */
+    private Entry waitEntry(long seq) {
+        int index = (int) (seq % maxLines);
+        Entry entry = slots.get(index);
+        if (entry != null && entry.id >= idBase + seq)
+            return entry;
+        printerWaiting = true;
+        // check again as the producer could have missed the flag
+        entry = slots.get(index);
+        if (entry == null || entry.id < idBase + seq)
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+        printerWaiting = false;
+        return null;
+    }
+
     /**
      * Wait until all queued logging operation are finished. See {@link #log(String)} fro details.
      *
      * @throws InterruptedException
      */
     public void flush() throws InterruptedException {
+        long target = head.get();
         synchronized (queueEmpty) {
-            if (queue.size() == 0)
-                return;
-            queueEmpty.wait();
+            while (printed < target)
+                queueEmpty.wait(100);
         }
     }
 
@@ -178,15 +217,19 @@ public class BufferedLogger implements AutoCloseable {
      * @return true if the messages queue is emptied, false if timeout is expired
      */
     public boolean flush(long millis) {
+        long target = head.get();
+        long deadline = System.currentTimeMillis() + millis;
         synchronized (queueEmpty) {
-            if (queue.size() == 0)
-                return true;
-            try {
-                queueEmpty.wait(millis);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+            long left;
+            while (printed < target && (left = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    queueEmpty.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
             }
-            return queue.size() == 0;
+            return printed >= target;
         }
     }
 
@@ -215,15 +258,27 @@ public class BufferedLogger implements AutoCloseable {
     }
 
     /**
-     * Add log entry to the buffer.
+     * Add log entry to the buffer. Never blocks, the entry is available to read at once and is printed to the
+     * associated print stream later.
      *
      * @param message
      *
      * @return entry created for the log message
      */
     public @NonNull Entry log(String message) {
-        Entry entry = new Entry(message);
-        queue.add(entry);
+        long seq = head.getAndIncrement();
+        Entry entry = new Entry(idBase + seq, message);
+        int index = (int) (seq % maxLines);
+        while (true) {
+            Entry current = slots.get(index);
+            // a slow writer must not overwrite the newer entry of the one that has lapped it
+            if (current != null && current.id > entry.id)
+                break;
+            if (slots.compareAndSet(index, current, entry))
+                break;
+        }
+        if (printerWaiting)
+            LockSupport.unpark(loggerThread);
         return entry;
     }
 
@@ -231,6 +286,39 @@ public class BufferedLogger implements AutoCloseable {
         return log(message);
     }
 
+    /**
+     * @return number of entries that were overwritten by newer ones before they could be printed
+     */
+    public long getOverflowCount() {
+        return overflows.sum();
+    }
+
+    /**
+     * @return sequence number of the oldest entry that could be in the buffer
+     */
+    private long firstStored(long last) {
+        return Math.max(clearedBefore, last - maxLines);
+    }
+
+    /**
+     * Collect stored entries with sequence numbers in the given range, skipping ones that are overwritten or not yet
+     * stored.
+     */
+    private List<Entry> collect(long from, long to) {
+        long last = head.get();
+        from = Math.max(from, firstStored(last));
+        to = Math.min(to, last);
+        if (from >= to)
+            return Collections.emptyList();
+        ArrayList<Entry> results = new ArrayList<>((int) (to - from));
+        for (long seq = from; seq < to; seq++) {
+            Entry entry = slots.get((int) (seq % maxLines));
+            if (entry != null && entry.id == idBase + seq)
+                results.add(entry);
+        }
+        return results;
+    }
+
     /**
      * Return most recent record up to specified number of entries.
      *
@@ -239,14 +327,8 @@ public class BufferedLogger implements AutoCloseable {
      * @return List
      */
     public @NonNull List<Entry> getLast(int maxEntries) {
-        ArrayList<Entry> results = new ArrayList<>(maxEntries);
-        synchronized (buffer) {
-            for (Iterator<Entry> it = buffer.descendingIterator(); it.hasNext() & maxEntries > 0; maxEntries--) {
-                results.add(it.next());
-            }
-        }
-        reverse(results);
-        return results;
+        long last = head.get();
+        return collect(last - maxEntries, last);
     }
 
     /**
@@ -261,34 +343,21 @@ public class BufferedLogger implements AutoCloseable {
      * @return possibly empty list of entries matching the criteria.
      */
     public List<Entry> slice(long id, int maxEntries) {
-        List<Entry> copy = getCopy();
-        Entry start = new Entry(id);
-        int fromIndex = Collections.binarySearch(copy, start);
-        if (maxEntries > 0)
-            fromIndex++;
-        if (fromIndex < 0)
-            fromIndex = 0;
-        int toIndex = fromIndex + maxEntries;
-        if (toIndex < fromIndex) {
-            int t = fromIndex;
-            fromIndex = toIndex;
-            toIndex = t;
+        long last = head.get();
+        long seq = Math.max(-1, Math.min(id - idBase, last));
+        if (maxEntries > 0) {
+            // from the oldest stored entry if the ones right after id are already purged
+            long from = Math.max(seq + 1, firstStored(last));
+            return collect(from, from + maxEntries);
         }
-        int length = copy.size();
-        if (fromIndex < 0)
-            fromIndex = 0;
-        if (toIndex >= length)
-            toIndex = length;
-        if (fromIndex >= length || toIndex < 1 || fromIndex == toIndex)
-            return Collections.emptyList();
-        return copy.subList(fromIndex, toIndex);
+        return collect(seq + maxEntries, seq);
     }
 
     /**
      * clear the whole stored content.
      */
     public void clear() {
-        buffer.clear();
+        clearedBefore = head.get();
     }
 
     /**
@@ -297,9 +366,7 @@ public class BufferedLogger implements AutoCloseable {
      * @return list of entries sorted by id
      */
     public List<Entry> getCopy() {
-        synchronized (buffer) {
-            return new ArrayList<>(buffer);
-        }
+        return collect(0, Long.MAX_VALUE);
     }
 
     private AtomicBoolean consoleIntercepted = new AtomicBoolean(false);
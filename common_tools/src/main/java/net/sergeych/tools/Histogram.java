@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package net.sergeych.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative long values, e.g. durations in microseconds, to get percentiles of them with
+ * constant memory and O(1) recording, the way HdrHistogram does. Values below 64 are counted exactly, greater ones in
+ * buckets of logarithmically growing width, so any percentile is reported with the relative error under 1.6%.
+ * <p>
+ * Recording is a couple of atomic increments and could be done from any number of threads; reading is not atomic
+ * with respect to the concurrent recording, which is fine for monitoring.
+ */
+public class Histogram {
+
+    /**
+     * Bits of the value kept exactly in each bucket: 2^SUB_BITS sub-buckets per power of two
+     */
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int BUCKETS = SUB_COUNT + (64 - SUB_BITS) * HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    static int indexOf(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+    }
+
+    /**
+     * @return the smallest value that goes to the bucket with the given index
+     */
+    static long lowestValueAt(int index) {
+        if (index < SUB_COUNT)
+            return index;
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        return (long) ((index - SUB_COUNT) % HALF_COUNT + HALF_COUNT) << shift;
+    }
+
+    /**
+     * @return value in the middle of the bucket with the given index, to report
+     */
+    static long medianValueAt(int index) {
+        if (index < SUB_COUNT)
+            return index;
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        return lowestValueAt(index) + (1L << (shift - 1));
+    }
+
+    /**
+     * Add the value. Negative values are counted as zeroes.
+     *
+     * @param value to add
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        if (value > max.get())
+            max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Add the time passed since the given moment, in microseconds.
+     *
+     * @param startedAt {@link System#nanoTime()} at the start of the measured operation
+     */
+    public void recordMicrosSince(long startedAt) {
+        record((System.nanoTime() - startedAt) / 1000);
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return exact average of the recorded values, 0 if there are none
+     */
+    public double getMean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Get the value such that the given percent of the recorded values are not greater than it, up to the bucket
+     * precision.
+     *
+     * @param percentile from 0 to 100
+     *
+     * @return the value or 0 if nothing is recorded yet
+     */
+    public long getValueAtPercentile(double percentile) {
+        return getValuesAtPercentiles(percentile)[0];
+    }
+
+    /**
+     * Same as {@link #getValueAtPercentile(double)} for several percentiles at once, in one pass.
+     *
+     * @param percentiles in ascending order
+     *
+     * @return values at these percentiles
+     */
+    public long[] getValuesAtPercentiles(double... percentiles) {
+        long[] values = new long[percentiles.length];
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            n += (snapshot[i] = counts.get(i));
+        if (n == 0)
+            return values;
+        long maxValue = max.get();
+        long seen = 0;
+        int bucket = -1;
+        for (int k = 0; k < percentiles.length; k++) {
+            long rank = Math.max(1, (long) Math.ceil(n * Math.min(percentiles[k], 100.0) / 100.0));
+            while (seen < rank && bucket < BUCKETS - 1)
+                seen += snapshot[++bucket];
+            values[k] = rank >= n ? maxValue : Math.min(medianValueAt(bucket), maxValue);
+        }
+        return values;
+    }
+
+    /**
+     * Forget all the recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @return count, rounded mean, max and the common percentiles, to report in the statistics
+     */
+    public Binder toBinder() {
+        long[] p = getValuesAtPercentiles(50, 90, 99, 99.9);
+        return Binder.of(
+                "count", getCount(),
+                "mean", Math.round(getMean()),
+                "p50", p[0],
+                "p90", p[1],
+                "p99", p[2],
+                "p999", p[3],
+                "max", getMax()
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "Histogram" + toBinder();
+    }
+}
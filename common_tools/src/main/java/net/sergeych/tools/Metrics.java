@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package net.sergeych.tools;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Named counters, histograms and gauges of some component, to see what it does under load without a profiler.
+ * <p>
+ * Counters are {@link LongAdder}s and histograms are {@link Histogram}s, both created on the first request and never
+ * locked on update. The lookup by name is a concurrent map read, so the hot paths should rather keep the returned
+ * instances in fields. Gauges are suppliers called only when the statistics are collected, e.g. queue sizes.
+ * <p>
+ * Registries of the parts of the component could be included into it, to report all of them together. Names are
+ * flat, so it is a good idea to prefix them with the part name, like "udp.retransmits".
+ */
+public class Metrics {
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Supplier<?>> gauges = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Metrics> included = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param name of the counter
+     *
+     * @return the counter, created if not yet exists
+     */
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * @param name of the histogram
+     *
+     * @return the histogram, created if not yet exists
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Register the value to report as is, replacing the gauge with the same name if any.
+     *
+     * @param name     of the gauge
+     * @param supplier called each time the statistics are collected, should be fast and thread safe
+     */
+    public void gauge(String name, Supplier<?> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Report the other registry together with this one. Does nothing if it is already included.
+     *
+     * @param other registry to include
+     */
+    public void include(Metrics other) {
+        if (other != this)
+            included.addIfAbsent(other);
+    }
+
+    /**
+     * Forget the counted values and recorded histograms of this and included registries. Gauges are kept.
+     */
+    public void reset() {
+        counters.values().forEach(LongAdder::reset);
+        histograms.values().forEach(Histogram::reset);
+        included.forEach(Metrics::reset);
+    }
+
+    /**
+     * Collect current values of this and included registries.
+     *
+     * @return binder with "counters", "gauges" and "histograms" by name
+     */
+    public Binder getStats() {
+        Binder c = new Binder();
+        Binder g = new Binder();
+        Binder h = new Binder();
+        collect(c, g, h);
+        return Binder.of(
+                "counters", c,
+                "gauges", g,
+                "histograms", h
+        );
+    }
+
+    private void collect(Binder c, Binder g, Binder h) {
+        counters.forEach((name, counter) -> c.put(name, counter.sum()));
+        gauges.forEach((name, supplier) -> {
+            Object value;
+            try {
+                value = supplier.get();
+            } catch (Exception e) {
+                value = e.toString();
+            }
+            g.put(name, value);
+        });
+        histograms.forEach((name, histogram) -> h.put(name, histogram.toBinder()));
+        for (Metrics m : included)
+            m.collect(c, g, h);
+    }
+}
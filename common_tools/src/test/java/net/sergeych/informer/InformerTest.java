@@ -3,8 +3,13 @@ package net.sergeych.informer;
 import org.junit.Before;
 import org.junit.Test;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
 
 /**
  * Created by sergeych on 14/02/16.
@@ -172,4 +177,65 @@ public class InformerTest {
         informer.post(222);
         assertEquals("badOne", lastExceptionContext.getMethod().getName());
     }
+
+    static public class Collector {
+
+        public final List<Object> events = Collections.synchronizedList(new ArrayList<>());
+        public final CountDownLatch started = new CountDownLatch(1);
+        public volatile CountDownLatch gate = new CountDownLatch(0);
+
+        @Subscriber
+        public void onInteger(Integer x) throws InterruptedException {
+            started.countDown();
+            gate.await();
+            events.add(x);
+        }
+    }
+
+    @Test
+    public void postAsync() throws Exception {
+        informer = new Informer(null, 2);
+        Collector c = new Collector();
+        c.gate = new CountDownLatch(1);
+        informer.registerStrong(c);
+
+        assertTrue(informer.postAsync(1));
+        assertTrue(c.started.await(1, TimeUnit.SECONDS));
+        // the first is being processed, 2 more could wait in the queue
+        assertTrue(informer.postAsync(2));
+        assertTrue(informer.postAsync(3));
+        assertFalse(informer.postAsync(4));
+        assertEquals(1, informer.getDroppedCount());
+
+        c.gate.countDown();
+        informer.postAfter(5, 10);
+        long until = System.currentTimeMillis() + 2000;
+        while (c.events.size() < 4 && System.currentTimeMillis() < until)
+            sleep(10);
+        assertEquals(4, c.events.size());
+        assertEquals(1, c.events.get(0));
+        assertEquals(2, c.events.get(1));
+        assertEquals(3, c.events.get(2));
+        assertEquals(5, c.events.get(3));
+    }
+
+    @Test
+    public void registerWhilePosting() throws Exception {
+        Receiver1 late = new Receiver1();
+        Object registrar = new Object() {
+            @Subscriber
+            public void onString(String x) {
+                informer.registerStrong(late);
+                informer.unregister(this);
+            }
+        };
+        informer.registerStrong(registrar);
+        informer.post("first");
+        // late subscriber is not called with the event being posted
+        assertEquals(0, Receiver1.stringCalls);
+        informer.post("second");
+        assertEquals(2, Receiver1.stringCalls);
+        assertEquals("second", late.lastString);
+        assertFalse(informer.unregister(registrar));
+    }
 }
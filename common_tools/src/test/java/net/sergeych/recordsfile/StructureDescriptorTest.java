@@ -65,6 +65,9 @@ public class StructureDescriptorTest {
                 .addLongField("l");
 
         assertEquals(15, d.getSize());
+        assertEquals(0, d.getOffset("b"));
+        assertEquals(3, d.getOffset("i"));
+        assertEquals(7, d.getOffset("l"));
 
         byte[] res = d.pack(Binder.fromKeysValues(
                 "b", 'S',
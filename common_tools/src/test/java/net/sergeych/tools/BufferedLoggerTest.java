@@ -2,10 +2,15 @@ package net.sergeych.tools;
 
 import org.junit.Test;
 
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class BufferedLoggerTest {
     @Test
@@ -95,4 +100,81 @@ public class BufferedLoggerTest {
                              .collect(Collectors.joining("\n")));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void wrapAround() throws Exception {
+        BufferedLogger log = new BufferedLogger(5);
+        List<BufferedLogger.Entry> all = new ArrayList<>();
+        for (int i = 0; i < 12; i++)
+            all.add(log.log("line " + i));
+        // readable at once, no flush needed
+        assertEquals("line 7,line 8,line 9,line 10,line 11", str(log.getCopy()));
+        assertEquals("line 10,line 11", str(log.getLast(2)));
+        // ids of purged entries are still usable to navigate
+        assertEquals("line 7,line 8", str(log.slice(all.get(2).id, 2)));
+        assertEquals("line 9,line 10", str(log.slice(all.get(11).id, -2)));
+        assertEquals("line 7,line 8", str(log.slice(all.get(9).id, -5)));
+        assertEquals("", str(log.slice(all.get(11).id, 5)));
+
+        log.clear();
+        assertEquals(0, log.getCopy().size());
+        log.log("line 12");
+        assertEquals("line 12", str(log.getLast(10)));
+        assertEquals("line 12", str(log.slice(all.get(0).id, 100)));
+    }
+
+    @Test
+    public void concurrentLogging() throws Exception {
+        BufferedLogger log = new BufferedLogger(10000);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            Thread th = new Thread(() -> {
+                for (int i = 0; i < 1000; i++)
+                    log.log(thread + ":" + i);
+            });
+            th.start();
+            threads.add(th);
+        }
+        for (Thread th : threads)
+            th.join();
+        List<BufferedLogger.Entry> entries = log.getCopy();
+        assertEquals(8000, entries.size());
+        int[] next = new int[8];
+        for (int i = 0; i < entries.size(); i++) {
+            if (i > 0)
+                assertEquals(entries.get(i - 1).id + 1, entries.get(i).id);
+            // each thread's messages are in order
+            String[] parts = entries.get(i).message.split(":");
+            int thread = Integer.parseInt(parts[0]);
+            assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+        }
+    }
+
+    @Test
+    public void overflow() throws Exception {
+        AtomicInteger printed = new AtomicInteger();
+        PrintStream slowStream = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                if (b == '\n') {
+                    printed.incrementAndGet();
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, true);
+        BufferedLogger log = new BufferedLogger(10);
+        log.printTo(slowStream, false);
+        for (int i = 0; i < 100; i++)
+            log.log("line " + i);
+        log.flush();
+        // the logger does not wait for the stream, what it has no room for is counted
+        assertTrue(log.getOverflowCount() > 0);
+        assertEquals(100, printed.get() + log.getOverflowCount());
+        assertEquals("line 90,line 91,line 92,line 93,line 94,line 95,line 96,line 97,line 98,line 99",
+                str(log.getCopy()));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package net.sergeych.tools;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void buckets() throws Exception {
+        // small values are exact
+        for (int i = 0; i < 64; i++) {
+            assertEquals(i, Histogram.indexOf(i));
+            assertEquals(i, Histogram.lowestValueAt(i));
+        }
+        // buckets are contiguous and each value falls between its bucket bounds
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            int index = Histogram.indexOf(value);
+            assertTrue(Histogram.lowestValueAt(index) <= value);
+            assertTrue(index == Histogram.indexOf(Long.MAX_VALUE) || Histogram.lowestValueAt(index + 1) > value);
+            assertEquals(index, Histogram.indexOf(Histogram.lowestValueAt(index)));
+        }
+        assertEquals(Histogram.indexOf(Long.MAX_VALUE - 1), Histogram.indexOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles() throws Exception {
+        Histogram h = new Histogram();
+        assertEquals(0, h.getValueAtPercentile(99));
+        for (int i = 1; i <= 100000; i++)
+            h.record(i);
+        assertEquals(100000, h.getCount());
+        assertEquals(50000.5, h.getMean(), 1e-9);
+        assertEquals(100000, h.getMax());
+        long[] p = h.getValuesAtPercentiles(50, 99, 100);
+        assertEquals(50000, p[0], 50000 * 0.016);
+        assertEquals(99000, p[1], 99000 * 0.016);
+        assertEquals(100000, p[2]);
+        assertEquals(p[1], h.getValueAtPercentile(99));
+
+        h.reset();
+        assertEquals(0, h.getCount());
+        h.record(7);
+        assertEquals(7, h.getValueAtPercentile(50));
+        assertEquals(7, h.toBinder().getLongOrThrow("p999"));
+    }
+
+    @Test
+    public void concurrentRecording() throws Exception {
+        Histogram h = new Histogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++)
+                    h.record(i % 1000);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(40000, h.getCount());
+        assertEquals(999, h.getMax());
+        assertEquals(500, h.getValueAtPercentile(50), 500 * 0.016);
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        Metrics m = new Metrics();
+        Metrics part = new Metrics();
+        LongAdder counter = m.counter("test.count");
+        counter.increment();
+        m.counter("test.count").add(2);
+        m.histogram("test.time").record(100);
+        part.gauge("part.size", () -> 42);
+        part.counter("part.count").increment();
+        m.include(part);
+        m.include(part);
+
+        Binder stats = m.getStats();
+        assertEquals(3, stats.getBinderOrThrow("counters").getLongOrThrow("test.count"));
+        assertEquals(1, stats.getBinderOrThrow("counters").getLongOrThrow("part.count"));
+        assertEquals(42, stats.getBinderOrThrow("gauges").getIntOrThrow("part.size"));
+        assertEquals(100, stats.getBinderOrThrow("histograms").getBinderOrThrow("test.time").getLongOrThrow("p50"));
+
+        m.reset();
+        stats = m.getStats();
+        assertEquals(0, stats.getBinderOrThrow("counters").getLongOrThrow("test.count"));
+        assertEquals(0, stats.getBinderOrThrow("counters").getLongOrThrow("part.count"));
+        assertEquals(42, stats.getBinderOrThrow("gauges").getIntOrThrow("part.size"));
+    }
+}
@@ -124,11 +124,7 @@ public abstract class AbstractPublicKey extends AbstractAsymmetricKey implements
      * @return true if the signature is correct.
      */
     public boolean checkSignature(byte[] input, byte[] signature, HashType hashType) {
-        try {
-            return checkSignature(new ByteArrayInputStream(input), signature, hashType, MAX_SALT_LENGTH);
-        } catch (IOException e) {
-            return false;
-        }
+        return checkSignature(input, signature, hashType, MAX_SALT_LENGTH);
     }
 
     /**
@@ -8,42 +8,42 @@
 package com.icodici.crypto;
 
 import com.icodici.crypto.digest.Digest;
-import com.icodici.crypto.digest.HMAC;
+import com.icodici.crypto.digest.PrecomputedHMAC;
 
 import java.nio.charset.Charset;
+import java.util.stream.IntStream;
 
 import static java.util.Arrays.copyOf;
 
 /**
  * Password-based Key Derivation Function, as defined in <a href='https://tools.ietf.org/html/rfc2898'>
  * RFC2898</a>, that uses HMAC as PRF with a given hash type.
+ * <p>
+ * The HMAC key pads are hashed once per derivation (see {@link PrecomputedHMAC}), and if the key is longer than the
+ * hash, its blocks are derived in parallel.
  *
  * Created by sergeych on 19.12.16.
  */
 public class PBKDF2 {
 
     static private Charset utf8 = Charset.forName("utf-8");
-    private final Class<? extends Digest> hashClass;
+    private final PrecomputedHMAC prf;
     private final byte[] salt;
     private final int c;
     private final int dkLen;
     private final int hLen;
     private byte[] computed;
-    private byte[] passwordBytes;
 
     private PBKDF2(Class<? extends Digest> hashClass,
                   String password,
                   byte[] salt,
                   int c,
                   int dkLen) {
-        this.hashClass = hashClass;
-        passwordBytes = password.getBytes(utf8);
+        prf = new PrecomputedHMAC(password.getBytes(utf8), hashClass);
         this.salt = salt;
         this.c = c;
         this.dkLen = dkLen;
-
-        Digest d = hashInstance();
-        hLen = d.getLength();
+        hLen = prf.getLength();
     }
 
     private byte[] compute() {
@@ -52,43 +52,40 @@ public class PBKDF2 {
             int nBlocks = (dkLen + hLen - 1) / hLen;
             byte[] result = new byte[nBlocks * hLen];
 
-            for (int i = 0; i < nBlocks; i++) {
-                System.arraycopy(F(i + 1), 0, result, i * hLen, hLen);
+            if (nBlocks > 1 && Runtime.getRuntime().availableProcessors() > 1) {
+                IntStream.range(0, nBlocks).parallel().forEach(i ->
+                        System.arraycopy(F(prf.copy(), i + 1), 0, result, i * hLen, hLen)
+                );
+            } else {
+                for (int i = 0; i < nBlocks; i++) {
+                    System.arraycopy(F(prf, i + 1), 0, result, i * hLen, hLen);
+                }
             }
             computed = copyOf(result, dkLen);
         }
         return computed;
     }
 
-    private byte[] F(int i) {
-        Digest d = hashInstance();
-
-        d.update(salt);
-        d.update((i>>24) & 0xFF);
-        d.update((i>>16) & 0xFF);
-        d.update((i>>8) & 0xFF);
-        d.update((i) & 0xFF);
+    private byte[] F(PrecomputedHMAC prf, int i) {
+        byte[] u = copyOf(salt, Math.max(salt.length + 4, hLen));
+        u[salt.length] = (byte) (i >> 24);
+        u[salt.length + 1] = (byte) (i >> 16);
+        u[salt.length + 2] = (byte) (i >> 8);
+        u[salt.length + 3] = (byte) i;
+        prf.compute(u, 0, salt.length + 4, u);
 
-        byte[]  block = d.digest();
-        byte [] u1 = block;
+        byte[] block = copyOf(u, hLen);
 
-        for( int k=1; k< c; k++) {
-            d = hashInstance();
-            d.update(u1);
-            byte [] u2 = d.digest();
-            for( int j=0; j<hLen; j++) {
-                block[j] ^= u2[j];
+        for (int k = 1; k < c; k++) {
+            prf.compute(u, 0, hLen, u);
+            for (int j = 0; j < hLen; j++) {
+                block[j] ^= u[j];
             }
-            u1 = u2;
         }
         return block;
     }
 
-    private Digest hashInstance() {
-        return new HMAC(passwordBytes, hashClass);
-    }
-
     public static byte[] derive(Class<? extends Digest> hash, String password, byte[] salt, int c, int dkLen) {
         return new PBKDF2(hash, password, salt, c, dkLen).compute();
     }
-}
\ No newline at end of file
+}
@@ -118,6 +118,25 @@ public class PublicKey extends AbstractKey {
         return publicKey.checkSignature(source, signature, hashType);
     }
 
+    @Override
+    public boolean verify(byte[] input, byte[] signature, HashType hashType) throws EncryptionError {
+        return publicKey.checkSignature(input, signature, hashType);
+    }
+
+    /**
+     * Check many signatures made with this key at once, reusing the same initialized checker and spreading large
+     * batches over the processors.
+     *
+     * @param data       signed data
+     * @param signatures signatures to check, in the same order as data
+     * @param hashType   hash type used to create the signatures
+     *
+     * @return the check results, in the same order as data
+     */
+    public boolean[] verifyAll(List<byte[]> data, List<byte[]> signatures, HashType hashType) {
+        return publicKey.checkSignatures(data, signatures, hashType);
+    }
+
     /**
      * Keys equality check. Only public keys are equal to each other. Right now private keys can't be equal to the
      * public even if the latter is its part.
@@ -55,12 +55,7 @@ public class HMAC extends Digest {
         this.hash = hashInstance();
         this.blockSize = hash.getChunkSize();
 
-        byte[] keyBlock;
-        if (key.length > blockSize) {
-            byte[] kd = new Sha256().digest(key);
-            keyBlock = Arrays.copyOf(kd, blockSize);
-        } else
-            keyBlock = Arrays.copyOf(key, blockSize);
+        byte[] keyBlock = keyBlock(key, blockSize);
 
         oKeyPad = xor(keyBlock, 0x5c);
         byte[] iKeyPad = xor(keyBlock, 0x36);
@@ -80,6 +75,17 @@ public class HMAC extends Digest {
         return d.digest();
     }
 
+    /**
+     * The key padded to the hash block size, or its hash if the key is longer.
+     */
+    static byte[] keyBlock(byte[] key, int blockSize) {
+        if (key.length > blockSize) {
+            byte[] kd = new Sha256().digest(key);
+            return Arrays.copyOf(kd, blockSize);
+        } else
+            return Arrays.copyOf(key, blockSize);
+    }
+
     protected final Digest hashInstance() {
         try {
             return hashClass.newInstance();
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.crypto.digest;
+
+import org.spongycastle.util.Memoable;
+
+import static com.icodici.crypto.SymmetricKey.xor;
+
+/**
+ * {@link HMAC} for calculating many codes with the same key, as PBKDF2 does. The padded key blocks are hashed only
+ * once, then for each code the saved inner and outer hash states are restored, so a code costs just two hash
+ * finalizations and no allocations. The results are the same as of the {@link HMAC}.
+ * <p>
+ * Requires the hash to save and restore its state, what the SpongyCastle based SHA1, SHA2 and GOST hashes do. With
+ * other hashes it falls back to the regular {@link HMAC}.
+ * <p>
+ * Instances are not thread safe, use {@link #copy()} to get one for another thread.
+ */
+public final class PrecomputedHMAC {
+
+    private final byte[] key;
+    private final Class<? extends Digest> hashClass;
+    private final int length;
+
+    private final Memoable innerState;
+    private final Memoable outerState;
+    private final org.spongycastle.crypto.Digest inner;
+    private final org.spongycastle.crypto.Digest outer;
+    private final byte[] innerHash;
+
+    /**
+     * Prepare to calculate codes with the key.
+     *
+     * @param key       secret key
+     * @param hashClass class of the hash to use
+     */
+    public PrecomputedHMAC(byte[] key, Class<? extends Digest> hashClass) {
+        this.key = key;
+        this.hashClass = hashClass;
+        Digest innerDigest = hashInstance();
+        length = innerDigest.getLength();
+        if (innerDigest instanceof SpongyCastleDigest &&
+                ((SpongyCastleDigest) innerDigest).getUnderlyingDigest() instanceof Memoable) {
+            byte[] keyBlock = HMAC.keyBlock(key, innerDigest.getChunkSize());
+            org.spongycastle.crypto.Digest md = ((SpongyCastleDigest) innerDigest).getUnderlyingDigest();
+            byte[] iKeyPad = xor(keyBlock, 0x36);
+            md.update(iKeyPad, 0, iKeyPad.length);
+            innerState = ((Memoable) md).copy();
+
+            md = ((SpongyCastleDigest) hashInstance()).getUnderlyingDigest();
+            byte[] oKeyPad = xor(keyBlock, 0x5c);
+            md.update(oKeyPad, 0, oKeyPad.length);
+            outerState = ((Memoable) md).copy();
+
+            inner = (org.spongycastle.crypto.Digest) innerState.copy();
+            outer = (org.spongycastle.crypto.Digest) outerState.copy();
+            innerHash = new byte[inner.getDigestSize()];
+        } else {
+            innerState = outerState = null;
+            inner = outer = null;
+            innerHash = null;
+        }
+    }
+
+    private PrecomputedHMAC(PrecomputedHMAC source) {
+        key = source.key;
+        hashClass = source.hashClass;
+        length = source.length;
+        innerState = source.innerState;
+        outerState = source.outerState;
+        if (innerState != null) {
+            inner = (org.spongycastle.crypto.Digest) innerState.copy();
+            outer = (org.spongycastle.crypto.Digest) outerState.copy();
+            innerHash = new byte[inner.getDigestSize()];
+        } else {
+            inner = outer = null;
+            innerHash = null;
+        }
+    }
+
+    /**
+     * @return new instance with the same key, sharing the precomputed states, to use in another thread
+     */
+    public PrecomputedHMAC copy() {
+        return new PrecomputedHMAC(this);
+    }
+
+    /**
+     * @return code length in bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Calculate the code of the data. The data and the result could be the same array.
+     *
+     * @param data   source message
+     * @param offset index to start processing from
+     * @param size   number of bytes to process
+     * @param result array to put {@link #getLength()} bytes of the code to, from the beginning
+     */
+    public void compute(byte[] data, int offset, int size, byte[] result) {
+        if (inner != null) {
+            ((Memoable) inner).reset(innerState);
+            inner.update(data, offset, size);
+            inner.doFinal(innerHash, 0);
+            ((Memoable) outer).reset(outerState);
+            outer.update(innerHash, 0, innerHash.length);
+            outer.doFinal(result, 0);
+        } else {
+            HMAC hmac = new HMAC(key, hashClass);
+            hmac.update(data, offset, size);
+            System.arraycopy(hmac.digest(), 0, result, 0, length);
+        }
+    }
+
+    /**
+     * @param data source message
+     *
+     * @return the code of the data
+     */
+    public byte[] compute(byte[] data) {
+        byte[] result = new byte[length];
+        compute(data, 0, data.length, result);
+        return result;
+    }
+
+    private Digest hashInstance() {
+        try {
+            return hashClass.newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("can't create hash instance");
+        }
+    }
+}
@@ -25,10 +25,18 @@ import org.spongycastle.util.BigIntegers;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigInteger;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
 
 /**
  * The Public Key for RSA asymmetric algorithm used together with OAEP padding.
@@ -49,6 +57,145 @@ public class RSAOAEPPublicKey extends AbstractPublicKey {
      */
     public static final HashType DEFAULT_MGF1_HASH = HashType.SHA1;
 
+    /**
+     * Maximum number of idle signature checkers kept for each hash type and salt length.
+     */
+    static final int CHECKERS_POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * Maximum number of checkers pools shared by the key instances, the least recently used ones are dropped.
+     */
+    static final int CHECKERS_POOLS_LIMIT = 1024;
+
+    /**
+     * Maximum number of the validated key parameters kept for the keys unpacked again, the least recently used ones
+     * are dropped.
+     */
+    static final int KEY_PARAMETERS_CACHE_LIMIT = 1024;
+
+    /**
+     * Batches of at least this size are checked in parallel, if there is more than one processor.
+     */
+    static final int PARALLEL_BATCH_SIZE = 16;
+
+    /**
+     * Lock-free bounded pool of initialized signature checkers for one key, hash type and salt length. A checker keeps its
+     * digests and the RSA engine initialized with the key (for the native engine it means the modulus and exponent
+     * already converted to GMP integers), so a check costs only hashing and the modular exponentiation. Only checkers
+     * that have completed the verification, thus are reset, are returned to the pool.
+     */
+    private static class CheckersPool {
+        private final AtomicReferenceArray<Signer> idle = new AtomicReferenceArray<>(CHECKERS_POOL_SIZE);
+
+        @Nullable
+        Signer acquire() {
+            for (int i = 0; i < idle.length(); i++) {
+                Signer checker = idle.get(i);
+                if (checker != null && idle.compareAndSet(i, checker, null))
+                    return checker;
+            }
+            return null;
+        }
+
+        void release(Signer checker) {
+            // if the pool is full, the checker is just dropped
+            for (int i = 0; i < idle.length(); i++) {
+                if (idle.get(i) == null && idle.compareAndSet(i, null, checker))
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Key material and signature parameters the checkers of a pool are initialized with. Equal keys are usually
+     * different instances, e.g. the ones unpacked with each contract, so they share the pools by it.
+     */
+    private static final class CheckersPoolKey {
+        private final BigInteger modulus;
+        private final BigInteger exponent;
+        private final HashType mgf1HashType;
+        private final HashType hashType;
+        private final int saltLength;
+
+        CheckersPoolKey(RSAKeyParameters keyParameters, HashType mgf1HashType, HashType hashType, int saltLength) {
+            this.modulus = keyParameters.getModulus();
+            this.exponent = keyParameters.getExponent();
+            this.mgf1HashType = mgf1HashType;
+            this.hashType = hashType;
+            this.saltLength = saltLength;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof CheckersPoolKey))
+                return false;
+            CheckersPoolKey other = (CheckersPoolKey) o;
+            return saltLength == other.saltLength && hashType == other.hashType &&
+                    mgf1HashType == other.mgf1HashType && modulus.equals(other.modulus) &&
+                    exponent.equals(other.exponent);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(modulus, exponent, mgf1HashType, hashType, saltLength);
+        }
+    }
+
+    /**
+     * Packed modulus and exponent of the key.
+     */
+    private static final class KeyMaterial {
+        private final byte[] n;
+        private final byte[] e;
+        private final int hashCode;
+
+        KeyMaterial(byte[] n, byte[] e) {
+            this.n = n.clone();
+            this.e = e.clone();
+            hashCode = 31 * Arrays.hashCode(n) + Arrays.hashCode(e);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof KeyMaterial))
+                return false;
+            KeyMaterial other = (KeyMaterial) o;
+            return hashCode == other.hashCode && Arrays.equals(n, other.n) && Arrays.equals(e, other.e);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Create the synchronized map that drops the least recently used entries above the limit.
+     */
+    private static <K, V> Map<K, V> lruMap(int limit) {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > limit;
+            }
+        });
+    }
+
+    /**
+     * Checkers pools of all the keys.
+     */
+    private static final Map<CheckersPoolKey, CheckersPool> checkersPools = lruMap(CHECKERS_POOLS_LIMIT);
+
+    /**
+     * Validated parameters of the keys. Validating the modulus takes the most of unpacking the key, and the same keys
+     * are unpacked again with every contract they sign or own.
+     */
+    private static final Map<KeyMaterial, RSAKeyParameters> keyParametersCache = lruMap(KEY_PARAMETERS_CACHE_LIMIT);
+
     /**
      * Inner state of public key.
      */
@@ -58,6 +205,7 @@ public class RSAOAEPPublicKey extends AbstractPublicKey {
         final @NonNull HashType oaepHashType;
         final @NonNull HashType mgf1HashType;
         final @NonNull SecureRandom rng;
+        final ConcurrentHashMap<Long, CheckersPool> checkers = new ConcurrentHashMap<>();
 
         State(AsymmetricBlockCipher encryptor, RSAKeyParameters keyParameters,
               HashType oaepHashType, HashType mgf1HashType, SecureRandom rng) {
@@ -101,8 +249,14 @@ public class RSAOAEPPublicKey extends AbstractPublicKey {
      * Hidden (package-private) initializer, for internal/unittest usage.
      */
     void init(byte[] n, byte[] e, HashType oaepHashType, HashType mgf1HashType, SecureRandom rng) {
-        final RSAKeyParameters pubParameters = new RSAKeyParameters(
-                false, BigIntegers.fromUnsignedByteArray(n), BigIntegers.fromUnsignedByteArray(e));
+        final KeyMaterial material = new KeyMaterial(n, e);
+        RSAKeyParameters pubParameters = keyParametersCache.get(material);
+        if (pubParameters == null) {
+            // validated out of the cache lock, the same key could be rarely validated twice
+            pubParameters = new RSAKeyParameters(
+                    false, BigIntegers.fromUnsignedByteArray(n), BigIntegers.fromUnsignedByteArray(e));
+            keyParametersCache.put(material, pubParameters);
+        }
 
         state = new State(makeEncryptor(mgf1HashType), pubParameters, oaepHashType, mgf1HashType, rng);
         resetEncryptor();
@@ -181,23 +335,12 @@ public class RSAOAEPPublicKey extends AbstractPublicKey {
     public boolean checkSignature(InputStream input, byte[] signature, HashType hashType, int saltLength) throws
             IllegalStateException, IOException {
 
+        final State state = this.state;
         if (state == null) {
             throw new IllegalStateException();
         } else {
-            final Digest primaryDigest = hashType.makeDigest();
-
-            if (saltLength == MAX_SALT_LENGTH) {
-                saltLength = getMaxSaltLength(getBitStrength(), primaryDigest.getDigestSize());
-            }
-            if (saltLength < 0) {
-                throw new RuntimeException(String.format("Incorrect salt length %s", saltLength));
-            }
-
-            final Signer signatureChecker = new PSSSigner(
-                    RSAEngineFactory.make(),
-                    primaryDigest, state.mgf1HashType.makeDigest(),
-                    saltLength);
-            signatureChecker.init(false, new ParametersWithRandom(state.keyParameters, state.rng));
+            final CheckersPool pool = getCheckersPool(state, hashType, saltLength);
+            final Signer signatureChecker = acquireChecker(state, pool, hashType, saltLength);
 
             boolean done = false;
             while (!done) {
@@ -215,10 +358,105 @@ public class RSAOAEPPublicKey extends AbstractPublicKey {
                 }
             }
 
-            return signatureChecker.verifySignature(signature);
+            boolean result = signatureChecker.verifySignature(signature);
+            pool.release(signatureChecker);
+            return result;
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Hashes the array in place, without copying it as the stream based version does.
+     */
+    @Override
+    public boolean checkSignature(byte[] input, byte[] signature, HashType hashType, int saltLength) {
+        final State state = this.state;
+        if (state == null) {
+            throw new IllegalStateException();
+        } else {
+            final CheckersPool pool = getCheckersPool(state, hashType, saltLength);
+            final Signer signatureChecker = acquireChecker(state, pool, hashType, saltLength);
+            signatureChecker.update(input, 0, input.length);
+            boolean result = signatureChecker.verifySignature(signature);
+            pool.release(signatureChecker);
+            return result;
+        }
+    }
+
+    /**
+     * Check many signatures made with this key at once, e.g. when the same node or issuer key has signed many
+     * documents. Small batches are checked with a single reused checker, large ones are spread over the processors.
+     *
+     * @param inputs     data that were signed
+     * @param signatures signatures to check, in the same order as inputs
+     * @param hashType   type of the hash function used to create the signatures
+     *
+     * @return the check results, in the same order as inputs
+     */
+    public boolean[] checkSignatures(List<byte[]> inputs, List<byte[]> signatures, HashType hashType) {
+        if (inputs.size() != signatures.size()) {
+            throw new IllegalArgumentException("inputs and signatures sizes differ");
+        }
+        final State state = this.state;
+        if (state == null) {
+            throw new IllegalStateException();
+        }
+        final int count = inputs.size();
+        final boolean[] results = new boolean[count];
+        if (count >= PARALLEL_BATCH_SIZE && Runtime.getRuntime().availableProcessors() > 1) {
+            IntStream.range(0, count).parallel().forEach(i ->
+                    results[i] = checkSignature(inputs.get(i), signatures.get(i), hashType, MAX_SALT_LENGTH));
+        } else {
+            final CheckersPool pool = getCheckersPool(state, hashType, MAX_SALT_LENGTH);
+            final Signer signatureChecker = acquireChecker(state, pool, hashType, MAX_SALT_LENGTH);
+            for (int i = 0; i < count; i++) {
+                final byte[] input = inputs.get(i);
+                signatureChecker.update(input, 0, input.length);
+                results[i] = signatureChecker.verifySignature(signatures.get(i));
+            }
+            pool.release(signatureChecker);
+        }
+        return results;
+    }
+
+    /**
+     * Get the checkers pool shared by all the instances of the key. The instance keeps the pool once it is found, so
+     * the shared ones are looked up only once per instance.
+     */
+    private static CheckersPool getCheckersPool(State state, HashType hashType, int saltLength) {
+        final long key = ((long) hashType.ordinal() << 32) | (saltLength & 0xFFFFFFFFL);
+        CheckersPool pool = state.checkers.get(key);
+        return pool != null ? pool : state.checkers.computeIfAbsent(key, k -> checkersPools.computeIfAbsent(
+                new CheckersPoolKey(state.keyParameters, state.mgf1HashType, hashType, saltLength),
+                pk -> new CheckersPool()));
+    }
+
+    /**
+     * Get the checker ready to verify a signature from the pool, or create and initialize a new one.
+     */
+    private static Signer acquireChecker(State state, CheckersPool pool, HashType hashType, int saltLength) {
+        Signer signatureChecker = pool.acquire();
+        if (signatureChecker != null) {
+            return signatureChecker;
+        }
+        final Digest primaryDigest = hashType.makeDigest();
+
+        if (saltLength == MAX_SALT_LENGTH) {
+            saltLength = getMaxSaltLength(state.keyParameters.getModulus().bitLength(), primaryDigest.getDigestSize());
+        }
+        if (saltLength < 0) {
+            throw new RuntimeException(String.format("Incorrect salt length %s", saltLength));
+        }
+
+        signatureChecker = new PSSSigner(
+                RSAEngineFactory.make(),
+                primaryDigest, state.mgf1HashType.makeDigest(),
+                saltLength);
+        signatureChecker.init(false, new ParametersWithRandom(state.keyParameters, state.rng));
+        return signatureChecker;
+    }
+
     /**
      * {@inheritDoc}
      */
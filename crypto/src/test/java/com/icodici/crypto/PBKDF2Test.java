@@ -7,13 +7,14 @@
 
 package com.icodici.crypto;
 
-import com.icodici.crypto.digest.Sha1;
-import com.icodici.crypto.digest.Sha256;
-import com.icodici.crypto.digest.Sha512;
+import com.icodici.crypto.digest.*;
 import net.sergeych.tools.Do;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
+import java.util.Arrays;
+
 import static org.junit.Assert.assertArrayEquals;
 
 /**
@@ -77,12 +78,71 @@ public class PBKDF2Test {
         assertArrayEquals(DK, key);
     }
 
-//    @Test
-//    public void timing() {
-//        for( int i=0; i<5; i++) {
-//            long t1 = System.currentTimeMillis();
-//            PBKDF2.derive(Sha256.class, "testing", "test".getBytes(), 100000, 32 );
-//            System.out.println(" -- " + (System.currentTimeMillis() - t1)+"ms");
-//        }
-//    }
+    @Test
+    public void computeSeveralBlocks() throws Exception {
+        // RFC 6070 test vector, 2 blocks
+        byte[] DK = Hex.decode("3d 2e ec 4f e4 1c 84 9b\n" +
+                                       "80 c8 d8 36 62 c0 e4 4a\n" +
+                                       "8b 29 1a 96 4c f2 f0 70\n" +
+                                       "38");
+        assertArrayEquals(DK, PBKDF2.derive(Sha1.class, "passwordPASSWORDpassword",
+                                            "saltSALTsaltSALTsaltSALTsaltSALTsalt".getBytes(), 4096, 25));
+
+        // same as the straightforward implementation, also with a hash that can't save the state
+        byte[] salt = Do.randomBytes(16);
+        for (Class<? extends Digest> hashClass : Arrays.asList(Sha256.class, Sha3_256.class)) {
+            assertArrayEquals(referenceDerive(hashClass, "password", salt, 100, 100),
+                              PBKDF2.derive(hashClass, "password", salt, 100, 100));
+        }
+    }
+
+    /**
+     * The former implementation: new HMAC for every round
+     */
+    private static byte[] referenceDerive(Class<? extends Digest> hashClass, String password, byte[] salt, int c,
+                                          int dkLen) {
+        byte[] key = password.getBytes();
+        int hLen = new HMAC(key, hashClass).getLength();
+        int nBlocks = (dkLen + hLen - 1) / hLen;
+        byte[] result = new byte[nBlocks * hLen];
+        for (int i = 1; i <= nBlocks; i++) {
+            Digest d = new HMAC(key, hashClass);
+            d.update(salt);
+            d.update((i >> 24) & 0xFF);
+            d.update((i >> 16) & 0xFF);
+            d.update((i >> 8) & 0xFF);
+            d.update((i) & 0xFF);
+            byte[] block = d.digest().clone();
+            byte[] u1 = block.clone();
+            for (int k = 1; k < c; k++) {
+                byte[] u2 = new HMAC(key, hashClass).digest(u1);
+                for (int j = 0; j < hLen; j++)
+                    block[j] ^= u2[j];
+                u1 = u2;
+            }
+            System.arraycopy(block, 0, result, (i - 1) * hLen, hLen);
+        }
+        return Arrays.copyOf(result, dkLen);
+    }
+
+    @Ignore("benchmark, start it manually")
+    @Test
+    public void benchmark() throws Exception {
+        byte[] salt = "test".getBytes();
+        for (int rounds : new int[]{100_000, 300_000, 1_000_000}) {
+            for (Class<? extends Digest> hashClass : Arrays.asList(Sha256.class, Sha1.class)) {
+                // with SHA1 the 32 bytes key takes 2 blocks
+                referenceDerive(hashClass, "testing", salt, rounds / 10, 32);
+                long t1 = System.nanoTime();
+                byte[] former = referenceDerive(hashClass, "testing", salt, rounds, 32);
+                long t2 = System.nanoTime();
+                byte[] current = PBKDF2.derive(hashClass, "testing", salt, rounds, 32);
+                long t3 = System.nanoTime();
+                assertArrayEquals(former, current);
+                System.out.println(String.format("%s, %7d rounds: %6d ms before, %6d ms now",
+                                                 hashClass.getSimpleName(), rounds,
+                                                 (t2 - t1) / 1_000_000, (t3 - t2) / 1_000_000));
+            }
+        }
+    }
 }
\ No newline at end of file
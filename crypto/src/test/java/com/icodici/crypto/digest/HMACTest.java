@@ -7,9 +7,12 @@
 
 package com.icodici.crypto.digest;
 
+import net.sergeych.tools.Do;
 import net.sergeych.utils.Base64;
 import org.junit.Test;
 
+import java.util.Arrays;
+
 import static org.junit.Assert.assertArrayEquals;
 
 public class HMACTest {
@@ -24,4 +27,23 @@ public class HMACTest {
 //        System.out.println(Base64.encodeString(digest));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void precomputed() throws Exception {
+        byte[] data = Do.randomBytes(100);
+        // short and long (hashed) keys, hashes that can and can't save the state
+        for (byte[] key : new byte[][]{"secret".getBytes(), Do.randomBytes(200)}) {
+            for (Class<? extends Digest> hashClass : Arrays.asList(Sha1.class, Sha256.class, Sha512.class,
+                    Sha3_256.class, Gost3411_2012_256.class)) {
+                PrecomputedHMAC p = new PrecomputedHMAC(key, hashClass);
+                byte[] expected = new HMAC(key, hashClass).digest(data);
+                assertArrayEquals(expected, p.compute(data));
+                // repeatedly, and in place
+                assertArrayEquals(expected, p.compute(data));
+                byte[] buffer = Arrays.copyOf(data, data.length);
+                p.compute(buffer, 0, buffer.length, buffer);
+                assertArrayEquals(expected, Arrays.copyOf(buffer, p.getLength()));
+                assertArrayEquals(expected, p.copy().compute(data));
+            }
+        }
+    }
+}
@@ -3,13 +3,18 @@ package com.icodici.crypto.rsaoaep;
 import com.icodici.crypto.EncryptionError;
 import com.icodici.crypto.HashType;
 import net.sergeych.tools.Hashable;
+import org.spongycastle.crypto.Signer;
+import org.spongycastle.crypto.params.ParametersWithRandom;
+import org.spongycastle.crypto.signers.PSSSigner;
 import org.spongycastle.util.BigIntegers;
 import org.spongycastle.util.encoders.Hex;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Collectors;
 
 /**
@@ -27,6 +32,9 @@ import java.util.stream.Collectors;
  * Decryption: 8.78989374 ms
  * Signing: 8.92703047 ms
  * Checking signature: 0.3433173 ms
+ * <p>
+ * The second part compares signature checking with a new checker for each signature (as it was done before the
+ * checkers were pooled in {@link RSAOAEPPublicKey}), with the pooled checker and with the batch check.
  */
 public class RSABenchmark {
 
@@ -119,6 +127,68 @@ public class RSABenchmark {
         );
     }
 
+    /**
+     * Check the same signatures with a new initialized checker per signature, with pooled checkers and in batches.
+     */
+    void runChecks() throws EncryptionError {
+        final int count = 1000;
+        final SecureRandom rng = new SecureRandom();
+        final List<byte[]> messages = new ArrayList<>();
+        final List<byte[]> signatures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] message = new byte[1024];
+            rng.nextBytes(message);
+            messages.add(message);
+            signatures.add(randomPrivateKey.sign(message, HashType.SHA512));
+        }
+
+        for (int pass = 0; pass < 2; pass++) {
+            // the former way: the new checker, thus engine and digests initialization, for each signature
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                final Signer checker = new PSSSigner(RSAEngineFactory.make(), HashType.SHA512.makeDigest(),
+                        randomPublicKey.state.mgf1HashType.makeDigest(),
+                        // maximum salt length for the SHA-512, as the key computes it
+                        (randomPublicKey.getBitStrength() + 7) / 8 - 64 - 2);
+                checker.init(false, new ParametersWithRandom(randomPublicKey.state.keyParameters, rng));
+                final byte[] message = messages.get(i % messages.size());
+                checker.update(message, 0, message.length);
+                if (!checker.verifySignature(signatures.get(i % signatures.size())))
+                    throw new AssertionError("bad signature");
+            }
+            final long fresh = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                if (!randomPublicKey.checkSignature(messages.get(i % messages.size()),
+                        signatures.get(i % signatures.size()), HashType.SHA512))
+                    throw new AssertionError("bad signature");
+            }
+            final long pooled = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < count; i += messages.size()) {
+                for (boolean result : randomPublicKey.checkSignatures(messages, signatures, HashType.SHA512))
+                    if (!result)
+                        throw new AssertionError("bad signature");
+            }
+            final long batch = System.nanoTime() - start;
+
+            if (pass > 0) {
+                System.out.printf("%s signature checks, each took:\n" +
+                                "   New checker: %s ms\n" +
+                                "        Pooled: %s ms\n" +
+                                "  Batch of %s: %s ms\n",
+                        count,
+                        new BigDecimal(fresh).divide(new BigDecimal(count)).divide(new BigDecimal(1000000)),
+                        new BigDecimal(pooled).divide(new BigDecimal(count)).divide(new BigDecimal(1000000)),
+                        messages.size(),
+                        new BigDecimal(batch).divide(new BigDecimal(count)).divide(new BigDecimal(1000000))
+                );
+            }
+        }
+    }
+
     public static String hashableToString(Hashable hashable) {
         return hashable.toHash().entrySet()
                 .stream()
@@ -131,7 +201,9 @@ public class RSABenchmark {
 
     public static void main(String[] args) {
         try {
-            new RSABenchmark().run();
+            RSABenchmark benchmark = new RSABenchmark();
+            benchmark.run();
+            benchmark.runChecks();
         } catch (EncryptionError encryptionError) {
             encryptionError.printStackTrace();
         }
@@ -19,11 +19,15 @@ import org.spongycastle.crypto.params.RSAKeyParameters;
 import org.spongycastle.util.BigIntegers;
 import org.spongycastle.util.encoders.Hex;
 
+import java.io.ByteArrayInputStream;
 import java.lang.reflect.Field;
 import java.math.BigInteger;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -45,7 +49,14 @@ public class RSAOAEPPublicKeyTest {
      */
     private static RSAKeyParameters randomPublicKey1;
 
+    /**
+     * Random private key able to sign with the default salt, unlike the test vectors keys.
+     */
+    private static final RSAOAEPPrivateKey randomPrivateKey = new RSAOAEPPrivateKey();
+
     static {
+        randomPrivateKey.generate(2048, BigIntegers.asUnsignedByteArray(BigInteger.valueOf(65537)), 1,
+                HashType.SHA1, HashType.SHA1);
         RSAKeyPairGenerator keyGen1 = new RSAKeyPairGenerator();
         BigInteger e1 = BigInteger.valueOf(65537);
         keyGen1.init(new RSAKeyGenerationParameters(e1, new SecureRandom(), 4096, 1));
@@ -130,6 +141,94 @@ public class RSAOAEPPublicKeyTest {
         assertTrue(publicKey.checkSignature(message, privateKey.sign(message, HashType.SHA1), HashType.SHA1));
     }
 
+    /**
+     * Test pooled signature checkers are reused safely, also after bad signatures and from many threads.
+     */
+    @Test
+    public void checkSignatureRepeatedly() throws Exception {
+        AbstractPublicKey rsaPublicKey = randomPrivateKey.getPublicKey();
+        byte[] signature = randomPrivateKey.sign(pssSpec.M, HashType.SHA512);
+        byte[] badSignature = signature.clone();
+        badSignature[10] ^= 1;
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rsaPublicKey.checkSignature(pssSpec.M, signature, HashType.SHA512));
+            assertFalse(rsaPublicKey.checkSignature(pssSpec.M, badSignature, HashType.SHA512));
+            assertFalse(rsaPublicKey.checkSignature(pssSpec.M, new byte[]{1, 2, 3}, HashType.SHA512));
+            assertTrue(rsaPublicKey.checkSignature(new ByteArrayInputStream(pssSpec.M), signature, HashType.SHA512));
+            // other hash type uses other checkers
+            assertFalse(rsaPublicKey.checkSignature(pssSpec.M, signature, HashType.SHA256));
+        }
+
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    if (!rsaPublicKey.checkSignature(pssSpec.M, signature, HashType.SHA512) ||
+                            rsaPublicKey.checkSignature(pssSpec.M, badSignature, HashType.SHA512))
+                        failures.incrementAndGet();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, failures.get());
+    }
+
+    /**
+     * Test the instances of the same key, e.g. unpacked with each contract, share the validated parameters and the
+     * pooled checkers.
+     */
+    @Test
+    public void checkersPoolsAreShared() throws Exception {
+        byte[] signature = randomPrivateKey.sign(pssSpec.M, HashType.SHA512);
+        RSAOAEPPublicKey key1 = new RSAOAEPPublicKey();
+        key1.updateFromHash(randomPrivateKey.getPublicKey().toHash());
+        RSAOAEPPublicKey key2 = new RSAOAEPPublicKey();
+        key2.updateFromHash(randomPrivateKey.getPublicKey().toHash());
+        assertSame(key1.state.keyParameters, key2.state.keyParameters);
+
+        assertTrue(key1.checkSignature(pssSpec.M, signature, HashType.SHA512));
+        assertTrue(key2.checkSignature(pssSpec.M, signature, HashType.SHA512));
+        assertEquals(1, key1.state.checkers.size());
+        assertSame(key1.state.checkers.values().iterator().next(), key2.state.checkers.values().iterator().next());
+
+        // other hash type has its own pool
+        assertFalse(key2.checkSignature(pssSpec.M, signature, HashType.SHA256));
+        assertEquals(2, key2.state.checkers.size());
+    }
+
+    /**
+     * Test {@link RSAOAEPPublicKey#checkSignatures}.
+     */
+    @Test
+    public void checkSignatures() throws Exception {
+        RSAOAEPPublicKey rsaPublicKey = (RSAOAEPPublicKey) randomPrivateKey.getPublicKey();
+        List<byte[]> inputs = new ArrayList<>();
+        List<byte[]> signatures = new ArrayList<>();
+        for (int i = 0; i < RSAOAEPPublicKey.PARALLEL_BATCH_SIZE + 4; i++) {
+            byte[] input = ("message " + i).getBytes();
+            inputs.add(input);
+            signatures.add(randomPrivateKey.sign(input, HashType.SHA512));
+        }
+        // every third one is wrong
+        for (int i = 0; i < signatures.size(); i += 3)
+            signatures.set(i, signatures.get(i + 1));
+
+        // large batch, and small one
+        for (int size : new int[]{inputs.size(), 5}) {
+            boolean[] results = rsaPublicKey.checkSignatures(inputs.subList(0, size), signatures.subList(0, size),
+                    HashType.SHA512);
+            assertEquals(size, results.length);
+            for (int i = 0; i < size; i++)
+                assertEquals(i % 3 != 0, results[i]);
+        }
+        assertEquals(0, rsaPublicKey.checkSignatures(new ArrayList<>(), new ArrayList<>(), HashType.SHA512).length);
+    }
+
     /**
      * Test {@link RSAOAEPPublicKey#toHash}.
      */
@@ -49,5 +49,10 @@ public enum Errors {
     UNKNOWN_COMMAND,
     NOT_READY,
     NOT_FOUND,
-    COMMAND_FAILED
+    COMMAND_FAILED,
+    /**
+     * Client has exceeded its request rate or the node is overloaded, the request is rejected without processing and
+     * could be repeated later
+     */
+    TOO_MANY_REQUESTS
 }
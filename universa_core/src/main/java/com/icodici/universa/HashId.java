@@ -17,7 +17,17 @@ import net.sergeych.tools.Do;
 import net.sergeych.utils.Base64;
 import net.sergeych.utils.Base64u;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 /**
  * Hash-based identity v3.
@@ -64,15 +74,25 @@ public class HashId implements Comparable<HashId> {
 
     @Override
     public boolean equals(Object obj) {
-        // Faster than compareTo:
-        if (obj instanceof HashId)
-            return Arrays.equals(digest, ((HashId) obj).digest);
+        if (obj == this)
+            return true;
+        // Faster than compareTo: different cached hashes mean different digests, otherwise
+        // Arrays.equals is intrinsified to the word-wise mismatch check on modern JVMs:
+        if (obj instanceof HashId) {
+            HashId other = (HashId) obj;
+            return hashCode == other.hashCode && Arrays.equals(digest, other.digest);
+        }
         return false;
     }
 
+    /**
+     * HashId is a key of the most of node maps, so the hash code is calculated only once, when the digest is set.
+     *
+     * @return cached hash code of the digest
+     */
     @Override
     public int hashCode() {
-        return Arrays.hashCode(digest);
+        return hashCode;
     }
 
     /**
@@ -84,7 +104,7 @@ public class HashId implements Comparable<HashId> {
      */
     public void initWith(byte[] packedData) {
         if (digest == null)
-            digest = new CompositeDigest().digest(packedData);
+            setDigest(new CompositeDigest().digest(packedData));
         else
             throw new IllegalStateException("HashId is already initialized");
     }
@@ -95,6 +115,31 @@ public class HashId implements Comparable<HashId> {
 
     protected byte[] digest;
 
+    private int hashCode;
+
+    private void setDigest(byte[] digest) {
+        this.digest = digest;
+        this.hashCode = mixedHashCode(digest);
+    }
+
+    /**
+     * Calculate well-mixed 32-bit hash of the digest. Composite digests are uniform by themselves, but digests
+     * restored from tests or legacy data may be not, so the result is passed through the murmur3 finalizer.
+     *
+     * @param digest to calculate hash of
+     *
+     * @return hash code
+     */
+    private static int mixedHashCode(byte[] digest) {
+        int h = Arrays.hashCode(digest);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
     @Override
     public int compareTo(HashId other) {
         if (digest.length != other.digest.length)
@@ -140,7 +185,7 @@ public class HashId implements Comparable<HashId> {
      */
     static public HashId withDigest(byte[] hash) {
         HashId id = new HashId();
-        id.digest = hash;
+        id.setDigest(hash);
         return id;
     }
 
@@ -159,6 +204,34 @@ public class HashId implements Comparable<HashId> {
         return new HashId(data);
     }
 
+    /**
+     * Return new HashId calculating composite digest of all data from the stream, without loading it all into the
+     * memory. The stream is read to the end but is not closed.
+     *
+     * @param in stream to read data from
+     * @return HashId instance corresponding to the data, the same as {@link #of(byte[])} would return for it
+     * @throws IOException if the stream can't be read
+     */
+    public static HashId of(InputStream in) throws IOException {
+        HashId id = new HashId();
+        id.setDigest(new CompositeDigest().digest(in));
+        return id;
+    }
+
+    /**
+     * Return new HashId calculating composite digest of the file contents. The file is memory-mapped, so it is not
+     * loaded into the heap.
+     *
+     * @param file path to the file
+     * @return HashId instance corresponding to the file contents, the same as {@link #of(byte[])} would return for it
+     * @throws IOException if the file can't be read
+     */
+    public static HashId of(Path file) throws IOException {
+        HashId id = new HashId();
+        id.setDigest(new CompositeDigest().digest(file));
+        return id;
+    }
+
     static {
         DefaultBiMapper.registerAdapter(HashId.class, new BiAdapter() {
             @Override
@@ -208,15 +281,130 @@ public class HashId implements Comparable<HashId> {
      */
     public static class CompositeDigest extends Digest {
 
+        /**
+         * Updates of at least this size are processed by 3 algorithms in parallel. Smaller ones are faster to process
+         * on the calling thread.
+         */
+        public static final int DEFAULT_PARALLEL_THRESHOLD = 64 * 1024;
+
+        /**
+         * Buffer size for stream and file digests, big enough to be processed in parallel.
+         */
+        private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+
+        private static final ExecutorService parallelPool = createParallelPool();
+
+        private static ExecutorService createParallelPool() {
+            int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+            if (threads < 2)
+                return null;
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "composite-digest");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
         private Sha512_256 sha2Digest = new Sha512_256();
         private Sha3_256 sha3Digest = new Sha3_256();
         private Gost3411_2012_256 gostDigest = new Gost3411_2012_256();
 
+        private final int parallelThreshold;
+
+        public CompositeDigest() {
+            this(DEFAULT_PARALLEL_THRESHOLD);
+        }
+
+        /**
+         * @param parallelThreshold minimal update size to process algorithms in parallel, use {@link
+         *                          Integer#MAX_VALUE} to always process them sequentially
+         */
+        public CompositeDigest(int parallelThreshold) {
+            this.parallelThreshold = parallelThreshold;
+        }
+
         @Override
         protected void _update(byte[] data, int offset, int size) {
+            if (size >= parallelThreshold && parallelPool != null) {
+                parallelUpdate(data, offset, size);
+            } else {
+                sha2Digest.update(data, offset, size);
+                sha3Digest.update(data, offset, size);
+                gostDigest.update(data, offset, size);
+            }
+        }
+
+        /**
+         * Process SHA3 and GOST in the pool while calling thread processes SHA2. If the pool is busy, the calling
+         * thread runs what is not yet started itself, so it is never slower than the sequential update.
+         */
+        private void parallelUpdate(byte[] data, int offset, int size) {
+            FutureTask<Void> sha3Task = new FutureTask<>(() -> sha3Digest.update(data, offset, size), null);
+            FutureTask<Void> gostTask = new FutureTask<>(() -> gostDigest.update(data, offset, size), null);
+            parallelPool.execute(gostTask);
+            parallelPool.execute(sha3Task);
             sha2Digest.update(data, offset, size);
-            sha3Digest.update(data, offset, size);
-            gostDigest.update(data, offset, size);
+            // FutureTask.run() does nothing if the task is already started by the pool
+            sha3Task.run();
+            gostTask.run();
+            try {
+                sha3Task.get();
+                gostTask.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while calculating digest", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("failed to calculate digest", e.getCause());
+            }
+        }
+
+        /**
+         * Digest all data from the stream reading it with big chunks, so it is processed in parallel.
+         *
+         * @param in stream to read to the end
+         * @return digest
+         * @throws IOException if the stream can't be read
+         */
+        @Override
+        public byte[] digest(InputStream in) throws IOException {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            while (true) {
+                int size = 0;
+                int n;
+                while (size < buffer.length && (n = in.read(buffer, size, buffer.length - size)) >= 0)
+                    size += n;
+                if (size > 0)
+                    update(buffer, 0, size);
+                if (size < buffer.length)
+                    break;
+            }
+            return digest();
+        }
+
+        /**
+         * Digest the contents of the file using memory mapping.
+         *
+         * @param file to digest
+         * @return digest
+         * @throws IOException if the file can't be read
+         */
+        public byte[] digest(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long length = channel.size();
+                byte[] buffer = new byte[(int) Math.min(STREAM_BUFFER_SIZE, Math.max(length, 1))];
+                // map with big regions to not exceed the 2Gb limit of the mapped buffer
+                long regionSize = 256L * STREAM_BUFFER_SIZE;
+                for (long position = 0; position < length; position += regionSize) {
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(regionSize, length - position));
+                    while (region.hasRemaining()) {
+                        int size = Math.min(buffer.length, region.remaining());
+                        region.get(buffer, 0, size);
+                        update(buffer, 0, size);
+                    }
+                }
+            }
+            return digest();
         }
 
         @Override
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Thread-safe map with {@link HashId} keys, for the hottest node maps (item and parcel processors, caches).
+ * <p>
+ * Unlike {@link java.util.concurrent.ConcurrentHashMap} it creates no node objects: keys, values and cached key hashes
+ * are kept in plain arrays with open addressing and linear probing, so the lookup scans one int array and compares
+ * digests only when the hash matches. Removal uses backward shifting, so there are no tombstones.
+ * <p>
+ * Readers do not block: {@link #get(HashId)} is done under the optimistic {@link StampedLock} read and is retried
+ * with the read lock only if some writer has interfered. Writers are serialized, which is fine as writes are much less
+ * frequent than reads. Iteration is done over snapshots, see {@link #values()} and {@link #keys()}, so it is safe to
+ * modify the map while iterating.
+ * <p>
+ * Null keys and values are not allowed.
+ *
+ * @param <V> type of values
+ */
+public class HashIdMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final StampedLock lock = new StampedLock();
+
+    // capacity is always the power of 2 and the table is never more than half full, so there is always a free slot
+    private HashId[] keys;
+    private Object[] values;
+    private int[] hashes;
+    private int size = 0;
+
+    public HashIdMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize number of entries the map should hold without resizing
+     */
+    public HashIdMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new HashId[capacity];
+        values = new Object[capacity];
+        hashes = new int[capacity];
+    }
+
+    /**
+     * @param key to look for
+     *
+     * @return value or null if there is no such key
+     */
+    public @Nullable V get(@NonNull HashId key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            V value = find(key);
+            if (lock.validate(stamp))
+                return value;
+        }
+        stamp = lock.readLock();
+        try {
+            return find(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Lookup that tolerates concurrent modification of the table (the result is then discarded by the caller): it
+     * reads each array reference once and never probes more than the table length.
+     */
+    @SuppressWarnings("unchecked")
+    private V find(HashId key) {
+        HashId[] ks = keys;
+        int[] hs = hashes;
+        Object[] vs = values;
+        int mask = ks.length - 1;
+        if (hs.length != ks.length || vs.length != ks.length)
+            return null;
+        int h = key.hashCode();
+        int i = h & mask;
+        for (int n = 0; n <= mask; n++) {
+            HashId k = ks[i];
+            if (k == null)
+                return null;
+            if (hs[i] == h && k.equals(key))
+                return (V) vs[i];
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @param key   to put
+     * @param value to put
+     *
+     * @return previous value or null
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V put(@NonNull HashId key, @NonNull V value) {
+        if (value == null)
+            throw new NullPointerException("HashIdMap does not accept null values");
+        long stamp = lock.writeLock();
+        try {
+            int h = key.hashCode();
+            int mask = keys.length - 1;
+            int i = h & mask;
+            while (keys[i] != null) {
+                if (hashes[i] == h && keys[i].equals(key)) {
+                    V old = (V) values[i];
+                    values[i] = value;
+                    return old;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            hashes[i] = h;
+            if (++size * 2 > keys.length)
+                resize(keys.length * 2);
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @param key to remove
+     *
+     * @return removed value or null if there were no such key
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V remove(@NonNull HashId key) {
+        long stamp = lock.writeLock();
+        try {
+            int h = key.hashCode();
+            int mask = keys.length - 1;
+            int i = h & mask;
+            while (keys[i] != null) {
+                if (hashes[i] == h && keys[i].equals(key)) {
+                    V old = (V) values[i];
+                    deleteSlot(i);
+                    size--;
+                    return old;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Backward shift deletion: move following entries of the probe chain to fill the gap.
+     */
+    private void deleteSlot(int gap) {
+        int mask = keys.length - 1;
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (keys[i] == null)
+                break;
+            int home = hashes[i] & mask;
+            // the entry at i can fill the gap if its home slot is not in the (gap, i] cyclic range
+            boolean canMove = gap <= i ? (home <= gap || home > i) : (home <= gap && home > i);
+            if (canMove) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                hashes[gap] = hashes[i];
+                gap = i;
+            }
+        }
+        keys[gap] = null;
+        values[gap] = null;
+        hashes[gap] = 0;
+    }
+
+    private void resize(int capacity) {
+        HashId[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldHashes = hashes;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = oldHashes[j] & mask;
+                while (keys[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+                hashes[i] = oldHashes[j];
+            }
+        }
+    }
+
+    public boolean containsKey(@NonNull HashId key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int result = size;
+        if (lock.validate(stamp))
+            return result;
+        stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            allocate(MIN_CAPACITY);
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Call the action for each entry of the snapshot of the map. It is safe to modify the map from the action.
+     *
+     * @param action to call with key and value
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<HashId, ? super V> action) {
+        HashId[] ks;
+        Object[] vs;
+        long stamp = lock.readLock();
+        try {
+            ks = new HashId[size];
+            vs = new Object[size];
+            int n = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    ks[n] = keys[i];
+                    vs[n++] = values[i];
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        for (int i = 0; i < ks.length; i++)
+            action.accept(ks[i], (V) vs[i]);
+    }
+
+    /**
+     * @return snapshot of the values
+     */
+    public List<V> values() {
+        List<V> result = new ArrayList<>();
+        forEach((k, v) -> result.add(v));
+        return result;
+    }
+
+    /**
+     * @return snapshot of the keys
+     */
+    public List<HashId> keys() {
+        List<HashId> result = new ArrayList<>();
+        forEach((k, v) -> result.add(k));
+        return result;
+    }
+}
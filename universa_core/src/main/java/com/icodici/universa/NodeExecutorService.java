@@ -1,55 +1,376 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
 package com.icodici.universa;
 
-import java.util.HashMap;
+import net.sergeych.tools.Binder;
+import net.sergeych.tools.Histogram;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
+/**
+ * Scheduled executor of the node tasks which knows what each task is doing.
+ * <p>
+ * Tasks are submitted with the descriptor: the owner (usually the node), the item id and the {@link Stage}. Nothing
+ * is ever rendered to string unless asked, and while the tracing is off the descriptor is not even stored, so
+ * describing the task costs nothing. When the tracing is on (see {@link #setTracing(int)}), each run of the task
+ * submitted since then is recorded with the moments it was due, started and finished into the bounded buffer that
+ * keeps the latest records, and {@link #tracePools()} could tell what is waiting in the queue.
+ */
 public class NodeExecutorService extends ScheduledThreadPoolExecutor {
 
-    HashMap<ScheduledFuture<?>, String> commands = new HashMap<>();
+    /**
+     * What the task does, to group the trace records.
+     */
+    public enum Stage {
+        PARCEL_DOWNLOAD,
+        PARCEL_DOWNLOADED,
+        PARCEL_PROCESS,
+        ITEM_DOWNLOAD,
+        ITEM_DOWNLOADED,
+        ITEM_CHECK,
+        POLLING,
+        CONSENSUS_NOTIFICATION,
+        DOWNLOAD_AND_COMMIT,
+        RESYNC_NOTIFICATION,
+        RESYNC_COMMIT,
+        LEDGER_CALLBACK
+    }
+
+    private volatile Trace trace;
 
     public NodeExecutorService(int corePoolSize) {
         super(corePoolSize);
     }
 
-    public String tracePools() {
-        String s = "";
-
-        for(Runnable r : getQueue()) {
-            s += " \n" + commands.get(r);
-        }
+    public NodeExecutorService(int corePoolSize, ThreadFactory threadFactory) {
+        super(corePoolSize, threadFactory);
+    }
 
-        return s;
+    /**
+     * Start recording the runs of the tasks submitted from now on, or stop it. Restarting drops the old records.
+     *
+     * @param capacity how many latest records to keep, 0 to stop tracing
+     */
+    public void setTracing(int capacity) {
+        trace = capacity > 0 ? new Trace(capacity) : null;
     }
 
+    /**
+     * @return current trace or null if the tracing is off
+     */
+    public Trace getTrace() {
+        return trace;
+    }
 
+    /**
+     * @return descriptions of the queued tasks, one per line, if the tracing is on, otherwise just the queue size
+     */
+    public String tracePools() {
+        StringBuilder sb = new StringBuilder();
+        if (trace == null)
+            return sb.append(getQueue().size()).append(" tasks queued").toString();
+        for (Runnable r : getQueue())
+            sb.append(" \n").append(r);
+        return sb.toString();
+    }
 
     /**
+     * Execute the described task as soon as possible.
+     *
+     * @param command to execute
+     * @param owner   the task belongs to, only its toString() is used and only to describe the task
+     * @param itemId  the task processes or null
+     * @param stage   of the processing
+     *
+     * @return future that could be used to cancel the task
+     *
      * @throws RejectedExecutionException {@inheritDoc}
      * @throws NullPointerException       {@inheritDoc}
      */
-    public Future<?> submit(Runnable task, String name) {
-        ScheduledFuture<?> ret = super.schedule(task, 0, NANOSECONDS);
-        commands.put(ret, name);
-
-        return ret;
+    public ScheduledFuture<?> submit(Runnable command, Object owner, HashId itemId, Stage stage) {
+        return schedule(command, 0, NANOSECONDS, owner, itemId, stage);
     }
 
+    /**
+     * Same as {@link #schedule(Runnable, long, TimeUnit)} for the described task, see {@link #submit(Runnable, Object,
+     * HashId, Stage)}.
+     *
+     * @throws RejectedExecutionException {@inheritDoc}
+     * @throws NullPointerException       {@inheritDoc}
+     */
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit,
+                                       Object owner, HashId itemId, Stage stage) {
+        Trace t = trace;
+        if (t == null)
+            return super.schedule(command, delay, unit);
+        return super.schedule(new Task(command, t, owner, itemId, stage, unit.toNanos(delay), 0), delay, unit);
+    }
 
     /**
+     * Same as {@link #scheduleAtFixedRate(Runnable, long, long, TimeUnit)} for the described task, see {@link
+     * #submit(Runnable, Object, HashId, Stage)}.
+     *
      * @throws RejectedExecutionException {@inheritDoc}
      * @throws NullPointerException       {@inheritDoc}
      * @throws IllegalArgumentException   {@inheritDoc}
      */
-    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
-                                                  long initialDelay,
-                                                  long period,
-                                                  TimeUnit unit,
-                                                  String name) {
-        ScheduledFuture<?> ret = super.scheduleAtFixedRate(command, initialDelay, period, unit);
-        commands.put(ret, name);
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit,
+                                                  Object owner, HashId itemId, Stage stage) {
+        Trace t = trace;
+        if (t == null)
+            return super.scheduleAtFixedRate(command, initialDelay, period, unit);
+        return super.scheduleAtFixedRate(
+                new Task(command, t, owner, itemId, stage, unit.toNanos(initialDelay), unit.toNanos(period)),
+                initialDelay, period, unit);
+    }
+
+    @Override
+    protected <V> RunnableScheduledFuture<V> decorateTask(Runnable runnable, RunnableScheduledFuture<V> task) {
+        return runnable instanceof Task ? new DescribedFuture<>(task, (Task) runnable) : task;
+    }
+
+    /**
+     * The traced command with its descriptor.
+     */
+    private static final class Task implements Runnable {
+        private final Runnable command;
+        private final Trace trace;
+        private final Object owner;
+        private final HashId itemId;
+        private final Stage stage;
+        private final long period;
+        private long dueAt;
+
+        Task(Runnable command, Trace trace, Object owner, HashId itemId, Stage stage, long delay, long period) {
+            this.command = command;
+            this.trace = trace;
+            this.owner = owner;
+            this.itemId = itemId;
+            this.stage = stage;
+            this.period = period;
+            dueAt = System.nanoTime() + delay;
+        }
+
+        @Override
+        public void run() {
+            long startedAt = System.nanoTime();
+            try {
+                command.run();
+            } finally {
+                trace.add(new Record(owner, itemId, stage, dueAt, startedAt, System.nanoTime()));
+                // periodic runs never overlap, so it is safe
+                dueAt += period;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return describe(owner, itemId, stage);
+        }
+    }
+
+    private static String describe(Object owner, HashId itemId, Stage stage) {
+        return owner + (itemId != null ? " > item " + itemId : "") + " :: " + stage;
+    }
+
+    /**
+     * Queued future of the traced task, the only purpose is to describe it in {@link #tracePools()}.
+     */
+    private static final class DescribedFuture<V> implements RunnableScheduledFuture<V> {
+        private final RunnableScheduledFuture<V> future;
+        private final Task task;
+
+        DescribedFuture(RunnableScheduledFuture<V> future, Task task) {
+            this.future = future;
+            this.task = task;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return future.isPeriodic();
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return future.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            // compare the original tasks to keep the FIFO order of the ones due at the same time
+            if (other instanceof DescribedFuture)
+                other = ((DescribedFuture<?>) other).future;
+            return future.compareTo(other);
+        }
+
+        @Override
+        public void run() {
+            future.run();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            return future.get();
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return future.get(timeout, unit);
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+
+    /**
+     * One run of the traced task. Times are {@link System#nanoTime()} values.
+     */
+    public static final class Record {
+        private final Object owner;
+        private final HashId itemId;
+        private final Stage stage;
+        private final long dueAt;
+        private final long startedAt;
+        private final long finishedAt;
+
+        Record(Object owner, HashId itemId, Stage stage, long dueAt, long startedAt, long finishedAt) {
+            this.owner = owner;
+            this.itemId = itemId;
+            this.stage = stage;
+            this.dueAt = dueAt;
+            this.startedAt = startedAt;
+            this.finishedAt = finishedAt;
+        }
+
+        public Object getOwner() {
+            return owner;
+        }
+
+        public HashId getItemId() {
+            return itemId;
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
 
-        return ret;
+        /**
+         * @return when the task was submitted or, if it is delayed, when it was supposed to start
+         */
+        public long getDueAt() {
+            return dueAt;
+        }
+
+        public long getStartedAt() {
+            return startedAt;
+        }
+
+        public long getFinishedAt() {
+            return finishedAt;
+        }
+
+        /**
+         * @return microseconds the task has waited in the queue after it was due
+         */
+        public long getWaitMicros() {
+            return Math.max(0, startedAt - dueAt) / 1000;
+        }
+
+        /**
+         * @return microseconds the task has been running
+         */
+        public long getRunMicros() {
+            return (finishedAt - startedAt) / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return describe(owner, itemId, stage) + " waited " + getWaitMicros() + "us, ran " + getRunMicros() + "us";
+        }
+    }
+
+    /**
+     * Bounded buffer of the latest {@link Record}s. Adding is lock-free and overwrites the oldest record when full.
+     */
+    public static final class Trace {
+        private final AtomicReferenceArray<Record> records;
+        private final AtomicLong written = new AtomicLong();
+
+        Trace(int capacity) {
+            records = new AtomicReferenceArray<>(capacity);
+        }
+
+        void add(Record record) {
+            records.set((int) (written.getAndIncrement() % records.length()), record);
+        }
+
+        /**
+         * @return number of the runs recorded since the tracing started, including the overwritten ones
+         */
+        public long getTotalCount() {
+            return written.get();
+        }
+
+        /**
+         * @return kept records, oldest first
+         */
+        public List<Record> getRecords() {
+            long end = written.get();
+            int capacity = records.length();
+            List<Record> result = new ArrayList<>((int) Math.min(end, capacity));
+            for (long i = Math.max(0, end - capacity); i < end; i++) {
+                Record r = records.get((int) (i % capacity));
+                if (r != null)
+                    result.add(r);
+            }
+            return result;
+        }
+
+        /**
+         * @return binder with the "wait" and "run" time histograms (in microseconds) of the kept records, by stage
+         */
+        public Binder getSummary() {
+            EnumMap<Stage, Histogram[]> byStage = new EnumMap<>(Stage.class);
+            for (Record r : getRecords()) {
+                Histogram[] h = byStage.computeIfAbsent(r.getStage(), k -> new Histogram[]{new Histogram(), new Histogram()});
+                h[0].record(r.getWaitMicros());
+                h[1].record(r.getRunMicros());
+            }
+            Binder summary = new Binder();
+            byStage.forEach((stage, h) -> summary.put(stage.name(), Binder.of(
+                    "wait", h[0].toBinder(),
+                    "run", h[1].toBinder()
+            )));
+            return summary;
+        }
     }
 }
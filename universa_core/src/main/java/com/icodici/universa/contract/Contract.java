@@ -15,6 +15,7 @@ import com.icodici.universa.*;
 import com.icodici.universa.contract.permissions.*;
 import com.icodici.universa.contract.roles.ListRole;
 import com.icodici.universa.contract.roles.Role;
+import com.icodici.universa.contract.roles.RoleEvaluator;
 import com.icodici.universa.contract.roles.RoleLink;
 import com.icodici.universa.contract.roles.SimpleRole;
 import com.icodici.universa.node.ItemResult;
@@ -52,6 +53,11 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
     private static final int MAX_API_LEVEL = 3;
     private final Set<Contract> revokingItems = new HashSet<>();
     private final Set<Contract> newItems = new HashSet<>();
+    /**
+     * Ids of the revoking and new items not yet taken from the lazy transaction pack, see {@link #resolveSubItems()}
+     */
+    private volatile List<HashId> pendingRevoking;
+    private List<HashId> pendingNew;
     private final Map<String, Role> roles = new HashMap<>();
     private Definition definition;
     private State state;
@@ -69,6 +75,11 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
      */
     private boolean isSealed = false;
     private final Map<PublicKey, ExtendedSignature> sealedByKeys = new HashMap<>();
+    /**
+     * Evaluates roles against {@link #sealedByKeys}, exists only while the contract is being checked, see {@link
+     * #getSealedKeysEvaluator()}
+     */
+    private RoleEvaluator sealedKeysEvaluator;
     private Set<PrivateKey> keysToSignWith = new HashSet<>();
     private HashId id;
     private TransactionPack transactionPack;
@@ -139,33 +150,17 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
             }
         } else {
             // new format: only references are included
-            for (Binder b : (List<Binder>) payload.getList("revoking", Collections.EMPTY_LIST)) {
-                HashId hid = HashId.withDigest(b.getBinaryOrThrow("composite3"));
-                Contract r = pack.getReference(hid);
-                if (r != null) {
-                    revokingItems.add(r);
-                } else {
-//                    System.out.println("Revoking item was not found in the transaction pack");
-                    addError(Errors.BAD_REVOKE, "Revoking item was not found in the transaction pack");
-                }
-            }
-            for (Binder b : (List<Binder>) payload.getList("new", Collections.EMPTY_LIST)) {
-                HashId hid = HashId.withDigest(b.getBinaryOrThrow("composite3"));
-                Contract n = pack.getReference(hid);
-                if (n != null) {
-                    newItems.add(n);
-                }else {
-//                    System.out.println("New item was not found in the transaction pack");
-                    addError(Errors.BAD_NEW_ITEM, "New item was not found in the transaction pack");
-                }
-            }
+            pendingRevoking = new ArrayList<>();
+            for (Binder b : (List<Binder>) payload.getList("revoking", Collections.EMPTY_LIST))
+                pendingRevoking.add(HashId.withDigest(b.getBinaryOrThrow("composite3")));
+            pendingNew = new ArrayList<>();
+            for (Binder b : (List<Binder>) payload.getList("new", Collections.EMPTY_LIST))
+                pendingNew.add(HashId.withDigest(b.getBinaryOrThrow("composite3")));
         }
 
-        // if exist siblings for contract (more then itself)
-        getContext();
-        if(getSiblings().size() > 1) {
-            newItems.forEach(i -> i.context = context);
-        }
+        // the lazy pack decodes referenced contracts only when they are needed
+        if (pendingRevoking == null || !pack.isLazy())
+            resolveSubItems();
 
         HashMap<Bytes, PublicKey> keys = new HashMap<Bytes, PublicKey>();
 
@@ -371,11 +366,13 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
 
     @Override
     public Set<Approvable> getRevokingItems() {
+        ensureSubItems();
         return (Set) revokingItems;
     }
 
     @Override
     public Set<Approvable> getNewItems() {
+        ensureSubItems();
         return (Set) newItems;
     }
 
@@ -397,7 +394,14 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
 
     @Override
     public boolean check(String prefix) throws Quantiser.QuantiserException {
-        return check(prefix, null);
+        List<Contract> contractsTree = getAllContractInTree();
+        // role verdicts are memoised only for the time of the check
+        contractsTree.forEach(c -> c.sealedKeysEvaluator = null);
+        try {
+            return check(prefix, contractsTree);
+        } finally {
+            contractsTree.forEach(c -> c.sealedKeysEvaluator = null);
+        }
     }
 
     private boolean check(String prefix, List<Contract> contractsTree) throws Quantiser.QuantiserException {
@@ -405,6 +409,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
         // now we looking for references only in one level of tree - among neighbours
         // but for main contract (not from new items) we looking for
         // references among new items
+        ensureSubItems();
         if (contractsTree == null)
             contractsTree = getAllContractInTree();
 
@@ -608,6 +613,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
     }
 
     public boolean paymentCheck(PublicKey issuerKey) throws Quantiser.QuantiserException {
+        ensureSubItems();
         boolean res = true;
 
         boolean hasTestTU = getStateData().get("test_transaction_units") != null;
@@ -856,6 +862,14 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
      * @return matching Contract instance or null if not found.
      */
     private Contract getRevokingItem(HashId id) {
+        ensureSubItems();
+        return findRevokingItem(id);
+    }
+
+    /**
+     * Same as {@link #getRevokingItem(HashId)} but does not resolve the subitems.
+     */
+    private Contract findRevokingItem(HashId id) {
         for (Approvable a : revokingItems) {
             if (a.getId().equals(id) && a instanceof Contract)
                 return (Contract) a;
@@ -870,6 +884,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
      * @param toRevoke is comma-separated contract to revoke
      */
     public void addRevokingItems(Contract... toRevoke) {
+        ensureSubItems();
         for (Contract c : toRevoke) {
             revokingItems.add(c);
         }
@@ -923,7 +938,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
             return false;
 
         if (!sealedByKeys.isEmpty())
-            return role.isAllowedForKeys(getSealedByKeys());
+            return getSealedKeysEvaluator().isAllowed(role);
         return role.isAllowedForKeys(
                 getKeysToSignWith()
                         .stream()
@@ -1101,6 +1116,22 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
         return sealedByKeys.keySet();
     }
 
+    /**
+     * Get the {@link RoleEvaluator} over the keys this contract is sealed with. It memoises role verdicts, so it is
+     * shared by all role checks of the contract while {@link #check(String)} is running and is dropped when it is done
+     * or when the set of signatures changes.
+     *
+     * @return evaluator for {@link #getSealedByKeys()}
+     */
+    public RoleEvaluator getSealedKeysEvaluator() {
+        RoleEvaluator evaluator = sealedKeysEvaluator;
+        if (evaluator == null) {
+            evaluator = new RoleEvaluator(sealedByKeys.keySet());
+            sealedKeysEvaluator = evaluator;
+        }
+        return evaluator;
+    }
+
     public Set<PrivateKey> getKeysToSignWith() {
         return keysToSignWith;
     }
@@ -1131,6 +1162,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
     }
 
     public byte[] sealAsV2() {
+        ensureSubItems();
         byte[] theContract = Boss.pack(
                 BossBiMapper.serialize(
                         Binder.of(
@@ -1162,6 +1194,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
     }
 
     public byte[] seal() {
+        ensureSubItems();
         Object forPack = BossBiMapper.serialize(
                 Binder.of(
                         "contract", this,
@@ -1225,6 +1258,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
                 sealedByKeys.put(key.getPublicKey(), es);
             }
         }
+        sealedKeysEvaluator = null;
 
         setOwnBinary(data);
     }
@@ -1236,6 +1270,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
         List<byte[]> signatures = new ArrayList<>();
         data.put("signatures", signatures);
         sealedByKeys.clear();
+        sealedKeysEvaluator = null;
 
         setOwnBinary(data);
     }
@@ -1548,6 +1583,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
      * @return list of siblings to be created together with this contract.
      */
     public Set<Contract> getSiblings() {
+        ensureSubItems();
         return context.siblings;
     }
 
@@ -1558,6 +1594,7 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
      * @param newContracts is comma-separated contracts
      */
     public void addNewItems(Contract... newContracts) {
+        ensureSubItems();
         for (Contract c : newContracts) {
             newItems.add(c);
         }
@@ -1767,7 +1804,23 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
         return tp.getContract();
     }
 
+    /**
+     * Same as {@link #fromPackedTransaction(byte[])}, optionally decoding the referenced contracts only when they are
+     * needed, see {@link TransactionPack#unpack(byte[], boolean, boolean)}.
+     *
+     * @param packedItem some packed from of the universa contract
+     * @param lazy       true to decode the referenced contracts on demand
+     * @return unpacked {@link Contract}
+     * @throws IOException if the packedItem is broken
+     */
+    public static Contract fromPackedTransaction(@NonNull byte[] packedItem, boolean lazy) throws IOException {
+        TransactionPack tp = TransactionPack.unpack(packedItem, true, lazy);
+        return tp.getContract();
+    }
+
     public void setTransactionPack(TransactionPack transactionPack) {
+        // the subitems are in the former pack
+        ensureSubItems();
         this.transactionPack = transactionPack;
     }
 
@@ -2229,9 +2282,76 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
         return Boss.load(Boss.dump(this));
     }
 
+    /**
+     * Take the revoking and new items from the transaction pack. Contracts loaded from the lazy {@link TransactionPack}
+     * do it on the first access to its subitems, so the referenced contracts are decoded and their signatures are
+     * verified only if needed. Others do it in the constructor.
+     * <p>
+     * The items are loaded to the local sets and {@link #pendingRevoking} is cleared only when the sets and the context
+     * are complete, so the concurrent readers that pass {@link #ensureSubItems()} never see them half-filled.
+     */
+    private synchronized void resolveSubItems() {
+        List<HashId> revoking = pendingRevoking;
+        if (revoking != null) {
+            Set<Contract> loadedRevoking = new HashSet<>();
+            for (HashId hid : revoking) {
+                try {
+                    Contract r = transactionPack.loadReference(hid);
+                    if (r != null)
+                        loadedRevoking.add(r);
+                    else
+                        addError(Errors.BAD_REVOKE, "Revoking item was not found in the transaction pack");
+                } catch (IOException e) {
+                    addError(Errors.BAD_REVOKE, hid.toBase64String(), e.toString());
+                }
+            }
+            Set<Contract> loadedNew = new HashSet<>();
+            for (HashId hid : pendingNew) {
+                try {
+                    Contract n = transactionPack.loadReference(hid);
+                    if (n != null)
+                        loadedNew.add(n);
+                    else
+                        addError(Errors.BAD_NEW_ITEM, "New item was not found in the transaction pack");
+                } catch (IOException e) {
+                    addError(Errors.BAD_NEW_ITEM, hid.toBase64String(), e.toString());
+                }
+            }
+            revokingItems.addAll(loadedRevoking);
+            newItems.addAll(loadedNew);
+        }
+
+        // if exist siblings for contract (more then itself)
+        Context c = makeContext();
+        if (c.siblings.size() > 1) {
+            newItems.forEach(i -> i.context = c);
+        }
+
+        // volatile write publishes the complete sets
+        pendingNew = null;
+        pendingRevoking = null;
+    }
+
+    /**
+     * Double-checked: the volatile {@link #pendingRevoking} is cleared last by {@link #resolveSubItems()}, and the
+     * latter checks it again under the lock.
+     */
+    private void ensureSubItems() {
+        if (pendingRevoking != null)
+            resolveSubItems();
+    }
+
     protected Context getContext() {
+        ensureSubItems();
+        return makeContext();
+    }
+
+    /**
+     * Same as {@link #getContext()} but does not resolve the subitems, to be used while they are being resolved.
+     */
+    private synchronized Context makeContext() {
         if (context == null) {
-            context = new Context(getRevokingItem(getParent()));
+            context = new Context(findRevokingItem(getParent()));
             context.siblings.add(this);
             newItems.forEach(i -> {
                 if (i.getParent() != null && i.getParent().equals(getParent()))
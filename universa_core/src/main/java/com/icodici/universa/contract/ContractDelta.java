@@ -7,10 +7,10 @@
 
 package com.icodici.universa.contract;
 
-import com.icodici.crypto.PublicKey;
 import com.icodici.universa.Errors;
 import com.icodici.universa.contract.permissions.Permission;
 import com.icodici.universa.contract.roles.Role;
+import com.icodici.universa.contract.roles.RoleEvaluator;
 import com.icodici.universa.node2.Quantiser;
 import net.sergeych.biserializer.BiMapper;
 import net.sergeych.biserializer.BossBiMapper;
@@ -132,12 +132,12 @@ public class ContractDelta {
     }
 
     private void excludePermittedChanges() throws Quantiser.QuantiserException {
-        Set<PublicKey> checkingKeys = changed.getSealedByKeys();
+        RoleEvaluator checkingKeys = changed.getSealedKeysEvaluator();
         for (String key : existing.getPermissions().keySet()) {
             Collection<Permission> permissions = existing.getPermissions().get(key);
             boolean permissionQuantized = false;
             for (Permission permission : permissions) {
-                if (permission.isAllowedForKeys(checkingKeys)) {
+                if (permission.isAllowedFor(checkingKeys)) {
                     if(!permissionQuantized) {
                         changed.checkApplicablePermissionQuantized(permission);
                         permissionQuantized = true;
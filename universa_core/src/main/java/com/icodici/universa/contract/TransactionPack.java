@@ -18,6 +18,7 @@ import net.sergeych.boss.Boss;
 import net.sergeych.tools.Binder;
 import net.sergeych.utils.Bytes;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -50,14 +51,41 @@ import java.util.stream.Collectors;
  * <p>
  * Note. To put several operations in an atomic transaction, put iy all into a single top-level contract.
  * <p>
+ * The pack could be unpacked lazily, see {@link #unpack(byte[], boolean, boolean)}: then the referenced contracts are
+ * kept as binaries indexed by their ids, and each one is decoded and its signatures are verified only when it is
+ * requested by {@link #getReference(HashId)}, e.g. when {@link Contract#check()} gets to it. This saves time and memory
+ * on deep revision chains when only the top of the tree is needed, and the check result is the same.
+ * <p>
  * This implementation is not thread safe. Synchronize your access if need.
  */
 @BiType(name = "TransactionPack")
 public class TransactionPack implements BiSerializable {
 
+    private static final String TYPE_NAME = TransactionPack.class.getAnnotation(BiType.class).name();
+
     private byte[] packedBinary;
+    /**
+     * Sealed binaries of the contract and the references {@link #packedBinary} is made of. It stays valid while they are
+     * the same instances, that is while nothing is resealed, added or removed.
+     */
+    private byte[] packedContractBinary;
+    private Map<HashId, byte[]> packedReferenceBinaries;
+    private int packedKeysCount;
+    /**
+     * Packed keys are reused when the pack is repacked
+     */
+    private final Map<PublicKey, byte[]> packedKeys = new HashMap<>();
     private boolean reconstructed = false;
     private Map<HashId, Contract> references = new HashMap<>();
+    /**
+     * Binaries of the references not decoded yet, in the lazy mode only
+     */
+    private Map<HashId, Bytes> pendingReferences = new HashMap<>();
+    private boolean lazy = false;
+    /**
+     * Cost of decoding the references in the lazy mode, limited as the whole pack decoding is in the eager mode
+     */
+    private Quantiser lazyQuantiser;
     private Set<PublicKey> keysForPack = new HashSet<>();
     private Contract contract;
 
@@ -83,8 +111,60 @@ public class TransactionPack implements BiSerializable {
         return contract;
     }
 
+    /**
+     * Get the referenced contract, decoding it if the pack is lazy and it is not decoded yet.
+     *
+     * @param id of the contract
+     *
+     * @return the contract or null if the pack has no such reference
+     * @throws IllegalArgumentException if the reference binary is broken (lazy mode only)
+     */
     public Contract getReference(HashId id) {
-        return references.get(id);
+        try {
+            return loadReference(id);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("failed to load reference " + id + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Same as {@link #getReference(HashId)} but reports the broken reference binary with the exception.
+     */
+    synchronized Contract loadReference(HashId id) throws IOException {
+        Contract c = references.get(id);
+        if (c == null && lazy) {
+            Bytes b = pendingReferences.remove(id);
+            if (b != null) {
+                c = new Contract(b.toArray(), this);
+                lazyQuantiser.addWorkCostFrom(c.getQuantiser());
+                references.put(id, c);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Decode all the references not yet decoded in the lazy mode.
+     */
+    private synchronized void loadAllReferences() {
+        if (lazy) {
+            for (HashId id : new ArrayList<>(pendingReferences.keySet()))
+                getReference(id);
+        }
+    }
+
+    /**
+     * @return number of the references not decoded yet, in the lazy mode
+     */
+    synchronized int getPendingReferencesCount() {
+        return pendingReferences.size();
+    }
+
+    /**
+     * @return true if the references are decoded on demand, see {@link #unpack(byte[], boolean, boolean)}
+     */
+    public boolean isLazy() {
+        return lazy;
     }
 
     public Contract getReference(HashIdentifiable hid) {
@@ -139,7 +219,7 @@ public class TransactionPack implements BiSerializable {
      * @param reference is {@link Contract} for adding
      */
     public void addReference(Contract reference) {
-        if (!references.containsKey(reference.getId())) {
+        if (!references.containsKey(reference.getId()) && !pendingReferences.containsKey(reference.getId())) {
             packedBinary = null;
             references.put(reference.getId(), reference);
         }
@@ -153,6 +233,7 @@ public class TransactionPack implements BiSerializable {
     public void addKeys(PublicKey... keys) {
         for (PublicKey key : keys) {
             if (!keysForPack.contains(key)) {
+                packedBinary = null;
                 keysForPack.add(key);
             }
         }
@@ -168,6 +249,7 @@ public class TransactionPack implements BiSerializable {
     protected synchronized void putReference(Contract contract) {
 //        if (!contract.isOk())
 //            throw new IllegalArgumentException("referenced contract has errors");
+        packedBinary = null;
         references.put(contract.getId(), contract);
     }
 
@@ -184,6 +266,16 @@ public class TransactionPack implements BiSerializable {
                     data.getListOrThrow("references")
             );
 
+            if (lazy) {
+                // just index the binaries, contracts will be built on demand in any order
+                lazyQuantiser = quantiser;
+                if (referenceBytesList != null) {
+                    for (Bytes b : referenceBytesList)
+                        pendingReferences.put(HashId.of(b.toArray()), b);
+                }
+                referenceBytesList = null;
+            }
+
             HashMap<ContractDependencies, Bytes> allContractsTrees = new HashMap<>();
             List<HashId> allContractsHids = new ArrayList<>();
             ArrayList<Bytes> sortedReferenceBytesList = new ArrayList<>();
@@ -276,24 +368,69 @@ public class TransactionPack implements BiSerializable {
     @Override
     public Binder serialize(BiSerializer serializer) {
         synchronized (this) {
+            Binder of = serializeBinaries();
+            of.set("references", serializer.serialize(of.getListOrThrow("references")));
+            if (of.containsKey("keys"))
+                of.set("keys", serializer.serialize(of.getListOrThrow("keys")));
+            return of;
+        }
+    }
 
-            Binder of = Binder.of(
-                    "contract", contract.getLastSealedBinary(),
-                    "references",
-                    serializer.serialize(
-                            references.values().stream()
-                                    .map(x -> x.getLastSealedBinary()).collect(Collectors.toList())
-                    )
+    /**
+     * Same as {@link #serialize(BiSerializer)} but with lists of binaries that need no serializer: the sealed contracts
+     * are put to the pack as is.
+     */
+    private Binder serializeBinaries() {
+        List<byte[]> referenceBinaries = new ArrayList<>(references.size() + pendingReferences.size());
+        references.values().forEach(x -> referenceBinaries.add(x.getLastSealedBinary()));
+        // not decoded references are saved as is
+        pendingReferences.values().forEach(x -> referenceBinaries.add(x.toArray()));
+        Binder of = Binder.of(
+                "contract", contract.getLastSealedBinary(),
+                "references", referenceBinaries
+        );
+        if (keysForPack.size() > 0) {
+            of.set("keys", keysForPack.stream()
+                    .map(x -> packedKeys.computeIfAbsent(x, PublicKey::pack))
+                    .collect(Collectors.toList()));
+        }
+        return of;
+    }
 
-            );
-            if(keysForPack.size() > 0) {
-                of.set("keys", serializer.serialize(
-                        keysForPack.stream()
-                                .map(x -> x.pack()).collect(Collectors.toList())
-                ));
-            }
-            return of;
+    /**
+     * Check that neither the contract nor the references were resealed, added or removed since {@link #packedBinary}
+     * was made. Only compares the references to the binaries, so costs nearly nothing.
+     */
+    private boolean isPackedBinaryValid() {
+        if (packedBinary == null || packedReferenceBinaries == null)
+            return false;
+        if (contract == null || contract.getLastSealedBinary() != packedContractBinary)
+            return false;
+        if (references.size() + pendingReferences.size() != packedReferenceBinaries.size())
+            return false;
+        if (keysForPack.size() != packedKeysCount)
+            return false;
+        for (Map.Entry<HashId, Contract> e : references.entrySet()) {
+            if (packedReferenceBinaries.get(e.getKey()) != e.getValue().getLastSealedBinary())
+                return false;
+        }
+        // not decoded references could not be changed, and decoded ones keep the binary instance
+        for (Map.Entry<HashId, Bytes> e : pendingReferences.entrySet()) {
+            if (packedReferenceBinaries.get(e.getKey()) != e.getValue().toArray())
+                return false;
         }
+        return true;
+    }
+
+    /**
+     * Remember what the {@link #packedBinary} is made of, see {@link #isPackedBinaryValid()}.
+     */
+    private void rememberPackedParts() {
+        packedContractBinary = contract.getLastSealedBinary();
+        packedReferenceBinaries = new HashMap<>();
+        references.forEach((id, c) -> packedReferenceBinaries.put(id, c.getLastSealedBinary()));
+        pendingReferences.forEach((id, b) -> packedReferenceBinaries.put(id, b.toArray()));
+        packedKeysCount = keysForPack.size();
     }
 
     public final boolean isReconstructed() {
@@ -311,11 +448,47 @@ public class TransactionPack implements BiSerializable {
      * @throws IOException if something went wrong
      */
     public static TransactionPack unpack(byte[] packOrContractBytes, boolean allowNonTransactions) throws IOException {
+        return unpack(packOrContractBytes, allowNonTransactions, false);
+    }
 
-        Object x = Boss.load(packOrContractBytes);
+    /**
+     * Unpack either old contract binary (all included), or newer transaction pack, optionally in the lazy mode, where
+     * the references are decoded and verified only when requested. The result of the main contract {@link
+     * Contract#check()} is the same in both modes, but with the lazy pack the broken reference binary is reported as
+     * the check error rather than the exception here.
+     *
+     * @param packOrContractBytes  binary that was packed by {@link TransactionPack#pack()}
+     * @param allowNonTransactions if false, non-trasnaction pack data will cause IOException.
+     * @param lazy                 true to decode the references on demand
+     *
+     * @return transaction, either unpacked or reconstructed from the self-contained v2 contract
+     * @throws IOException if something went wrong
+     */
+    public static TransactionPack unpack(byte[] packOrContractBytes, boolean allowNonTransactions, boolean lazy)
+            throws IOException {
+
+        Object x;
+        if (lazy) {
+            // decoded without BiMapper to set the mode before the pack is deserialized
+            x = Boss.load(packOrContractBytes, null);
+            if (x instanceof Binder) {
+                Binder data = (Binder) x;
+                if (TYPE_NAME.equals(data.getString("__type", data.getString("__t", null)))) {
+                    TransactionPack tp = new TransactionPack();
+                    tp.lazy = true;
+                    tp.deserialize(data, BossBiMapper.newDeserializer());
+                    tp.setPackedBinary(packOrContractBytes);
+                    return tp;
+                }
+            }
+        } else
+            x = Boss.load(packOrContractBytes);
 
         if (x instanceof TransactionPack) {
-            return (TransactionPack) x;
+            TransactionPack tp = (TransactionPack) x;
+            // it could be sent on as is
+            tp.setPackedBinary(packOrContractBytes);
+            return tp;
         }
 
         if (!allowNonTransactions)
@@ -324,8 +497,8 @@ public class TransactionPack implements BiSerializable {
         // This is an old v2 self-contained contract or a root v3 contract, no revokes, no siblings.
         TransactionPack tp = new TransactionPack();
         tp.reconstructed = true;
-        tp.packedBinary = packOrContractBytes;
         tp.contract = new Contract(packOrContractBytes, tp);
+        tp.setPackedBinary(packOrContractBytes);
         return tp;
     }
 
@@ -343,14 +516,34 @@ public class TransactionPack implements BiSerializable {
     }
 
 
+    private synchronized void setPackedBinary(byte[] packed) {
+        packedBinary = packed;
+        rememberPackedParts();
+    }
+
     /**
-     * Shortcut to {@link Boss#pack(Object)} for this.
+     * Same as {@link Boss#pack(Object)} for this, but the result is cached until the contract or any reference is
+     * resealed, or anything is added to the pack. The pack unpacked from the binary returns that binary.
+     * <p>
+     * The sealed binaries are spliced into the pack as is, with no serializer, so repacking costs the copying of them.
      *
      * @return packed binary
      */
     public synchronized byte[] pack() {
-        if (packedBinary == null)
-            packedBinary = Boss.pack(this);
+        if (!isPackedBinaryValid()) {
+            Binder data = serializeBinaries();
+            data.put("__type", TYPE_NAME);
+            int size = 256 + data.getBinaryOrThrow("contract").length;
+            for (byte[] b : (List<byte[]>) data.getListOrThrow("references"))
+                size += b.length + 9;
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(size);
+                new Boss.Writer(bos, null).writeObject(data);
+                setPackedBinary(bos.toByteArray());
+            } catch (IOException e) {
+                throw new IllegalStateException("failed to pack transaction", e);
+            }
+        }
         return packedBinary;
     }
 
@@ -358,6 +551,7 @@ public class TransactionPack implements BiSerializable {
      * @return map of referenced contracts
      */
     public Map<HashId, Contract> getReferences() {
+        loadAllReferences();
         return references;
     }
 
@@ -375,6 +569,7 @@ public class TransactionPack implements BiSerializable {
         contract.getNewItems().forEach(x -> System.out.println("\t\t\tnew: " + x.getId()));
         contract.getRevokingItems().forEach(x -> System.out.println("\t\t\trevoke: " + x.getId()));
         System.out.println("\tReferences:");
+        loadAllReferences();
         references.forEach((hashId, contract) -> System.out.println("\t\t" + hashId + " -> " + contract.getId()));
     }
 
@@ -11,6 +11,7 @@ import com.icodici.crypto.PublicKey;
 import com.icodici.universa.Errors;
 import com.icodici.universa.contract.Contract;
 import com.icodici.universa.contract.roles.Role;
+import com.icodici.universa.contract.roles.RoleEvaluator;
 import net.sergeych.biserializer.BiDeserializer;
 import net.sergeych.biserializer.BiSerializable;
 import net.sergeych.biserializer.BiSerializer;
@@ -120,6 +121,17 @@ public abstract class Permission implements BiSerializable, Comparable<Permissio
         return keys instanceof Set ? role.isAllowedForKeys((Set) keys) : role.isAllowedForKeys(new HashSet<>(keys));
     }
 
+    /**
+     * Check the permission role with the evaluator, reusing role verdicts it has already calculated.
+     *
+     * @param evaluator with the keys to check
+     *
+     * @return true if the keys of the evaluator are enough to use this permission
+     */
+    public boolean isAllowedFor(RoleEvaluator evaluator) {
+        return evaluator.isAllowed(role);
+    }
+
     @Override
     public Binder serialize(BiSerializer serializer) {
         Binder results = new Binder();
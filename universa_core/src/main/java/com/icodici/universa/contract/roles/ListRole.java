@@ -110,6 +110,30 @@ public class ListRole extends Role {
                 this.mode == Mode.QUORUM && this.processQuorumMode(keys);
     }
 
+    @Override
+    protected boolean isAllowedFor(RoleEvaluator evaluator) {
+        if(this.mode == null) {
+            this.mode = Mode.ALL;
+        }
+
+        switch (this.mode) {
+            case ANY:
+                return this.roles.stream().anyMatch(evaluator::isAllowed);
+            case ALL:
+                return this.roles.stream().allMatch(evaluator::isAllowed);
+            case QUORUM:
+                int counter = this.quorumSize;
+                if (counter == 0)
+                    return true;
+                for (Role role : this.roles) {
+                    if (evaluator.isAllowed(role) && --counter == 0)
+                        return true;
+                }
+                return false;
+        }
+        return false;
+    }
+
     /**
      * @param keys to check the roles by mode
      * @return
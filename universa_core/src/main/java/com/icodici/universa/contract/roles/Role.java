@@ -44,6 +44,21 @@ public abstract class Role implements BiSerializable {
 
     public abstract boolean isAllowedForKeys(Set<? extends AbstractKey> keys);
 
+    /**
+     * Check the role against keys of the {@link RoleEvaluator}. Do not call it directly, use {@link
+     * RoleEvaluator#isAllowed(Role)} instead, so the verdict is memoised. Roles combining other roles should evaluate
+     * them through the evaluator too.
+     * <p>
+     * Default implementation just calls {@link #isAllowedForKeys(Set)}.
+     *
+     * @param evaluator with the keys to check
+     *
+     * @return true if the keys of the evaluator are enough to play this role
+     */
+    protected boolean isAllowedFor(RoleEvaluator evaluator) {
+        return isAllowedForKeys(evaluator.getKeys());
+    }
+
     public abstract boolean isValid();
 
     @Override
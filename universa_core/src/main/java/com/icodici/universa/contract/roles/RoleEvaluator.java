@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.contract.roles;
+
+import com.icodici.crypto.AbstractKey;
+import com.icodici.crypto.PublicKey;
+import com.icodici.universa.contract.AnonymousId;
+import net.sergeych.utils.Bytes;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Evaluates roles against a fixed set of keys, e.g. the keys some contract is sealed with.
+ * <p>
+ * The key set is resolved once into a set of public key fingerprints, anonymous id matches are calculated once per
+ * anonymous id, and the verdict for every role (including sub-roles of {@link ListRole} and targets of {@link
+ * RoleLink}) is memoised. Therefore the instance must not outlive the state of the roles it has evaluated: {@link
+ * com.icodici.universa.contract.Contract} keeps one only for the duration of its check.
+ * <p>
+ * The result of {@link #isAllowed(Role)} is always the same as of {@link Role#isAllowedForKeys(Set)} called with the
+ * same keys.
+ */
+public class RoleEvaluator {
+
+    private final Set<? extends AbstractKey> keys;
+    private final List<AbstractKey> publicKeys = new ArrayList<>();
+    private final Set<Bytes> fingerprints = new HashSet<>();
+    private final Map<Bytes, Boolean> anonymousIdMatches = new HashMap<>();
+    private final Map<Role, Boolean> verdicts = new IdentityHashMap<>();
+
+    /**
+     * Create evaluator for the set of keys. Private keys are replaced with their public keys.
+     *
+     * @param keys to evaluate roles with. Should not be changed while the evaluator is in use.
+     */
+    public RoleEvaluator(@NonNull Set<? extends AbstractKey> keys) {
+        this.keys = keys;
+        for (AbstractKey k : keys) {
+            AbstractKey publicKey = k.getPublicKey();
+            publicKeys.add(publicKey);
+            fingerprints.add(new Bytes(publicKey.fingerprint()));
+        }
+    }
+
+    /**
+     * @return keys this evaluator checks roles with
+     */
+    public Set<? extends AbstractKey> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Check that the keys of this evaluator are enough to play the role. The result is memoised.
+     *
+     * @param role to check, could be null
+     *
+     * @return true if the role is allowed, false if not or role is null
+     */
+    public synchronized boolean isAllowed(Role role) {
+        if (role == null)
+            return false;
+        Boolean verdict = verdicts.get(role);
+        if (verdict == null) {
+            verdict = role.isAllowedFor(this);
+            verdicts.put(role, verdict);
+        }
+        return verdict;
+    }
+
+    /**
+     * @param key to look for
+     *
+     * @return true if the key (compared by fingerprint) is in the evaluated key set
+     */
+    public boolean hasKey(@NonNull PublicKey key) {
+        return fingerprints.contains(new Bytes(key.fingerprint()));
+    }
+
+    /**
+     * Check whether any of the keys matches the anonymous id. The HMAC check is performed only once per id.
+     *
+     * @param anonymousId to match
+     *
+     * @return true if some key of the set matches it
+     */
+    public synchronized boolean matchesAnonymousId(@NonNull AnonymousId anonymousId) {
+        Bytes id = new Bytes(anonymousId.getBytes());
+        Boolean match = anonymousIdMatches.get(id);
+        if (match == null) {
+            match = false;
+            for (AbstractKey k : publicKeys) {
+                try {
+                    if (k.matchAnonymousId(anonymousId.getBytes())) {
+                        match = true;
+                        break;
+                    }
+                } catch (IOException e) {
+                    // the same as in SimpleRole: broken id matches nothing
+                }
+            }
+            anonymousIdMatches.put(id, match);
+        }
+        return match;
+    }
+}
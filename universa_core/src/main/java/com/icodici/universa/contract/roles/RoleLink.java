@@ -103,6 +103,11 @@ public class RoleLink extends Role {
         return (role == null) ? false : role.isAllowedForKeys(keys);
     }
 
+    @Override
+    protected boolean isAllowedFor(RoleEvaluator evaluator) {
+        return evaluator.isAllowed(resolve());
+    }
+
     @Override
     public boolean isValid() {
         final Role role = resolve();
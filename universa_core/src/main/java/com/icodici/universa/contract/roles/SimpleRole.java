@@ -113,6 +113,19 @@ public class SimpleRole extends Role {
         });
     }
 
+    @Override
+    protected boolean isAllowedFor(RoleEvaluator evaluator) {
+        for (PublicKey key : keyRecords.keySet()) {
+            if (evaluator.hasKey(key))
+                return true;
+        }
+        for (AnonymousId anonId : anonymousIds) {
+            if (evaluator.matchesAnonymousId(anonId))
+                return true;
+        }
+        return false;
+    }
+
     public boolean isValid() {
         return !keyRecords.isEmpty() || !anonymousIds.isEmpty();
     }
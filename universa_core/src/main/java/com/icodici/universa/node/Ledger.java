@@ -12,14 +12,22 @@ import com.icodici.db.Db;
 import com.icodici.universa.HashId;
 import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
+import net.sergeych.tools.Metrics;
 
+import java.util.Collection;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Local storage for {@link StateRecord} objects, sort of a database. The implementations should not, except where
  * noted, implement any business logic, which is incapsulated in {@link StateRecord} and
  * {@link com.icodici.universa.node2.Node} classes. This is only some type of a storage.
  * <p>
+ * Besides the blocking methods, the ledger has the asynchronous ones returning {@link CompletableFuture}, which run
+ * the operations with its {@link #getExecutor()}, so the node threads do not wait for the database.
+ * <p>
  * Created by sergeych on 16/07/2017.
  */
 public interface Ledger {
@@ -123,10 +131,140 @@ public interface Ledger {
 
     default void close() {}
 
+    /**
+     * Remove the expired records, if the implementation could do it cheaper than one by one on access. Called by the
+     * node periodically.
+     */
+    default void cleanup() {}
+
     default long countRecords() {
         return -1;
     }
 
+    /**
+     * @return latencies and counters of the ledger operations, or null if the implementation does not collect them
+     */
+    default Metrics getMetrics() {
+        return null;
+    }
+
+    /**
+     * Receives the records of the ledger, see {@link #exportRecords(RecordsConsumer)}.
+     */
+    interface RecordsConsumer {
+        /**
+         * @param record      as stored
+         * @param lockOwnerId id of the item which record has locked this one or null if it is not locked
+         *
+         * @throws Exception to stop the export, it is rethrown as {@link Failure}
+         */
+        void accept(StateRecord record, HashId lockOwnerId) throws Exception;
+    }
+
+    /**
+     * Pass all the records to the consumer, e.g. to write the {@link LedgerSnapshot}. The records changed while
+     * exporting could be passed as they are either before or after the change. Lock relations are passed as item ids,
+     * as the record ids have no meaning outside of the ledger. The consumer should be fast as the ledger could hold
+     * some locks while exporting.
+     *
+     * @param consumer to pass the records to, one by one
+     *
+     * @throws UnsupportedOperationException if the ledger can't export records, see {@link #canExportRecords()}
+     */
+    default void exportRecords(RecordsConsumer consumer) {
+        throw new UnsupportedOperationException("this ledger can't export records");
+    }
+
+    /**
+     * @return true if the ledger implements {@link #exportRecords(RecordsConsumer)}, so its {@link LedgerSnapshot}
+     * could be served to the other nodes
+     */
+    default boolean canExportRecords() {
+        return false;
+    }
+
+    /**
+     * Create the new records at once, skipping the ones that already exist. Used to load the {@link LedgerSnapshot},
+     * which restores the lock relations later, so the records should not be locked.
+     *
+     * @param records new records, without record ids
+     */
+    default void importRecords(Collection<StateRecord> records) {
+        transaction(() -> {
+            for (StateRecord r : records) {
+                if (getRecord(r.getId()) == null)
+                    save(r);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return the Merkle tree of the settled records, kept up to date by the ledger, to compare the ledgers of the
+     * nodes, or null if the implementation does not keep it
+     */
+    default LedgerDigest getDigest() {
+        return null;
+    }
+
+    /**
+     * The implementations which wait for the database should have the dedicated executor, sized to their connection
+     * pool, see {@link LedgerExecutor}. By default the asynchronous operations run in the calling thread.
+     *
+     * @return executor of the asynchronous operations
+     */
+    default Executor getExecutor() {
+        return Runnable::run;
+    }
+
+    /**
+     * Run the operation with {@link #getExecutor()}.
+     *
+     * @param operation to run, usually calling the blocking methods of the ledger
+     * @param <T>       type of the result
+     *
+     * @return future completed with the result of the operation, or exceptionally with what it has thrown, or with
+     * {@link Failure} if the ledger is closed
+     */
+    default <T> CompletableFuture<T> async(Callable<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            getExecutor().execute(() -> {
+                try {
+                    future.complete(operation.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new Failure("ledger is closed", e));
+        }
+        return future;
+    }
+
+    /**
+     * Asynchronous {@link #getRecord(HashId)}.
+     */
+    default CompletableFuture<StateRecord> getRecordAsync(HashId id) {
+        return async(() -> getRecord(id));
+    }
+
+    /**
+     * Asynchronous {@link #findOrCreate(HashId)}. To save the record asynchronously use {@link
+     * StateRecord#saveAsync()}, which saves its values as they are when it is called.
+     */
+    default CompletableFuture<StateRecord> findOrCreateAsync(HashId id) {
+        return async(() -> findOrCreate(id));
+    }
+
+    /**
+     * Asynchronous {@link #transaction(Callable)}: the whole transaction runs in one thread of the {@link
+     * #getExecutor()}.
+     */
+    default <T> CompletableFuture<T> transactionAsync(Callable<T> callable) {
+        return async(() -> transaction(callable));
+    }
+
     default StateRecord getLockOwnerOf(HashId itemId) {
         return getLockOwnerOf(getRecord(itemId));
     }
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Merkle tree over the settled states of the ledger records, to find the records which differ in the ledgers of two
+ * nodes without comparing them one by one.
+ * <p>
+ * Records are split into {@link #BUCKETS} buckets by the first {@link #DEPTH} bits of the item id digest, and each
+ * bucket is the leaf of the binary tree. The value of the leaf is the XOR of the 64-bit hashes of (item id, state) of
+ * its records in the {@link #isSettled(ItemState) settled} states, and the value of the inner node is the XOR of its
+ * children, so any change is applied to the path from its leaf to the root only. Nodes are numbered as in the heap:
+ * the root is 1, the children of node n are 2n and 2n+1, the leaf of bucket b is {@link #BUCKETS} + b.
+ * <p>
+ * The ledger calls {@link #update(HashId, ItemState, ItemState)} with the previous state of the changed record, so
+ * the tree is kept up to date without reading the ledger. The changes of the transaction are collected to {@link
+ * Changes} and applied when it is committed. Where the changes are not known exactly, e.g. the transaction has failed,
+ * the ledger calls {@link #invalidate(HashId)}, and the bucket is reloaded with the {@link BucketLoader} when its leaf
+ * is needed. All the buckets are loaded once, when the tree is built for the existing ledger.
+ * <p>
+ * The bucket must not be reloaded between the change of the ledger and its update of the tree, as the loaded leaf
+ * would then miss the change or count it twice. So the ledger changes the records between {@link #beginChange()} and
+ * {@link #endChange()}, and the reloads wait for them.
+ */
+public class LedgerDigest {
+
+    public static final int DEPTH = 12;
+    public static final int BUCKETS = 1 << DEPTH;
+
+    /**
+     * Reads the ledger records of the bucket.
+     */
+    public interface BucketLoader {
+        /**
+         * @param bucket number
+         *
+         * @return item ids and states of all the records of the bucket, in any states
+         *
+         * @throws Exception if the ledger has failed
+         */
+        Map<HashId, ItemState> load(int bucket) throws Exception;
+    }
+
+    /**
+     * Changes of the records made by the ledger transaction, to apply them when it is committed, see {@link
+     * #apply(Changes)}, or to invalidate their buckets if it has failed, see {@link #invalidate(Changes)}.
+     */
+    public static final class Changes {
+        private final List<HashId> ids = new ArrayList<>();
+        private final List<ItemState> previous = new ArrayList<>();
+        private final List<ItemState> current = new ArrayList<>();
+
+        /**
+         * @param id  of the item
+         * @param was previous state or null if the record is created
+         * @param now new state or null if the record is destroyed
+         */
+        public void add(HashId id, ItemState was, ItemState now) {
+            ids.add(id);
+            previous.add(was);
+            current.add(now);
+        }
+
+        /**
+         * @param other changes made after these ones, e.g. by the nested transaction
+         */
+        public void addAll(Changes other) {
+            ids.addAll(other.ids);
+            previous.addAll(other.previous);
+            current.addAll(other.current);
+        }
+    }
+
+    private final BucketLoader loader;
+    private final long[] tree = new long[2 * BUCKETS];
+    private final BitSet dirty = new BitSet(BUCKETS);
+    // changes of the ledger hold the read lock, reloads of the buckets hold the write lock
+    private final ReadWriteLock reloads = new ReentrantReadWriteLock();
+    private long reloadedBuckets = 0;
+
+    /**
+     * @param loader to read the buckets from the ledger
+     */
+    public LedgerDigest(BucketLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * @param id of the item
+     *
+     * @return bucket the record of the item belongs to
+     */
+    public static int bucketOf(HashId id) {
+        return bucketOf(id.getDigest(), 0);
+    }
+
+    /**
+     * @param buffer holding the digest of the item id
+     * @param offset of the digest in it
+     *
+     * @return bucket the record of the item belongs to
+     */
+    public static int bucketOf(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << (DEPTH - 8)) | ((buffer[offset + 1] & 0xFF) >> (16 - DEPTH));
+    }
+
+    /**
+     * The bucket is the range of the digests from its start to the start of the next one, so the ledgers which index
+     * the records by the digests, as the SQL ones, could select it with the range query.
+     *
+     * @param bucket number
+     *
+     * @return the shortest prefix of the digests of the bucket, which is also the least digest of it
+     */
+    public static byte[] bucketStart(int bucket) {
+        return new byte[]{(byte) (bucket >> (DEPTH - 8)), (byte) (bucket << (16 - DEPTH))};
+    }
+
+    /**
+     * Only the records in the final states are compared, as the others are normally different while the item is being
+     * processed.
+     *
+     * @param state of the record
+     *
+     * @return true if the records in this state are taken into account
+     */
+    public static boolean isSettled(ItemState state) {
+        return state == ItemState.APPROVED || state == ItemState.REVOKED || state == ItemState.DECLINED;
+    }
+
+    static long hashOf(HashId id, ItemState state) {
+        if (state == null || !isSettled(state))
+            return 0;
+        // the digest bits after the bucket ones are uniformly distributed already, just mix the state in
+        byte[] digest = id.getDigest();
+        long x = state.ordinal() + 1;
+        for (int i = 2; i < 10; i++)
+            x = (x << 8) ^ (x >>> 56) ^ (digest[i] & 0xFF);
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private void apply(int bucket, long delta) {
+        for (int n = BUCKETS + bucket; n > 0; n >>= 1)
+            tree[n] ^= delta;
+    }
+
+    /**
+     * Take into account the changed state of the record.
+     *
+     * @param id  of the item
+     * @param was previous state or null if the record is created
+     * @param now new state or null if the record is destroyed
+     */
+    public synchronized void update(HashId id, ItemState was, ItemState now) {
+        long delta = hashOf(id, was) ^ hashOf(id, now);
+        if (delta != 0)
+            apply(bucketOf(id), delta);
+    }
+
+    /**
+     * Take into account the changes of the committed transaction.
+     *
+     * @param changes of the transaction
+     */
+    public synchronized void apply(Changes changes) {
+        for (int i = 0; i < changes.ids.size(); i++)
+            update(changes.ids.get(i), changes.previous.get(i), changes.current.get(i));
+    }
+
+    /**
+     * Mark the buckets of the changed records to reload, as it is not known which of the changes are made, e.g. the
+     * transaction has failed.
+     *
+     * @param changes of the transaction
+     */
+    public synchronized void invalidate(Changes changes) {
+        changes.ids.forEach(this::invalidate);
+    }
+
+    /**
+     * Called by the ledger before changing the records, the buckets are not reloaded until {@link #endChange()}. The
+     * calls could be nested. Ledger locks should be taken after this one.
+     */
+    public void beginChange() {
+        reloads.readLock().lock();
+    }
+
+    /**
+     * Called by the ledger after it has changed the records and updated the tree, see {@link #beginChange()}.
+     */
+    public void endChange() {
+        reloads.readLock().unlock();
+    }
+
+    /**
+     * Mark the bucket of the record as the one to reload, as the record is changed.
+     *
+     * @param id of the item
+     */
+    public synchronized void invalidate(HashId id) {
+        dirty.set(bucketOf(id));
+    }
+
+    /**
+     * Mark all the buckets to reload, e.g. to build the tree of the existing ledger.
+     */
+    public synchronized void invalidateAll() {
+        dirty.set(0, BUCKETS);
+    }
+
+    /**
+     * Get the values of the tree nodes, reloading the invalidated buckets under them first.
+     *
+     * @param nodes numbers of the nodes
+     *
+     * @return their values, in the same order
+     *
+     * @throws Exception if the ledger has failed to load the bucket
+     */
+    public long[] getNodes(int[] nodes) throws Exception {
+        long[] values = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            int n = nodes[i];
+            if (n < 1 || n >= 2 * BUCKETS)
+                throw new IllegalArgumentException("bad digest node: " + n);
+            int shift = DEPTH - (31 - Integer.numberOfLeadingZeros(n));
+            refresh((n << shift) - BUCKETS, ((n + 1) << shift) - BUCKETS);
+            synchronized (this) {
+                values[i] = tree[n];
+            }
+        }
+        return values;
+    }
+
+    private void refresh(int fromBucket, int toBucket) throws Exception {
+        while (true) {
+            int bucket;
+            synchronized (this) {
+                bucket = dirty.nextSetBit(fromBucket);
+                if (bucket < 0 || bucket >= toBucket)
+                    return;
+            }
+            reloads.writeLock().lock();
+            try {
+                synchronized (this) {
+                    // could be reloaded meanwhile by another caller
+                    if (!dirty.get(bucket)) {
+                        fromBucket = bucket + 1;
+                        continue;
+                    }
+                    // the changes made while it is being loaded are those of the ledger that does not call
+                    // beginChange(), they will mark it again
+                    dirty.clear(bucket);
+                }
+                long value = 0;
+                try {
+                    for (Map.Entry<HashId, ItemState> e : loader.load(bucket).entrySet())
+                        value ^= hashOf(e.getKey(), e.getValue());
+                } catch (Exception e) {
+                    invalidate(bucket);
+                    throw e;
+                }
+                synchronized (this) {
+                    apply(bucket, tree[BUCKETS + bucket] ^ value);
+                    reloadedBuckets++;
+                }
+            } finally {
+                reloads.writeLock().unlock();
+            }
+            fromBucket = bucket + 1;
+        }
+    }
+
+    private synchronized void invalidate(int bucket) {
+        dirty.set(bucket);
+    }
+
+    /**
+     * @return number of the buckets loaded from the ledger to update the tree, including the ones loaded to build it
+     */
+    public synchronized long getReloadedBuckets() {
+        return reloadedBuckets;
+    }
+
+    /**
+     * @param bucket number
+     *
+     * @return item ids and the settled states of the records of the bucket, as they are in the ledger
+     *
+     * @throws Exception if the ledger has failed to load the bucket
+     */
+    public Map<HashId, ItemState> getBucket(int bucket) throws Exception {
+        if (bucket < 0 || bucket >= BUCKETS)
+            throw new IllegalArgumentException("bad digest bucket: " + bucket);
+        Map<HashId, ItemState> records = new HashMap<>();
+        loader.load(bucket).forEach((id, state) -> {
+            if (isSettled(state))
+                records.put(id, state);
+        });
+        return records;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor of the asynchronous {@link Ledger} operations, see {@link Ledger#getExecutor()}. It has as many threads as
+ * the ledger has connections, as more of them would only wait for the connection, and queues the rest of the
+ * operations. Threads are daemon ones and stop when idle.
+ * <p>
+ * The queue is bounded. When it is full, the operation runs in the submitting thread, which so waits for the database
+ * like the ledger threads do: the producers are slowed down to the speed of the ledger rather than the queue growing
+ * without limit. Blocking the submitting thread until the queue has room is not an option, as the operations are often
+ * submitted by the ledger threads themselves, completing the previous operation. Once the executor is shut down, the
+ * operations are rejected with {@link RejectedExecutionException}.
+ */
+public class LedgerExecutor extends ThreadPoolExecutor {
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * Default capacity of the queue of the operations waiting for a thread
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /**
+     * @param name    of the threads, numbered
+     * @param threads maximum number of the threads, usually the size of the connection pool
+     */
+    public LedgerExecutor(String name, int threads) {
+        this(name, threads, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param name          of the threads, numbered
+     * @param threads       maximum number of the threads, usually the size of the connection pool
+     * @param queueCapacity maximum number of the operations waiting for a thread, the next ones run in the submitting
+     *                      thread
+     */
+    public LedgerExecutor(String name, int threads, int queueCapacity) {
+        super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(queueCapacity));
+        AtomicInteger counter = new AtomicInteger();
+        setThreadFactory(r -> {
+            Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        allowCoreThreadTimeOut(true);
+        setRejectedExecutionHandler((r, executor) -> {
+            // unlike CallerRunsPolicy, don't discard the operation silently when shut down
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("ledger executor is shut down");
+            r.run();
+        });
+    }
+}
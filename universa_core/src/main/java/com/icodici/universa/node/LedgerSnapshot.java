@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.crypto.HashType;
+import com.icodici.crypto.PrivateKey;
+import com.icodici.crypto.PublicKey;
+import com.icodici.crypto.digest.Sha256;
+import com.icodici.universa.HashId;
+import net.sergeych.boss.Boss;
+import net.sergeych.tools.Binder;
+import net.sergeych.utils.Bytes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of the whole {@link Ledger}, to bootstrap the new node at once rather than to resync it item by item.
+ * <p>
+ * The snapshot is the BOSS stream: the header binder with "format" and "version", then the chunks of up to {@link
+ * #CHUNK_RECORDS} records, each one as the binder with the packed records in "data" and its SHA-256 in "digest", and
+ * the trailer binder with the total "count" of the records and the "signature" of the node that has made it. Each
+ * record is the array of its item id digest, state ordinal, creation and expiration unix times and the digest of the
+ * item that has locked it, or null. The node signs the format name, the count and the SHA-256 of all the chunk digests,
+ * so the signature covers every record. Chunks are verified and imported one by one, so the snapshot is never kept in
+ * memory as a whole, and the damaged or truncated snapshot is detected.
+ * <p>
+ * As the signature is checked only at the end, the snapshot should be {@link #verify(InputStream, PublicKey)
+ * verified} before it is {@link #read(InputStream, Ledger, PublicKey) imported}. Records are imported with {@link
+ * Ledger#importRecords(java.util.Collection)}, the existing and the expired ones are skipped. Lock relations are
+ * restored at the end, when all the records are there.
+ */
+public class LedgerSnapshot {
+
+    public static final String FORMAT = "universa.ledger.snapshot";
+    public static final int VERSION = 1;
+    public static final int CHUNK_RECORDS = 1000;
+
+    private LedgerSnapshot() {
+    }
+
+    /**
+     * Write the snapshot of the ledger.
+     *
+     * @param ledger  to export, see {@link Ledger#exportRecords(Ledger.RecordsConsumer)}
+     * @param out     to write to, it is not closed
+     * @param nodeKey to sign the snapshot with
+     *
+     * @return number of the records written
+     *
+     * @throws IOException if the stream has failed
+     */
+    public static long write(Ledger ledger, OutputStream out, PrivateKey nodeKey) throws IOException {
+        Boss.Writer writer = new Boss.Writer(out);
+        writer.setStreamMode();
+        writer.writeObject(Binder.of(
+                "format", FORMAT,
+                "version", VERSION));
+        List<Object> chunk = new ArrayList<>(CHUNK_RECORDS);
+        Sha256 chunkDigests = new Sha256();
+        long[] count = new long[1];
+        try {
+            ledger.exportRecords((record, lockOwnerId) -> {
+                chunk.add(Arrays.asList(
+                        record.getId().getDigest(),
+                        record.getState().ordinal(),
+                        StateRecord.unixTime(record.getCreatedAt()),
+                        StateRecord.unixTime(record.getExpiresAt()),
+                        lockOwnerId != null ? lockOwnerId.getDigest() : null));
+                count[0]++;
+                if (chunk.size() == CHUNK_RECORDS)
+                    writeChunk(writer, chunk, chunkDigests);
+            });
+        } catch (Ledger.Failure e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+        if (!chunk.isEmpty())
+            writeChunk(writer, chunk, chunkDigests);
+        writer.writeObject(Binder.of(
+                "count", count[0],
+                "signature", nodeKey.sign(signedData(count[0], chunkDigests), HashType.SHA512)));
+        writer.flush();
+        return count[0];
+    }
+
+    private static void writeChunk(Boss.Writer writer, List<Object> chunk, Sha256 chunkDigests) throws IOException {
+        byte[] data = Boss.pack(chunk);
+        byte[] digest = new Sha256().digest(data);
+        writer.writeObject(Binder.of(
+                "data", data,
+                "digest", digest));
+        chunkDigests.update(digest);
+        chunk.clear();
+    }
+
+    private static byte[] signedData(long count, Sha256 chunkDigests) {
+        return Boss.pack(Arrays.asList(FORMAT, count, chunkDigests.digest()));
+    }
+
+    /**
+     * Read the whole snapshot without importing it, to check it is complete and signed by the node.
+     *
+     * @param in      to read the snapshot from, it is not closed
+     * @param nodeKey of the node that should have made the snapshot
+     *
+     * @return number of the records in the snapshot
+     *
+     * @throws IOException if the stream has failed, the snapshot is damaged or truncated or is not signed by the node
+     */
+    public static long verify(InputStream in, PublicKey nodeKey) throws IOException {
+        return read(in, null, nodeKey);
+    }
+
+    /**
+     * Read the snapshot and import its records to the ledger. The records are imported chunk by chunk, so the records
+     * of the chunks before the damaged one, if any, remain in the ledger, as well as all the records of the snapshot
+     * not signed by the node: {@link #verify(InputStream, PublicKey)} it first.
+     *
+     * @param in      to read the snapshot from, it is not closed
+     * @param ledger  to import to, or null to only verify the snapshot
+     * @param nodeKey of the node that should have made the snapshot
+     *
+     * @return number of the records in the snapshot
+     *
+     * @throws IOException if the stream has failed, the snapshot is damaged or truncated or is not signed by the node
+     */
+    public static long read(InputStream in, Ledger ledger, PublicKey nodeKey) throws IOException {
+        Boss.Reader reader = new Boss.Reader(in);
+        Binder header = readBinder(reader);
+        if (!FORMAT.equals(header.getString("format", null)))
+            throw new IOException("not a ledger snapshot");
+        if (header.getIntOrThrow("version") > VERSION)
+            throw new IOException("unsupported ledger snapshot version: " + header.getIntOrThrow("version"));
+
+        // locked item id -> lock owner item id
+        Map<HashId, HashId> locks = new HashMap<>();
+        Sha256 chunkDigests = new Sha256();
+        long count = 0;
+        while (true) {
+            Binder chunk = readBinder(reader);
+            if (chunk.containsKey("count")) {
+                if (chunk.getLongOrThrow("count") != count)
+                    throw new IOException("ledger snapshot is incomplete: " + count + " of " +
+                            chunk.getLongOrThrow("count") + " records");
+                if (!nodeKey.verify(signedData(count, chunkDigests), chunk.getBinaryOrThrow("signature"),
+                        HashType.SHA512))
+                    throw new IOException("ledger snapshot is not signed by the node");
+                break;
+            }
+            byte[] data = chunk.getBinaryOrThrow("data");
+            byte[] digest = new Sha256().digest(data);
+            if (!Arrays.equals(digest, chunk.getBinaryOrThrow("digest")))
+                throw new IOException("ledger snapshot chunk is damaged after " + count + " records");
+            chunkDigests.update(digest);
+            if (ledger == null) {
+                count += Boss.<List<?>>load(data).size();
+                continue;
+            }
+            List<List<Object>> rows = Boss.load(data);
+            List<StateRecord> records = new ArrayList<>(rows.size());
+            for (List<Object> row : rows) {
+                StateRecord r = new StateRecord(ledger, Binder.of(
+                        "id", 0L,
+                        "hash", ((Bytes) row.get(0)).toArray(),
+                        "state", row.get(1),
+                        "created_at", row.get(2),
+                        "expires_at", row.get(3),
+                        "locked_by_id", 0L));
+                if (!r.isExpired()) {
+                    records.add(r);
+                    if (row.get(4) != null)
+                        locks.put(r.getId(), HashId.withDigest(((Bytes) row.get(4)).toArray()));
+                }
+            }
+            count += rows.size();
+            ledger.importRecords(records);
+        }
+        if (!locks.isEmpty())
+            restoreLocks(ledger, locks);
+        return count;
+    }
+
+    private static void restoreLocks(Ledger ledger, Map<HashId, HashId> locks) {
+        ledger.transaction(() -> {
+            for (Map.Entry<HashId, HashId> e : locks.entrySet()) {
+                StateRecord locked = ledger.getRecord(e.getKey());
+                StateRecord owner = ledger.getRecord(e.getValue());
+                if (locked != null && owner != null && locked.getLockedByRecordId() == 0) {
+                    locked.setLockedByRecordId(owner.getRecordId());
+                    ledger.save(locked);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static Binder readBinder(Boss.Reader reader) throws IOException {
+        Object x;
+        try {
+            x = reader.read();
+        } catch (IOException | RuntimeException e) {
+            throw new IOException("ledger snapshot is truncated or damaged", e);
+        }
+        if (!(x instanceof Binder))
+            throw new IOException("ledger snapshot is damaged");
+        return (Binder) x;
+    }
+}
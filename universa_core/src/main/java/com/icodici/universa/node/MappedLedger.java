@@ -0,0 +1,1083 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.HashId;
+import com.icodici.universa.node2.NetConfig;
+import com.icodici.universa.node2.NodeInfo;
+import net.sergeych.recordsfile.StructureDescriptor;
+import net.sergeych.tools.Binder;
+import net.sergeych.tools.Histogram;
+import net.sergeych.tools.Metrics;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded ledger that keeps {@link StateRecord}s in fixed-size records of the memory-mapped file, for a node that
+ * does not want to depend on a database server.
+ * <p>
+ * Records are laid out by {@link #RECORD} in the "records" file of the ledger directory, which grows by segments of
+ * {@link #SEGMENT_RECORDS} records; the slots of the destroyed records are reused. Changes of each transaction (or
+ * of a single save) are appended to the "wal" write-ahead log as one batch and the caller waits for the log to be
+ * synced to disk, so the threads committing at the same time share one fsync. Only then the changes are written to
+ * the mapped records, and once the log grows over {@link #CHECKPOINT_SIZE} the records are forced to disk and the
+ * log is truncated. On opening, the complete batches of the log are replayed.
+ * <p>
+ * Records are found by {@link HashId} with the open-addressing hash index, and by the expiration time with the sorted
+ * one, which is used by {@link #cleanup()}. Both are kept in memory and rebuilt from the records on opening. Record
+ * ids combine the slot with the number of its reuses, so a lock owner that is destroyed is never confused with the
+ * next record in its slot.
+ * <p>
+ * The {@link LedgerDigest} is built on opening and then updated exactly by each commit, which knows both the old and
+ * the new state of the changed records.
+ * <p>
+ * Node configuration is not stored, same as with {@link SqliteLedger}.
+ */
+public class MappedLedger implements Ledger {
+
+    private static final int MAX_DIGEST_SIZE = 128;
+
+    /**
+     * Stored record layout. Fields are named as the SQL ledger columns, see {@link StateRecord#initFrom(Binder)}.
+     */
+    static final StructureDescriptor RECORD = new StructureDescriptor()
+            .addByteField("used")
+            .addByteField("state")
+            .addByteField("hash_length")
+            .addBinaryField("hash", MAX_DIGEST_SIZE)
+            .addLongField("id")
+            .addLongField("locked_by_id")
+            .addLongField("created_at")
+            .addLongField("expires_at");
+
+    private static final int RECORD_SIZE = RECORD.getSize();
+    private static final int USED_OFFSET = RECORD.getOffset("used");
+    private static final int STATE_OFFSET = RECORD.getOffset("state");
+    private static final int HASH_LENGTH_OFFSET = RECORD.getOffset("hash_length");
+    private static final int HASH_OFFSET = RECORD.getOffset("hash");
+    private static final int ID_OFFSET = RECORD.getOffset("id");
+    private static final int EXPIRES_AT_OFFSET = RECORD.getOffset("expires_at");
+
+    static final int SEGMENT_RECORDS = 1 << 16;
+    private static final long SEGMENT_SIZE = (long) SEGMENT_RECORDS * RECORD_SIZE;
+    static final long CHECKPOINT_SIZE = 64L << 20;
+    // slots read at once under the read lock by exportRecords()
+    private static final int EXPORT_CHUNK_SLOTS = 4096;
+
+    private final FileChannel recordsChannel;
+    private final FileChannel walChannel;
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    /**
+     * Guards the indexes, the slots allocation, the mapped records and the changes not yet written to them
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // hash index: slot + 1 (0 for empty) and HashId.hashCode() of the entries, linear probing
+    private int[] table = new int[1024];
+    private int[] codes = new int[1024];
+    private int recordsCount;
+
+    // slots of the records by digest bucket, in no order, to load the bucket without scanning all the slots
+    private final int[][] bucketSlots = new int[LedgerDigest.BUCKETS][];
+    private final int[] bucketSizes = new int[LedgerDigest.BUCKETS];
+
+    private final TreeSet<Integer> byExpiration = new TreeSet<>(this::compareExpiration);
+    private long[] expirations = new long[SEGMENT_RECORDS];
+
+    private int[] freeSlots = new int[64];
+    private int freeCount;
+    private int slotsCount;
+
+    /**
+     * Images of the records logged but not yet written to the mapped file, by slot, and the batches that wait to be
+     * written, in the log order
+     */
+    private final HashMap<Integer, byte[]> loggedImages = new HashMap<>();
+    private final ArrayDeque<Batch> loggedBatches = new ArrayDeque<>();
+
+    // group commit state, guarded by walMonitor; positions count all bytes ever appended to the log
+    private final Object walMonitor = new Object();
+    private long walAppended;
+    private long walSynced;
+    private boolean walSyncing;
+
+    private final ThreadLocal<Transaction> transactions = new ThreadLocal<>();
+
+    private Map<HashId, WeakReference<StateRecord>> cachedRecords = new WeakHashMap<>();
+    private boolean useCache = true;
+
+    private final Metrics metrics = new Metrics();
+    private final Histogram getRecordTime = metrics.histogram("ledger.getRecord");
+    private final Histogram findOrCreateTime = metrics.histogram("ledger.findOrCreate");
+    private final Histogram saveTime = metrics.histogram("ledger.save");
+    private final Histogram destroyTime = metrics.histogram("ledger.destroy");
+    private final Histogram transactionTime = metrics.histogram("ledger.transaction");
+    private final LongAdder cacheHits = metrics.counter("ledger.cacheHits");
+    private final LongAdder cacheMisses = metrics.counter("ledger.cacheMisses");
+    private final LongAdder failures = metrics.counter("ledger.failures");
+    private final LongAdder walSyncs = metrics.counter("ledger.walSyncs");
+    private final LongAdder checkpoints = metrics.counter("ledger.checkpoints");
+
+    private final LedgerDigest digest = new LedgerDigest(this::loadBucket);
+
+    /**
+     * A change of the record in the slot: the new image or null to free it
+     */
+    private static class Change {
+        final int slot;
+        final HashId hashId;
+        byte[] image;
+        boolean created;
+        // if not 0, the change is skipped unless the stored record still expires before it, see cleanup()
+        long expiredBefore;
+
+        Change(int slot, HashId hashId, byte[] image, boolean created) {
+            this.slot = slot;
+            this.hashId = hashId;
+            this.image = image;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Changes logged together, to be written to the records once the log is synced up to the end position
+     */
+    private static class Batch {
+        final long end;
+        final List<Change> changes;
+
+        Batch(long end, List<Change> changes) {
+            this.end = end;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * Changes collected by {@link #transaction(Callable)} to commit them at once
+     */
+    private static class Transaction {
+        final LinkedHashMap<Integer, Change> changes = new LinkedHashMap<>();
+        final HashMap<HashId, StateRecord> created = new HashMap<>();
+        // the last change of the record, to read it within the transaction
+        final HashMap<HashId, Change> latest = new HashMap<>();
+    }
+
+    /**
+     * The record with the same hash already exists
+     */
+    private static class DuplicateException extends Failure {
+        DuplicateException(HashId id) {
+            super("record already exists: " + id);
+        }
+    }
+
+    /**
+     * Open the ledger in the given directory, creating it if need, and replay the log if it was not closed properly.
+     *
+     * @param directory to keep the files in
+     *
+     * @throws IOException if the files can't be opened or read
+     */
+    public MappedLedger(String directory) throws IOException {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        recordsChannel = FileChannel.open(dir.resolve("records"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        walChannel = FileChannel.open(dir.resolve("wal"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = recordsChannel.size();
+        for (long position = 0; position < size; position += SEGMENT_SIZE)
+            addSegment();
+        replayLog();
+        scanRecords();
+        metrics.gauge("ledger.records", this::countRecords);
+    }
+
+    private void addSegment() throws IOException {
+        MappedByteBuffer[] extended = Arrays.copyOf(segments, segments.length + 1);
+        extended[segments.length] = recordsChannel.map(FileChannel.MapMode.READ_WRITE,
+                segments.length * SEGMENT_SIZE, SEGMENT_SIZE);
+        segments = extended;
+    }
+
+    private void replayLog() throws IOException {
+        long size = walChannel.size();
+        if (size == 0)
+            return;
+        ByteBuffer wal = walChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        CRC32 crc = new CRC32();
+        while (wal.remaining() >= 8) {
+            int length = wal.getInt();
+            if (length <= 4 || length > wal.remaining() - 4)
+                break;
+            byte[] body = new byte[length];
+            wal.get(body);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != wal.getInt())
+                break;
+            ByteBuffer batch = ByteBuffer.wrap(body);
+            int count = batch.getInt();
+            for (int i = 0; i < count; i++) {
+                int slot = batch.getInt();
+                byte[] image = new byte[RECORD_SIZE];
+                batch.get(image);
+                writeImage(slot, image);
+            }
+        }
+        forceSegments();
+        walChannel.truncate(0);
+        walChannel.force(true);
+    }
+
+    private void scanRecords() {
+        int totalSlots = segments.length * SEGMENT_RECORDS;
+        for (int slot = 0; slot < totalSlots; slot++) {
+            if (readLong(slot, ID_OFFSET) != 0)
+                slotsCount = slot + 1;
+        }
+        for (int slot = slotsCount - 1; slot >= 0; slot--) {
+            ByteBuffer segment = segments[slot / SEGMENT_RECORDS];
+            int offset = (slot % SEGMENT_RECORDS) * RECORD_SIZE;
+            if (segment.get(offset + USED_OFFSET) != 0) {
+                byte[] digest = new byte[segment.get(offset + HASH_LENGTH_OFFSET) & 0xFF];
+                for (int i = 0; i < digest.length; i++)
+                    digest[i] = segment.get(offset + HASH_OFFSET + i);
+                HashId id = HashId.withDigest(digest);
+                addToIndex(slot, id);
+                this.digest.update(id, null, stateOf(segment.get(offset + STATE_OFFSET)));
+                setExpiration(slot, segment.getLong(offset + EXPIRES_AT_OFFSET));
+                recordsCount++;
+            } else
+                pushFreeSlot(slot);
+        }
+    }
+
+    //////////// records ////////////
+
+    private ByteBuffer segmentOf(int slot) {
+        int index = slot / SEGMENT_RECORDS;
+        return index < segments.length ? segments[index] : null;
+    }
+
+    private long readLong(int slot, int fieldOffset) {
+        byte[] logged = loggedImages.get(slot);
+        if (logged != null)
+            return ByteBuffer.wrap(logged).getLong(fieldOffset);
+        ByteBuffer segment = segmentOf(slot);
+        return segment == null ? 0 : segment.getLong((slot % SEGMENT_RECORDS) * RECORD_SIZE + fieldOffset);
+    }
+
+    /**
+     * @return the current image of the record in the slot, or null if there is no record there
+     */
+    private byte[] readImage(int slot) {
+        byte[] image = loggedImages.get(slot);
+        if (image == null) {
+            ByteBuffer segment = segmentOf(slot);
+            if (segment == null)
+                return null;
+            image = new byte[RECORD_SIZE];
+            ByteBuffer source = segment.duplicate();
+            source.position((slot % SEGMENT_RECORDS) * RECORD_SIZE);
+            source.get(image);
+        }
+        return image[USED_OFFSET] != 0 ? image : null;
+    }
+
+    private void writeImage(int slot, byte[] image) throws IOException {
+        while (slot / SEGMENT_RECORDS >= segments.length)
+            addSegment();
+        ByteBuffer target = segments[slot / SEGMENT_RECORDS].duplicate();
+        target.position((slot % SEGMENT_RECORDS) * RECORD_SIZE);
+        target.put(image);
+    }
+
+    private void forceSegments() {
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    private boolean digestEquals(int slot, byte[] digest) {
+        byte[] logged = loggedImages.get(slot);
+        if (logged != null)
+            return digestEquals(ByteBuffer.wrap(logged), 0, digest);
+        ByteBuffer segment = segmentOf(slot);
+        return segment != null && digestEquals(segment, (slot % SEGMENT_RECORDS) * RECORD_SIZE, digest);
+    }
+
+    private static boolean digestEquals(ByteBuffer buffer, int offset, byte[] digest) {
+        if ((buffer.get(offset + HASH_LENGTH_OFFSET) & 0xFF) != digest.length)
+            return false;
+        for (int i = 0; i < digest.length; i++)
+            if (buffer.get(offset + HASH_OFFSET + i) != digest[i])
+                return false;
+        return true;
+    }
+
+    private static byte[] pack(StateRecord record, boolean used) {
+        byte[] digest = record.getId().getDigest();
+        if (digest.length > MAX_DIGEST_SIZE)
+            throw new Failure("digest is too long: " + digest.length);
+        return RECORD.pack(Binder.of(
+                "used", used ? 1 : 0,
+                "state", record.getState().ordinal(),
+                "hash_length", digest.length,
+                "hash", Arrays.copyOf(digest, MAX_DIGEST_SIZE),
+                "id", record.getRecordId(),
+                "locked_by_id", record.getLockedByRecordId(),
+                "created_at", StateRecord.unixTime(record.getCreatedAt()),
+                "expires_at", StateRecord.unixTime(record.getExpiresAt())
+        ));
+    }
+
+    private static ItemState stateOf(byte ordinal) {
+        return ItemState.values()[ordinal];
+    }
+
+    private static Binder unpack(byte[] image) {
+        Binder fields = RECORD.unpack(image);
+        fields.put("hash", Arrays.copyOf(fields.getBinaryOrThrow("hash"), fields.getIntOrThrow("hash_length")));
+        return fields;
+    }
+
+    //////////// indexes, all guarded by the lock ////////////
+
+    private int findSlot(HashId id) {
+        byte[] digest = id.getDigest();
+        int code = id.hashCode();
+        int mask = table.length - 1;
+        for (int i = code & mask; table[i] != 0; i = (i + 1) & mask) {
+            if (codes[i] == code && digestEquals(table[i] - 1, digest))
+                return table[i] - 1;
+        }
+        return -1;
+    }
+
+    private void addToIndex(int slot, HashId id) {
+        int bucket = LedgerDigest.bucketOf(id);
+        int[] slots = bucketSlots[bucket];
+        if (slots == null)
+            slots = bucketSlots[bucket] = new int[8];
+        else if (bucketSizes[bucket] == slots.length)
+            slots = bucketSlots[bucket] = Arrays.copyOf(slots, slots.length * 2);
+        slots[bucketSizes[bucket]++] = slot;
+
+        int code = id.hashCode();
+        if ((recordsCount + 1) * 2 > table.length)
+            resizeIndex(table.length * 2);
+        int mask = table.length - 1;
+        int i = code & mask;
+        while (table[i] != 0)
+            i = (i + 1) & mask;
+        table[i] = slot + 1;
+        codes[i] = code;
+    }
+
+    private void resizeIndex(int size) {
+        int[] oldTable = table;
+        int[] oldCodes = codes;
+        table = new int[size];
+        codes = new int[size];
+        int mask = size - 1;
+        for (int j = 0; j < oldTable.length; j++) {
+            if (oldTable[j] != 0) {
+                int i = oldCodes[j] & mask;
+                while (table[i] != 0)
+                    i = (i + 1) & mask;
+                table[i] = oldTable[j];
+                codes[i] = oldCodes[j];
+            }
+        }
+    }
+
+    private void removeFromIndex(int slot, HashId id) {
+        int bucket = LedgerDigest.bucketOf(id);
+        int[] slots = bucketSlots[bucket];
+        for (int j = 0; j < bucketSizes[bucket]; j++) {
+            if (slots[j] == slot) {
+                slots[j] = slots[--bucketSizes[bucket]];
+                break;
+            }
+        }
+
+        int code = id.hashCode();
+        int mask = table.length - 1;
+        int i = code & mask;
+        while (table[i] != slot + 1) {
+            if (table[i] == 0)
+                return;
+            i = (i + 1) & mask;
+        }
+        // backward shift deletion: move up the entries that would not be found past the hole
+        table[i] = 0;
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int home = codes[j] & mask;
+            boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!reachable) {
+                table[i] = table[j];
+                codes[i] = codes[j];
+                table[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    private int compareExpiration(Integer a, Integer b) {
+        int result = Long.compare(expirations[a], expirations[b]);
+        return result != 0 ? result : Integer.compare(a, b);
+    }
+
+    private void setExpiration(int slot, long expiresAt) {
+        if (slot >= expirations.length)
+            expirations = Arrays.copyOf(expirations, Math.max(slot + 1, expirations.length * 2));
+        byExpiration.remove(slot);
+        expirations[slot] = expiresAt;
+        if (expiresAt != 0)
+            byExpiration.add(slot);
+    }
+
+    private void pushFreeSlot(int slot) {
+        if (freeCount == freeSlots.length)
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Reserve the slot for the new record and assign its id.
+     */
+    private void reserveSlot(StateRecord record) {
+        lock.writeLock().lock();
+        try {
+            int slot = freeCount > 0 ? freeSlots[--freeCount] : slotsCount++;
+            long generation = (readLong(slot, ID_OFFSET) >>> 32) + 1;
+            record.setRecordId(generation << 32 | slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //////////// committing ////////////
+
+    /**
+     * Log the changes, wait for the log to be synced and write the changes to the records. Saves of the records that
+     * were destroyed meanwhile are skipped, same as SQL update does.
+     *
+     * @throws DuplicateException if some of the created records already exists, nothing is changed then
+     */
+    private void commit(Collection<Change> changes) {
+        long end;
+        lock.writeLock().lock();
+        try {
+            for (Change c : changes) {
+                if (c.created && c.image[USED_OFFSET] != 0 && findSlot(c.hashId) >= 0) {
+                    release(changes);
+                    throw new DuplicateException(c.hashId);
+                }
+            }
+            List<Change> logged = new ArrayList<>(changes.size());
+            for (Change c : changes) {
+                if (c.created) {
+                    // created and destroyed in the same transaction
+                    if (c.image[USED_OFFSET] == 0)
+                        pushFreeSlot(c.slot);
+                    else
+                        logged.add(c);
+                } else if (readImage(c.slot) != null &&
+                        readLong(c.slot, ID_OFFSET) == ByteBuffer.wrap(c.image).getLong(ID_OFFSET) &&
+                        (c.expiredBefore == 0 || readLong(c.slot, EXPIRES_AT_OFFSET) < c.expiredBefore))
+                    logged.add(c);
+            }
+            if (logged.isEmpty())
+                return;
+            end = appendToLog(logged);
+            for (Change c : logged) {
+                if (c.image[USED_OFFSET] == 0) {
+                    removeFromIndex(c.slot, c.hashId);
+                    byExpiration.remove(c.slot);
+                    pushFreeSlot(c.slot);
+                    recordsCount--;
+                } else {
+                    if (c.created) {
+                        addToIndex(c.slot, c.hashId);
+                        recordsCount++;
+                    }
+                    setExpiration(c.slot, ByteBuffer.wrap(c.image).getLong(EXPIRES_AT_OFFSET));
+                }
+                byte[] old = readImage(c.slot);
+                digest.update(c.hashId,
+                        old != null ? stateOf(old[STATE_OFFSET]) : null,
+                        c.image[USED_OFFSET] != 0 ? stateOf(c.image[STATE_OFFSET]) : null);
+                loggedImages.put(c.slot, c.image);
+            }
+            loggedBatches.add(new Batch(end, logged));
+        } catch (IOException e) {
+            throw new Failure("failed to write the ledger log", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        syncLog(end);
+        lock.writeLock().lock();
+        try {
+            writeSyncedBatches();
+        } catch (IOException e) {
+            throw new Failure("failed to write the ledger records", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Free the slots reserved for the created records that will not be committed
+     */
+    private void release(Collection<Change> changes) {
+        lock.writeLock().lock();
+        try {
+            for (Change c : changes)
+                if (c.created)
+                    pushFreeSlot(c.slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private long appendToLog(List<Change> changes) throws IOException {
+        int length = 4 + changes.size() * (4 + RECORD_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length + 4);
+        buffer.putInt(length);
+        buffer.putInt(changes.size());
+        for (Change c : changes) {
+            buffer.putInt(c.slot);
+            buffer.put(c.image);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, length);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining())
+            walChannel.write(buffer);
+        synchronized (walMonitor) {
+            walAppended += buffer.limit();
+            return walAppended;
+        }
+    }
+
+    /**
+     * Wait until the log is synced up to the given position. The first waiting thread syncs it for all the others.
+     */
+    private void syncLog(long position) {
+        while (true) {
+            long target;
+            synchronized (walMonitor) {
+                while (walSyncing && walSynced < position) {
+                    try {
+                        walMonitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new Failure("interrupted while syncing the ledger log", e);
+                    }
+                }
+                if (walSynced >= position)
+                    return;
+                walSyncing = true;
+                target = walAppended;
+            }
+            boolean synced = false;
+            try {
+                walChannel.force(false);
+                walSyncs.increment();
+                synced = true;
+            } catch (IOException e) {
+                throw new Failure("failed to sync the ledger log", e);
+            } finally {
+                synchronized (walMonitor) {
+                    walSyncing = false;
+                    if (synced && target > walSynced)
+                        walSynced = target;
+                    walMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write to the records the logged batches which are synced already, in the log order, and make the checkpoint if
+     * all is written and the log is big enough. Called under the write lock.
+     */
+    private void writeSyncedBatches() throws IOException {
+        long synced;
+        synchronized (walMonitor) {
+            synced = walSynced;
+        }
+        while (!loggedBatches.isEmpty() && loggedBatches.peek().end <= synced) {
+            for (Change c : loggedBatches.poll().changes) {
+                writeImage(c.slot, c.image);
+                loggedImages.remove(c.slot, c.image);
+            }
+        }
+        if (loggedBatches.isEmpty() && walChannel.size() >= CHECKPOINT_SIZE)
+            checkpoint();
+    }
+
+    private void checkpoint() throws IOException {
+        forceSegments();
+        walChannel.truncate(0);
+        checkpoints.increment();
+    }
+
+    private void change(StateRecord record, boolean used, boolean created) {
+        Change c = new Change((int) record.getRecordId(), record.getId(), pack(record, used), created);
+        Transaction t = transactions.get();
+        if (t != null) {
+            Change was = t.changes.get(c.slot);
+            if (was != null)
+                c.created |= was.created;
+            t.changes.put(c.slot, c);
+            t.latest.put(c.hashId, c);
+            if (c.created) {
+                if (used)
+                    t.created.put(c.hashId, record);
+                else
+                    t.created.remove(c.hashId);
+            }
+        } else
+            commit(Collections.singletonList(c));
+    }
+
+    //////////// Ledger ////////////
+
+    private StateRecord getFromCache(HashId itemId) {
+        if (useCache) {
+            synchronized (cachedRecords) {
+                WeakReference<StateRecord> ref = cachedRecords.get(itemId);
+                StateRecord r = ref != null ? ref.get() : null;
+                if (r == null) {
+                    if (ref != null)
+                        cachedRecords.remove(itemId);
+                    cacheMisses.increment();
+                    return null;
+                }
+                cacheHits.increment();
+                return r;
+            }
+        } else
+            return null;
+    }
+
+    private void putToCache(StateRecord r) {
+        if (useCache) {
+            synchronized (cachedRecords) {
+                cachedRecords.put(r.getId(), new WeakReference<>(r));
+            }
+        }
+    }
+
+    /**
+     * @return image of the record with the given id as changed by the transaction of this thread, if any, or as
+     * stored, or null if there is no record
+     */
+    private byte[] readImage(HashId itemId) {
+        Transaction t = transactions.get();
+        Change changed = t != null ? t.latest.get(itemId) : null;
+        if (changed != null)
+            return changed.image[USED_OFFSET] != 0 ? changed.image : null;
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(itemId);
+            return slot >= 0 ? readImage(slot) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private StateRecord load(HashId itemId) {
+        Transaction t = transactions.get();
+        if (t != null) {
+            StateRecord created = t.created.get(itemId);
+            if (created != null)
+                return created;
+            Change changed = t.latest.get(itemId);
+            if (changed != null && changed.image[USED_OFFSET] == 0)
+                return null;
+        }
+        StateRecord cached = getFromCache(itemId);
+        if (cached != null)
+            return cached;
+        byte[] image = readImage(itemId);
+        if (image == null)
+            return null;
+        StateRecord record = new StateRecord(this, unpack(image));
+        // not committed changes are not cached, the transaction could be rolled back
+        if (t == null || !t.latest.containsKey(itemId))
+            putToCache(record);
+        return record;
+    }
+
+    @Override
+    public StateRecord getRecord(HashId id) {
+        long started = System.nanoTime();
+        StateRecord sr = protect(() -> load(id));
+        getRecordTime.recordMicrosSince(started);
+        if (sr != null && sr.isExpired()) {
+            sr.destroy();
+            return null;
+        }
+        return sr;
+    }
+
+    @Override
+    public StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId) {
+        StateRecord r = new StateRecord(this);
+        r.setState(ItemState.LOCKED_FOR_CREATION);
+        r.setLockedByRecordId(creatorRecordId);
+        r.setId(newItemHashId);
+        try {
+            r.save();
+            return r;
+        } catch (Failure e) {
+            return null;
+        }
+    }
+
+    @Override
+    public StateRecord getLockOwnerOf(StateRecord rc) {
+        long ownerId = rc.getLockedByRecordId();
+        if (ownerId == 0)
+            return null;
+        StateRecord sr = protect(() -> {
+            byte[] image;
+            lock.readLock().lock();
+            try {
+                int slot = (int) ownerId;
+                image = slot >= 0 && slot < slotsCount && readLong(slot, ID_OFFSET) == ownerId ? readImage(slot) : null;
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (image == null)
+                return null;
+            Binder fields = unpack(image);
+            StateRecord owner = load(HashId.withDigest(fields.getBinaryOrThrow("hash")));
+            return owner != null && owner.getRecordId() == ownerId ? owner : null;
+        });
+        if (sr != null && sr.isExpired()) {
+            sr.destroy();
+            return null;
+        }
+        return sr;
+    }
+
+    @Override
+    public StateRecord findOrCreate(HashId itemId) {
+        long started = System.nanoTime();
+        try {
+            while (true) {
+                StateRecord r = getRecord(itemId);
+                if (r != null)
+                    return r;
+                r = new StateRecord(this);
+                r.setId(itemId);
+                r.setState(ItemState.PENDING);
+                try {
+                    r.save();
+                    return r;
+                } catch (DuplicateException e) {
+                    // created by someone else meanwhile, get it
+                }
+            }
+        } finally {
+            findOrCreateTime.recordMicrosSince(started);
+        }
+    }
+
+    private <T> T protect(Callable<T> block) {
+        try {
+            return block.call();
+        } catch (Failure f) {
+            failures.increment();
+            throw f;
+        } catch (Exception ex) {
+            failures.increment();
+            throw new Failure("Ledger operation failed: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public <T> T transaction(Callable<T> callable) {
+        if (transactions.get() != null)
+            return protect(callable);
+        long started = System.nanoTime();
+        Transaction t = new Transaction();
+        transactions.set(t);
+        try {
+            T result;
+            try {
+                result = callable.call();
+            } catch (Rollback e) {
+                release(t.changes.values());
+                return null;
+            } catch (Exception e) {
+                release(t.changes.values());
+                failures.increment();
+                throw e instanceof Failure ? (Failure) e : new Failure("Ledger operation failed: " + e.getMessage(), e);
+            } finally {
+                transactions.remove();
+            }
+            protect(() -> {
+                commit(t.changes.values());
+                return null;
+            });
+            t.created.values().forEach(this::putToCache);
+            return result;
+        } finally {
+            transactionTime.recordMicrosSince(started);
+        }
+    }
+
+    @Override
+    public void destroy(StateRecord record) {
+        if (record.getRecordId() == 0)
+            throw new IllegalStateException("can't destroy record without recordId");
+        long started = System.nanoTime();
+        protect(() -> {
+            change(record, false, false);
+            synchronized (cachedRecords) {
+                cachedRecords.remove(record.getId());
+            }
+            return null;
+        });
+        destroyTime.recordMicrosSince(started);
+    }
+
+    @Override
+    public void save(StateRecord stateRecord) {
+        if (stateRecord.getLedger() == null) {
+            stateRecord.setLedger(this);
+        } else if (stateRecord.getLedger() != this)
+            throw new IllegalStateException("can't save with a different ledger (make a copy!)");
+
+        long started = System.nanoTime();
+        try {
+            protect(() -> {
+                boolean created = stateRecord.getRecordId() == 0;
+                if (created)
+                    reserveSlot(stateRecord);
+                change(stateRecord, true, created);
+                // created in the transaction are cached when it is committed
+                if (created && transactions.get() == null)
+                    putToCache(stateRecord);
+                return null;
+            });
+        } finally {
+            saveTime.recordMicrosSince(started);
+        }
+    }
+
+    @Override
+    public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
+        byte[] image = protect(() -> readImage(stateRecord.getId()));
+        if (image == null)
+            throw new StateRecord.NotFoundException("record not found");
+        stateRecord.initFrom(unpack(image));
+    }
+
+    /**
+     * Destroy all the expired records at once, using the expiration index. The commit takes the write lock after they
+     * are found, so each is destroyed only if it is still expired then, not saved with the new expiration meanwhile.
+     */
+    @Override
+    public void cleanup() {
+        long now = StateRecord.unixTime(ZonedDateTime.now());
+        List<Change> changes = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int slot : byExpiration) {
+                if (expirations[slot] >= now)
+                    break;
+                byte[] image = readImage(slot);
+                if (image != null) {
+                    StateRecord record = new StateRecord(this, unpack(image));
+                    Change c = new Change(slot, record.getId(), pack(record, false), false);
+                    c.expiredBefore = now;
+                    changes.add(c);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (!changes.isEmpty()) {
+            protect(() -> {
+                commit(changes);
+                return null;
+            });
+            synchronized (cachedRecords) {
+                for (Change c : changes)
+                    cachedRecords.remove(c.hashId);
+            }
+        }
+    }
+
+    @Override
+    public boolean canExportRecords() {
+        return true;
+    }
+
+    /**
+     * Export by chunks of {@link #EXPORT_CHUNK_SLOTS} slots: the chunk is copied under the read lock, which is released
+     * before passing it to the consumer, so the writers only wait for the copying of one chunk. The record changed
+     * while exporting is passed as it is when its chunk is copied.
+     */
+    @Override
+    public void exportRecords(RecordsConsumer consumer) {
+        protect(() -> {
+            List<StateRecord> records = new ArrayList<>(EXPORT_CHUNK_SLOTS);
+            List<HashId> owners = new ArrayList<>(EXPORT_CHUNK_SLOTS);
+            for (int from = 0; ; from += EXPORT_CHUNK_SLOTS) {
+                lock.readLock().lock();
+                try {
+                    if (from >= slotsCount)
+                        break;
+                    int to = Math.min(slotsCount, from + EXPORT_CHUNK_SLOTS);
+                    for (int slot = from; slot < to; slot++) {
+                        byte[] image = readImage(slot);
+                        if (image == null)
+                            continue;
+                        StateRecord record = new StateRecord(this, unpack(image));
+                        HashId owner = null;
+                        long ownerId = record.getLockedByRecordId();
+                        int ownerSlot = (int) ownerId;
+                        if (ownerId != 0 && ownerSlot >= 0 && ownerSlot < slotsCount &&
+                                readLong(ownerSlot, ID_OFFSET) == ownerId) {
+                            byte[] ownerImage = readImage(ownerSlot);
+                            if (ownerImage != null)
+                                owner = HashId.withDigest(unpack(ownerImage).getBinaryOrThrow("hash"));
+                        }
+                        records.add(record);
+                        owners.add(owner);
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                for (int i = 0; i < records.size(); i++)
+                    consumer.accept(records.get(i), owners.get(i));
+                records.clear();
+                owners.clear();
+            }
+            return null;
+        });
+    }
+
+    private Map<HashId, ItemState> loadBucket(int bucket) {
+        Map<HashId, ItemState> records = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            int[] slots = bucketSlots[bucket];
+            for (int j = 0; j < bucketSizes[bucket]; j++) {
+                byte[] image = readImage(slots[j]);
+                if (image != null)
+                    records.put(HashId.withDigest(unpack(image).getBinaryOrThrow("hash")), stateOf(image[STATE_OFFSET]));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return records;
+    }
+
+    @Override
+    public LedgerDigest getDigest() {
+        return digest;
+    }
+
+    @Override
+    public long countRecords() {
+        lock.readLock().lock();
+        try {
+            return recordsCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            // the batches still waiting for the sync are written too, as everything is forced before the log is gone
+            walChannel.force(false);
+            for (Batch b : loggedBatches)
+                for (Change c : b.changes)
+                    writeImage(c.slot, c.image);
+            loggedBatches.clear();
+            loggedImages.clear();
+            forceSegments();
+            walChannel.truncate(0);
+            walChannel.close();
+            recordsChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Enable or disable records caching. USe it in tests only, in production it should always be enabled
+     *
+     * @param enable, if true it is enabling cache
+     */
+    public void enableCache(boolean enable) {
+        if (enable) {
+            this.useCache = true;
+        } else {
+            this.useCache = false;
+            synchronized (cachedRecords) {
+                cachedRecords.clear();
+            }
+        }
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void saveConfig(NodeInfo myInfo, NetConfig netConfig, PrivateKey nodeKey) {
+
+    }
+
+    @Override
+    public Object[] loadConfig() {
+        return new Object[0];
+    }
+
+    @Override
+    public void addNode(NodeInfo nodeInfo) {
+
+    }
+
+    @Override
+    public void removeNode(NodeInfo nodeInfo) {
+
+    }
+}
@@ -17,16 +17,25 @@ import com.icodici.universa.node2.NodeInfo;
 import net.sergeych.biserializer.BiSerializer;
 import net.sergeych.biserializer.DefaultBiMapper;
 import net.sergeych.tools.Binder;
+import net.sergeych.tools.Histogram;
+import net.sergeych.tools.Metrics;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 
+import java.io.StringReader;
 import java.lang.ref.WeakReference;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The basic SQL-based ledger.
@@ -38,8 +47,14 @@ import java.util.concurrent.Callable;
 public class PostgresLedger implements Ledger {
 
     private final static int MAX_CONNECTIONS = 64;
+    private final static int EXPORT_FETCH_SIZE = 1000;
+    private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
     private final DbPool dbPool;
+    /**
+     * Asynchronous operations, a thread per connection
+     */
+    private final LedgerExecutor executor = new LedgerExecutor("postgres-ledger", MAX_CONNECTIONS);
 
     private boolean sqlite = false;
 
@@ -48,6 +63,23 @@ public class PostgresLedger implements Ledger {
     private Map<HashId, WeakReference<StateRecord>> cachedRecords = new WeakHashMap<>();
     private boolean useCache = true;
 
+    private final Metrics metrics = new Metrics();
+    private final Histogram getRecordTime = metrics.histogram("ledger.getRecord");
+    private final Histogram findOrCreateTime = metrics.histogram("ledger.findOrCreate");
+    private final Histogram saveTime = metrics.histogram("ledger.save");
+    private final Histogram destroyTime = metrics.histogram("ledger.destroy");
+    private final Histogram transactionTime = metrics.histogram("ledger.transaction");
+    private final LongAdder cacheHits = metrics.counter("ledger.cacheHits");
+    private final LongAdder cacheMisses = metrics.counter("ledger.cacheMisses");
+    private final LongAdder failures = metrics.counter("ledger.failures");
+
+    private final LedgerDigest digest = new LedgerDigest(this::loadBucket);
+    /**
+     * Changes of the records made by the current transaction of the thread, to apply them to the {@link #digest} after
+     * the commit. The previous states are returned by the same statements that change the records.
+     */
+    private final ThreadLocal<LedgerDigest.Changes> changedInTransaction = new ThreadLocal<>();
+
     public PostgresLedger(String connectionString, Properties properties) throws SQLException {
         dbPool = new DbPool(connectionString, properties, MAX_CONNECTIONS);
         init(dbPool);
@@ -60,6 +92,9 @@ public class PostgresLedger implements Ledger {
     }
 
     private void init(DbPool dbPool) throws SQLException {
+        metrics.gauge("ledger.connections", dbPool::getTotalConnections);
+        metrics.gauge("ledger.idleConnections", dbPool::getIdleConnections);
+        metrics.gauge("ledger.executorQueue", () -> executor.getQueue().size());
         try {
             dbPool.execute(db -> {
                 db.setupDatabase("/migrations/postgres/migrate_");
@@ -67,6 +102,15 @@ public class PostgresLedger implements Ledger {
         } catch (Exception e) {
             throw new SQLException("Failed to migrate", e);
         }
+        digest.invalidateAll();
+    }
+
+    private void changed(HashId id, ItemState was, ItemState now) {
+        LedgerDigest.Changes changes = changedInTransaction.get();
+        if (changes != null)
+            changes.add(id, was, now);
+        else
+            digest.update(id, was, now);
     }
 
     /**
@@ -85,6 +129,7 @@ public class PostgresLedger implements Ledger {
 
     @Override
     public StateRecord getRecord(HashId itemId) {
+        long started = System.nanoTime();
         StateRecord sr = protect(() -> {
             StateRecord cached = getFromCache(itemId);
             if (cached != null)
@@ -98,6 +143,7 @@ public class PostgresLedger implements Ledger {
             }
             return null;
         });
+        getRecordTime.recordMicrosSince(started);
         if (sr != null && sr.isExpired()) {
             sr.destroy();
             return null;
@@ -109,13 +155,17 @@ public class PostgresLedger implements Ledger {
         if (useCache) {
             synchronized (cachedRecords) {
                 WeakReference<StateRecord> ref = cachedRecords.get(itemId);
-                if (ref == null)
+                if (ref == null) {
+                    cacheMisses.increment();
                     return null;
+                }
                 StateRecord r = ref.get();
                 if (r == null) {
                     cachedRecords.remove(itemId);
+                    cacheMisses.increment();
                     return null;
                 }
+                cacheHits.increment();
                 return r;
             }
         } else
@@ -174,7 +224,8 @@ public class PostgresLedger implements Ledger {
     public StateRecord findOrCreate(HashId itemId) {
         // This simple version requires that database is used exclusively by one localnode - the normal way. As nodes
         // are multithreaded, there is absolutely no use to share database between nodes.
-        return protect(() -> {
+        long started = System.nanoTime();
+        StateRecord sr = protect(() -> {
             StateRecord record = getFromCache(itemId);
             if (record == null) {
                 try (ResultSet rs = inPool(db -> db.queryRow("select * from sr_find_or_create(?)", itemId.getDigest()))) {
@@ -185,18 +236,27 @@ public class PostgresLedger implements Ledger {
             return record;
 
         });
+        findOrCreateTime.recordMicrosSince(started);
+        return sr;
     }
 
     private <T> T protect(Callable<T> block) {
         try {
             return block.call();
         } catch (Exception ex) {
+            failures.increment();
             throw new Failure("Ledger operation failed: " + ex.getMessage(), ex);
         }
     }
 
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
     @Override
     public void close() {
+        executor.shutdown();
         try {
             dbPool.close();
         } catch (Exception e) {
@@ -204,6 +264,110 @@ public class PostgresLedger implements Ledger {
         }
     }
 
+    @Override
+    public boolean canExportRecords() {
+        return true;
+    }
+
+    /**
+     * Export within the repeatable read transaction, reading the records with the cursor.
+     */
+    @Override
+    public void exportRecords(RecordsConsumer consumer) {
+        protect(() -> inPool(db -> db.transaction(() -> {
+            db.update("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ READ ONLY");
+            try (
+                    PreparedStatement statement = db.statement(
+                            "SELECT l.*, o.hash AS owner_hash FROM ledger l LEFT JOIN ledger o ON o.id = l.locked_by_id")
+            ) {
+                // the driver uses the cursor only with the fetch size set and outside of the autocommit
+                statement.setFetchSize(EXPORT_FETCH_SIZE);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        byte[] owner = rs.getBytes("owner_hash");
+                        consumer.accept(new StateRecord(this, rs), owner != null ? HashId.withDigest(owner) : null);
+                    }
+                }
+            }
+            return null;
+        })));
+    }
+
+    /**
+     * Bulk load with COPY into the temporary table, then insert the records which are not yet in the ledger.
+     */
+    @Override
+    public void importRecords(Collection<StateRecord> records) {
+        StringBuilder rows = new StringBuilder(records.size() * 160);
+        for (StateRecord r : records) {
+            // text format, tab separated; bytea hex form needs its backslash escaped
+            rows.append("\\\\x");
+            for (byte b : r.getId().getDigest())
+                rows.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+            rows.append('\t').append(r.getState().ordinal())
+                    .append('\t').append(StateRecord.unixTime(r.getCreatedAt()))
+                    .append('\t').append(StateRecord.unixTime(r.getExpiresAt()))
+                    .append('\n');
+        }
+        digest.beginChange();
+        try {
+            LedgerDigest.Changes inserted = protect(() -> inPool(db -> db.transaction(() -> {
+                db.update("CREATE TEMP TABLE IF NOT EXISTS ledger_import" +
+                        "(hash bytea, state integer, created_at integer, expires_at integer) ON COMMIT DELETE ROWS");
+                CopyManager copy = db.getConnection().unwrap(PGConnection.class).getCopyAPI();
+                copy.copyIn("COPY ledger_import(hash, state, created_at, expires_at) FROM STDIN",
+                        new StringReader(rows.toString()));
+                LedgerDigest.Changes changes = new LedgerDigest.Changes();
+                try (
+                        PreparedStatement statement = db.statement(
+                                "INSERT INTO ledger(hash, state, created_at, expires_at, locked_by_id) " +
+                                        "SELECT hash, state, created_at, expires_at, 0 FROM ledger_import " +
+                                        "ON CONFLICT (hash) DO NOTHING RETURNING hash, state");
+                        ResultSet rs = statement.executeQuery()
+                ) {
+                    while (rs.next())
+                        changes.add(HashId.withDigest(rs.getBytes(1)), null, ItemState.values()[rs.getInt(2)]);
+                }
+                return changes;
+            })));
+            if (inserted != null) {
+                LedgerDigest.Changes changes = changedInTransaction.get();
+                if (changes != null)
+                    changes.addAll(inserted);
+                else
+                    digest.apply(inserted);
+            }
+        } finally {
+            digest.endChange();
+        }
+    }
+
+    private Map<HashId, ItemState> loadBucket(int bucket) throws Exception {
+        boolean last = bucket == LedgerDigest.BUCKETS - 1;
+        return inPool(db -> {
+            try (
+                    PreparedStatement statement = db.statement(last ?
+                            "SELECT hash, state FROM ledger WHERE hash >= ?" :
+                            "SELECT hash, state FROM ledger WHERE hash >= ? AND hash < ?")
+            ) {
+                statement.setBytes(1, LedgerDigest.bucketStart(bucket));
+                if (!last)
+                    statement.setBytes(2, LedgerDigest.bucketStart(bucket + 1));
+                Map<HashId, ItemState> records = new HashMap<>();
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next())
+                        records.put(HashId.withDigest(rs.getBytes(1)), ItemState.values()[rs.getInt(2)]);
+                }
+                return records;
+            }
+        });
+    }
+
+    @Override
+    public LedgerDigest getDigest() {
+        return digest;
+    }
+
     @Override
     public long countRecords() {
         try {
@@ -216,15 +380,43 @@ public class PostgresLedger implements Ledger {
 
     @Override
     public <T> T transaction(Callable<T> callable) {
-        return protect(() -> {
+        long started = System.nanoTime();
+        try {
+            return protect(() -> {
 //            synchronized (transactionLock) {
-            // as Rollback exception is instanceof Db.Rollback, it will work as supposed by default:
-            // rethrow unchecked exceotions and return null on rollback.
-            try (Db db = dbPool.db()) {
-                return db.transaction(() -> callable.call());
-            }
+                // as Rollback exception is instanceof Db.Rollback, it will work as supposed by default:
+                // rethrow unchecked exceotions and return null on rollback.
+                boolean outer = changedInTransaction.get() == null;
+                if (outer) {
+                    digest.beginChange();
+                    changedInTransaction.set(new LedgerDigest.Changes());
+                }
+                boolean[] completed = new boolean[1];
+                boolean committed = false;
+                try (Db db = dbPool.db()) {
+                    T result = db.transaction(() -> {
+                        T r = callable.call();
+                        completed[0] = true;
+                        return r;
+                    });
+                    committed = completed[0];
+                    return result;
+                } finally {
+                    if (outer) {
+                        // it is not known which changes are made if it has failed
+                        if (committed)
+                            digest.apply(changedInTransaction.get());
+                        else
+                            digest.invalidate(changedInTransaction.get());
+                        changedInTransaction.remove();
+                        digest.endChange();
+                    }
+                }
 //            }
-        });
+            });
+        } finally {
+            transactionTime.recordMicrosSince(started);
+        }
     }
 
     public void testClearLedger() {
@@ -244,16 +436,24 @@ public class PostgresLedger implements Ledger {
         if (recordId == 0) {
             throw new IllegalStateException("can't destroy record without recordId");
         }
+        long started = System.nanoTime();
         protect(() -> {
-            inPool(d -> {
-                d.update("DELETE FROM ledger WHERE id = ?", recordId);
-                return null;
-            });
+            digest.beginChange();
+            try {
+                ItemState was = inPool(d -> {
+                    Object state = d.queryOne("DELETE FROM ledger WHERE id = ? RETURNING state", recordId);
+                    return state == null ? null : ItemState.values()[((Number) state).intValue()];
+                });
+                changed(record.getId(), was, null);
+            } finally {
+                digest.endChange();
+            }
             synchronized (cachedRecords) {
                 cachedRecords.remove(record.getId());
             }
             return null;
         });
+        destroyTime.recordMicrosSince(started);
     }
 
     @Override
@@ -263,8 +463,13 @@ public class PostgresLedger implements Ledger {
         } else if (stateRecord.getLedger() != this)
             throw new IllegalStateException("can't save with a different ledger (make a copy!)");
 
+        long started = System.nanoTime();
+        digest.beginChange();
         // TODO: probably, it should take a PooledDb as an argument and reuse it
         try (PooledDb db = dbPool.db()) {
+            // the state it had, to update the digest
+            ItemState was = null;
+            boolean exists = true;
             if (stateRecord.getRecordId() == 0) {
                 try (
                         PreparedStatement statement =
@@ -287,16 +492,28 @@ public class PostgresLedger implements Ledger {
                 }
                 putToCache(stateRecord);
             } else {
-                db.update("update ledger set state=?, expires_at=?, locked_by_id=? where id=?",
-                          stateRecord.getState().ordinal(),
-                          StateRecord.unixTime(stateRecord.getExpiresAt()),
-                          stateRecord.getLockedByRecordId(),
-                          stateRecord.getRecordId()
+                // the previous state is returned from the row locked by the subquery
+                Object state = db.queryOne("UPDATE ledger SET state=?, expires_at=?, locked_by_id=? " +
+                                "FROM (SELECT id, state FROM ledger WHERE id=? FOR UPDATE) old " +
+                                "WHERE ledger.id = old.id RETURNING old.state",
+                        stateRecord.getState().ordinal(),
+                        StateRecord.unixTime(stateRecord.getExpiresAt()),
+                        stateRecord.getLockedByRecordId(),
+                        stateRecord.getRecordId()
                 );
+                exists = state != null;
+                if (exists)
+                    was = ItemState.values()[((Number) state).intValue()];
             }
+            if (exists)
+                changed(stateRecord.getId(), was, stateRecord.getState());
         } catch (SQLException se) {
 //            se.printStackTrace();
+            failures.increment();
             throw new Failure("StateRecord save failed:" + se);
+        } finally {
+            digest.endChange();
+            saveTime.recordMicrosSince(started);
         }
     }
 
@@ -337,6 +554,11 @@ public class PostgresLedger implements Ledger {
         return dbPool.db();
     }
 
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public void saveConfig(NodeInfo myInfo, NetConfig netConfig, PrivateKey nodeKey) {
         try (PooledDb db = dbPool.db()) {
@@ -9,45 +9,116 @@ package com.icodici.universa.node;
 
 import com.icodici.crypto.PrivateKey;
 import com.icodici.db.Db;
+import com.icodici.db.DbPool;
 import com.icodici.universa.HashId;
 import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
 import org.sqlite.SQLiteConfig;
 import org.sqlite.SQLiteOpenMode;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Properties;
 import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 /**
  * The basic SQL-based ledger.
  * <p>
  * This implementation uses SQLite, but could be easily enhanced to use any jdbc provider.
  * <p>
+ * The database works in WAL mode: all the changes go through the single writer connection, one at a time, while the
+ * reads use the pool of read-only connections and so proceed in parallel with the writes, seeing the last committed
+ * state. The thread that is writing (in the transaction or in {@link #findOrCreate(HashId)}) reads with the writer
+ * connection, to see its own changes. In-memory databases can't be shared between connections, so they use the
+ * writer connection for everything.
+ * <p>
+ * The {@link LedgerDigest} is updated with the previous states of the changed records, which the writer reads before
+ * changing them. Changes of the transaction are applied to it when the transaction is committed. Buckets are loaded by
+ * the reader connections, as the digest does not reload them while the records are being changed.
+ * <p>
+ * Asynchronous operations use the executor with a thread per connection: one for the writer and one per reader.
+ * <p>
  * Created by sergeych on 16/07/2017.
  */
 public class SqliteLedger implements Ledger {
+    private static final int MAX_READERS = 8;
+
     private final Db db;
+    private final DbPool readers;
+    private final LedgerExecutor executor;
+
+    /**
+     * Serializes the use of the writer connection. Transactions hold it all the time, so their changes are committed
+     * at once.
+     */
+    private final Object writeLock = new Object();
+    private boolean inTransaction = false;
+    // changes of the current transaction, to apply them to the digest on commit
+    private LedgerDigest.Changes transactionChanges;
 
-    private Object writeLock = new Object();
-    //    private Object transactionLock = new Object();
     private Map<HashId, WeakReference<StateRecord>> cachedRecords = new WeakHashMap<>();
     private boolean useCache = true;
 
+    private final LedgerDigest digest = new LedgerDigest(this::loadBucket);
+
+    private interface Reader<T> {
+        T read(Db db) throws Exception;
+    }
+
     public SqliteLedger(String connectionString) throws SQLException {
-        Properties properties;
-            SQLiteConfig config = new SQLiteConfig();
-            config.setSharedCache(true);
-            config.setJournalMode(SQLiteConfig.JournalMode.WAL);
-            config.setOpenMode(SQLiteOpenMode.FULLMUTEX);
-            properties = config.toProperties();
-        db = new Db(connectionString, properties);
+        SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setOpenMode(SQLiteOpenMode.FULLMUTEX);
+        db = new Db(connectionString, config.toProperties());
         db.setupDatabase("/migrations/sqlite/migrate_");
+
+        if (connectionString.contains(":memory:") || connectionString.equals("jdbc:sqlite:")) {
+            readers = null;
+            executor = new LedgerExecutor("sqlite-ledger", 1);
+        } else {
+            // each reader is used by one thread at a time, so it needs no mutex
+            SQLiteConfig readerConfig = new SQLiteConfig();
+            readerConfig.setReadOnly(true);
+            readerConfig.setOpenMode(SQLiteOpenMode.NOMUTEX);
+            readerConfig.setBusyTimeout("5000");
+            readers = new DbPool(connectionString, readerConfig.toProperties(), MAX_READERS);
+            executor = new LedgerExecutor("sqlite-ledger", MAX_READERS + 1);
+        }
+        digest.invalidateAll();
+    }
+
+    /**
+     * Perform the read-only operation with the reader connection or, in the writing thread, with the writer one.
+     */
+    private <T> T read(Reader<T> reader) throws Exception {
+        if (readers == null) {
+            synchronized (writeLock) {
+                return reader.read(db);
+            }
+        }
+        if (Thread.holdsLock(writeLock))
+            return reader.read(db);
+        return readers.execute(reader::read);
+    }
+
+    private StateRecord loadRecord(Db db, String sqlText, Object arg) throws SQLException, IOException {
+        try (ResultSet rs = db.queryRow(sqlText, arg)) {
+            if (rs == null)
+                return null;
+            StateRecord record = new StateRecord(this, rs);
+            StateRecord cached = getFromCache(record.getId());
+            if (cached != null)
+                return cached;
+            putToCache(record);
+            return record;
+        }
     }
 
     @Override
@@ -56,14 +127,7 @@ public class SqliteLedger implements Ledger {
             StateRecord cached = getFromCache(itemId);
             if (cached != null)
                 return cached;
-            try (ResultSet rs = db.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1", itemId.getDigest())) {
-                if (rs != null) {
-                    StateRecord record = new StateRecord(this, rs);
-                    putToCache(record);
-                    return record;
-                }
-            }
-            return null;
+            return read(db -> loadRecord(db, "SELECT * FROM ledger WHERE hash = ? limit 1", itemId.getDigest()));
         });
         if (sr != null && sr.isExpired()) {
             sr.destroy();
@@ -114,8 +178,15 @@ public class SqliteLedger implements Ledger {
 
     @Override
     public StateRecord getLockOwnerOf(StateRecord rc) {
-        throw new RuntimeException("not implemented");
-//        return null;
+        long ownerId = rc.getLockedByRecordId();
+        if (ownerId == 0)
+            return null;
+        StateRecord sr = protect(() -> read(db -> loadRecord(db, "SELECT * FROM ledger WHERE id = ? limit 1", ownerId)));
+        if (sr != null && sr.isExpired()) {
+            sr.destroy();
+            return null;
+        }
+        return sr;
     }
 
     @Override
@@ -146,9 +217,122 @@ public class SqliteLedger implements Ledger {
         }
     }
 
+    @Override
+    public boolean canExportRecords() {
+        return true;
+    }
+
+    /**
+     * Export within the read transaction of the reader connection, which sees the same state all the time and does not
+     * stop the writer.
+     */
+    @Override
+    public void exportRecords(RecordsConsumer consumer) {
+        protect(() -> read(db -> db.transaction(() -> {
+            try (
+                    PreparedStatement statement = db.statement(
+                            "SELECT l.*, o.hash AS owner_hash FROM ledger l LEFT JOIN ledger o ON o.id = l.locked_by_id");
+                    ResultSet rs = statement.executeQuery()
+            ) {
+                while (rs.next()) {
+                    byte[] owner = rs.getBytes("owner_hash");
+                    consumer.accept(new StateRecord(this, rs), owner != null ? HashId.withDigest(owner) : null);
+                }
+            }
+            return null;
+        })));
+    }
+
+    @Override
+    public void importRecords(Collection<StateRecord> records) {
+        transaction(() -> {
+            try (
+                    PreparedStatement statement = db.statement(
+                            "INSERT OR IGNORE INTO ledger(hash, state, created_at, expires_at, locked_by_id) " +
+                                    "VALUES(?, ?, ?, ?, 0)")
+            ) {
+                for (StateRecord r : records) {
+                    statement.setBytes(1, r.getId().getDigest());
+                    statement.setInt(2, r.getState().ordinal());
+                    statement.setLong(3, StateRecord.unixTime(r.getCreatedAt()));
+                    statement.setLong(4, StateRecord.unixTime(r.getExpiresAt()));
+                    statement.addBatch();
+                }
+                int[] inserted = statement.executeBatch();
+                int i = 0;
+                for (StateRecord r : records) {
+                    // the existing ones are skipped
+                    if (inserted[i++] > 0)
+                        changed(r.getId(), null, r.getState());
+                }
+            }
+            return null;
+        });
+    }
+
+    private Map<HashId, ItemState> loadBucket(int bucket) throws Exception {
+        return read(db -> {
+            boolean last = bucket == LedgerDigest.BUCKETS - 1;
+            try (
+                    PreparedStatement statement = db.statement(last ?
+                            "SELECT hash, state FROM ledger WHERE hash >= ?" :
+                            "SELECT hash, state FROM ledger WHERE hash >= ? AND hash < ?")
+            ) {
+                statement.setBytes(1, LedgerDigest.bucketStart(bucket));
+                if (!last)
+                    statement.setBytes(2, LedgerDigest.bucketStart(bucket + 1));
+                Map<HashId, ItemState> records = new HashMap<>();
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next())
+                        records.put(HashId.withDigest(rs.getBytes(1)), ItemState.values()[rs.getInt(2)]);
+                }
+                return records;
+            }
+        });
+    }
+
+    /**
+     * Take the change into account in the {@link #digest}, at once or when the current transaction is committed. Call
+     * it holding the write lock.
+     */
+    private void changed(HashId id, ItemState was, ItemState now) {
+        if (transactionChanges != null)
+            transactionChanges.add(id, was, now);
+        else
+            digest.update(id, was, now);
+    }
+
+    /**
+     * Read the state of the record with the writer connection, holding the write lock.
+     *
+     * @return the state or null if there is no such record
+     */
+    private ItemState storedState(long recordId) throws SQLException {
+        Object state = db.queryOne("SELECT state FROM ledger WHERE id = ?", recordId);
+        return state == null ? null : ItemState.values()[((Number) state).intValue()];
+    }
+
+    @Override
+    public LedgerDigest getDigest() {
+        return digest;
+    }
+
+    @Override
+    public long countRecords() {
+        return protect(() -> read(db -> ((Number) db.queryOne("SELECT COUNT(*) FROM ledger")).longValue()));
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
     @Override
     public void close() {
+        executor.shutdown();
         try {
+            if (readers != null)
+                readers.close();
             db.close();
         } catch (Exception e) {
             e.printStackTrace();
@@ -179,11 +363,39 @@ public class SqliteLedger implements Ledger {
     @Override
     public <T> T transaction(Callable<T> callable) {
         return protect(() -> {
-//            synchronized (transactionLock) {
-            // as Rollback exception is instanceof Db.Rollback, it will work as supposed by default:
-            // rethrow unchecked exceotions and return null on rollback.
-            return db.transaction(() -> callable.call());
-//            }
+            digest.beginChange();
+            try {
+                synchronized (writeLock) {
+                    // nested transaction is the part of the outer one
+                    if (inTransaction)
+                        return callable.call();
+                    inTransaction = true;
+                    transactionChanges = new LedgerDigest.Changes();
+                    boolean[] completed = new boolean[1];
+                    boolean committed = false;
+                    try {
+                        // as Rollback exception is instanceof Db.Rollback, it will work as supposed by default:
+                        // rethrow unchecked exceotions and return null on rollback.
+                        T result = db.transaction(() -> {
+                            T r = callable.call();
+                            completed[0] = true;
+                            return r;
+                        });
+                        committed = completed[0];
+                        return result;
+                    } finally {
+                        // it is not known which changes are made if it has failed
+                        if (committed)
+                            digest.apply(transactionChanges);
+                        else
+                            digest.invalidate(transactionChanges);
+                        transactionChanges = null;
+                        inTransaction = false;
+                    }
+                }
+            } finally {
+                digest.endChange();
+            }
         });
     }
 
@@ -194,8 +406,15 @@ public class SqliteLedger implements Ledger {
             throw new IllegalStateException("can't destroy record without recordId");
         }
         protect(() -> {
-            synchronized (writeLock) {
-                db.update("DELETE FROM ledger WHERE id = ?", recordId);
+            digest.beginChange();
+            try {
+                synchronized (writeLock) {
+                    ItemState was = storedState(recordId);
+                    db.update("DELETE FROM ledger WHERE id = ?", recordId);
+                    changed(record.getId(), was, null);
+                }
+            } finally {
+                digest.endChange();
             }
             synchronized (cachedRecords) {
                 cachedRecords.remove(record.getId());
@@ -211,8 +430,12 @@ public class SqliteLedger implements Ledger {
         } else if (stateRecord.getLedger() != this)
             throw new IllegalStateException("can't save with  adifferent ledger (make a copy!)");
 
+        digest.beginChange();
         try {
             synchronized (writeLock) {
+                // the state it had, to update the digest
+                ItemState was = null;
+                boolean exists = true;
                 if (stateRecord.getRecordId() == 0) {
                     try (
                             PreparedStatement statement =
@@ -234,6 +457,8 @@ public class SqliteLedger implements Ledger {
                     }
                     putToCache(stateRecord);
                 } else {
+                    was = storedState(stateRecord.getRecordId());
+                    exists = was != null;
                     db.update("update ledger set state=?, expires_at=?, locked_by_id=? where id=?",
                               stateRecord.getState().ordinal(),
                               StateRecord.unixTime(stateRecord.getExpiresAt()),
@@ -241,27 +466,37 @@ public class SqliteLedger implements Ledger {
                               stateRecord.getRecordId()
                     );
                 }
+                if (exists)
+                    changed(stateRecord.getId(), was, stateRecord.getState());
             }
         } catch (SQLException se) {
 //            se.printStackTrace();
             throw new Ledger.Failure("StateRecord save failed:" + se);
+        } finally {
+            digest.endChange();
         }
     }
 
 
     @Override
     public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
+        boolean found;
         try {
-            try (ResultSet rs = db.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1",
-                                            stateRecord.getId().getDigest())
-            ) {
-                if (rs == null)
-                    throw new StateRecord.NotFoundException("record not found");
-                stateRecord.initFrom(rs);
-            }
+            found = read(db -> {
+                try (ResultSet rs = db.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1",
+                                                stateRecord.getId().getDigest())
+                ) {
+                    if (rs == null)
+                        return false;
+                    stateRecord.initFrom(rs);
+                    return true;
+                }
+            });
         } catch (Exception e) {
             throw new RuntimeException("Failed to reload RecordSet", e);
         }
+        if (!found)
+            throw new StateRecord.NotFoundException("record not found");
     }
 
     /**
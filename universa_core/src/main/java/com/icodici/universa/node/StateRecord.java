@@ -3,6 +3,7 @@ package com.icodici.universa.node;
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
 import com.icodici.universa.HashIdentifiable;
+import net.sergeych.tools.Binder;
 import net.sergeych.tools.Do;
 import net.sergeych.utils.LogPrinter;
 import org.checkerframework.checker.nullness.qual.NonNull;
@@ -13,6 +14,8 @@ import java.sql.SQLException;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.ZoneId;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The state of some {@link HashId} - identifiable item (e.g. {@link Approvable} to be sotred in the {@link Ledger}
@@ -31,7 +34,9 @@ public class StateRecord implements HashIdentifiable {
     private static LogPrinter log = new LogPrinter("StateRecord");
 
     private Ledger ledger;
-    private boolean dirty;
+    private volatile boolean dirty;
+    // number of changes, so the delayed save knows if the record has changed after it has taken the values
+    private int changes;
     private long recordId;
     private long lockedByRecordId;
 
@@ -56,6 +61,26 @@ public class StateRecord implements HashIdentifiable {
         lockedByRecordId = rs.getInt("locked_by_id");
     }
 
+    public StateRecord(Ledger ledger, Binder fields) {
+        this.ledger = ledger;
+        initFrom(fields);
+    }
+
+    /**
+     * Initialize from the fields named as the columns of the SQL ledgers: "id", "hash" (binary digest), "state"
+     * (ordinal), "created_at", "expires_at" (unix time) and "locked_by_id".
+     *
+     * @param fields of the stored record
+     */
+    public void initFrom(Binder fields) {
+        recordId = fields.getLongOrThrow("id");
+        id = HashId.withDigest(fields.getBinaryOrThrow("hash"));
+        state = ItemState.values()[fields.getIntOrThrow("state")];
+        createdAt = getTime(fields.getLongOrThrow("created_at"));
+        expiresAt = getTime(fields.getLongOrThrow("expires_at"));
+        lockedByRecordId = fields.getLongOrThrow("locked_by_id");
+    }
+
     public StateRecord(Ledger ledger) {
         this.ledger = ledger;
         createdAt = ZonedDateTime.now();
@@ -89,8 +114,9 @@ public class StateRecord implements HashIdentifiable {
     }
 
 
-    protected void setDirty() {
+    protected synchronized void setDirty() {
         dirty = true;
+        changes++;
     }
 
     public final StateRecord setState(ItemState newState) {
@@ -128,6 +154,53 @@ public class StateRecord implements HashIdentifiable {
         }
     }
 
+    /**
+     * Take the values of the record to save them later, e.g. with {@link Ledger#async(Callable)}. The changes made
+     * after the call are not saved by the returned operation, and the record stays dirty if there are any or if the
+     * save fails.
+     *
+     * @return operation saving the values the record has now, returns this record
+     */
+    public Callable<StateRecord> saving() {
+        if (!dirty || ledger == null)
+            return () -> this;
+        int version;
+        StateRecord values = new StateRecord(ledger);
+        synchronized (this) {
+            version = changes;
+            values.id = id;
+            values.recordId = recordId;
+            values.state = state;
+            values.createdAt = createdAt;
+            values.expiresAt = expiresAt;
+            values.lockedByRecordId = lockedByRecordId;
+        }
+        return () -> {
+            // the record could be created by the save made after taking the values
+            if (values.recordId == 0)
+                values.recordId = recordId;
+            ledger.save(values);
+            synchronized (this) {
+                recordId = values.recordId;
+                if (changes == version)
+                    dirty = false;
+            }
+            return this;
+        };
+    }
+
+    /**
+     * Same as {@link #save()}, with {@link Ledger#async(Callable)}. Saves the values the record has now, see {@link
+     * #saving()}.
+     *
+     * @return future completed with this record when it is saved
+     */
+    public CompletableFuture<StateRecord> saveAsync() {
+        if (dirty && ledger != null)
+            return ledger.async(saving());
+        return CompletableFuture.completedFuture(this);
+    }
+
     public final boolean isPositive() {
         return state == ItemState.PENDING_POSITIVE;
     }
@@ -193,7 +266,7 @@ public class StateRecord implements HashIdentifiable {
     public void setLockedByRecordId(long lockedByRecordId) {
         if (lockedByRecordId != this.lockedByRecordId) {
             this.lockedByRecordId = lockedByRecordId;
-            dirty = true;
+            setDirty();
         }
     }
 
@@ -202,7 +275,7 @@ public class StateRecord implements HashIdentifiable {
             if (this.id != null)
                 throw new IllegalStateException("can't change id of StateRecord");
             this.id = id;
-            dirty = true;
+            setDirty();
         }
     }
 
@@ -366,7 +439,7 @@ public class StateRecord implements HashIdentifiable {
     public StateRecord setExpiresAt(@NonNull ZonedDateTime expiresAt) {
         if( !this.expiresAt.equals(expiresAt) ) {
             this.expiresAt = expiresAt;
-            dirty = true;
+            setDirty();
         }
         return this;
     }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket counter: the bucket holds up to <code>limit</code> pulses and is refilled continuously at the
+ * rate of <code>limit</code> pulses per period, so unlike {@link RateCounter} there is no slot boundary where twice the
+ * limit could pass.
+ * <p>
+ * The whole state is a single "theoretical arrival time" of the next pulse (the generic cell rate algorithm), updated
+ * with compare-and-set, so the counter could be shared by any number of threads. The rejected pulse does not consume
+ * anything, so {@link #pulsesLeft()} is never negative.
+ * <p>
+ * Time is wall clock microseconds, so the serialized counter is valid in another process too.
+ */
+public class TokenBucketRateCounter extends AbstractRateCounter {
+
+    private volatile int limit;
+    private volatile Duration period;
+    /**
+     * Microseconds to refill one pulse
+     */
+    private volatile long interval;
+    /**
+     * Microseconds the bucket could be "ahead" of the current time, that is the burst size
+     */
+    private volatile long tolerance;
+
+    private final AtomicLong arrivalTime = new AtomicLong();
+
+    public TokenBucketRateCounter(int limit, Duration period) {
+        reset(limit, period);
+    }
+
+    @Override
+    public void reset(int limit, Duration period) {
+        if (limit < 1)
+            throw new IllegalArgumentException("limit must be positive");
+        this.limit = limit;
+        this.period = period;
+        interval = Math.max(1, period.toNanos() / 1000 / limit);
+        tolerance = interval * (limit - 1);
+        arrivalTime.set(0);
+    }
+
+    @Override
+    public Duration getDuration() {
+        return period;
+    }
+
+    @Override
+    public int getPulseLimit() {
+        return limit;
+    }
+
+    @Override
+    public int pulsesLeft() {
+        long now = now();
+        long ahead = Math.max(arrivalTime.get(), now) - now;
+        return (int) Math.max(0, Math.min(limit, Math.floorDiv(tolerance - ahead, interval) + 1));
+    }
+
+    /**
+     * @return time to wait until the next pulse will be allowed, 0 if it is allowed now
+     */
+    public long millisecondsLeft() {
+        long now = now();
+        long ahead = Math.max(arrivalTime.get(), now) - now;
+        return Math.max(0, ahead - tolerance + 999) / 1000;
+    }
+
+    /**
+     * @return true if the bucket is full, so the counter remembers nothing and could be discarded
+     */
+    public boolean isIdle() {
+        return arrivalTime.get() <= now();
+    }
+
+    /**
+     * Register a pulse if the bucket is not empty. Never blocks.
+     *
+     * @return true if the pulse is allowed, false if the limit is exceeded and the pulse is not counted
+     */
+    @Override
+    public boolean countPulse() {
+        long now = now();
+        while (true) {
+            long current = arrivalTime.get();
+            long start = Math.max(current, now);
+            if (start - now > tolerance)
+                return false;
+            if (arrivalTime.compareAndSet(current, start + interval))
+                return true;
+        }
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() * 1000;
+    }
+}
@@ -8,9 +8,14 @@
 package com.icodici.universa.node.network;
 
 import net.sergeych.tools.Binder;
+import net.sergeych.tools.Do;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for generic HTTP server implementation to be used in the Universa project.
@@ -78,6 +83,23 @@ public interface BasicHTTPService extends AutoCloseable {
         }
 
         byte[] getBytes();
+
+        /**
+         * Read the upload as a stream. Implementations that keep large uploads out of the heap should override it,
+         * so the upload could be processed without loading it whole.
+         *
+         * @return stream of the upload data
+         */
+        default InputStream getInputStream() {
+            return new ByteArrayInputStream(getBytes());
+        }
+
+        /**
+         * @return size of the upload in bytes
+         */
+        default long getSize() {
+            return getBytes().length;
+        }
     }
 
     interface Request {
@@ -143,6 +165,35 @@ public interface BasicHTTPService extends AutoCloseable {
          */
         void setBody(byte[] bodyAsBytes);
 
+        /**
+         * Set the body to remaining bytes of the buffer, e.g. of the memory-mapped file. Implementations should send
+         * it without copying to the heap, the default one copies it.
+         *
+         * @param bodyAsBuffer body in the form of the buffer, its position is not changed.
+         *                     if the mime-type header was not set, set it to application/octet-stream
+         */
+        default void setBody(ByteBuffer bodyAsBuffer) {
+            byte[] bytes = new byte[bodyAsBuffer.remaining()];
+            bodyAsBuffer.duplicate().get(bytes);
+            setBody(bytes);
+        }
+
+        /**
+         * Set the body to be read from the stream when the response is sent. Implementations should stream it to the
+         * network, using chunked transfer if the length is unknown, and close it when done; the default one reads it
+         * at once.
+         *
+         * @param bodyAsStream body in the form of the stream
+         * @param length       of the body, or -1 if unknown
+         */
+        default void setBody(InputStream bodyAsStream, long length) {
+            try (InputStream in = bodyAsStream) {
+                setBody(Do.read(in));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
         /**
          * Set the HTTP response code to specific value.
          *
@@ -11,25 +11,57 @@ import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.nanohttpd.protocols.http.tempfiles.ITempFile;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.OutputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * An implementation of {@link ITempFile}, keeping the file in memory.
+ * An implementation of {@link ITempFile}, keeping the file in memory until it grows above the {@link
+ * #SPILL_THRESHOLD}, then the data are moved to a real temporary file on disk, so large uploads do not occupy the
+ * heap.
+ * <p>
+ * In memory data are kept in a single array that is given away without copying by {@link #getBytes()} when it is
+ * exactly filled (use {@link #reserve(int)} when the size is known beforehand), and {@link #getInputStream()} never
+ * copies the data.
+ * <p>
  * The {@link InMemoryTempFile#getName} can be used to retrieve the file
  * using {@link InMemoryTempFile#getFileByName} method.
  */
 public class InMemoryTempFile implements ITempFile, AutoCloseable {
 
+    /**
+     * Files larger than this are kept on disk.
+     */
+    public static final int SPILL_THRESHOLD = 256 * 1024;
+
     private final static ConcurrentHashMap<String, InMemoryTempFile> files = new ConcurrentHashMap<>();
 
-    private final ByteArrayOutputStream fstream = new ByteArrayOutputStream(1024);
     private final String fileName = UUID.randomUUID().toString() + ".tempfile";
+    private final int spillThreshold;
+
+    private byte[] data = new byte[0];
+    private int size = 0;
+
+    @Nullable
+    private Path spillFile = null;
+    @Nullable
+    private OutputStream spillStream = null;
 
     public InMemoryTempFile() {
+        this(SPILL_THRESHOLD);
+    }
+
+    /**
+     * @param spillThreshold size above which the data are moved to disk
+     */
+    public InMemoryTempFile(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
         files.put(this.fileName, this);
     }
 
@@ -39,8 +71,16 @@ public class InMemoryTempFile implements ITempFile, AutoCloseable {
     @Override
     public void delete() throws Exception {
         files.remove(this.fileName);
-        fstream.reset();
-        fstream.close();
+        data = new byte[0];
+        size = 0;
+        if (spillStream != null) {
+            spillStream.close();
+            spillStream = null;
+        }
+        if (spillFile != null) {
+            Files.deleteIfExists(spillFile);
+            spillFile = null;
+        }
     }
 
     /**
@@ -56,7 +96,17 @@ public class InMemoryTempFile implements ITempFile, AutoCloseable {
      */
     @Override
     public OutputStream open() throws Exception {
-        return fstream;
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                InMemoryTempFile.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                InMemoryTempFile.this.write(b, off, len);
+            }
+        };
     }
 
     /**
@@ -67,12 +117,112 @@ public class InMemoryTempFile implements ITempFile, AutoCloseable {
         delete();
     }
 
-    public ByteArrayOutputStream getOutputByteStream() {
-        return fstream;
+    /**
+     * Prepare to receive the given number of bytes: allocate the memory at once or, if it is too large, go to disk
+     * right away.
+     *
+     * @param expectedSize number of bytes that will be written
+     *
+     * @throws IOException if the temporary file can't be created
+     */
+    public synchronized void reserve(int expectedSize) throws IOException {
+        long total = (long) size + expectedSize;
+        if (spillFile == null) {
+            if (total > spillThreshold)
+                spill();
+            else if (total > data.length)
+                data = Arrays.copyOf(data, (int) total);
+        }
+    }
+
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        if (spillFile == null && (long) size + length > spillThreshold)
+            spill();
+        if (spillFile != null) {
+            spillStream.write(bytes, offset, length);
+        } else {
+            if (size + length > data.length)
+                data = Arrays.copyOf(data, Math.max(size + length, Math.min(data.length * 2, spillThreshold)));
+            System.arraycopy(bytes, offset, data, size, length);
+        }
+        size += length;
+    }
+
+    /**
+     * Write remaining bytes of the buffer.
+     *
+     * @param buffer to write from
+     *
+     * @throws IOException if the temporary file can't be written
+     */
+    public synchronized void write(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (buffer.hasArray()) {
+            write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.limit());
+            return;
+        }
+        reserve(length);
+        if (spillFile != null) {
+            WritableByteChannel channel = Channels.newChannel(spillStream);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } else {
+            buffer.get(data, size, length);
+        }
+        size += length;
+    }
+
+    private void spill() throws IOException {
+        spillFile = Files.createTempFile("upload", ".tempfile");
+        spillStream = new BufferedOutputStream(Files.newOutputStream(spillFile));
+        spillStream.write(data, 0, size);
+        data = new byte[0];
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return true if the data are kept on disk
+     */
+    public synchronized boolean isSpilled() {
+        return spillFile != null;
     }
 
-    public ByteArrayInputStream getInputByteStream() {
-        return new ByteArrayInputStream(fstream.toByteArray());
+    /**
+     * Get all the data as array. If the data are in memory and the array is exactly filled, it is returned without
+     * copying, so it should not be modified.
+     *
+     * @return data
+     *
+     * @throws IOException if the data can't be read from disk
+     */
+    public synchronized byte[] getBytes() throws IOException {
+        if (spillFile != null) {
+            spillStream.flush();
+            return Files.readAllBytes(spillFile);
+        }
+        if (data.length != size)
+            data = Arrays.copyOf(data, size);
+        return data;
+    }
+
+    /**
+     * @return stream to read the data, not copying it if in memory
+     *
+     * @throws IOException if the data can't be read from disk
+     */
+    public synchronized InputStream getInputStream() throws IOException {
+        if (spillFile != null) {
+            spillStream.flush();
+            return new BufferedInputStream(Files.newInputStream(spillFile));
+        }
+        return new ByteArrayInputStream(data, 0, size);
     }
 
     @Nullable
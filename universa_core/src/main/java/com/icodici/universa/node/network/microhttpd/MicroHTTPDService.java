@@ -19,7 +19,10 @@ import org.nanohttpd.protocols.http.response.IStatus;
 import org.nanohttpd.protocols.http.response.Status;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -107,7 +110,25 @@ public class MicroHTTPDService implements BasicHTTPService {
 
         @Override
         public byte[] getBytes() {
-            return tempFile.getOutputByteStream().toByteArray();
+            try {
+                return tempFile.getBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            try {
+                return tempFile.getInputStream();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public long getSize() {
+            return tempFile.getSize();
         }
     }
 
@@ -194,6 +215,17 @@ public class MicroHTTPDService implements BasicHTTPService {
         @NonNull
         byte[] body = new byte[0];
 
+        /**
+         * If set, the body is streamed from it instead of {@link #body}.
+         */
+        @Nullable
+        InputStream bodyStream = null;
+
+        /**
+         * Length of {@link #bodyStream} or -1 for chunked transfer.
+         */
+        long bodyLength = -1;
+
         @Nullable
         String error = null;
 
@@ -227,6 +259,38 @@ public class MicroHTTPDService implements BasicHTTPService {
         public void setBody(byte[] bodyAsBytes) {
             assert bodyAsBytes != null;
             this.body = bodyAsBytes;
+            this.bodyStream = null;
+        }
+
+        @Override
+        public void setBody(ByteBuffer bodyAsBuffer) {
+            assert bodyAsBuffer != null;
+            setBody(new ByteBufferInputStream(bodyAsBuffer), bodyAsBuffer.remaining());
+        }
+
+        @Override
+        public void setBody(InputStream bodyAsStream, long length) {
+            assert bodyAsStream != null;
+            this.body = new byte[0];
+            this.bodyStream = bodyAsStream;
+            this.bodyLength = length;
+        }
+
+        /**
+         * Create the nanohttpd response for the body that was set: fixed length for arrays, buffers and streams of
+         * known length, chunked for other streams. Streams are closed by nanohttpd when sent. The "Content-Type"
+         * header, if set by the handler, is used as the mime type.
+         */
+        org.nanohttpd.protocols.http.response.Response createResponse() {
+            final IStatus status = Status.lookup(responseCode);
+            Object contentType = headers.remove("Content-Type");
+            final String mimeType = contentType != null ? contentType.toString() : "application/octet-stream";
+            if (bodyStream == null)
+                return org.nanohttpd.protocols.http.response.Response.newFixedLengthResponse(status, mimeType, body);
+            if (bodyLength >= 0)
+                return org.nanohttpd.protocols.http.response.Response.newFixedLengthResponse(status, mimeType,
+                        bodyStream, bodyLength);
+            return org.nanohttpd.protocols.http.response.Response.newChunkedResponse(status, mimeType, bodyStream);
         }
 
         @Override
@@ -325,13 +389,7 @@ public class MicroHTTPDService implements BasicHTTPService {
                 }
 
                 // Let's create the final response.
-                byte[] body = responsePlaceholder.body;
-
-                final org.nanohttpd.protocols.http.response.Response response = org.nanohttpd.protocols.http.response.Response.newFixedLengthResponse(
-                        Status.lookup(responsePlaceholder.responseCode),
-                        "application/octet-stream",
-                        body
-                );
+                final org.nanohttpd.protocols.http.response.Response response = responsePlaceholder.createResponse();
 
                 // Let's add the headers from the constructed response
                 for (Map.Entry<String, Object> entry : responsePlaceholder.getHeaders().entrySet()) {
@@ -20,7 +20,8 @@ import java.nio.ByteBuffer;
 
 /**
  * {@link HTTPSession} implementation, that has several improvements over the original:
- * • Loads all files only to memory, without any intermediate disk storage.
+ * • Loads files to memory, without any intermediate disk storage, only large ones go to disk (see
+ * {@link InMemoryTempFile}).
  * • Boosts the request buffer from 512 bytes to 4096.
  */
 public class MicroHTTPSession extends HTTPSession {
@@ -73,8 +74,10 @@ public class MicroHTTPSession extends HTTPSession {
             try {
                 final InMemoryTempFile tempFile = (InMemoryTempFile)tempFileManager.createTempFile(filename_hint);
                 final ByteBuffer src = b.duplicate();
-                src.position(offset).limit(offset + len);
-                tempFile.getOutputByteStream().write(src.array(), offset, len);
+                src.limit(offset + len).position(offset);
+                // the size is known, so it is copied only once, either to the exactly sized array or to disk
+                tempFile.reserve(len);
+                tempFile.write(src);
                 path = tempFile.getName(); // Note the name is not related to any physical file on disk!
             } catch (Exception e) { // Catch exception if any
                 throw new Error(e); // we won't recover, so throw an error
@@ -9,12 +9,12 @@ package com.icodici.universa.node2;
 
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
+import com.icodici.universa.HashIdMap;
 import net.sergeych.utils.Base64;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class ItemCache {
 
@@ -53,10 +53,10 @@ public class ItemCache {
         new Record(item);
     }
 
-    private ConcurrentHashMap<HashId,Record> records = new ConcurrentHashMap();
+    private HashIdMap<Record> records = new HashIdMap<>();
 
     public void idsCheck(HashId itemId) {
-        for(HashId x: records.keySet()) {
+        for(HashId x: records.keys()) {
             System.out.println(" checking "+itemId+" eq "+x+ ": "+itemId.equals(x) + " / " + x.equals(itemId) );
             System.out.println(" codes: "+itemId.hashCode() + " / "+ x.hashCode());
             System.out.println(" digest check: "+ Base64.encodeString(itemId.getDigest()));
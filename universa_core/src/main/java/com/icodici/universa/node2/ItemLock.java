@@ -9,24 +9,40 @@ package com.icodici.universa.node2;
 
 import com.icodici.universa.HashId;
 
-import java.util.WeakHashMap;
+import java.util.Collection;
 import java.util.function.Function;
 
 /**
  * The smart lock, allow global synchronize on per-hashId operation. Just call {@link #synchronize(HashId, Function)}
  * and execute your code in a callable argument.
+ * <p>
+ * Locks are striped: the id is mapped to one of the fixed number of monitors by its hash, so there is no shared
+ * lock table to synchronize on, but different ids could share the monitor. Code that holds the lock for one id should
+ * never wait for the lock of another id, use {@link #synchronizeAll(Collection, Function)} instead.
  */
 public final class ItemLock {
 
+    private final LockStripes stripes;
+
     public ItemLock() {
+        this(LockStripes.DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripesCount number of monitors, rounded up to the power of 2. More stripes means less false contention
+     *                     between different ids.
+     */
+    public ItemLock(int stripesCount) {
+        stripes = new LockStripes(stripesCount);
     }
 
     /**
-     * Execute a callable acquiring a unique lock (mutex) for a given {@link HashId}. Locks is released upon callable
+     * Execute a callable acquiring a lock (mutex) for a given {@link HashId}. Locks is released upon callable
      * return.
      *
      * @param id       ot get a lock to
-     * @param callable lamda to execute exclusively for the id
+     * @param callable lamda to execute exclusively for the id, gets the lock object as an argument that could be
+     *                 later used with {@code synchronized} to exclude other holders of this id lock
      * @param <T> is type
      *
      * @return whatever the callable returns
@@ -34,32 +50,49 @@ public final class ItemLock {
      * @throws Exception whatever callable throws
      */
     public <T> T synchronize(HashId id, Function<Object, T> callable) throws Exception {
-        ItemLock lock = null;
+        return stripes.synchronize(id, callable);
+    }
 
-        // short exclusive mutex: obtaning a lock
-        synchronized (monitors) {
-            lock = monitors.get(id);
-            if (lock == null) {
-                lock = new ItemLock();
-                monitors.put(id, lock);
-            }
-        }
-        // now we only lock the item:
-        synchronized (lock) {
-            return (T) callable.apply(lock);
-        }
+    /**
+     * Execute a callable acquiring locks for all the given {@link HashId}s. Locks are always acquired in the same
+     * (stripe) order, so concurrent calls with intersecting sets of ids can't deadlock, while calls with disjoint sets
+     * run in parallel. Locks are released upon callable return.
+     *
+     * @param ids      to get locks to, duplicates are allowed
+     * @param callable lambda to execute exclusively for all the ids, gets this {@link ItemLock} instance as an
+     *                 argument
+     * @param <T> is type
+     *
+     * @return whatever the callable returns
+     *
+     * @throws Exception whatever callable throws
+     */
+    public <T> T synchronizeAll(Collection<HashId> ids, Function<Object, T> callable) throws Exception {
+        return stripes.synchronizeAll(ids, callable, this);
     }
 
-    private WeakHashMap<HashId, ItemLock> monitors = new WeakHashMap<>();
+    /**
+     * @return number of stripes (monitors) ids are mapped to
+     */
+    public int size() {
+        return stripes.size();
+    }
 
     /**
-     * Niber of cached locks. Not all of them are acquired. Locks are cached as long as corresponding {@link HashId} is
-     * alive, so do not clone() and copy them, use shared instance (it is generally immutable). When the last instance
-     * of this itemId will be garbage collected, the lock will be removed from the cache.
+     * @return number of lock acquisitions made through this instance
+     */
+    public long getAcquisitions() {
+        return stripes.getAcquisitions();
+    }
+
+    /**
+     * Number of acquisitions that have found the stripe already held or awaited by another call. It includes false
+     * contention of different ids sharing the stripe, so the ratio to {@link #getAcquisitions()} shows whether more
+     * stripes are needed.
      *
-     * @return number of cached locks
+     * @return number of contended acquisitions
      */
-    public int size() {
-        return monitors.size();
+    public long getContentions() {
+        return stripes.getContentions();
     }
 }
@@ -0,0 +1,782 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent content-addressed store of packed items (contracts, parcels) keyed by their {@link HashId}. Serves item
+ * downloads after the item has left {@link ItemCache}.
+ * <p>
+ * Data are appended to memory-mapped segment files of fixed size, the record is never changed once written except
+ * for its expiration time that follows the ledger record of the item. The index is a memory-mapped open addressing hash table of
+ * fixed size slots that point to the records, so neither ids nor data are kept on heap. The index remembers the last
+ * indexed position, on open the records written after it are indexed again, and if the index is missing or broken it
+ * is rebuilt from segments.
+ * <p>
+ * Every record has the expiration time, expired records are dropped with {@link #removeExpired(Instant)} and the disk
+ * space is reclaimed by {@link #compact(double)} that moves live records of sparse segments to the current one and
+ * deletes them. Items are immutable so there is no other way to remove them. Data are read without copying through
+ * {@link Slice}s, a compacted segment with open slices is deleted when the last of them is closed.
+ * <p>
+ * The store does not force data to disk on every write: it is a cache for downloads, so the loss of some last
+ * records on crash is acceptable, broken records are detected with checksums and skipped.
+ * <p>
+ * Thread-safe: readers go in parallel, writers are serialized.
+ */
+public class ItemStore implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int RECORD_MAGIC = 0x55534952;
+    // record: magic, data length, expires at (epoch second), id length, id, data, crc32 of id and data
+    private static final int RECORD_HEADER = 4 + 4 + 8 + 2;
+    private static final int RECORD_TRAILER = 4;
+
+    private static final int INDEX_MAGIC = 0x55534949;
+    private static final int INDEX_VERSION = 1;
+    // index header: magic, version, capacity, last indexed segment, last indexed offset
+    private static final int INDEX_HEADER = 32;
+    // slot: hash, segment (0 - free, -1 - deleted), offset, data length, expires at
+    private static final int SLOT_SIZE = 24;
+    private static final int MIN_INDEX_CAPACITY = 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_FILE = "index";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+    private int deleted;
+
+    private boolean closed = false;
+
+    private static final class Segment {
+        private final int number;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int size;
+        private long liveBytes;
+        // open slices, incremented under the read lock, decremented under the write lock
+        private final AtomicInteger readers = new AtomicInteger();
+        // compacted, the file is deleted when the last slice is closed
+        private boolean retired = false;
+
+        private Segment(int number, Path path, int capacity) throws IOException {
+            this.number = number;
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long fileSize = channel.size();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(fileSize, capacity));
+        }
+
+        private int capacity() {
+            return buffer.capacity();
+        }
+    }
+
+    /**
+     * Open or create the store with default segment size.
+     *
+     * @param directory to keep files in, will be created if not exists
+     *
+     * @throws IOException if files can't be opened or created
+     */
+    public ItemStore(@NonNull Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open or create the store.
+     *
+     * @param directory   to keep files in, will be created if not exists
+     * @param segmentSize size of the segment file, larger records get a segment of their own
+     *
+     * @throws IOException if files can't be opened or created
+     */
+    public ItemStore(@NonNull Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        openSegments();
+        if (!openIndex())
+            rebuildIndex();
+        countLiveBytes();
+    }
+
+    private void openSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                String name = p.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(number, new Segment(number, p, 0));
+                }
+            }
+        }
+        // we only walk the headers here, checksums are verified for not yet indexed records
+        for (Segment s : segments.values())
+            s.size = scan(s, 0, false, null);
+        if (!segments.isEmpty())
+            active = segments.lastEntry().getValue();
+    }
+
+    private interface RecordVisitor {
+        void visit(Segment segment, int offset, byte[] digest, int dataLength, long expiresAt) throws IOException;
+    }
+
+    /**
+     * Walk records of the segment starting from the offset until the end of written data.
+     *
+     * @return offset of the end of the last good record
+     */
+    private int scan(Segment s, int offset, boolean verify, RecordVisitor visitor) throws IOException {
+        ByteBuffer b = s.buffer;
+        int limit = s.capacity();
+        while (offset + RECORD_HEADER <= limit && b.getInt(offset) == RECORD_MAGIC) {
+            int dataLength = b.getInt(offset + 4);
+            int idLength = b.getShort(offset + 16);
+            long end = (long) offset + RECORD_HEADER + idLength + dataLength + RECORD_TRAILER;
+            if (dataLength < 0 || idLength <= 0 || end > limit)
+                break;
+            if (verify && !checksumMatches(s, offset, idLength, dataLength))
+                break;
+            if (visitor != null) {
+                byte[] digest = new byte[idLength];
+                ByteBuffer d = b.duplicate();
+                d.position(offset + RECORD_HEADER);
+                d.get(digest);
+                visitor.visit(s, offset, digest, dataLength, b.getLong(offset + 8));
+            }
+            offset = (int) end;
+        }
+        return offset;
+    }
+
+    private static boolean checksumMatches(Segment s, int offset, int idLength, int dataLength) {
+        ByteBuffer d = s.buffer.duplicate();
+        int start = offset + RECORD_HEADER;
+        d.limit(start + idLength + dataLength);
+        d.position(start);
+        CRC32 crc = new CRC32();
+        crc.update(d);
+        return (int) crc.getValue() == s.buffer.getInt(start + idLength + dataLength);
+    }
+
+    private static int recordSize(int idLength, int dataLength) {
+        return RECORD_HEADER + idLength + dataLength + RECORD_TRAILER;
+    }
+
+    //////////// index /////////////
+
+    /**
+     * Open existing index and index records written after it was updated last time.
+     *
+     * @return false if there is no valid index
+     */
+    private boolean openIndex() throws IOException {
+        Path path = directory.resolve(INDEX_FILE);
+        if (!Files.exists(path))
+            return false;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        MappedByteBuffer b = size >= INDEX_HEADER ? channel.map(FileChannel.MapMode.READ_WRITE, 0, size) : null;
+        int cap = b != null ? b.getInt(8) : 0;
+        int lastSegment = b != null ? b.getInt(12) : 0;
+        if (b == null || b.getInt(0) != INDEX_MAGIC || b.getInt(4) != INDEX_VERSION || cap < MIN_INDEX_CAPACITY ||
+                Integer.bitCount(cap) != 1 || size != INDEX_HEADER + (long) cap * SLOT_SIZE ||
+                (lastSegment != 0 && !segments.containsKey(lastSegment))) {
+            channel.close();
+            return false;
+        }
+        // count entries and check that slots point to existing segments
+        int liveCount = 0;
+        int deletedCount = 0;
+        for (int i = 0; i < cap; i++) {
+            int segment = b.getInt(slotPosition(i) + 4);
+            if (segment > 0) {
+                if (!segments.containsKey(segment)) {
+                    channel.close();
+                    return false;
+                }
+                liveCount++;
+            } else if (segment < 0)
+                deletedCount++;
+        }
+        indexChannel = channel;
+        index = b;
+        capacity = cap;
+        count = liveCount;
+        deleted = deletedCount;
+        // index what was written after the last update
+        int lastOffset = index.getInt(16);
+        for (Segment s : segments.tailMap(lastSegment, true).values()) {
+            int from = s.number == lastSegment ? lastOffset : 0;
+            s.size = scan(s, from, true, this::indexRecord);
+        }
+        commit();
+        return true;
+    }
+
+    private void rebuildIndex() throws IOException {
+        createIndex(MIN_INDEX_CAPACITY);
+        for (Segment s : segments.values())
+            s.size = scan(s, 0, true, this::indexRecord);
+        commit();
+    }
+
+    private void indexRecord(Segment s, int offset, byte[] digest, int dataLength, long expiresAt) throws IOException {
+        if (expiresAt < Instant.now().getEpochSecond())
+            return;
+        HashId id = HashId.withDigest(digest);
+        int slot = find(id);
+        if (slot >= 0) {
+            // the same item written again, e.g. while the index was lost: the new record is as good as the old one
+            if (expiresAt > index.getLong(slotPosition(slot) + 16))
+                index.putLong(slotPosition(slot) + 16, expiresAt);
+        } else {
+            ensureIndexCapacity();
+            insert(id.hashCode(), s.number, offset, dataLength, expiresAt);
+        }
+    }
+
+    private void createIndex(int newCapacity) throws IOException {
+        Path path = directory.resolve(INDEX_FILE);
+        Path tmp = directory.resolve(INDEX_FILE + ".tmp");
+        Files.deleteIfExists(tmp);
+        FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                INDEX_HEADER + (long) newCapacity * SLOT_SIZE);
+        b.putInt(0, INDEX_MAGIC);
+        b.putInt(4, INDEX_VERSION);
+        b.putInt(8, newCapacity);
+
+        MappedByteBuffer old = index;
+        int oldCapacity = capacity;
+        FileChannel oldChannel = indexChannel;
+        index = b;
+        indexChannel = channel;
+        capacity = newCapacity;
+        count = 0;
+        deleted = 0;
+        if (old != null) {
+            for (int i = 0; i < oldCapacity; i++) {
+                int p = INDEX_HEADER + i * SLOT_SIZE;
+                if (old.getInt(p + 4) > 0)
+                    insert(old.getInt(p), old.getInt(p + 4), old.getInt(p + 8), old.getInt(p + 12),
+                            old.getLong(p + 16));
+            }
+            b.putInt(12, old.getInt(12));
+            b.putInt(16, old.getInt(16));
+            oldChannel.close();
+        }
+        b.force();
+        // the mapping stays valid after the rename
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void ensureIndexCapacity() throws IOException {
+        // keep the table no more than half full, counting deleted slots that also lengthen probe chains
+        if ((count + deleted + 1) * 2 > capacity) {
+            int newCapacity = capacity;
+            while ((count + 1) * 4 > newCapacity)
+                newCapacity <<= 1;
+            createIndex(newCapacity);
+        }
+    }
+
+    private void countLiveBytes() {
+        for (int i = 0; i < capacity; i++) {
+            int p = slotPosition(i);
+            int segment = index.getInt(p + 4);
+            if (segment > 0) {
+                Segment s = segments.get(segment);
+                s.liveBytes += recordSize(s.buffer.getShort(index.getInt(p + 8) + 16), index.getInt(p + 12));
+            }
+        }
+    }
+
+    private static int slotPosition(int slot) {
+        return INDEX_HEADER + slot * SLOT_SIZE;
+    }
+
+    /**
+     * @return slot index or -1 if not found
+     */
+    private int find(HashId id) {
+        int h = id.hashCode();
+        int mask = capacity - 1;
+        byte[] digest = id.getDigest();
+        for (int i = h & mask, n = 0; n < capacity; i = (i + 1) & mask, n++) {
+            int p = slotPosition(i);
+            int segment = index.getInt(p + 4);
+            if (segment == 0)
+                return -1;
+            if (segment > 0 && index.getInt(p) == h && digestMatches(segments.get(segment), index.getInt(p + 8),
+                    digest))
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean digestMatches(Segment s, int offset, byte[] digest) {
+        ByteBuffer b = s.buffer;
+        if (b.getShort(offset + 16) != digest.length)
+            return false;
+        int start = offset + RECORD_HEADER;
+        for (int i = 0; i < digest.length; i++)
+            if (b.get(start + i) != digest[i])
+                return false;
+        return true;
+    }
+
+    private void insert(int hash, int segment, int offset, int dataLength, long expiresAt) {
+        int mask = capacity - 1;
+        int i = hash & mask;
+        while (index.getInt(slotPosition(i) + 4) > 0)
+            i = (i + 1) & mask;
+        int p = slotPosition(i);
+        if (index.getInt(p + 4) < 0)
+            deleted--;
+        index.putInt(p, hash);
+        index.putInt(p + 4, segment);
+        index.putInt(p + 8, offset);
+        index.putInt(p + 12, dataLength);
+        index.putLong(p + 16, expiresAt);
+        count++;
+    }
+
+    /**
+     * Remember the position up to which everything is indexed.
+     */
+    private void commit() {
+        index.putInt(12, active != null ? active.number : 0);
+        index.putInt(16, active != null ? active.size : 0);
+    }
+
+    //////////// writing /////////////
+
+    /**
+     * Store the item. As items are content-addressed, the existing item is not written again, but its expiration is
+     * extended if the new one is later.
+     *
+     * @param id        of the item
+     * @param data      packed item
+     * @param expiresAt time after which the item could be dropped
+     *
+     * @return true if the item was written, false if it was already there
+     *
+     * @throws IOException if the segment can't be created
+     */
+    public boolean put(@NonNull HashId id, @NonNull byte[] data, @NonNull ZonedDateTime expiresAt) throws IOException {
+        long expires = expiresAt.toEpochSecond();
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            int slot = find(id);
+            if (slot >= 0) {
+                int p = slotPosition(slot);
+                if (expires > index.getLong(p + 16))
+                    setExpiration(p, expires);
+                return false;
+            }
+            byte[] digest = id.getDigest();
+            CRC32 crc = new CRC32();
+            crc.update(digest);
+            crc.update(data);
+            int offset = append(recordSize(digest.length, data.length), b -> {
+                b.putInt(RECORD_MAGIC);
+                b.putInt(data.length);
+                b.putLong(expires);
+                b.putShort((short) digest.length);
+                b.put(digest);
+                b.put(data);
+                b.putInt((int) crc.getValue());
+            });
+            ensureIndexCapacity();
+            insert(id.hashCode(), active.number, offset, data.length, expires);
+            commit();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Make the stored item expire no later than the given time, e.g. as the item is revoked and its ledger record is
+     * to expire earlier.
+     *
+     * @param id        of the item
+     * @param expiresAt time after which the item could be dropped
+     *
+     * @return true if the item is there
+     */
+    public boolean limitExpiration(@NonNull HashId id, @NonNull ZonedDateTime expiresAt) {
+        long expires = expiresAt.toEpochSecond();
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            int slot = find(id);
+            if (slot < 0)
+                return false;
+            int p = slotPosition(slot);
+            if (expires < index.getLong(p + 16))
+                setExpiration(p, expires);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void setExpiration(int slotPosition, long expires) {
+        index.putLong(slotPosition + 16, expires);
+        // so it won't be lost if the index is rebuilt
+        segments.get(index.getInt(slotPosition + 4)).buffer.putLong(index.getInt(slotPosition + 8) + 8, expires);
+    }
+
+    private interface RecordWriter {
+        void write(ByteBuffer buffer);
+    }
+
+    /**
+     * Append the record to the active segment, starting new one if need.
+     *
+     * @return offset of the record in the active segment
+     */
+    private int append(int size, RecordWriter writer) throws IOException {
+        if (active == null || active.size + size > active.capacity()) {
+            int number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            Path path = directory.resolve(String.format("%08d%s", number, SEGMENT_SUFFIX));
+            active = new Segment(number, path, Math.max(segmentSize, size));
+            segments.put(number, active);
+        }
+        int offset = active.size;
+        ByteBuffer b = active.buffer.duplicate();
+        b.position(offset);
+        writer.write(b);
+        active.size += size;
+        active.liveBytes += size;
+        return offset;
+    }
+
+    //////////// reading /////////////
+
+    /**
+     * @param id of the item
+     *
+     * @return copy of the stored data or null if there is no such item
+     */
+    public @Nullable byte[] get(@NonNull HashId id) {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            int slot = find(id);
+            if (slot < 0)
+                return null;
+            ByteBuffer b = dataOf(slot);
+            byte[] data = new byte[b.remaining()];
+            b.get(data);
+            return data;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Open stored data to be read without copying, e.g. to be sent right from the mapped segment. The slice must be
+     * closed when done: the segment it reads is not deleted by {@link #compact(double)} until then. The slice remains
+     * valid if the store is closed.
+     *
+     * @param id of the item
+     *
+     * @return open slice or null if there is no such item
+     */
+    public @Nullable Slice open(@NonNull HashId id) {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            int slot = find(id);
+            if (slot < 0)
+                return null;
+            Segment s = segments.get(index.getInt(slotPosition(slot) + 4));
+            s.readers.incrementAndGet();
+            return new Slice(s, dataOf(slot));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return read-only view of the data of the record the slot points to
+     */
+    private ByteBuffer dataOf(int slot) {
+        int p = slotPosition(slot);
+        Segment s = segments.get(index.getInt(p + 4));
+        int offset = index.getInt(p + 8);
+        int start = offset + RECORD_HEADER + s.buffer.getShort(offset + 16);
+        ByteBuffer b = s.buffer.duplicate();
+        b.limit(start + index.getInt(p + 12));
+        b.position(start);
+        return b.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Stream of the stored data read right from the mapped segment, see {@link #open(HashId)}. Closing it more than
+     * once does nothing.
+     */
+    public final class Slice extends InputStream {
+
+        private final Segment segment;
+        private final ByteBuffer buffer;
+        private final int length;
+        private boolean released = false;
+
+        private Slice(Segment segment, ByteBuffer buffer) {
+            this.segment = segment;
+            this.buffer = buffer;
+            length = buffer.remaining();
+        }
+
+        /**
+         * @return length of the whole data, whatever is already read
+         */
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            lock.writeLock().lock();
+            try {
+                if (released)
+                    return;
+                released = true;
+                if (segment.readers.decrementAndGet() == 0 && segment.retired)
+                    deleteSegment(segment);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public boolean contains(@NonNull HashId id) {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            return find(id) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of stored items
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of segment files
+     */
+    public int getSegmentsCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //////////// retention /////////////
+
+    /**
+     * Drop items expired before the given time. The space is reclaimed later by {@link #compact(double)}.
+     *
+     * @param now current time
+     *
+     * @return number of dropped items
+     */
+    public int removeExpired(@NonNull Instant now) {
+        long limit = now.getEpochSecond();
+        int removed = 0;
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            for (int i = 0; i < capacity; i++) {
+                int p = slotPosition(i);
+                int segment = index.getInt(p + 4);
+                if (segment > 0 && index.getLong(p + 16) < limit) {
+                    Segment s = segments.get(segment);
+                    s.liveBytes -= recordSize(s.buffer.getShort(index.getInt(p + 8) + 16), index.getInt(p + 12));
+                    index.putInt(p + 4, -1);
+                    count--;
+                    deleted++;
+                    removed++;
+                }
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reclaim space of the dropped items: live records of segments that have less than the given part of live data
+     * are moved to the current segment and the sparse segments are deleted, those with open {@link Slice}s when the
+     * last of them is closed.
+     *
+     * @param minLiveRatio segments with lower part of live data are compacted, 0.5 is a sensible value
+     *
+     * @return number of compacted segments
+     *
+     * @throws IOException if the segment can't be written or deleted
+     */
+    public int compact(double minLiveRatio) throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            List<Segment> sparse = new ArrayList<>();
+            for (Segment s : segments.values())
+                if (s != active && s.liveBytes < s.size * minLiveRatio)
+                    sparse.add(s);
+            for (Segment s : sparse) {
+                scan(s, 0, false, (segment, offset, digest, dataLength, expiresAt) -> {
+                    int slot = find(HashId.withDigest(digest));
+                    if (slot < 0)
+                        return;
+                    int p = slotPosition(slot);
+                    if (index.getInt(p + 4) != segment.number || index.getInt(p + 8) != offset)
+                        return;
+                    int size = recordSize(digest.length, dataLength);
+                    ByteBuffer source = segment.buffer.duplicate();
+                    source.limit(offset + size);
+                    source.position(offset);
+                    int newOffset = append(size, b -> b.put(source));
+                    index.putInt(p + 4, active.number);
+                    index.putInt(p + 8, newOffset);
+                });
+                segments.remove(s.number);
+            }
+            if (!sparse.isEmpty()) {
+                // moved records and the index should be on disk before the old copies are deleted
+                for (Segment s : segments.values())
+                    s.buffer.force();
+                commit();
+                index.force();
+                // segments being read are deleted when the last slice is closed
+                for (Segment s : sparse) {
+                    s.retired = true;
+                    if (s.readers.get() == 0)
+                        deleteSegment(s);
+                }
+            }
+            if (deleted * 4 > capacity)
+                createIndex(capacity);
+            return sparse.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void deleteSegment(Segment s) throws IOException {
+        s.channel.close();
+        Files.delete(s.path);
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("item store is closed");
+    }
+
+    /**
+     * Flush everything to disk and close files.
+     *
+     * @throws IOException if files can't be flushed or closed
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            for (Segment s : segments.values()) {
+                s.buffer.force();
+                s.channel.close();
+            }
+            index.force();
+            indexChannel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.Errors;
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.Ledger;
+import com.icodici.universa.node.LedgerDigest;
+import com.icodici.universa.node.LedgerSnapshot;
+import com.icodici.universa.node.StateRecord;
+import com.icodici.universa.node2.network.Client;
+import com.icodici.universa.node2.network.ClientError;
+import net.sergeych.tools.BufferedLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the {@link LedgerSnapshot} of the other node to the ledger of the new or long offline node before it starts,
+ * so it won't have to resync all the items one by one.
+ * <p>
+ * The snapshot is downloaded through the secure session with the source node and is imported only if it is signed by
+ * that node. Then the settled records are compared with the {@link LedgerDigest} of another node, the witness, and the
+ * ones it has otherwise or has not are dropped, so the single node could not bring the states the network does not
+ * agree on. The dropped records, as well as the ones changed since the snapshot was made, are then found by the
+ * anti-entropy rounds of the running node, which resync them with the network consensus.
+ */
+public class LedgerBootstrap {
+
+    /**
+     * Ledger digest of the witness node, see {@link Client#getLedgerDigest(int[])} and {@link
+     * Client#getLedgerBucket(int)}.
+     */
+    interface Witness {
+        long[] getLedgerDigest(int[] nodes) throws Exception;
+
+        Map<HashId, ItemState> getLedgerBucket(int bucket) throws Exception;
+    }
+
+    /**
+     * Levels of the digest tree to descend at once, comparing up to 16 children of each differing node
+     */
+    private static final int LEVELS_STEP = 4;
+    /**
+     * Pause before repeating the request the witness has rejected by its rate limit, and the number of repeats
+     */
+    private static final long RATE_LIMIT_PAUSE_MILLIS = 10000;
+    private static final int RATE_LIMIT_REPEATS = 30;
+
+    private final Ledger ledger;
+    private final PrivateKey nodeKey;
+    private final BufferedLogger log;
+
+    /**
+     * @param ledger  to load the snapshot to
+     * @param nodeKey of this node, to connect to the other ones
+     * @param log     to report the progress to
+     */
+    public LedgerBootstrap(Ledger ledger, PrivateKey nodeKey, BufferedLogger log) {
+        this.ledger = ledger;
+        this.nodeKey = nodeKey;
+        this.log = log;
+    }
+
+    /**
+     * Load the snapshot of the source node and check it with the witness one.
+     *
+     * @param source  node to get the snapshot from
+     * @param witness node to check the imported records with, or null to trust the source
+     *
+     * @return number of the records in the snapshot
+     *
+     * @throws IOException if the snapshot could not be downloaded, is damaged or is not signed by the source node, or
+     *                     the witness has failed
+     * @throws Exception    if the ledger has failed
+     */
+    public long load(NodeInfo source, NodeInfo witness) throws Exception {
+        Path file = Files.createTempFile("ledger", ".snapshot");
+        try {
+            long started = System.currentTimeMillis();
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                new Client(nodeKey, source, null).getLedgerSnapshot(out);
+            }
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                LedgerSnapshot.verify(in, source.getPublicKey());
+            }
+            log.log("ledger snapshot of " + Files.size(file) + " bytes is downloaded from " + source.getName() +
+                    " in " + (System.currentTimeMillis() - started) / 1000 + "s");
+
+            started = System.currentTimeMillis();
+            long count;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                count = LedgerSnapshot.read(in, ledger, source.getPublicKey());
+            }
+            log.log("ledger snapshot of " + count + " records is loaded in " +
+                    (System.currentTimeMillis() - started) / 1000 + "s");
+
+            if (witness != null) {
+                started = System.currentTimeMillis();
+                long dropped = dropDisputed(witness(new Client(nodeKey, witness, null)));
+                log.log("ledger snapshot is checked with " + witness.getName() + " in " +
+                        (System.currentTimeMillis() - started) / 1000 + "s, " + dropped + " records are dropped");
+            }
+            return count;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Destroy the settled records the witness has in the other state or has not, descending the digest tree only into
+     * the differing nodes.
+     *
+     * @return number of the records destroyed
+     */
+    long dropDisputed(Witness witness) throws Exception {
+        LedgerDigest digest = ledger.getDigest();
+        if (digest == null) {
+            log.e("ledger digest is not supported, the snapshot is not checked");
+            return 0;
+        }
+        List<Integer> compared = Collections.singletonList(1);
+        List<Integer> differing;
+        int level = 0;
+        while (true) {
+            int[] nodes = compared.stream().mapToInt(Integer::intValue).toArray();
+            long[] theirs = witness.getLedgerDigest(nodes);
+            long[] ours = digest.getNodes(nodes);
+            differing = new ArrayList<>();
+            for (int i = 0; i < nodes.length; i++)
+                if (theirs[i] != ours[i])
+                    differing.add(nodes[i]);
+            if (differing.isEmpty())
+                return 0;
+            if (level == LedgerDigest.DEPTH)
+                break;
+            int step = Math.min(LEVELS_STEP, LedgerDigest.DEPTH - level);
+            compared = new ArrayList<>(differing.size() << step);
+            for (int n : differing)
+                for (int child = n << step; child < (n + 1) << step; child++)
+                    compared.add(child);
+            level += step;
+        }
+
+        long dropped = 0;
+        for (int node : differing) {
+            int bucket = node - LedgerDigest.BUCKETS;
+            Map<HashId, ItemState> theirs = witness.getLedgerBucket(bucket);
+            for (Map.Entry<HashId, ItemState> e : digest.getBucket(bucket).entrySet()) {
+                if (e.getValue() != theirs.get(e.getKey())) {
+                    StateRecord record = ledger.getRecord(e.getKey());
+                    if (record != null) {
+                        record.destroy();
+                        dropped++;
+                    }
+                }
+            }
+        }
+        return dropped;
+    }
+
+    private interface Request<T> {
+        T execute() throws IOException;
+    }
+
+    private static Witness witness(Client client) {
+        return new Witness() {
+            @Override
+            public long[] getLedgerDigest(int[] nodes) throws IOException {
+                return repeatLimited(() -> client.getLedgerDigest(nodes));
+            }
+
+            @Override
+            public Map<HashId, ItemState> getLedgerBucket(int bucket) throws IOException {
+                return repeatLimited(() -> client.getLedgerBucket(bucket));
+            }
+        };
+    }
+
+    /**
+     * Execute the request, waiting for the rate limit of the witness if it is exceeded
+     */
+    private static <T> T repeatLimited(Request<T> request) throws IOException {
+        for (int i = 0; ; i++) {
+            try {
+                return request.execute();
+            } catch (ClientError e) {
+                if (i == RATE_LIMIT_REPEATS || e.getErrorRecord() == null ||
+                        e.getErrorRecord().getError() != Errors.TOO_MANY_REQUESTS)
+                    throw e;
+            }
+            try {
+                Thread.sleep(RATE_LIMIT_PAUSE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+    }
+}
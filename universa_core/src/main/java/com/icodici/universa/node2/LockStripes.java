@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Fixed array of monitors indexed by {@link HashId} hash, the implementation of {@link ItemLock} and {@link
+ * ParcelLock}.
+ * <p>
+ * Getting the monitor for the id is a single array access, there is no shared map and no global mutex, and nothing
+ * to collect. The price is that different ids could share the monitor, so the code that holds one must never wait for
+ * another one, except with {@link #synchronizeAll(Collection, Function)} that takes them in the stripe order.
+ * <p>
+ * The monitors are plain java objects, as callers could use them with {@code synchronized}, so the stripe objects are
+ * stable for the lifetime of the instance. They should not be kept as the private monitors of the per-id objects, as
+ * unrelated ids would then serialize on them.
+ */
+final class LockStripes {
+
+    static final int DEFAULT_STRIPES = 1024;
+
+    private final Stripe[] stripes;
+    private final int mask;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contentions = new LongAdder();
+
+    private static final class Stripe {
+        // threads holding or waiting for this stripe via LockStripes, used only to detect contention
+        private final AtomicInteger occupants = new AtomicInteger();
+    }
+
+    /**
+     * @param stripesCount desired number of stripes, rounded up to the power of 2
+     */
+    LockStripes(int stripesCount) {
+        if (stripesCount < 1)
+            throw new IllegalArgumentException("stripes count must be positive: " + stripesCount);
+        int n = 1;
+        while (n < stripesCount)
+            n <<= 1;
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++)
+            stripes[i] = new Stripe();
+        mask = n - 1;
+    }
+
+    private int indexOf(HashId id) {
+        // HashId hash code is already well mixed
+        return id.hashCode() & mask;
+    }
+
+    <T> T synchronize(HashId id, Function<Object, T> callable) {
+        Stripe stripe = stripes[indexOf(id)];
+        enter(stripe);
+        try {
+            synchronized (stripe) {
+                return callable.apply(stripe);
+            }
+        } finally {
+            stripe.occupants.decrementAndGet();
+        }
+    }
+
+    <T> T synchronizeAll(Collection<HashId> ids, Function<Object, T> callable, Object argument) {
+        int[] indexes = new int[ids.size()];
+        int count = 0;
+        for (HashId id : ids)
+            indexes[count++] = indexOf(id);
+        Arrays.sort(indexes, 0, count);
+        // remove duplicates
+        int unique = 0;
+        for (int i = 0; i < count; i++)
+            if (unique == 0 || indexes[unique - 1] != indexes[i])
+                indexes[unique++] = indexes[i];
+        return synchronizeSorted(indexes, unique, 0, callable, argument);
+    }
+
+    private <T> T synchronizeSorted(int[] indexes, int count, int position, Function<Object, T> callable,
+                                    Object argument) {
+        if (position == count)
+            return callable.apply(argument);
+        Stripe stripe = stripes[indexes[position]];
+        enter(stripe);
+        try {
+            synchronized (stripe) {
+                return synchronizeSorted(indexes, count, position + 1, callable, argument);
+            }
+        } finally {
+            stripe.occupants.decrementAndGet();
+        }
+    }
+
+    private void enter(Stripe stripe) {
+        acquisitions.increment();
+        if (stripe.occupants.getAndIncrement() > 0)
+            contentions.increment();
+    }
+
+    int size() {
+        return stripes.length;
+    }
+
+    long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    long getContentions() {
+        return contentions.sum();
+    }
+}
@@ -11,6 +11,9 @@ import com.icodici.crypto.PrivateKey;
 import com.icodici.crypto.PublicKey;
 import com.icodici.universa.HashId;
 import com.icodici.universa.contract.Contract;
+import com.icodici.universa.node.Ledger;
+import com.icodici.universa.node.LedgerSnapshot;
+import com.icodici.universa.node.MappedLedger;
 import com.icodici.universa.node.PostgresLedger;
 import com.icodici.universa.node.StateRecord;
 import com.icodici.universa.node2.network.ClientHTTPServer;
@@ -26,12 +29,13 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.sql.SQLException;
 import java.time.Duration;
+import java.util.List;
 
 import static java.util.Arrays.asList;
 
 public class Main {
     public static final String NODE_VERSION = "3.1.1";
-    private PostgresLedger ledger;
+    private Ledger ledger;
     private OptionParser parser;
     private OptionSet options;
     public final Reporter reporter = new Reporter();
@@ -65,6 +69,9 @@ public class Main {
                 acceptsAll(asList("d", "database"), "database connection url")
                         .withRequiredArg().ofType(String.class)
                         .describedAs("db_url");
+                accepts("bootstrap", "load the ledger snapshot from the node before starting")
+                        .withRequiredArg().ofType(Integer.class)
+                        .describedAs("node_number");
                 accepts("test", "intended to be used in integration tests");
                 accepts("nolog", "do not buffer log messages (good fot testing)");
             }
@@ -105,6 +112,9 @@ public class Main {
                 return;
             }
 
+            if (options.has("bootstrap"))
+                bootstrapLedger((Integer) options.valueOf("bootstrap"));
+
             log("--------------- step 3 --------------------");
             log("Starting the client HTTP server...");
             startClientHttpServer();
@@ -129,6 +139,25 @@ public class Main {
         }
     }
 
+    /**
+     * Import the {@link LedgerSnapshot} of the other node, so this one won't have to resync all the items one by one,
+     * and check it with the random third node, see {@link LedgerBootstrap}.
+     *
+     * @param nodeNumber of the node to get the snapshot from
+     */
+    private void bootstrapLedger(int nodeNumber) throws Exception {
+        NodeInfo source = netConfig.getInfo(nodeNumber);
+        if (source == null || source.equals(myInfo))
+            throw new IllegalArgumentException("no other node to bootstrap from: " + nodeNumber);
+        List<NodeInfo> witnesses = netConfig.toList();
+        witnesses.removeAll(asList(source, myInfo));
+        NodeInfo witness = witnesses.isEmpty() ? null : Do.sample(witnesses);
+        if (witness == null)
+            log("no node to check the ledger snapshot with, it is trusted as is");
+        log("Loading the ledger snapshot from " + source.getName() + "...");
+        new LedgerBootstrap(ledger, nodeKey, logger).load(source, witness);
+    }
+
     public NetConfig netConfig;
     public NetworkV2 network;
     public final Config config = new Config();
@@ -168,6 +197,8 @@ public class Main {
         clientHTTPServer.setNode(node);
         clientHTTPServer.setCache(cache);
         clientHTTPServer.setParcelCache(parcelCache);
+        clientHTTPServer.setItemStore(node.getItemStore());
+        clientHTTPServer.setParcelStore(node.getParcelStore());
         clientHTTPServer.setLocalCors(myInfo.getPublicHost().equals("localhost"));
     }
 
@@ -245,15 +276,31 @@ public class Main {
                               settings.getIntOrThrow("http_server_port")
         );
 
-        ledger = new PostgresLedger(settings.getStringOrThrow("database"));
+        // the embedded ledger does not keep the configuration, so it could be used only with the config files
+        String mappedLedger = settings.getString("mapped_ledger", null);
+        if (mappedLedger != null)
+            ledger = new MappedLedger(mappedLedger);
+        else
+            ledger = new PostgresLedger(settings.getStringOrThrow("database"));
         log("ledger constructed");
 
+        // the store takes the disk space, so it is used only if configured
+        String itemStore = settings.getString("item_store", null);
+        if (itemStore != null) {
+            config.setItemStorePath(itemStore);
+            log("item store path: " + itemStore);
+        }
+        config.setPipelinedParcelProcessing(settings.getBoolean("pipelined_parcel_processing", false));
+        // the statistics are served only with the secure command, unless the monitoring needs them without the key
+        publicStats = settings.getBoolean("public_stats", false);
+
         log("key loaded: " + nodeKey.info());
         log("node local URL: " + myInfo.publicUrlString());
         log("node info: " + myInfo.toBinder());
     }
 
     private ClientHTTPServer clientHTTPServer;
+    private boolean publicStats = false;
 
     public Node node;
     public ItemCache cache = new ItemCache(Duration.ofMinutes(30));
@@ -267,6 +314,7 @@ public class Main {
         clientHTTPServer.setCache(cache);
         clientHTTPServer.setParcelCache(parcelCache);
         clientHTTPServer.setNetConfig(netConfig);
+        clientHTTPServer.setPublicStats(publicStats);
 //        node = new Node()
     }
 
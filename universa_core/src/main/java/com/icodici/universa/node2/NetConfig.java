@@ -17,6 +17,7 @@ public class NetConfig {
 
     private final Map<Integer,NodeInfo> byNumber = new HashMap<>();
     private final Map<String,NodeInfo> byName = new HashMap<>();
+    private final BitSet numbers = new BitSet();
 
     public NetConfig() {}
 
@@ -37,6 +38,7 @@ public class NetConfig {
         if( n != null ) {
             byNumber.put(n.getNumber(), n);
             byName.put(n.getName(), n);
+            numbers.set(n.getNumber());
         }
     }
 
@@ -56,6 +58,13 @@ public class NetConfig {
         return byNumber.size();
     }
 
+    /**
+     * @return new bitset with the numbers of the known nodes set
+     */
+    public BitSet getNumbers() {
+        return (BitSet) numbers.clone();
+    }
+
     public List<NodeInfo> toList() {
         return new ArrayList<>(byName.values());
     }
@@ -63,5 +72,6 @@ public class NetConfig {
     public void removeNode(NodeInfo nodeInfo) {
         byNumber.remove(nodeInfo.getNumber());
         byName.remove(nodeInfo.getName());
+        numbers.clear(nodeInfo.getNumber());
     }
 }
@@ -9,6 +9,7 @@ package com.icodici.universa.node2;
 
 import com.icodici.crypto.PublicKey;
 import com.icodici.universa.*;
+import com.icodici.universa.NodeExecutorService.Stage;
 import com.icodici.universa.contract.Contract;
 import com.icodici.universa.contract.Parcel;
 import com.icodici.universa.contract.Reference;
@@ -29,6 +30,7 @@ import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.ZoneId;
@@ -36,6 +38,8 @@ import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 
 /**
@@ -50,19 +54,46 @@ public class Node {
     private final Config config;
     private final NodeInfo myInfo;
     private final Ledger ledger;
-    private final Object ledgerRollbackLock = new Object();
     private final Network network;
     private final ItemCache cache;
     private final ParcelCache parcelCache;
+    private final PeerResponseTimes peerResponseTimes;
+    private final ItemStore itemStore;
+    private final ItemStore parcelStore;
     private final ItemInformer informer = new ItemInformer();
 
     private final ItemLock itemLock = new ItemLock();
     private final ParcelLock parcelLock = new ParcelLock();
 
-    private ConcurrentHashMap<HashId, ItemProcessor> processors = new ConcurrentHashMap();
-    private ConcurrentHashMap<HashId, ParcelProcessor> parcelProcessors = new ConcurrentHashMap();
+    private HashIdMap<ItemProcessor> processors = new HashIdMap<>();
+    private HashIdMap<ParcelProcessor> parcelProcessors = new HashIdMap<>();
+
+    private final Metrics metrics = new Metrics();
+    private final Histogram downloadTime = metrics.histogram("node.download");
+    private final Histogram checkTime = metrics.histogram("node.check");
+    private final Histogram pollingTime = metrics.histogram("node.polling");
+    private final Histogram commitTime = metrics.histogram("node.commit");
+    private final Histogram consensusTime = metrics.histogram("node.consensus");
+    private final Histogram parcelTime = metrics.histogram("node.parcel");
+    private final LongAdder approvedItems = metrics.counter("node.approved");
+    private final LongAdder declinedItems = metrics.counter("node.declined");
+    private final LongAdder emergencyBreaks = metrics.counter("node.emergencyBreaks");
+    private final LongAdder pollNotifications = metrics.counter("node.pollNotifications");
+    private final LongAdder antiEntropyRounds = metrics.counter("node.antiEntropyRounds");
+    private final LongAdder antiEntropyResyncs = metrics.counter("node.antiEntropyResyncs");
 
-    private ScheduledExecutorService executorService = new ScheduledThreadPoolExecutor(512, new ThreadFactory() {
+    /**
+     * Levels of the {@link LedgerDigest} tree compared by one request to the peer
+     */
+    private static final int ANTI_ENTROPY_LEVELS_STEP = 4;
+    /**
+     * Limits of the differing buckets and of the items to resync in one anti-entropy round; the rest are left for the
+     * next rounds
+     */
+    private static final int ANTI_ENTROPY_MAX_BUCKETS = 64;
+    private static final int ANTI_ENTROPY_MAX_RESYNCS = 100;
+
+    private NodeExecutorService executorService = new NodeExecutorService(512, new ThreadFactory() {
 
         private final ThreadGroup threadGroup = new ThreadGroup("node-workers");
 
@@ -74,7 +105,7 @@ public class Node {
         }
     });
 
-    private ScheduledExecutorService lowPrioExecutorService = new ScheduledThreadPoolExecutor(16, new ThreadFactory() {
+    private ScheduledThreadPoolExecutor lowPrioExecutorService = new ScheduledThreadPoolExecutor(16, new ThreadFactory() {
 
         private final ThreadGroup threadGroup = new ThreadGroup("low-prio-node-workers");
 
@@ -94,9 +125,37 @@ public class Node {
         this.ledger = ledger;
         this.network = network;
         cache = new ItemCache(config.getMaxCacheAge());
+        peerResponseTimes = new PeerResponseTimes(config.getPollTime());
         parcelCache = new ParcelCache(config.getMaxCacheAge());
+        if (config.getItemStorePath() != null) {
+            try {
+                itemStore = new ItemStore(Paths.get(config.getItemStorePath(), "contracts"));
+                parcelStore = new ItemStore(Paths.get(config.getItemStorePath(), "parcels"));
+            } catch (IOException e) {
+                throw new RuntimeException("failed to open item store", e);
+            }
+            lowPrioExecutorService.scheduleWithFixedDelay(() -> cleanUpStores(), 10, 10, TimeUnit.MINUTES);
+        } else {
+            itemStore = null;
+            parcelStore = null;
+        }
+        lowPrioExecutorService.scheduleWithFixedDelay(() -> cleanUpLedger(), 10, 10, TimeUnit.MINUTES);
+        if (ledger.getDigest() != null && config.getAntiEntropyTime() != null) {
+            long period = config.getAntiEntropyTime().toMillis();
+            lowPrioExecutorService.scheduleWithFixedDelay(() -> syncLedgerWithPeer(), period, period,
+                    TimeUnit.MILLISECONDS);
+        }
         config.updateConsensusConfig(network.getNodesCount());
 
+        metrics.gauge("node.executorQueue", () -> executorService.getQueue().size());
+        metrics.gauge("node.executorActiveThreads", executorService::getActiveCount);
+        metrics.gauge("node.lowPrioExecutorQueue", () -> lowPrioExecutorService.getQueue().size());
+        metrics.gauge("node.itemProcessors", processors::size);
+        metrics.gauge("node.parcelProcessors", parcelProcessors::size);
+        metrics.include(network.getMetrics());
+        if (ledger.getMetrics() != null)
+            metrics.include(ledger.getMetrics());
+
         network.subscribe(myInfo, notification -> onNotification(notification));
     }
 
@@ -559,7 +618,21 @@ public class Node {
     private Object checkItemInternal(@NonNull HashId itemId, HashId parcelId, Approvable item,
                                        boolean autoStart, boolean forceChecking, boolean ommitItemResult) {
         try {
-            // first, let's lock to the item id:
+            // The processor and the processed record are found without the item lock, so the state queries don't
+            // wait for each other's ledger reads. The processor is looked up first, as it removes itself only after
+            // its final state is saved, and the processed record never gets back to pending.
+            ItemProcessor running = processors.get(itemId);
+            if (running != null)
+                return running;
+            if (!ommitItemResult) {
+                StateRecord r = ledger.getRecord(itemId);
+                if (r != null && !r.isPending())
+                    return new ItemResult(r, cache.get(itemId) != null);
+            }
+
+            // The new or pending item: lock to the item id to start the only processor. The record is read again
+            // under the lock, as a processor started by another call could have finished since the read above, and
+            // the stale record would start processing the item once more.
             return itemLock.synchronize(itemId, (lock) -> {
                 ItemProcessor ip = processors.get(itemId);
                 if (ip != null) {
@@ -592,7 +665,7 @@ public class Node {
                             cache.put(item);
                         }
                     }
-                    ItemProcessor processor = new ItemProcessor(itemId, parcelId, item, lock, forceChecking);
+                    ItemProcessor processor = new ItemProcessor(itemId, parcelId, item, forceChecking);
                     processors.put(itemId, processor);
                     return processor;
                 } else {
@@ -635,7 +708,7 @@ public class Node {
                             parcelCache.put(parcel);
                         }
                     }
-                    processor = new ParcelProcessor(parcelId, parcel, lock);
+                    processor = new ParcelProcessor(parcelId, parcel);
                     parcelProcessors.put(parcelId, processor);
 
                     return processor;
@@ -693,6 +766,34 @@ public class Node {
         return cache;
     }
 
+    /**
+     * Processing stages latencies in microseconds, counters and queue sizes of the node, its network and ledger. The
+     * stages are: downloading the item, checking it, polling from the own vote to the consensus, committing the
+     * approved item to the ledger, and the whole way from the start of processing to the consensus.
+     *
+     * @return the node metrics registry
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Start or stop recording the runs of the node tasks, with the queue wait and run times, by stage of the
+     * processing. Only the tasks submitted after the start are recorded.
+     *
+     * @param capacity how many latest runs to keep, 0 to stop
+     */
+    public void setTaskTracing(int capacity) {
+        executorService.setTracing(capacity);
+    }
+
+    /**
+     * @return the tasks trace or null if the tracing is off, see {@link #setTaskTracing(int)}
+     */
+    public NodeExecutorService.Trace getTaskTrace() {
+        return executorService.getTrace();
+    }
+
     public ParcelCache getParcelCache() {
         return parcelCache;
     }
@@ -701,11 +802,154 @@ public class Node {
         return ledger;
     }
 
+    public ItemStore getItemStore() {
+        return itemStore;
+    }
+
+    public ItemStore getParcelStore() {
+        return parcelStore;
+    }
+
+    /**
+     * Save the approved contract to the {@link ItemStore}, if it is used, in the background. Only the committed items
+     * are stored, so the store could not be filled with the ones nobody pays for. The contract is kept as long as its
+     * ledger record, and the items it revokes, if stored, are kept no longer than their revoked records.
+     *
+     * @param item      approved and committed to the ledger
+     * @param expiresAt of its ledger record
+     */
+    private void storeApproved(Approvable item, ZonedDateTime expiresAt) {
+        if (itemStore != null && item instanceof Contract && expiresAt != null) {
+            ZonedDateTime revokedExpiresAt = ZonedDateTime.now().plus(config.getRevokedItemExpiration());
+            lowPrioExecutorService.submit(() -> {
+                try {
+                    itemStore.put(item.getId(), ((Contract) item).getPackedTransaction(), expiresAt);
+                    for (Approvable revoked : item.getRevokingItems())
+                        itemStore.limitExpiration(revoked.getId(), revokedExpiresAt);
+                } catch (Exception e) {
+                    log.e("failed to store item " + item.getId() + ": " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Save the parcel with the approved payload to the {@link ItemStore}, if it is used, in the background. Parcels
+     * older than max item creation age could not be processed, so they are kept no longer.
+     *
+     * @param parcel to save
+     */
+    private void storeParcel(Parcel parcel) {
+        if (parcelStore != null) {
+            lowPrioExecutorService.submit(() -> {
+                try {
+                    parcelStore.put(parcel.getId(), parcel.pack(),
+                            ZonedDateTime.now().plus(config.getMaxItemCreationAge()));
+                } catch (Exception e) {
+                    log.e("failed to store parcel " + parcel.getId() + ": " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    private void cleanUpStores() {
+        Instant now = Instant.now();
+        for (ItemStore store : new ItemStore[]{itemStore, parcelStore}) {
+            try {
+                store.removeExpired(now);
+                store.compact(0.5);
+            } catch (Exception e) {
+                log.e("failed to clean up item store: " + e.getMessage());
+            }
+        }
+    }
+
+    private void cleanUpLedger() {
+        try {
+            ledger.cleanup();
+        } catch (Exception e) {
+            log.e("failed to clean up ledger: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Anti-entropy round: compare the {@link LedgerDigest} with the one of the random peer, descending the tree only
+     * into the differing nodes, and resync the items that are settled differently there or are missing here. The
+     * resync finds the network consensus, so it does not matter which of the two nodes is wrong; the records missing
+     * at the peer are found by its own rounds.
+     */
+    private void syncLedgerWithPeer() {
+        try {
+            LedgerDigest digest = ledger.getDigest();
+            List<NodeInfo> peers = new ArrayList<>(network.allNodes());
+            peers.remove(myInfo);
+            if (peers.isEmpty())
+                return;
+            NodeInfo peer = peers.get(ThreadLocalRandom.current().nextInt(peers.size()));
+            antiEntropyRounds.increment();
+
+            // tree nodes to compare at the current level, then the ones of them that differ
+            List<Integer> compared = Collections.singletonList(1);
+            List<Integer> differing;
+            int level = 0;
+            while (true) {
+                int[] nodes = compared.stream().mapToInt(Integer::intValue).toArray();
+                long[] theirs = network.getLedgerDigest(peer, nodes);
+                if (theirs == null)
+                    return;
+                long[] ours = digest.getNodes(nodes);
+                differing = new ArrayList<>();
+                for (int i = 0; i < nodes.length && differing.size() < ANTI_ENTROPY_MAX_BUCKETS; i++)
+                    if (theirs[i] != ours[i])
+                        differing.add(nodes[i]);
+                if (differing.isEmpty())
+                    return;
+                if (level == LedgerDigest.DEPTH)
+                    break;
+                int step = Math.min(ANTI_ENTROPY_LEVELS_STEP, LedgerDigest.DEPTH - level);
+                compared = new ArrayList<>(differing.size() << step);
+                for (int n : differing)
+                    for (int child = n << step; child < (n + 1) << step; child++)
+                        compared.add(child);
+                level += step;
+            }
+
+            int resyncs = 0;
+            for (int node : differing) {
+                int bucket = node - LedgerDigest.BUCKETS;
+                Map<HashId, ItemState> theirs = network.getLedgerBucket(peer, bucket);
+                if (theirs == null)
+                    return;
+                Map<HashId, ItemState> ours = digest.getBucket(bucket);
+                for (Map.Entry<HashId, ItemState> e : theirs.entrySet()) {
+                    if (e.getValue() != ours.get(e.getKey())) {
+                        resync(e.getKey());
+                        antiEntropyResyncs.increment();
+                        if (++resyncs >= ANTI_ENTROPY_MAX_RESYNCS)
+                            return;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.e("ledger anti-entropy round failed: " + e.getMessage());
+        }
+    }
+
     public void shutdown() {
         for (ItemProcessor ip : processors.values()) {
             ip.emergencyBreak();
         }
         executorService.shutdown();
+        lowPrioExecutorService.shutdown();
+        for (ItemStore store : new ItemStore[]{itemStore, parcelStore}) {
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
     }
 
 
@@ -743,19 +987,28 @@ public class Node {
         private HashMap<NodeInfo, ItemState> paymentDelayedVotes = new HashMap<>();
         private HashMap<NodeInfo, ItemState> payloadDelayedVotes = new HashMap<>();
         private ParcelProcessingState processingState;
+        /**
+         * Payload is being checked while the payment is voted, see {@link Config#isPipelinedParcelProcessing()}
+         */
+        private boolean payloadPrepared = false;
+        /**
+         * Payment processing is done, so the payload is not to be prepared anymore
+         */
+        private boolean paymentFinished = false;
 
-        private final Object mutex;
+        private final Object mutex = new Object();
 
         private ScheduledFuture<?> downloader;
         private ScheduledFuture<?> processSchedule;
+        private boolean processStarted = false;
+
+        private final long createdAt;
 
         private final AsyncEvent<Void> downloadedEvent = new AsyncEvent<>();
         private final AsyncEvent<Void> doneEvent = new AsyncEvent<>();
 
 
-        public ParcelProcessor(HashId parcelId, Parcel parcel, Object lock) {
-            mutex = lock;
-
+        public ParcelProcessor(HashId parcelId, Parcel parcel) {
             this.parcelId = parcelId;
             this.parcel = parcel;
             if (parcel == null)
@@ -767,10 +1020,10 @@ public class Node {
             }
 
             processingState = ParcelProcessingState.INIT;
+            createdAt = System.nanoTime();
 
             if (this.parcel != null)
-                 executorService.submit(() -> parcelDownloaded(),
-                         Node.this.toString() + " pp > parcel " + parcelId + " :: ParcelProcessor -> parcelDownloaded");
+                 executorService.submit(() -> parcelDownloaded(), Node.this, parcelId, Stage.PARCEL_DOWNLOADED);
         }
 
         //////////// processing section /////////////
@@ -778,9 +1031,10 @@ public class Node {
         private void pulseProcessing() {
             if(processingState.canContinue()) {
                 synchronized (mutex) {
-                    if (processSchedule == null || processSchedule.isDone()) {
-                        processSchedule = (ScheduledFuture<?>) executorService.submit(() -> process(),
-                                Node.this.toString() + " pp > parcel " + parcelId + " :: pulseProcessing -> process");
+                    // the processing continues with callbacks after the first step is done, start it only once
+                    if (!processStarted) {
+                        processStarted = true;
+                        processSchedule = executorService.submit(() -> process(), Node.this, parcelId, Stage.PARCEL_PROCESS);
                     }
                 }
             }
@@ -788,7 +1042,8 @@ public class Node {
 
         /**
          * Main process of processor. Here processor wait until payment will checked and approved.
-         * Then wait decision about payload contract.
+         * Then wait decision about payload contract. It does not block the thread waiting, but continues with
+         * {@link #paymentDone()}, {@link #payloadDone()} and {@link #finish()} when the item processors are done.
          */
         private void process() {
             if(processingState.canContinue()) {
@@ -804,65 +1059,130 @@ public class Node {
                         paymentDelayedVotes.clear();
 
                         processingState = ParcelProcessingState.PAYMENT_POLLING;
-                        if(!paymentProcessor.isDone()) {
-                            paymentProcessor.doneEvent.await();
-                        }
-                        paymentResult = paymentProcessor.getResult();
+                        continueWhenDone(paymentProcessor, this::paymentDone);
+                    } else {
+                        paymentDone();
                     }
+                } catch (Exception e) {
+                    failed(e);
+                }
+            }
+        }
 
-                    // if payment is ok, wait payload
-                    if (paymentResult.state.isApproved()) {
-
-                        if (payloadResult == null) {
+        /**
+         * Check the payload and lock its subitems while the payment is voted, if the payment is positive by the local
+         * check and is not done yet, see {@link Config#isPipelinedParcelProcessing()}.
+         */
+        private void preparePayload() {
+            synchronized (mutex) {
+                if (paymentFinished || paymentProcessor.getState() != ItemState.PENDING_POSITIVE)
+                    return;
+                payload.getQuantiser().reset(parcel.getQuantasLimit());
+                payloadPrepared = payloadProcessor.prepareChecking();
+            }
+        }
 
-                            processingState = ParcelProcessingState.PAYLOAD_CHECKING;
+        private void paymentDone() {
+            synchronized (mutex) {
+                paymentFinished = true;
+            }
+            if (paymentResult == null)
+                paymentResult = paymentProcessor.getResult();
 
-                            payload.getQuantiser().reset(parcel.getQuantasLimit());
+            // if payment is ok, wait payload
+            if (paymentResult.state.isApproved()) {
 
-                            // force payload checking (we've freeze it at processor start)
-                            payloadProcessor.forceChecking(true);
+                if (payloadResult == null) {
 
-                            for (NodeInfo ni : payloadDelayedVotes.keySet())
-                                payloadProcessor.vote(ni, payloadDelayedVotes.get(ni));
-                            payloadDelayedVotes.clear();
+                    processingState = ParcelProcessingState.PAYLOAD_CHECKING;
 
-                            processingState = ParcelProcessingState.PAYLOAD_POLLING;
-                            if(!payloadProcessor.isDone()) {
-                                payloadProcessor.doneEvent.await();
-                            }
-                            payloadResult = payloadProcessor.getResult();
-                        } else {
-                        }
+                    if (payloadPrepared) {
+                        // payload is checked and its subitems are locked already, let it vote
+                        payloadProcessor.commitPrepared();
                     } else {
-                        if(payloadProcessor != null) {
-                            payloadProcessor.emergencyBreak();
-                            payloadProcessor.doneEvent.await();
-                        }
+                        payload.getQuantiser().reset(parcel.getQuantasLimit());
+
+                        // force payload checking (we've freeze it at processor start)
+                        payloadProcessor.forceChecking(true);
                     }
 
-                    // we got payment and payload result, can fire done event for waiters
-                    processingState = ParcelProcessingState.FINISHED;
-                    doneEvent.fire();
+                    for (NodeInfo ni : payloadDelayedVotes.keySet())
+                        payloadProcessor.vote(ni, payloadDelayedVotes.get(ni));
+                    payloadDelayedVotes.clear();
 
-                    // but we want to wait until paymentProcessor and payloadProcessor will be removed
-                    if(paymentProcessor != null && paymentProcessor.processingState != ItemProcessingState.FINISHED) {
-                        paymentProcessor.removedEvent.await();
+                    processingState = ParcelProcessingState.PAYLOAD_POLLING;
+                    continueWhenDone(payloadProcessor, this::payloadDone);
+                } else {
+                    finish();
+                }
+            } else {
+                if(payloadProcessor != null) {
+                    if (payloadPrepared) {
+                        // release subitems locked by the payload check
+                        payloadProcessor.discardPrepared();
+                    } else {
+                        payloadProcessor.emergencyBreak();
                     }
-                    if(payloadProcessor != null && payloadProcessor.processingState != ItemProcessingState.FINISHED) {
-                        payloadProcessor.removedEvent.await();
+                    continueAfter(payloadProcessor.doneEvent, this::finish);
+                } else {
+                    finish();
+                }
+            }
+        }
+
+        private void payloadDone() {
+            payloadResult = payloadProcessor.getResult();
+            finish();
+        }
+
+        private void finish() {
+            if (payloadResult != null && payloadResult.state == ItemState.APPROVED)
+                storeParcel(parcel);
+
+            // we got payment and payload result, can fire done event for waiters
+            processingState = ParcelProcessingState.FINISHED;
+            parcelTime.recordMicrosSince(createdAt);
+            doneEvent.fire();
+
+            // but we want to wait until paymentProcessor and payloadProcessor will be removed
+            continueWhenRemoved(paymentProcessor, () -> continueWhenRemoved(payloadProcessor, this::removeSelf));
+        }
+
+        private void failed(Exception e) {
+            e.printStackTrace();
+            processingState = ParcelProcessingState.FINISHED;
+            doneEvent.fire();
+            removeSelf();
+        }
+
+        /**
+         * Run the next step of the processing with the node executor when the event is fired, instead of waiting for
+         * it in the thread.
+         */
+        private void continueAfter(AsyncEvent<Void> event, Runnable step) {
+            event.addConsumer(x -> executorService.submit(() -> {
+                if (processingState.canContinue()) {
+                    try {
+                        step.run();
+                    } catch (Exception e) {
+                        failed(e);
                     }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    processingState = ParcelProcessingState.FINISHED;
-                    doneEvent.fire();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    processingState = ParcelProcessingState.FINISHED;
-                    doneEvent.fire();
                 }
+            }, Node.this, parcelId, Stage.PARCEL_PROCESS));
+        }
 
-                removeSelf();
-            }
+        private void continueWhenDone(ItemProcessor processor, Runnable step) {
+            if (processor.isDone())
+                step.run();
+            else
+                continueAfter(processor.doneEvent, step);
+        }
+
+        private void continueWhenRemoved(ItemProcessor processor, Runnable step) {
+            if (processor != null && processor.processingState != ItemProcessingState.FINISHED)
+                continueAfter(processor.removedEvent, step);
+            else
+                step.run();
         }
 
         private void stopProcesser() {
@@ -880,8 +1200,7 @@ public class Node {
 
                     synchronized (mutex) {
                         if (parcel == null && (downloader == null || downloader.isDone())) {
-                            downloader = (ScheduledFuture<?>) executorService.submit(() -> download(),
-                                    Node.this.toString() + " > parcel " + parcelId + " :: parcel pulseDownload -> download");
+                            downloader = executorService.submit(() -> download(), Node.this, parcelId, Stage.PARCEL_DOWNLOAD);
                         }
                     }
                 }
@@ -939,6 +1258,10 @@ public class Node {
                     x = checkItemInternal(payload.getId(), parcelId, payload, true, false);
                     if (x instanceof ItemProcessor) {
                         payloadProcessor = ((ItemProcessor) x);
+                        // or check it and lock its subitems while the payment is voted, without voting for it yet, but
+                        // only when the payment has passed our own check, so the unpaid payload can't lock anything
+                        if (config.isPipelinedParcelProcessing() && paymentResult == null)
+                            continueAfter(paymentProcessor.pollingReadyEvent, this::preparePayload);
                     } else {
                         payloadResult = (ItemResult) x;
                     }
@@ -1113,8 +1436,12 @@ public class Node {
          */
         private boolean resyncItselfOnly;
 
-        private Set<NodeInfo> positiveNodes = new HashSet<>();
-        private Set<NodeInfo> negativeNodes = new HashSet<>();
+        /**
+         * Votes by node number, see {@link NodeInfo#getNumber()}. Sized for the known nodes to never grow, as some
+         * reads are done without the mutex.
+         */
+        private final BitSet positiveNodes;
+        private final BitSet negativeNodes;
 
         private HashMap<HashId, ResyncingItem> resyncingItems = new HashMap<>();
 
@@ -1127,17 +1454,47 @@ public class Node {
 
         private boolean alreadyChecked;
         private boolean isCheckingForce = false;
+        /**
+         * Stop in the PREPARED state after the check instead of voting, until commitPrepared() is called
+         */
+        private boolean isCommitDeferred = false;
 
         private final AsyncEvent<Void> downloadedEvent = new AsyncEvent<>();
         private final AsyncEvent<Void> doneEvent = new AsyncEvent<>();
         private final AsyncEvent<Void> pollingReadyEvent = new AsyncEvent<>();
         private final AsyncEvent<Void> removedEvent = new AsyncEvent<>();
 
-        private final Object mutex;
+        /**
+         * Own monitor of the processor. Not the {@link ItemLock} one, as its stripe is shared with other items.
+         */
+        private final Object mutex = new Object();
         private final Object resyncMutex;
 
+        /**
+         * Held for the whole check of the item and its subitems, so {@link #discardPrepared()} taking it waits for the
+         * running check and does not break it between the subitem locks.
+         */
+        private final Object checkMutex = new Object();
+
+        /**
+         * The last of the ledger operations of the processor, see {@link #inLedgerOrder(Callable)}
+         */
+        private CompletableFuture<?> ledgerOperations = CompletableFuture.completedFuture(null);
+
         private ScheduledFuture<?> downloader;
         private ScheduledFuture<?> poller;
+
+        /**
+         * Adaptive polling state by node number: when the node was polled (0 when it has answered or the answer is
+         * overdue), until when its answer is waited for and how many times it was polled. Created on the first poll.
+         */
+        private long[] polledAt;
+        private long[] pollDeadlines;
+        private int[] pollAttempts;
+
+        // System.nanoTime() at the processing start and when the own vote is sent, for metrics
+        private final long createdAt = System.nanoTime();
+        private long pollingStartedAt;
         private ScheduledFuture<?> consensusReceivedChecker;
         private ScheduledFuture<?> resyncer;
 
@@ -1146,20 +1503,21 @@ public class Node {
          * @param itemId item id to be process
          * @param parcelId parcel id that item belongs to.
          * @param item item object if exist
-         * @param lock lock for synchronization
          * @param isCheckingForce if true checking item processing without delays.
          *                        If false checking item wait until forceChecking() will be called.
          */
-        public ItemProcessor(HashId itemId, HashId parcelId, Approvable item, Object lock, boolean isCheckingForce) {
+        public ItemProcessor(HashId itemId, HashId parcelId, Approvable item, boolean isCheckingForce) {
 
 
-            mutex = lock;
             resyncMutex = new Object();
             this.isCheckingForce = isCheckingForce;
 
             processingState = ItemProcessingState.INIT;
             this.itemId = itemId;
             this.parcelId = parcelId;
+            int nodesWidth = network.allNodeNumbers().length();
+            positiveNodes = new BitSet(nodesWidth);
+            negativeNodes = new BitSet(nodesWidth);
             if (item == null)
                 item = cache.get(itemId);
             this.item = item;
@@ -1180,8 +1538,7 @@ public class Node {
             alreadyChecked = false;
 
             if (this.item != null)
-                executorService.submit(() -> itemDownloaded(),
-                        Node.this.toString() + toString() + " :: ItemProcessor -> itemDownloaded");
+                executorService.submit(() -> itemDownloaded(), Node.this, itemId, Stage.ITEM_DOWNLOADED);
         }
 
         //////////// download section /////////////
@@ -1197,8 +1554,7 @@ public class Node {
                     synchronized (mutex) {
                         if (item == null && (downloader == null || downloader.isDone())) {
 //                            debug("submitting download");
-                            downloader = (ScheduledFuture<?>) executorService.submit(() -> download(),
-                                    Node.this.toString() + toString() + " :: item pulseDownload -> download");
+                            downloader = executorService.submit(() -> download(), Node.this, itemId, Stage.ITEM_DOWNLOAD);
                         }
                     }
                 }
@@ -1207,6 +1563,7 @@ public class Node {
 
         private void download() {
             if(processingState.canContinue()) {
+                long started = System.nanoTime();
                 while (!isPollingExpired() && item == null) {
                     if (sources.isEmpty()) {
                         log.e("empty sources for download tasks, stopping");
@@ -1221,6 +1578,7 @@ public class Node {
                             }
                             item = network.getItem(itemId, source, config.getMaxGetItemTime());
                             if (item != null) {
+                                downloadTime.recordMicrosSince(started);
                                 itemDownloaded();
                                 return;
                             } else {
@@ -1256,65 +1614,70 @@ public class Node {
 
         //////////// check item section /////////////
 
-        private final synchronized void checkItem() {
-            if(processingState.canContinue()) {
-
-                if (!processingState.isProcessedToConsensus()
-                        && processingState != ItemProcessingState.POLLING
-                        && processingState != ItemProcessingState.CHECKING
-                        && processingState != ItemProcessingState.RESYNCING) {
-                    if (alreadyChecked) {
-                        throw new RuntimeException("Check already processed");
-                    }
+        private final void checkItem() {
+            synchronized (checkMutex) {
+                if(processingState.canContinue()) {
+
+                    if (!processingState.isProcessedToConsensus()
+                            && processingState != ItemProcessingState.POLLING
+                            && processingState != ItemProcessingState.CHECKING
+                            && processingState != ItemProcessingState.PREPARED
+                            && processingState != ItemProcessingState.RESYNCING) {
+                        if (alreadyChecked) {
+                            throw new RuntimeException("Check already processed");
+                        }
 
-                    if(!processingState.isProcessedToConsensus()) {
-                        processingState = ItemProcessingState.CHECKING;
-                    }
+                        if(!processingState.isProcessedToConsensus()) {
+                            processingState = ItemProcessingState.CHECKING;
+                        }
 
-                    // Check the internal state
-                    // Too bad if basic check isn't passed, we will not process it further
-                    HashMap<HashId, StateRecord> itemsToResync = new HashMap<>();
-                    boolean needToResync = false;
+                        long started = System.nanoTime();
+                        // Check the internal state
+                        // Too bad if basic check isn't passed, we will not process it further
+                        HashMap<HashId, StateRecord> itemsToResync = new HashMap<>();
+                        boolean needToResync = false;
 
-                    try {
-                        boolean checkPassed = false;
+                        try {
+                            boolean checkPassed = false;
 
-                        if(item.shouldBeTU()) {
-                            if(item.isTU(config.getTransactionUnitsIssuerKey(), config.getTUIssuerName())) {
-                                checkPassed = item.paymentCheck(config.getTransactionUnitsIssuerKey());
+                            if(item.shouldBeTU()) {
+                                if(item.isTU(config.getTransactionUnitsIssuerKey(), config.getTUIssuerName())) {
+                                    checkPassed = item.paymentCheck(config.getTransactionUnitsIssuerKey());
+                                } else {
+                                    checkPassed = false;
+                                    item.addError(Errors.BADSTATE, item.getId().toString(),
+                                            "Item that should be TU contract is not TU contract");
+                                }
                             } else {
-                                checkPassed = false;
-                                item.addError(Errors.BADSTATE, item.getId().toString(),
-                                        "Item that should be TU contract is not TU contract");
+                                checkPassed = item.check();
                             }
-                        } else {
-                            checkPassed = item.check();
-                        }
 
-                        if (checkPassed) {
+                            if (checkPassed) {
 
-                            itemsToResync = isNeedToResync(true);
-                            needToResync = !itemsToResync.isEmpty();
+                                itemsToResync = isNeedToResync(true);
+                                needToResync = !itemsToResync.isEmpty();
 
-                            // If no need to resync subItems, check them
-                            if (!needToResync) {
-                                checkSubItems();
+                                // If no need to resync subItems, check them
+                                if (!needToResync) {
+                                    checkSubItems();
+                                }
                             }
+                        } catch (Quantiser.QuantiserException e) {
+                            emergencyBreak();
+                            return;
                         }
-                    } catch (Quantiser.QuantiserException e) {
-                        emergencyBreak();
-                        return;
-                    }
-                    alreadyChecked = true;
+                        checkTime.recordMicrosSince(started);
+                        alreadyChecked = true;
 
-                    if (!needToResync) {
-                        commitCheckedAndStartPolling();
-                    } else {
-                        for (HashId hid : itemsToResync.keySet()) {
-                            addItemToResync(hid, itemsToResync.get(hid));
-                        }
+                        if (!needToResync) {
+                            commitCheckedOrPrepare();
+                        } else {
+                            for (HashId hid : itemsToResync.keySet()) {
+                                addItemToResync(hid, itemsToResync.get(hid));
+                            }
 
-                        pulseResync();
+                            pulseResync();
+                        }
                     }
                 }
             }
@@ -1364,7 +1727,7 @@ public class Node {
                             } catch (Exception e) {
                                 e.printStackTrace();
                             }
-                            commitCheckedAndStartPolling();
+                            commitCheckedOrPrepare();
                         }
                     }
                 }
@@ -1381,44 +1744,46 @@ public class Node {
         }
 
         // check subitems of given item recursively (down for newItems line)
-        private final synchronized void checkSubItemsOf(Approvable checkingItem) {
-            if(processingState.canContinue()) {
-                if (!processingState.isProcessedToConsensus()) {
-                    for (Reference refModel : checkingItem.getReferencedItems()) {
-                        HashId id = refModel.contract_id;
-                        if (refModel.type != Reference.TYPE_TRANSACTIONAL) {
-                            if (!ledger.isApproved(id)) {
-                                checkingItem.addError(Errors.BAD_REF, id.toString(), "reference not approved");
+        private final void checkSubItemsOf(Approvable checkingItem) {
+            synchronized (checkMutex) {
+                if(processingState.canContinue()) {
+                    if (!processingState.isProcessedToConsensus()) {
+                        for (Reference refModel : checkingItem.getReferencedItems()) {
+                            HashId id = refModel.contract_id;
+                            if (refModel.type != Reference.TYPE_TRANSACTIONAL) {
+                                if (!ledger.isApproved(id)) {
+                                    checkingItem.addError(Errors.BAD_REF, id.toString(), "reference not approved");
+                                }
                             }
                         }
-                    }
-                    // check revoking items
-                    for (Approvable a : checkingItem.getRevokingItems()) {
-                        synchronized (mutex) {
-                            StateRecord r = record.lockToRevoke(a.getId());
-                            if (r == null) {
-                                checkingItem.addError(Errors.BAD_REVOKE, a.getId().toString(), "can't revoke");
-                            } else {
-                                if (!lockedToRevoke.contains(r))
-                                    lockedToRevoke.add(r);
+                        // check revoking items
+                        for (Approvable a : checkingItem.getRevokingItems()) {
+                            synchronized (mutex) {
+                                StateRecord r = record.lockToRevoke(a.getId());
+                                if (r == null) {
+                                    checkingItem.addError(Errors.BAD_REVOKE, a.getId().toString(), "can't revoke");
+                                } else {
+                                    if (!lockedToRevoke.contains(r))
+                                        lockedToRevoke.add(r);
+                                }
                             }
                         }
-                    }
-                    // check new items
-                    for (Approvable newItem : checkingItem.getNewItems()) {
+                        // check new items
+                        for (Approvable newItem : checkingItem.getNewItems()) {
 
-                        checkSubItemsOf(newItem);
+                            checkSubItemsOf(newItem);
 
-                        if (!newItem.getErrors().isEmpty()) {
-                            checkingItem.addError(Errors.BAD_NEW_ITEM, newItem.getId().toString(), "bad new item: not passed check");
-                        } else {
-                            synchronized (mutex) {
-                                StateRecord r = record.createOutputLockRecord(newItem.getId());
-                                if (r == null) {
-                                    checkingItem.addError(Errors.NEW_ITEM_EXISTS, newItem.getId().toString(), "new item exists in ledger");
-                                } else {
-                                    if (!lockedToCreate.contains(r))
-                                        lockedToCreate.add(r);
+                            if (!newItem.getErrors().isEmpty()) {
+                                checkingItem.addError(Errors.BAD_NEW_ITEM, newItem.getId().toString(), "bad new item: not passed check");
+                            } else {
+                                synchronized (mutex) {
+                                    StateRecord r = record.createOutputLockRecord(newItem.getId());
+                                    if (r == null) {
+                                        checkingItem.addError(Errors.NEW_ITEM_EXISTS, newItem.getId().toString(), "new item exists in ledger");
+                                    } else {
+                                        if (!lockedToCreate.contains(r))
+                                            lockedToCreate.add(r);
+                                    }
                                 }
                             }
                         }
@@ -1427,6 +1792,19 @@ public class Node {
             }
         }
 
+        // commit the check result, or if the commit is deferred, keep the subitems locked and wait for commitPrepared()
+        private final void commitCheckedOrPrepare() {
+            synchronized (mutex) {
+                if (isCommitDeferred) {
+                    if (!processingState.isProcessedToConsensus()) {
+                        processingState = ItemProcessingState.PREPARED;
+                    }
+                    return;
+                }
+            }
+            commitCheckedAndStartPolling();
+        }
+
         private final void commitCheckedAndStartPolling() {
             if(processingState.canContinue()) {
 
@@ -1437,6 +1815,8 @@ public class Node {
                         informer.inform(item);
                     }
 
+                    Callable<StateRecord> saving;
+                    LedgerTurn turn;
                     synchronized (mutex) {
                         if (record.getState() == ItemState.PENDING) {
                             if (checkPassed) {
@@ -1447,25 +1827,112 @@ public class Node {
                         }
 
                         record.setExpiresAt(item.getExpiresAt());
-                        try {
-                            record.save();
-                        } catch (Ledger.Failure failure) {
+                        // take the values and the place in the ledger order together, but save out of the mutex
+                        saving = record.saving();
+                        turn = takeLedgerTurn();
+                    }
+                    CompletableFuture<StateRecord> saved = turn.run(saving);
+
+                    // vote only when our vote is saved
+                    whenLedgerDone(saved, (r, failure) -> {
+                        if (failure != null) {
                             emergencyBreak();
                             return;
                         }
-                    }
+                        if (!processingState.canContinue())
+                            return;
 
-                    if(!processingState.isProcessedToConsensus()) {
-                        processingState = ItemProcessingState.POLLING;
-                    }
-                    vote(myInfo, record.getState());
-                    broadcastMyState();
-                    pulseStartPolling();
-                    pollingReadyEvent.fire();
+                        if(!processingState.isProcessedToConsensus()) {
+                            processingState = ItemProcessingState.POLLING;
+                        }
+                        pollingStartedAt = System.nanoTime();
+                        vote(myInfo, record.getState());
+                        broadcastMyState();
+                        pulseStartPolling();
+                        pollingReadyEvent.fire();
+                    });
                 }
             }
         }
 
+        /**
+         * Run the operation with the ledger executor after the ledger operations of this processor started before it
+         * are done, failed or not, so the changes of the item are saved in the order they are made.
+         *
+         * @param operation to run, e.g. {@link StateRecord#saving()} taking the values of the record now
+         *
+         * @return future completed as the operation is
+         */
+        private <T> CompletableFuture<T> inLedgerOrder(Callable<T> operation) {
+            return takeLedgerTurn().run(operation);
+        }
+
+        /**
+         * Take the next place in the order of the ledger operations of this processor. Can be called under the mutex
+         * to take the place together with the changes of the record; the returned turn must then be run out of it.
+         */
+        private LedgerTurn takeLedgerTurn() {
+            synchronized (mutex) {
+                LedgerTurn turn = new LedgerTurn(ledgerOperations);
+                ledgerOperations = turn.done;
+                return turn;
+            }
+        }
+
+        /**
+         * The place in the order of the ledger operations of the processor, see {@link #takeLedgerTurn()}. Must be run
+         * exactly once, or the later operations never run.
+         */
+        private class LedgerTurn {
+            private final CompletableFuture<?> previous;
+            private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+            private LedgerTurn(CompletableFuture<?> previous) {
+                this.previous = previous;
+            }
+
+            /**
+             * Run the operation with the ledger executor as the previous operations are done. Must not be called
+             * under the mutex: the ledger executor can run the operation in the calling thread, and the mutex must
+             * never wait for the ledger.
+             *
+             * @return future completed as the operation is
+             */
+            private <T> CompletableFuture<T> run(Callable<T> operation) {
+                CompletableFuture<T> result = previous.handle((r, failure) -> null)
+                        .thenCompose(x -> ledger.async(operation));
+                result.whenComplete((r, failure) -> done.complete(null));
+                return result;
+            }
+        }
+
+        // wait for the ledger operations of the processor, to change the ledger synchronously after them
+        private void awaitLedgerOperations() {
+            CompletableFuture<?> last;
+            synchronized (mutex) {
+                last = ledgerOperations;
+            }
+            last.handle((r, failure) -> null).join();
+        }
+
+        /**
+         * Continue with the node executor when the asynchronous ledger operation is done, so the ledger threads only
+         * wait for the database and the node threads never do.
+         *
+         * @param operation    running with the ledger executor
+         * @param continuation receives the result and null or null and what the operation has thrown
+         */
+        private <T> void whenLedgerDone(CompletableFuture<T> operation, BiConsumer<T, Throwable> continuation) {
+            operation.whenComplete((result, failure) -> {
+                if (failure instanceof CompletionException && failure.getCause() != null)
+                    failure = failure.getCause();
+                if (failure != null)
+                    log.e("ledger operation failed for " + itemId + ": " + failure);
+                Throwable f = failure;
+                executorService.submit(() -> continuation.accept(result, f), Node.this, itemId, Stage.LEDGER_CALLBACK);
+            });
+        }
+
         public HashMap<HashId, StateRecord> isNeedToResync(boolean baseCheckPassed) {
             if(processingState.canContinue()) {
                 HashMap<HashId, StateRecord> unknownParts = new HashMap<>();
@@ -1523,12 +1990,17 @@ public class Node {
                         if (!processingState.isProcessedToConsensus()) {
                             if (poller == null) {
                                 long millis = config.getPollTime().toMillis();
-                                poller = executorService.scheduleAtFixedRate(() -> sendStartPollingNotification(),
-                                        millis,
-                                        millis,
-                                        TimeUnit.MILLISECONDS//,
-//                                        Node.this.toString() + toString() + " :: pulseStartPolling -> sendStartPollingNotification"
-                                );
+                                if (config.isAdaptivePolling())
+                                    poller = executorService.schedule(() -> sendStartPollingNotification(),
+                                            millis,
+                                            TimeUnit.MILLISECONDS,
+                                            Node.this, itemId, Stage.POLLING);
+                                else
+                                    poller = executorService.scheduleAtFixedRate(() -> sendStartPollingNotification(),
+                                            millis,
+                                            millis,
+                                            TimeUnit.MILLISECONDS,
+                                            Node.this, itemId, Stage.POLLING);
                             }
                         }
                     }
@@ -1540,18 +2012,23 @@ public class Node {
 
             if(processingState.canContinue()) {
                 if (!processingState.isProcessedToConsensus()) {
+                    boolean pollingExpired;
                     synchronized (mutex) {
-                        if (isPollingExpired()) {
+                        pollingExpired = isPollingExpired();
+                        if (pollingExpired) {
                             // cancel by timeout expired
 
                             processingState = ItemProcessingState.GOT_CONSENSUS;
 
                             stopPoller();
                             stopDownloader();
-                            rollbackChanges(ItemState.UNDEFINED);
-                            return;
                         }
                     }
+                    // rollback takes item locks in its own order, so it should not be called holding the mutex
+                    if (pollingExpired) {
+                        rollbackChanges(ItemState.UNDEFINED);
+                        return;
+                    }
                     // at this point we should requery the nodes that did not yet answered us
                     Notification notification;
                     ParcelNotification.ParcelNotificationType notificationType;
@@ -1561,23 +2038,110 @@ public class Node {
                         notificationType = ParcelNotification.ParcelNotificationType.PAYLOAD;
                     }
                     notification = new ParcelNotification(myInfo, itemId, parcelId, getResult(), true, notificationType);
-                    List<NodeInfo> nodes = network.allNodes();
-                    for(NodeInfo node : nodes) {
-                        if (!positiveNodes.contains(node) && !negativeNodes.contains(node))
+                    if (config.isAdaptivePolling()) {
+                        pollAdaptively(notification);
+                        return;
+                    }
+                    BitSet notVoted = getNotVotedNodes();
+                    for (int n = notVoted.nextSetBit(0); n >= 0; n = notVoted.nextSetBit(n + 1)) {
+                        NodeInfo node = network.getInfo(n);
+                        if (node != null) {
                             network.deliver(node, notification);
+                            pollNotifications.increment();
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Poll the fastest of the not voted nodes, only as many as are still needed for the consensus besides the
+         * ones polled before which still have time to answer, and schedule the next round to the earliest deadline.
+         * Nodes that have not answered in time are polled again later, with the longer timeout.
+         *
+         * @param notification to poll with
+         */
+        private final void pollAdaptively(Notification notification) {
+            BitSet targets = new BitSet();
+            synchronized (mutex) {
+                if (processingState.isProcessedToConsensus())
+                    return;
+                long now = System.nanoTime();
+                BitSet notVoted = getNotVotedNodes();
+                notVoted.clear(myInfo.getNumber());
+                ensurePollingWidth(notVoted.length());
+
+                int needed = Math.max(config.getPositiveConsensus() - positiveNodes.cardinality(),
+                        config.getNegativeConsensus() - negativeNodes.cardinality());
+                long nextPollAt = now + config.getPollTime().toNanos();
+                for (int n = notVoted.nextSetBit(0); n >= 0; n = notVoted.nextSetBit(n + 1)) {
+                    if (isPollPending(n, now)) {
+                        needed--;
+                        nextPollAt = Math.min(nextPollAt, pollDeadlines[n]);
+                    } else if (polledAt[n] != 0) {
+                        // overdue: count the timeout as its response time, so the faster nodes are tried first
+                        peerResponseTimes.update(n, (now - polledAt[n]) / 1000);
+                        polledAt[n] = 0;
+                    }
+                }
+                for (; needed > 0; needed--) {
+                    int fastest = -1;
+                    long fastestMean = Long.MAX_VALUE;
+                    for (int n = notVoted.nextSetBit(0); n >= 0; n = notVoted.nextSetBit(n + 1)) {
+                        if (!isPollPending(n, now) && !targets.get(n)) {
+                            long mean = peerResponseTimes.getMean(n);
+                            if (mean < fastestMean) {
+                                fastest = n;
+                                fastestMean = mean;
+                            }
+                        }
                     }
+                    if (fastest < 0)
+                        break;
+                    targets.set(fastest);
+                    polledAt[fastest] = now;
+                    pollDeadlines[fastest] = now + peerResponseTimes.getTimeout(fastest, ++pollAttempts[fastest]) * 1000;
+                    nextPollAt = Math.min(nextPollAt, pollDeadlines[fastest]);
+                }
+                poller = executorService.schedule(() -> sendStartPollingNotification(),
+                        Math.max(nextPollAt - now, TimeUnit.MILLISECONDS.toNanos(1)),
+                        TimeUnit.NANOSECONDS,
+                        Node.this, itemId, Stage.POLLING);
+            }
+            for (int n = targets.nextSetBit(0); n >= 0; n = targets.nextSetBit(n + 1)) {
+                NodeInfo node = network.getInfo(n);
+                if (node != null) {
+                    network.deliver(node, notification);
+                    pollNotifications.increment();
                 }
             }
         }
 
+        private final boolean isPollPending(int node, long now) {
+            return pollAttempts[node] > 0 && pollDeadlines[node] - now > 0;
+        }
+
+        private final void ensurePollingWidth(int width) {
+            if (polledAt == null) {
+                polledAt = new long[width];
+                pollDeadlines = new long[width];
+                pollAttempts = new int[width];
+            } else if (polledAt.length < width) {
+                polledAt = Arrays.copyOf(polledAt, width);
+                pollDeadlines = Arrays.copyOf(pollDeadlines, width);
+                pollAttempts = Arrays.copyOf(pollAttempts, width);
+            }
+        }
+
         private final void vote(NodeInfo node, ItemState state) {
             if(processingState.canContinue()) {
                 boolean positiveConsensus = false;
                 boolean negativeConsensus = false;
                 ItemProcessingState stateWas;
                 // check if vote already count
-                if((state.isPositive() && positiveNodes.contains(node)) ||
-                        (!state.isPositive() && negativeNodes.contains(node))) {
+                int number = node.getNumber();
+                if((state.isPositive() && positiveNodes.get(number)) ||
+                        (!state.isPositive() && negativeNodes.get(number))) {
                     return;
                 }
                 synchronized (mutex) {
@@ -1586,16 +2150,17 @@ public class Node {
                         return;
                     }
 
-                    Set<NodeInfo> add, remove;
                     if (state.isPositive()) {
-                        add = positiveNodes;
-                        remove = negativeNodes;
+                        positiveNodes.set(number);
+                        negativeNodes.clear(number);
                     } else {
-                        add = negativeNodes;
-                        remove = positiveNodes;
+                        negativeNodes.set(number);
+                        positiveNodes.clear(number);
+                    }
+                    if (polledAt != null && number < polledAt.length && polledAt[number] != 0) {
+                        peerResponseTimes.update(number, (System.nanoTime() - polledAt[number]) / 1000);
+                        polledAt[number] = 0;
                     }
-                    add.add(node);
-                    remove.remove(node);
 
                     stateWas = processingState;
 
@@ -1606,10 +2171,10 @@ public class Node {
                         return;
                     }
 
-                    if (negativeNodes.size() >= config.getNegativeConsensus()) {
+                    if (negativeNodes.cardinality() >= config.getNegativeConsensus()) {
                         negativeConsensus = true;
                         processingState = ItemProcessingState.GOT_CONSENSUS;
-                    } else if (positiveNodes.size() >= config.getPositiveConsensus()) {
+                    } else if (positiveNodes.cardinality() >= config.getPositiveConsensus()) {
                         positiveConsensus = true;
                         processingState = ItemProcessingState.GOT_CONSENSUS;
                     }
@@ -1617,10 +2182,18 @@ public class Node {
                         return;
                 }
 
+                consensusTime.recordMicrosSince(createdAt);
+                if (pollingStartedAt != 0)
+                    pollingTime.recordMicrosSince(pollingStartedAt);
                 if (positiveConsensus) {
+                    approvedItems.increment();
                     approveAndCommit();
                 } else if (negativeConsensus) {
-                    rollbackChanges(ItemState.DECLINED);
+                    declinedItems.increment();
+                    whenLedgerDone(inLedgerOrder(() -> {
+                        unlockAndSave(ItemState.DECLINED);
+                        return null;
+                    }), (r, failure) -> close());
                 } else
                     throw new RuntimeException("error: consensus reported without consensus");
             }
@@ -1631,13 +2204,13 @@ public class Node {
                 // todo: fix logic to surely copy approving item dependency. e.g. download original or at least dependencies
                 // first we need to flag our state as approved
                 setState(ItemState.APPROVED);
-                executorService.submit(() -> downloadAndCommit(),
-                        Node.this.toString() + toString() + " :: approveAndCommit -> downloadAndCommit");
+                executorService.submit(() -> downloadAndCommit(), Node.this, itemId, Stage.DOWNLOAD_AND_COMMIT);
             }
         }
 
-        // commit subitems of given item to the ledger (recursively)
-        private void downloadAndCommitSubItemsOf(Approvable commitingItem) {
+        // commit subitems of given item to the ledger (recursively), returns false if the ledger has failed to save
+        // them, then the caller should break the processing, not holding the mutex
+        private boolean downloadAndCommitSubItemsOf(Approvable commitingItem) {
             if(processingState.canContinue()) {
                 for (Approvable revokingItem : commitingItem.getRevokingItems()) {
                     // The record may not exist due to ledger desync, so we create it if need
@@ -1648,8 +2221,7 @@ public class Node {
                         try {
                             r.save();
                         } catch (Ledger.Failure failure) {
-                            emergencyBreak();
-                            return;
+                            return false;
                         }
                     }
                 }
@@ -1662,20 +2234,22 @@ public class Node {
                         try {
                             r.save();
                         } catch (Ledger.Failure failure) {
-                            emergencyBreak();
-                            return;
+                            return false;
                         }
 
                         lowPrioExecutorService.schedule(() -> checkSpecialItem(newItem),100,TimeUnit.MILLISECONDS);
                     }
 
-                    downloadAndCommitSubItemsOf(newItem);
+                    if (!downloadAndCommitSubItemsOf(newItem))
+                        return false;
                 }
             }
+            return true;
         }
 
         private void downloadAndCommit() {
             if(processingState.canContinue()) {
+                long started = System.nanoTime();
                 // it may happen that consensus is found earlier than item is download
                 // we still need item to fix all its relations:
                 try {
@@ -1685,68 +2259,108 @@ public class Node {
                         pollingExpiresAt = Instant.now().plus(config.getMaxDownloadOnApproveTime());
                         downloadedEvent.await(getMillisLeft());
                     }
-                    // We use the caching capability of ledger so we do not get records from
-                    // lockedToRevoke/lockedToCreate, as, due to conflicts, these could differ from what the item
-                    // yields. We just clean them up afterwards:
+                } catch (TimeoutException | InterruptedException e) {
+                    setState(ItemState.UNDEFINED);
+                    whenLedgerDone(inLedgerOrder(() -> {
+                        record.destroy();
+                        return null;
+                    }), (r, failure) -> close());
+                    return;
+                }
+                whenLedgerDone(inLedgerOrder(() -> commitApproved()), (committed, failure) -> {
+                    if (failure != null || !committed) {
+                        emergencyBreak();
+                        return;
+                    }
+                    lowPrioExecutorService.schedule(() -> checkSpecialItem(item),100,TimeUnit.MILLISECONDS);
+                    storeApproved(item, record.getExpiresAt());
+                    commitTime.recordMicrosSince(started);
+                    close();
+                });
+            }
+        }
 
-                    // first, commit all subitems of our item
-                    downloadAndCommitSubItemsOf(item);
+        /**
+         * Save the approved item and its subitems, with the ledger executor.
+         *
+         * @return false if the ledger has failed to save the item, then the processing should be broken, not in the
+         * ledger operation, see {@link #emergencyBreak()}
+         */
+        private boolean commitApproved() {
+            // We use the caching capability of ledger so we do not get records from
+            // lockedToRevoke/lockedToCreate, as, due to conflicts, these could differ from what the item
+            // yields. We just clean them up afterwards:
 
-                    synchronized (mutex) {
-                        lockedToCreate.clear();
-                        lockedToRevoke.clear();
+            // first, commit all subitems of our item
+            boolean saved = downloadAndCommitSubItemsOf(item);
 
-                        try {
-                            record.save();
-                        } catch (Ledger.Failure failure) {
-                            emergencyBreak();
-                            return;
-                        }
+            if (saved) {
+                synchronized (mutex) {
+                    lockedToCreate.clear();
+                    lockedToRevoke.clear();
 
+                    try {
+                        record.save();
                         if (record.getState() != ItemState.APPROVED) {
                             log.e("record is not approved " + record.getState());
                         }
+                    } catch (Ledger.Failure failure) {
+                        saved = false;
                     }
-                    lowPrioExecutorService.schedule(() -> checkSpecialItem(item),100,TimeUnit.MILLISECONDS);
-
-                } catch (TimeoutException | InterruptedException e) {
-                    setState(ItemState.UNDEFINED);
-                    record.destroy();
                 }
-                close();
             }
+            return saved;
         }
 
         private void rollbackChanges(ItemState newState) {
-            synchronized (ledgerRollbackLock) {
-                ledger.transaction(() -> {
-                    synchronized (mutex) {
-                        for (StateRecord r : lockedToRevoke)
-                            r.unlock().save();
-                        lockedToRevoke.clear();
+            unlockAndSave(newState);
+            close();
+        }
 
-                        // form created records, we touch only these that we have actually created
-                        for (StateRecord r : lockedToCreate) {
-                            r.unlock().save();
-                        }
-                        // todo: concurrent modification can happen here!
-                        lockedToCreate.clear();
-
-                        setState(newState);
-                        ZonedDateTime expiration = ZonedDateTime.now()
-                                .plus(newState == ItemState.REVOKED ?
-                                        config.getRevokedItemExpiration() : config.getDeclinedItemExpiration());
-                        record.setExpiresAt(expiration);
-                        try {
-                            record.save(); // TODO: current implementation will cause an inner dbPool.db() invocation
-                        } catch (Ledger.Failure failure) {
-                            failure.printStackTrace();
-                            log.e(failure.getMessage());
-                        }
+        // the ledger part of rollbackChanges(): unlock the subitems and save the new state
+        private void unlockAndSave(ItemState newState) {
+            // we lock the item and all the records we unlock, always in the same order, so rollbacks of
+            // unrelated items go in parallel and rollbacks sharing some records can't deadlock
+            Set<HashId> idsToLock = new HashSet<>();
+            idsToLock.add(itemId);
+            synchronized (mutex) {
+                lockedToRevoke.forEach(r -> idsToLock.add(r.getId()));
+                lockedToCreate.forEach(r -> idsToLock.add(r.getId()));
+            }
+            try {
+                // the mutex is taken before the transaction, as the other code holding it calls the ledger
+                itemLock.synchronizeAll(idsToLock, (lock) -> {
+                    synchronized (mutex) {
+                        return ledger.transaction(() -> {
+                            for (StateRecord r : lockedToRevoke)
+                                r.unlock().save();
+                            lockedToRevoke.clear();
+
+                            // form created records, we touch only these that we have actually created
+                            for (StateRecord r : lockedToCreate) {
+                                r.unlock().save();
+                            }
+                            // todo: concurrent modification can happen here!
+                            lockedToCreate.clear();
+
+                            setState(newState);
+                            ZonedDateTime expiration = ZonedDateTime.now()
+                                    .plus(newState == ItemState.REVOKED ?
+                                            config.getRevokedItemExpiration() : config.getDeclinedItemExpiration());
+                            record.setExpiresAt(expiration);
+                            try {
+                                record.save(); // TODO: current implementation will cause an inner dbPool.db() invocation
+                            } catch (Ledger.Failure failure) {
+                                failure.printStackTrace();
+                                log.e(failure.getMessage());
+                            }
+                            return null;
+                        });
                     }
-                    return null;
                 });
-                close();
+            } catch (Exception e) {
+                // synchronizeAll only rethrows what the ledger transaction throws
+                throw new RuntimeException("failed to rollback changes", e);
             }
         }
 
@@ -1772,9 +2386,8 @@ public class Node {
                         consensusReceivedChecker = executorService.scheduleAtFixedRate(() -> sendNewConsensusNotification(),
                                 millis,
                                 millis,
-                                TimeUnit.MILLISECONDS//,
-//                                Node.this.toString() + toString() + " :: pulseSendNewConsensus -> sendNewConsensusNotification"
-                        );
+                                TimeUnit.MILLISECONDS,
+                                Node.this, itemId, Stage.CONSENSUS_NOTIFICATION);
                     }
                 }
             }
@@ -1803,16 +2416,16 @@ public class Node {
                     notificationType = ParcelNotification.ParcelNotificationType.PAYLOAD;
                 }
                 notification = new ParcelNotification(myInfo, itemId, parcelId, getResult(), true, notificationType);
-                List<NodeInfo> nodes = network.allNodes();
-                for(NodeInfo node : nodes) {
-                    if (!positiveNodes.contains(node) && !negativeNodes.contains(node)) {
-                        // if node do not know own vote we do not send notification, just looking for own state
-                        if(!myInfo.equals(node)) {
+                BitSet notVoted = getNotVotedNodes();
+                for (int n = notVoted.nextSetBit(0); n >= 0; n = notVoted.nextSetBit(n + 1)) {
+                    // if node do not know own vote we do not send notification, just looking for own state
+                    if (n != myInfo.getNumber()) {
+                        NodeInfo node = network.getInfo(n);
+                        if (node != null)
                             network.deliver(node, notification);
-                        } else {
-                            if(processingState.isProcessedToConsensus()) {
-                                vote(myInfo, record.getState());
-                            }
+                    } else {
+                        if(processingState.isProcessedToConsensus()) {
+                            vote(myInfo, record.getState());
                         }
                     }
                 }
@@ -1821,8 +2434,7 @@ public class Node {
 
         private final Boolean checkIfAllReceivedConsensus() {
             if(processingState.canContinue()) {
-                List<NodeInfo> nodes = network.allNodes();
-                Boolean allReceived = nodes.size() <= positiveNodes.size() + negativeNodes.size();
+                Boolean allReceived = network.getNodesCount() <= positiveNodes.cardinality() + negativeNodes.cardinality();
 
                 if (allReceived) {
                     processingState = ItemProcessingState.FINISHED;
@@ -1886,9 +2498,8 @@ public class Node {
                             resyncer = executorService.scheduleAtFixedRate(() -> sendResyncNotification(),
                                     millis,
                                     millis,
-                                    TimeUnit.MILLISECONDS//,
-//                                    Node.this.toString() + toString() + " :: pulseResync -> sendResyncNotification"
-                            );
+                                    TimeUnit.MILLISECONDS,
+                                    Node.this, itemId, Stage.RESYNC_NOTIFICATION);
                         }
                     }
                 }
@@ -2010,13 +2621,49 @@ public class Node {
             this.isCheckingForce = isCheckingForce;
             if(processingState.canContinue()) {
                 if (processingState == ItemProcessingState.DOWNLOADED) {
-                    executorService.submit(() -> {
-                        checkItem();
-                    }, Node.this.toString() + toString() + " :: forceChecking -> checkItem");
+                    executorService.submit(() -> checkItem(), Node.this, itemId, Stage.ITEM_CHECK);
                 }
             }
         }
 
+        /**
+         * Start checking the frozen item without voting for it: the item is checked and its subitems are locked in the
+         * ledger, then the processor waits in the PREPARED state until commitPrepared() or discardPrepared() is called.
+         *
+         * @return false if the item is not frozen, so its checking is not deferred
+         */
+        private boolean prepareChecking() {
+            synchronized (mutex) {
+                if (isCheckingForce)
+                    return false;
+                isCommitDeferred = true;
+            }
+            forceChecking(true);
+            return true;
+        }
+
+        /**
+         * Vote for the prepared item and start polling. If the check is not finished yet, it will do it itself.
+         */
+        private void commitPrepared() {
+            boolean prepared;
+            synchronized (mutex) {
+                isCommitDeferred = false;
+                prepared = processingState == ItemProcessingState.PREPARED;
+            }
+            if (prepared)
+                commitCheckedAndStartPolling();
+        }
+
+        /**
+         * Wait for the check started by prepareChecking() to finish and roll back subitem locks it has made.
+         */
+        private void discardPrepared() {
+            synchronized (checkMutex) {
+                emergencyBreak();
+            }
+        }
+
         private void close() {
 
             // fire all event to release possible listeners
@@ -2052,11 +2699,14 @@ public class Node {
         private void emergencyBreak() {
 
             processingState = ItemProcessingState.EMERGENCY_BREAK;
+            emergencyBreaks.increment();
 
             stopDownloader();
             stopPoller();
             stopConsensusReceivedChecker();
             stopResync();
+            // it is never called from the ledger operations, which it waits for
+            awaitLedgerOperations();
             rollbackChanges(stateWas);
 
             processingState = ItemProcessingState.FINISHED;
@@ -2102,7 +2752,18 @@ public class Node {
          * @return
          */
         private final boolean needsVoteFrom(NodeInfo node) {
-            return record.getState().isPending() && !positiveNodes.contains(node) && !negativeNodes.contains(node);
+            return record.getState().isPending() && !positiveNodes.get(node.getNumber()) &&
+                    !negativeNodes.get(node.getNumber());
+        }
+
+        /**
+         * @return new bitset with the numbers of the nodes we have no vote from
+         */
+        private final BitSet getNotVotedNodes() {
+            BitSet notVoted = network.allNodeNumbers();
+            notVoted.andNot(positiveNodes);
+            notVoted.andNot(negativeNodes);
+            return notVoted;
         }
 
         private final void addToSources(NodeInfo node) {
@@ -2327,6 +2988,7 @@ public class Node {
         DOWNLOADING,
         DOWNLOADED,
         CHECKING,
+        PREPARED,
         RESYNCING,
         GOT_RESYNCED_STATE,
         POLLING,
@@ -2419,7 +3081,11 @@ public class Node {
 
         private final AsyncEvent<ResyncingItem> finishEvent = new AsyncEvent<>();
 
-        private HashMap<ItemState, Set<NodeInfo>> resyncNodes = new HashMap<>();
+        /**
+         * Resync votes by node number, see {@link NodeInfo#getNumber()}
+         */
+        private final EnumMap<ItemState, BitSet> resyncNodes = new EnumMap<>(ItemState.class);
+        private final int nodesWidth = network.allNodeNumbers().length();
 
         private final Object mutex = new Object();
 
@@ -2435,10 +3101,10 @@ public class Node {
                 stateWas = ItemState.UNDEFINED;
             }
 
-            resyncNodes.put(ItemState.APPROVED, new HashSet<>());
-            resyncNodes.put(ItemState.REVOKED, new HashSet<>());
-            resyncNodes.put(ItemState.DECLINED, new HashSet<>());
-            resyncNodes.put(ItemState.UNDEFINED, new HashSet<>());
+            resyncNodes.put(ItemState.APPROVED, new BitSet(nodesWidth));
+            resyncNodes.put(ItemState.REVOKED, new BitSet(nodesWidth));
+            resyncNodes.put(ItemState.DECLINED, new BitSet(nodesWidth));
+            resyncNodes.put(ItemState.UNDEFINED, new BitSet(nodesWidth));
         }
 
         private final void resyncVote(NodeInfo node, ItemState state) {
@@ -2447,28 +3113,25 @@ public class Node {
             boolean declinedConsenus = false;
             boolean undefinedConsenus = false;
             synchronized (mutex) {
-                for (ItemState is : resyncNodes.keySet()) {
-                    resyncNodes.get(is).remove(node);
-                }
-                if(!resyncNodes.containsKey(state)) {
-                    resyncNodes.put(state, new HashSet<>());
+                for (BitSet votes : resyncNodes.values()) {
+                    votes.clear(node.getNumber());
                 }
-                resyncNodes.get(state).add(node);
+                resyncNodes.computeIfAbsent(state, k -> new BitSet(nodesWidth)).set(node.getNumber());
 
                 if (isResyncPollingFinished()) {
                     return;
                 }
 
-                if (resyncNodes.get(ItemState.REVOKED).size() >= config.getPositiveConsensus()) {
+                if (resyncNodes.get(ItemState.REVOKED).cardinality() >= config.getPositiveConsensus()) {
                     revokedConsenus = true;
                     resyncingState = ResyncingItemProcessingState.PENDING_TO_COMMIT;
-                } else if (resyncNodes.get(ItemState.DECLINED).size() >= config.getPositiveConsensus()) {
+                } else if (resyncNodes.get(ItemState.DECLINED).cardinality() >= config.getPositiveConsensus()) {
                     declinedConsenus = true;
                     resyncingState = ResyncingItemProcessingState.PENDING_TO_COMMIT;
-                } else if (resyncNodes.get(ItemState.APPROVED).size() >= config.getPositiveConsensus()) {
+                } else if (resyncNodes.get(ItemState.APPROVED).cardinality() >= config.getPositiveConsensus()) {
                     approvedConsenus = true;
                     resyncingState = ResyncingItemProcessingState.PENDING_TO_COMMIT;
-                } else if (resyncNodes.get(ItemState.UNDEFINED).size() >= config.getResyncBreakConsensus()) {
+                } else if (resyncNodes.get(ItemState.UNDEFINED).cardinality() >= config.getResyncBreakConsensus()) {
                     undefinedConsenus = true;
                     resyncingState = ResyncingItemProcessingState.PENDING_TO_COMMIT;
                 }
@@ -2476,17 +3139,13 @@ public class Node {
                     return;
             }
             if (revokedConsenus) {
-                executorService.submit(() -> resyncAndCommit(ItemState.REVOKED),
-                        Node.this.toString() + " > item " + hashId + " :: resyncVote -> resyncAndCommit");
+                executorService.submit(() -> resyncAndCommit(ItemState.REVOKED), Node.this, hashId, Stage.RESYNC_COMMIT);
             } else if (declinedConsenus) {
-                executorService.submit(() -> resyncAndCommit(ItemState.DECLINED),
-                        Node.this.toString() + " > item " + hashId + " :: resyncVote -> resyncAndCommit");
+                executorService.submit(() -> resyncAndCommit(ItemState.DECLINED), Node.this, hashId, Stage.RESYNC_COMMIT);
             } else if (approvedConsenus) {
-                executorService.submit(() -> resyncAndCommit(ItemState.APPROVED),
-                        Node.this.toString() + " > item " + hashId + " :: resyncVote -> resyncAndCommit");
+                executorService.submit(() -> resyncAndCommit(ItemState.APPROVED), Node.this, hashId, Stage.RESYNC_COMMIT);
             } else if (undefinedConsenus) {
-                executorService.submit(() -> resyncAndCommit(ItemState.UNDEFINED),
-                        Node.this.toString() + " > item " + hashId + " :: resyncVote -> resyncAndCommit");
+                executorService.submit(() -> resyncAndCommit(ItemState.UNDEFINED), Node.this, hashId, Stage.RESYNC_COMMIT);
             } else
                 throw new RuntimeException("error: resync consensus reported without consensus");
         }
@@ -2502,16 +3161,14 @@ public class Node {
             final Average expiresAtAvg = new Average();
 
             executorService.submit(()->{
-                Set<NodeInfo> rNodes = new HashSet<>();
-                Set<NodeInfo> nowNodes = resyncNodes.get(committingState);
+                BitSet rNodes;
 
                 // make local set of nodes to prevent changing set of nodes while commiting
-                synchronized (resyncNodes) {
-                    for (NodeInfo ni : nowNodes) {
-                        rNodes.add(ni);
-                    }
+                synchronized (mutex) {
+                    rNodes = (BitSet) resyncNodes.get(committingState).clone();
                 }
-                for (NodeInfo ni : rNodes) {
+                for (int n = rNodes.nextSetBit(0); n >= 0; n = rNodes.nextSetBit(n + 1)) {
+                    NodeInfo ni = network.getInfo(n);
                     if (ni != null) {
                         try {
                             ItemResult r = network.getItemState(ni, hashId);
@@ -2527,13 +3184,20 @@ public class Node {
                                     ZonedDateTime expiresAt = ZonedDateTime.ofInstant(
                                             Instant.ofEpochSecond((long) expiresAtAvg.average()), ZoneId.systemDefault());
 
-                                    ledger.findOrCreate(hashId).setState(committingState)
-                                            .setCreatedAt(createdAt)
-                                            .setExpiresAt(expiresAt)
-                                            .save();
-
-                                    resyncingState = ResyncingItemProcessingState.COMMIT_SUCCESSFUL;
-                                    break;
+                                    ledger.findOrCreateAsync(hashId)
+                                            .thenCompose(record -> record.setState(committingState)
+                                                    .setCreatedAt(createdAt)
+                                                    .setExpiresAt(expiresAt)
+                                                    .saveAsync())
+                                            .whenComplete((record, failure) -> {
+                                                if (failure != null) {
+                                                    log.e("failed to commit resynced " + hashId + ": " + failure);
+                                                    resyncingState = ResyncingItemProcessingState.COMMIT_FAILED;
+                                                } else
+                                                    resyncingState = ResyncingItemProcessingState.COMMIT_SUCCESSFUL;
+                                                finishEvent.fire(this);
+                                            });
+                                    return;
                                 }
                             } else {
                                 if (rest.decrementAndGet() < 1) {
@@ -2548,7 +3212,7 @@ public class Node {
                     }
                 }
                 finishEvent.fire(this);
-            }, Node.this.toString() + " > item " + hashId + " :: resyncAndCommit -> body");
+            }, Node.this, hashId, Stage.RESYNC_COMMIT);
         }
 
         public void closeByTimeout() {
@@ -2564,10 +3228,11 @@ public class Node {
          * @return
          */
         public boolean needsResyncVoteFrom(NodeInfo node) {
-            return !resyncNodes.get(ItemState.APPROVED).contains(node) &&
-                    !resyncNodes.get(ItemState.REVOKED).contains(node) &&
-                    !resyncNodes.get(ItemState.DECLINED).contains(node) &&
-                    !resyncNodes.get(ItemState.UNDEFINED).contains(node);
+            int number = node.getNumber();
+            return !resyncNodes.get(ItemState.APPROVED).get(number) &&
+                    !resyncNodes.get(ItemState.REVOKED).get(number) &&
+                    !resyncNodes.get(ItemState.DECLINED).get(number) &&
+                    !resyncNodes.get(ItemState.UNDEFINED).get(number);
         }
 
         public ResyncingItemProcessingState getResyncingState() {
@@ -8,24 +8,35 @@ package com.icodici.universa.node2;
 
 import com.icodici.universa.HashId;
 
-import java.util.WeakHashMap;
 import java.util.function.Function;
 
 /**
  * The smart lock, allow global synchronize on per-hashId operation. Just call {@link #synchronize(HashId, Function)}
  * and execute your code in a callable argument.
+ * <p>
+ * Locks are striped the same way as in {@link ItemLock}, so different parcels could share the monitor.
  */
 public final class ParcelLock {
 
+    private final LockStripes stripes;
+
     public ParcelLock() {
+        this(LockStripes.DEFAULT_STRIPES);
     }
 
     /**
-     * Execute a callable acquiring a unique lock (mutex) for a given {@link HashId}. Locks is released upon callable
+     * @param stripesCount number of monitors, rounded up to the power of 2
+     */
+    public ParcelLock(int stripesCount) {
+        stripes = new LockStripes(stripesCount);
+    }
+
+    /**
+     * Execute a callable acquiring a lock (mutex) for a given {@link HashId}. Locks is released upon callable
      * return.
      *
      * @param id       ot get a lock to
-     * @param callable lamda to execute exclusively for the id
+     * @param callable lamda to execute exclusively for the id, gets the lock object as an argument
      * @param <T> type
      *
      * @return whatever the callable returns
@@ -33,32 +44,27 @@ public final class ParcelLock {
      * @throws Exception whatever callable throws
      */
     public <T> T synchronize(HashId id, Function<Object, T> callable) throws Exception {
-        ParcelLock lock = null;
+        return stripes.synchronize(id, callable);
+    }
 
-        // short exclusive mutex: obtaning a lock
-        synchronized (monitors) {
-            lock = monitors.get(id);
-            if (lock == null) {
-                lock = new ParcelLock();
-                monitors.put(id, lock);
-            }
-        }
-        // now we only lock the item:
-        synchronized (lock) {
-            return (T) callable.apply(lock);
-        }
+    /**
+     * @return number of stripes (monitors) ids are mapped to
+     */
+    public int size() {
+        return stripes.size();
     }
 
-    private WeakHashMap<HashId, ParcelLock> monitors = new WeakHashMap<>();
+    /**
+     * @return number of lock acquisitions made through this instance
+     */
+    public long getAcquisitions() {
+        return stripes.getAcquisitions();
+    }
 
     /**
-     * Niber of cached locks. Not all of them are acquired. Locks are cached as long as corresponding {@link HashId} is
-     * alive, so do not clone() and copy them, use shared instance (it is generally immutable). When the last instance
-     * of this itemId will be garbage collected, the lock will be removed from the cache.
-     *
-     * @return number of cached locks
+     * @return number of acquisitions that have found the stripe held or awaited by another call
      */
-    public int size() {
-        return monitors.size();
+    public long getContentions() {
+        return stripes.getContentions();
     }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Observed times the other nodes take to answer the polling, by node number, to poll the fastest ones first and to
+ * know how long to wait for the answer before asking someone else.
+ * <p>
+ * Estimates are smoothed the way TCP does it for the round trip time (RFC 6298): the mean with weight 1/8 and the
+ * deviation with weight 1/4, and the timeout is the mean plus four deviations. Each retry of the same node doubles it
+ * up to 8 times, and the timeout is jittered by a quarter so the nodes polling the same items do not do it in lockstep.
+ */
+public class PeerResponseTimes {
+
+    private static final int MAX_BACKOFF_SHIFT = 3;
+
+    private final long initialMicros;
+    private final long minTimeoutMicros;
+
+    private final ConcurrentHashMap<Integer, Estimate> estimates = new ConcurrentHashMap<>();
+
+    private static class Estimate {
+        long mean;
+        long deviation;
+    }
+
+    /**
+     * @param initial expected response time for the nodes not yet answered, and the timeout for them
+     */
+    public PeerResponseTimes(Duration initial) {
+        initialMicros = initial.toNanos() / 1000;
+        minTimeoutMicros = initialMicros / 20;
+    }
+
+    /**
+     * Take into account the time the node has answered in.
+     *
+     * @param node   number of the node
+     * @param micros since the request
+     */
+    public void update(int node, long micros) {
+        Estimate e = estimates.get(node);
+        if (e == null) {
+            e = new Estimate();
+            e.mean = micros;
+            e.deviation = micros / 2;
+            Estimate was = estimates.putIfAbsent(node, e);
+            if (was == null)
+                return;
+            e = was;
+        }
+        synchronized (e) {
+            e.deviation += (Math.abs(e.mean - micros) - e.deviation) / 4;
+            e.mean += (micros - e.mean) / 8;
+        }
+    }
+
+    /**
+     * @param node number of the node
+     *
+     * @return expected response time of the node in microseconds
+     */
+    public long getMean(int node) {
+        Estimate e = estimates.get(node);
+        if (e == null)
+            return initialMicros;
+        synchronized (e) {
+            return e.mean;
+        }
+    }
+
+    /**
+     * Get how long to wait for the answer of the node, with backoff and jitter.
+     *
+     * @param node    number of the node
+     * @param attempt 1 for the first request, 2 for the first retry and so on
+     *
+     * @return microseconds to wait
+     */
+    public long getTimeout(int node, int attempt) {
+        long timeout;
+        Estimate e = estimates.get(node);
+        if (e == null)
+            timeout = initialMicros;
+        else synchronized (e) {
+            timeout = Math.max(minTimeoutMicros, e.mean + 4 * e.deviation);
+        }
+        timeout <<= Math.min(Math.max(attempt - 1, 0), MAX_BACKOFF_SHIFT);
+        return timeout * 3 / 4 + ThreadLocalRandom.current().nextLong(timeout / 2 + 1);
+    }
+}
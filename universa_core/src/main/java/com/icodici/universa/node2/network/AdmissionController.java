@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import net.sergeych.tools.Binder;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Global load shedding: counts the work the node has accepted but not finished yet (items being unpacked, items queued
+ * for asynchronous registration), and rejects new work at once when it would pass the high watermark, instead of
+ * letting the queues grow until the node runs out of memory.
+ * <p>
+ * Each successful {@link #tryAcquire(int)} must be followed by the {@link #release(int)} of the same weight when the
+ * work is done, failed or not.
+ */
+public class AdmissionController {
+
+    private final int highWatermark;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param highWatermark maximum number of pending work units
+     */
+    public AdmissionController(int highWatermark) {
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Admit the work if there is room for it. Never blocks.
+     *
+     * @param weight work units, e.g. number of items to register
+     *
+     * @return true if admitted, false if the node is overloaded and the work should be rejected
+     */
+    public boolean tryAcquire(int weight) {
+        while (true) {
+            int current = pending.get();
+            if (current + weight > highWatermark) {
+                rejected.increment();
+                return false;
+            }
+            if (pending.compareAndSet(current, current + weight)) {
+                admitted.add(weight);
+                return true;
+            }
+        }
+    }
+
+    public void release(int weight) {
+        pending.addAndGet(-weight);
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * @return number of rejected requests since start
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public Binder getStats() {
+        return Binder.of(
+                "pending", pending.get(),
+                "highWatermark", highWatermark,
+                "admitted", admitted.sum(),
+                "rejected", rejected.sum()
+        );
+    }
+}
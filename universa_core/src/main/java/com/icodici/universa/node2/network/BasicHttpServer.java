@@ -16,10 +16,13 @@ import net.sergeych.boss.Boss;
 import net.sergeych.tools.Binder;
 import net.sergeych.tools.BufferedLogger;
 import net.sergeych.tools.Do;
+import net.sergeych.tools.Histogram;
+import net.sergeych.tools.Metrics;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.spongycastle.util.encoders.Base64;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -52,8 +55,11 @@ public class BasicHttpServer {
 
     protected BasicHTTPService service;
     private final BufferedLogger log;
+    private volatile RequestLimiter requestLimiter;
     private PrivateKey myKey;
 
+    protected final Metrics metrics = new Metrics();
+
     BasicHttpServer(PrivateKey key, int port, int maxTrheads, BufferedLogger log) throws IOException {
         this.myKey = key;
         this.log = log;
@@ -68,7 +74,50 @@ public class BasicHttpServer {
     }
 
     public void on(String path, BasicHTTPService.Handler handler) {
-        service.on(path, handler);
+        Histogram time = metrics.histogram("http" + path.replace('/', '.'));
+        service.on(path, (request, response) -> {
+            RequestLimiter limiter = requestLimiter;
+            if (limiter != null) {
+                String address = request.getDomain();
+                if (!limiter.allow(address == null ? "" : address, path)) {
+                    response.setResponseCode(429);
+                    response.setBody(Boss.pack(Binder.of(
+                            "result", "error",
+                            "response", Binder.of("errors", Arrays.asList(
+                                    new ErrorRecord(Errors.TOO_MANY_REQUESTS, path, "rate limit exceeded"))
+                            )
+                    )));
+                    return;
+                }
+            }
+            long started = System.nanoTime();
+            try {
+                handler.handle(request, response);
+            } finally {
+                time.recordMicrosSince(started);
+            }
+        });
+    }
+
+    /**
+     * Set the limiter to check all requests against: plain HTTP paths are limited per client address and path, secure
+     * commands per client key and command name.
+     *
+     * @param limiter to use or null to serve any number of requests
+     */
+    public void setRequestLimiter(RequestLimiter limiter) {
+        requestLimiter = limiter;
+    }
+
+    public RequestLimiter getRequestLimiter() {
+        return requestLimiter;
+    }
+
+    /**
+     * @return latencies of each HTTP path and secure command, in microseconds
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     private Binder onConnect(Binder params) throws ClientError {
@@ -103,7 +152,15 @@ public class BasicHttpServer {
     private final ConcurrentHashMap<String, SecureEndpoint> secureEndpoints = new ConcurrentHashMap<>();
 
     public void addSecureEndpoint(String commandName, SecureEndpoint ep) {
-        secureEndpoints.put(commandName, ep);
+        Histogram time = metrics.histogram("http.command." + commandName);
+        secureEndpoints.put(commandName, (params, session) -> {
+            long started = System.nanoTime();
+            try {
+                return ep.execute(params, session);
+            } finally {
+                time.recordMicrosSince(started);
+            }
+        });
     }
 
     public void addEndpoint(String path, Endpoint ep) {
@@ -142,8 +199,12 @@ public class BasicHttpServer {
         } else {
             BasicHTTPService.FileUpload rd = (BasicHTTPService.FileUpload) rp.get("requestData");
             if (rd != null) {
-                byte[] data = rd.getBytes();
-                return Boss.unpack(data);
+                // decode right from the upload, large ones are not loaded to the heap as a whole
+                try (InputStream in = rd.getInputStream()) {
+                    return new Boss.Reader(in).read();
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Boss: can't parse data", e);
+                }
             }
         }
         return Binder.EMPTY;
@@ -365,6 +426,11 @@ public class BasicHttpServer {
 
         private Binder executeAuthenticatedCommand(Binder params) throws ClientError {
             String cmd = params.getStringOrThrow("command");
+            // rejected before anything is done, and without logging, to keep it cheap. There is exactly one session
+            // per client key, so the session itself identifies the client and is much faster to hash than the key
+            RequestLimiter limiter = requestLimiter;
+            if (limiter != null && secureEndpoints.containsKey(cmd) && !limiter.allow(this, cmd))
+                throw new ClientError(Errors.TOO_MANY_REQUESTS, cmd, "rate limit exceeded");
             try {
                 switch (cmd) {
                     case "hello":
@@ -28,6 +28,7 @@ import net.sergeych.tools.Reporter;
 import org.checkerframework.checker.nullness.qual.NonNull;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.time.Instant;
@@ -194,7 +195,8 @@ public class Client {
         if (millisToWait > 0 && lastResult.state.isPending()) {
             Instant end = Instant.now().plusMillis(millisToWait);
             try {
-                Contract c = Contract.fromPackedTransaction(packed);
+                // only the id is needed, so the referenced contracts are not decoded
+                Contract c = Contract.fromPackedTransaction(packed, true);
                 while (Instant.now().isBefore(end) && lastResult.state.isPending()) {
                     Thread.currentThread().sleep(100);
                     lastResult = getState(c.getId());
@@ -387,6 +389,78 @@ public class Client {
         return httpClient.getNodeNumber();
     }
 
+    /**
+     * Get the nodes of the ledger digest of the node, see {@link com.icodici.universa.node.LedgerDigest}. The client
+     * should be the other node.
+     *
+     * @param nodes numbers of the digest tree nodes
+     *
+     * @return their values in the same order
+     */
+    public long[] getLedgerDigest(int[] nodes) throws IOException {
+        List<Integer> numbers = new ArrayList<>(nodes.length);
+        for (int n : nodes)
+            numbers.add(n);
+        List<Object> values = httpClient.command("ledgerDigest", "nodes", numbers).getListOrThrow("values");
+        if (values.size() != nodes.length)
+            throw new IOException("bad ledger digest answer size: " + values.size());
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ((Number) values.get(i)).longValue();
+        return result;
+    }
+
+    /**
+     * Get the settled records of the ledger digest bucket of the node. The client should be the other node.
+     *
+     * @param bucket number of the bucket
+     *
+     * @return states of the items in the bucket
+     */
+    public Map<HashId, ItemState> getLedgerBucket(int bucket) throws IOException {
+        Binder answer = httpClient.command("ledgerBucket", "bucket", bucket);
+        List<HashId> ids = answer.getListOrThrow("ids");
+        List<Object> states = answer.getListOrThrow("states");
+        if (ids.size() != states.size())
+            throw new IOException("bad ledger bucket answer");
+        Map<HashId, ItemState> records = new HashMap<>();
+        for (int i = 0; i < ids.size(); i++)
+            records.put(ids.get(i), ItemState.values()[((Number) states.get(i)).intValue()]);
+        return records;
+    }
+
+    /**
+     * Get the new {@link com.icodici.universa.node.LedgerSnapshot} of the node, signed with its key. The client should
+     * be the other node. The snapshot is written as is and should be verified before it is imported.
+     *
+     * @param out to write the snapshot to, it is not closed
+     *
+     * @return size of the snapshot
+     */
+    public long getLedgerSnapshot(OutputStream out) throws IOException {
+        Binder answer = httpClient.command("ledgerSnapshot", "start", true);
+        long offset = 0;
+        while (true) {
+            if (answer.getBooleanOrThrow("ready")) {
+                byte[] data = answer.getBinaryOrThrow("data");
+                out.write(data);
+                offset += data.length;
+                if (offset >= answer.getLongOrThrow("size"))
+                    return offset;
+                if (data.length == 0)
+                    throw new IOException("ledger snapshot is truncated at " + offset);
+            } else {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+            }
+            answer = httpClient.command("ledgerSnapshot", "offset", offset);
+        }
+    }
+
     public Binder command(String name, Object... params) throws IOException {
         return httpClient.command(name, params);
     }
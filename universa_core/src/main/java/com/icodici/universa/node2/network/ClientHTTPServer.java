@@ -8,44 +8,140 @@
 package com.icodici.universa.node2.network;
 
 import com.icodici.crypto.PrivateKey;
+import com.icodici.crypto.PublicKey;
 import com.icodici.universa.Errors;
 import com.icodici.universa.HashId;
 import com.icodici.universa.contract.Contract;
 import com.icodici.universa.contract.Parcel;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.LedgerDigest;
+import com.icodici.universa.node.LedgerSnapshot;
 import com.icodici.universa.node.network.BasicHTTPService;
 import com.icodici.universa.node2.*;
 import net.sergeych.tools.Binder;
 import net.sergeych.tools.BufferedLogger;
+import net.sergeych.tools.JsonTool;
 import net.sergeych.utils.Bytes;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ClientHTTPServer extends BasicHttpServer {
 
 
     private static final String API_VERSION = "3.1.0";
 
+    /**
+     * Requests per second each client could make to any endpoint without its own limit
+     */
+    public static final int DEFAULT_RATE_LIMIT = 1000;
+    /**
+     * Requests per second each client could make to the commands that unpack and register items
+     */
+    public static final int APPROVAL_RATE_LIMIT = 500;
+    /**
+     * Maximum number of items being unpacked or waiting for the registration, above it new approvals are rejected
+     */
+    public static final int APPROVAL_HIGH_WATERMARK = 5000;
+    /**
+     * Ledger digest requests per minute each node could make. The anti-entropy round of the node makes a few of them,
+     * and each could reload some buckets of the digest from the ledger.
+     */
+    public static final int LEDGER_DIGEST_RATE_LIMIT = 20;
+    /**
+     * Ledger bucket requests per minute each node could make, the round makes up to 64 of them, each reading the
+     * bucket from the ledger
+     */
+    public static final int LEDGER_BUCKET_RATE_LIMIT = 200;
+    /**
+     * Ledger snapshot requests per minute each node could make, each getting up to {@link #LEDGER_SNAPSHOT_PART_SIZE}
+     * bytes of it
+     */
+    public static final int LEDGER_SNAPSHOT_RATE_LIMIT = 1200;
+    /**
+     * Maximum size of the ledger snapshot part sent in the answer, small enough to be sent before the client times out
+     */
+    public static final int LEDGER_SNAPSHOT_PART_SIZE = 256 * 1024;
+    /**
+     * The ledger snapshot not requested for this long is deleted, even if the node has not got all of it
+     */
+    public static final Duration LEDGER_SNAPSHOT_EXPIRATION = Duration.ofMinutes(10);
+
     private final BufferedLogger log;
     private ItemCache cache;
     private ParcelCache parcelCache;
+    private ItemStore itemStore;
+    private ItemStore parcelStore;
     private NetConfig netConfig;
 
     private boolean localCors = false;
-
-    private ExecutorService es = Executors.newFixedThreadPool(40);
+    private boolean publicStats = false;
+
+    private ThreadPoolExecutor es = new ThreadPoolExecutor(40, 40, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>());
+    private AdmissionController admission = new AdmissionController(APPROVAL_HIGH_WATERMARK);
+    private final PrivateKey nodeKey;
+    private final Semaphore snapshotExport = new Semaphore(1);
+    /**
+     * Ledger snapshots made for the other nodes, by their keys, until they are sent or expire
+     */
+    private final Map<PublicKey, SnapshotFile> ledgerSnapshots = new HashMap<>();
+    /**
+     * Makes the ledger snapshots, one at a time, and deletes the expired ones, so the long export doesn't take the
+     * approval threads
+     */
+    private final ScheduledExecutorService snapshotExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ledger-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class SnapshotFile {
+        final CompletableFuture<Path> file;
+        long requestedAt = System.nanoTime();
+
+        SnapshotFile(CompletableFuture<Path> file) {
+            this.file = file;
+        }
+    }
 
     public ClientHTTPServer(PrivateKey privateKey, int port, BufferedLogger logger) throws IOException {
         super(privateKey, port, 32, logger);
+        nodeKey = privateKey;
         log = logger;
 
+        RequestLimiter limiter = new RequestLimiter(DEFAULT_RATE_LIMIT, Duration.ofSeconds(1));
+        for (String command : new String[]{"approve", "approveParcel", "startApproval"})
+            limiter.setLimit(command, APPROVAL_RATE_LIMIT, Duration.ofSeconds(1));
+        limiter.setLimit("ledgerDigest", LEDGER_DIGEST_RATE_LIMIT, Duration.ofMinutes(1));
+        limiter.setLimit("ledgerBucket", LEDGER_BUCKET_RATE_LIMIT, Duration.ofMinutes(1));
+        limiter.setLimit("ledgerSnapshot", LEDGER_SNAPSHOT_RATE_LIMIT, Duration.ofMinutes(1));
+        setRequestLimiter(limiter);
+        snapshotExecutor.scheduleWithFixedDelay(this::deleteExpiredLedgerSnapshots, 1, 1, TimeUnit.MINUTES);
+
         addSecureEndpoint("status", (params, session) -> Binder.of(
                 "status", "initializing",
-                "log", log.getLast(10)
+                "log", log.getLast(10),
+                "load", getLoadStats()
         ));
 
         on("/contracts", (request, response) -> {
@@ -54,24 +150,32 @@ public class ClientHTTPServer extends BasicHttpServer {
             // this is a bug - path has '+' decoded as ' '
             encodedString = encodedString.replace(' ', '+');
 
-            byte[] data = null;
+            ByteBuffer data = null;
+            ItemStore.Slice stored = null;
             if (encodedString.equals("cache_test")) {
-                data = "the cache test data".getBytes();
+                data = ByteBuffer.wrap("the cache test data".getBytes());
             } else {
                 HashId id = HashId.withDigest(encodedString);
                 if (cache != null) {
                     Contract c = (Contract) cache.get(id);
                     if (c != null) {
-                        data = c.getPackedTransaction();
+                        data = ByteBuffer.wrap(c.getPackedTransaction());
                     }
                 }
+                // it could be gone from the cache but still be needed, e.g. for a late resync;
+                // stored data are sent right from the mapped file, the slice is closed when sent
+                if (data == null && itemStore != null)
+                    stored = itemStore.open(id);
             }
-            if (data != null) {
+            if (data != null || stored != null) {
                 // contracts are immutable: cache forever
                 Binder hh = response.getHeaders();
                 hh.put("Expires", "Thu, 31 Dec 2037 23:55:55 GMT");
                 hh.put("Cache-Control", "max-age=315360000");
-                response.setBody(data);
+                if (stored != null)
+                    response.setBody(stored, stored.getLength());
+                else
+                    response.setBody(data);
             } else
                 response.setResponseCode(404);
         });
@@ -82,24 +186,30 @@ public class ClientHTTPServer extends BasicHttpServer {
             // this is a bug - path has '+' decoded as ' '
             encodedString = encodedString.replace(' ', '+');
 
-            byte[] data = null;
+            ByteBuffer data = null;
+            ItemStore.Slice stored = null;
             if (encodedString.equals("cache_test")) {
-                data = "the cache test data".getBytes();
+                data = ByteBuffer.wrap("the cache test data".getBytes());
             } else {
                 HashId id = HashId.withDigest(encodedString);
                 if (parcelCache != null) {
                     Parcel p = (Parcel) parcelCache.get(id);
                     if (p != null) {
-                        data = p.pack();
+                        data = ByteBuffer.wrap(p.pack());
                     }
                 }
+                if (data == null && parcelStore != null)
+                    stored = parcelStore.open(id);
             }
-            if (data != null) {
+            if (data != null || stored != null) {
                 // contracts are immutable: cache forever
                 Binder hh = response.getHeaders();
                 hh.put("Expires", "Thu, 31 Dec 2037 23:55:55 GMT");
                 hh.put("Cache-Control", "max-age=315360000");
-                response.setBody(data);
+                if (stored != null)
+                    response.setBody(stored, stored.getLength());
+                else
+                    response.setBody(data);
             } else
                 response.setResponseCode(404);
         });
@@ -123,17 +233,32 @@ public class ClientHTTPServer extends BasicHttpServer {
 
         });
 
+        metrics.gauge("http.approvalQueue", () -> es.getQueue().size());
+        metrics.gauge("http.approvalThreads", es::getActiveCount);
+        metrics.gauge("http.admissionPending", admission::getPending);
+        metrics.gauge("http.admissionRejected", admission::getRejected);
+
+        addSecureEndpoint("stats", (params, session) -> getStats());
+
         addSecureEndpoint("getState", this::getState);
         addSecureEndpoint("getParcelProcessingState", this::getParcelProcessingState);
         addSecureEndpoint("approve", this::approve);
         addSecureEndpoint("approveParcel", this::approveParcel);
         addSecureEndpoint("startApproval", this::startApproval);
         addSecureEndpoint("throw_error", this::throw_error);
+        addSecureEndpoint("ledgerDigest", this::ledgerDigest);
+        addSecureEndpoint("ledgerBucket", this::ledgerBucket);
+        addSecureEndpoint("ledgerSnapshot", this::ledgerSnapshot);
     }
 
     @Override
     public void shutdown() {
         es.shutdown();
+        snapshotExecutor.shutdownNow();
+        synchronized (ledgerSnapshots) {
+            ledgerSnapshots.values().forEach(this::deleteLedgerSnapshot);
+            ledgerSnapshots.clear();
+        }
         node.shutdown();
         super.shutdown();
     }
@@ -142,24 +267,61 @@ public class ClientHTTPServer extends BasicHttpServer {
         throw new IOException("just a test");
     }
 
+    /**
+     * @return rejection counters and queue depths
+     */
+    public Binder getLoadStats() {
+        RequestLimiter limiter = getRequestLimiter();
+        return Binder.of(
+                "rateLimits", limiter != null ? limiter.getStats() : Binder.EMPTY,
+                "admission", admission.getStats(),
+                "approvalQueue", es.getQueue().size(),
+                "approvalThreads", es.getActiveCount()
+        );
+    }
+
+    /**
+     * Counters, gauges and latency histograms (in microseconds) of the client interface and, once the node is set, of
+     * the node processing stages, its network and ledger.
+     *
+     * @return binder with "counters", "gauges" and "histograms"
+     */
+    public Binder getStats() {
+        return metrics.getStats();
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admission;
+    }
+
+    private void admit(String command, int weight) throws ClientError {
+        if (!admission.tryAcquire(weight))
+            throw new ClientError(Errors.TOO_MANY_REQUESTS, command, "node is overloaded, please call again after a while");
+    }
+
     private Binder approve(Binder params, Session session) throws IOException, Quantiser.QuantiserException {
         checkNode();
+        admit("approve", 1);
         try {
             //System.out.println("Request to approve, package size: " + params.getBinaryOrThrow("packedItem").length);
+            // the referenced contracts are decoded as the check walks through them
             return Binder.of(
                     "itemResult",
-                    node.registerItem(Contract.fromPackedTransaction(params.getBinaryOrThrow("packedItem")))
+                    node.registerItem(Contract.fromPackedTransaction(params.getBinaryOrThrow("packedItem"), true))
             );
         } catch (Exception e) {
             return Binder.of(
                     "itemResult",
                     "approve ERROR: " + e.getMessage()
             );
+        } finally {
+            admission.release(1);
         }
     }
 
     private Binder approveParcel(Binder params, Session session) throws IOException, Quantiser.QuantiserException {
         checkNode();
+        admit("approveParcel", 1);
         try {
     //        System.out.println("Request to approve parcel, package size: " + params.getBinaryOrThrow("packedItem").length);
             return Binder.of(
@@ -171,25 +333,34 @@ public class ClientHTTPServer extends BasicHttpServer {
                     "result",
                     "approveParcel ERROR: " + e.getMessage()
             );
+        } finally {
+            admission.release(1);
         }
     }
 
-    static AtomicInteger asyncStarts = new AtomicInteger();
-
     private Binder startApproval(final Binder params, Session session) throws IOException, Quantiser.QuantiserException {
-        int n = asyncStarts.incrementAndGet();
-        AtomicInteger k = new AtomicInteger();
-        params.getListOrThrow("packedItems").forEach((item) ->
+        List<Object> items = params.getListOrThrow("packedItems");
+        // the whole batch is admitted or rejected, each item leaves when its registration is started
+        admit("startApproval", items.size());
+        for (int i = 0; i < items.size(); i++) {
+            Object item = items.get(i);
+            try {
                 es.execute(() -> {
                     try {
                         checkNode();
-                        System.out.println("Request to start registration #"+n+":"+k.incrementAndGet());
-                        node.registerItem(Contract.fromPackedTransaction(((Bytes)item).toArray()));
+                        node.registerItem(Contract.fromPackedTransaction(((Bytes) item).toArray(), true));
                     } catch (Exception e) {
                         e.printStackTrace();
+                    } finally {
+                        admission.release(1);
                     }
-                })
-        );
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                admission.release(items.size() - i);
+                throw e;
+            }
+        }
         return new Binder();
     }
 
@@ -219,6 +390,171 @@ public class ClientHTTPServer extends BasicHttpServer {
         }
     }
 
+    /**
+     * Nodes of the {@link LedgerDigest} for the anti-entropy of the other node, see {@link
+     * Network#getLedgerDigest(NodeInfo, int[])}.
+     */
+    private Binder ledgerDigest(Binder params, Session session) throws Exception {
+        LedgerDigest digest = checkLedgerDigest(session);
+        List<Object> nodes = params.getListOrThrow("nodes");
+        int[] numbers = new int[nodes.size()];
+        for (int i = 0; i < numbers.length; i++)
+            numbers[i] = ((Number) nodes.get(i)).intValue();
+        List<Long> values = new ArrayList<>(numbers.length);
+        for (long v : digest.getNodes(numbers))
+            values.add(v);
+        return Binder.of("values", values);
+    }
+
+    /**
+     * Settled records of the {@link LedgerDigest} bucket for the anti-entropy of the other node, see {@link
+     * Network#getLedgerBucket(NodeInfo, int)}.
+     */
+    private Binder ledgerBucket(Binder params, Session session) throws Exception {
+        LedgerDigest digest = checkLedgerDigest(session);
+        Map<HashId, ItemState> records = digest.getBucket(params.getIntOrThrow("bucket"));
+        List<HashId> ids = new ArrayList<>(records.size());
+        List<Integer> states = new ArrayList<>(records.size());
+        records.forEach((id, state) -> {
+            ids.add(id);
+            states.add(state.ordinal());
+        });
+        return Binder.of("ids", ids, "states", states);
+    }
+
+    /**
+     * Part of the signed {@link LedgerSnapshot} to bootstrap the other node, see {@link
+     * Client#getLedgerSnapshot(OutputStream)}. With "start" the new snapshot is made in the background, unless one is
+     * being made for the node already, and only one is made at a time. Until it is ready the answer is only "ready"
+     * false, then it has the "data" from the "offset" and the total "size". The snapshot is written to the temporary
+     * file, so the ledger is not held by the slow node, and the file is deleted once its last part is sent, or when it
+     * is not requested for {@link #LEDGER_SNAPSHOT_EXPIRATION}.
+     */
+    private Binder ledgerSnapshot(Binder params, Session session) throws Exception {
+        checkNodeSession(session);
+        if (!node.getLedger().canExportRecords())
+            throw new CommandFailedException(Errors.NOT_SUPPORTED, "", "ledger snapshot is not supported");
+        PublicKey key = session.getPublicKey();
+        SnapshotFile snapshot;
+        synchronized (ledgerSnapshots) {
+            snapshot = ledgerSnapshots.get(key);
+            if (params.getBoolean("start", false) && (snapshot == null || snapshot.file.isDone())) {
+                if (snapshot != null) {
+                    ledgerSnapshots.remove(key);
+                    deleteLedgerSnapshot(snapshot);
+                }
+                snapshot = new SnapshotFile(startLedgerSnapshot());
+                ledgerSnapshots.put(key, snapshot);
+            }
+            if (snapshot == null)
+                throw new CommandFailedException(Errors.NOT_FOUND, "", "ledger snapshot is not started");
+            snapshot.requestedAt = System.nanoTime();
+            if (!snapshot.file.isDone())
+                return Binder.of("ready", false);
+            if (snapshot.file.isCompletedExceptionally()) {
+                ledgerSnapshots.remove(key);
+                throw new CommandFailedException(Errors.FAILURE, "", "failed to make ledger snapshot");
+            }
+        }
+
+        Path file = snapshot.file.join();
+        long offset = params.getLongOrThrow("offset");
+        long size = Files.size(file);
+        if (offset < 0 || offset > size)
+            throw new CommandFailedException(Errors.BAD_VALUE, "offset", "out of the ledger snapshot");
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(LEDGER_SNAPSHOT_PART_SIZE, size - offset));
+        try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+            channel.position(offset);
+            while (data.hasRemaining() && channel.read(data) >= 0) ;
+        }
+        if (offset + data.position() >= size) {
+            synchronized (ledgerSnapshots) {
+                if (ledgerSnapshots.remove(key, snapshot))
+                    Files.deleteIfExists(file);
+            }
+        }
+        return Binder.of(
+                "ready", true,
+                "size", size,
+                "data", data.array());
+    }
+
+    // the export permit is taken here and released by makeLedgerSnapshot, or right away if it can't be started
+    private CompletableFuture<Path> startLedgerSnapshot() throws CommandFailedException {
+        if (!snapshotExport.tryAcquire())
+            throw new CommandFailedException(Errors.NOT_READY, "", "another ledger snapshot is being made");
+        try {
+            return CompletableFuture.supplyAsync(this::makeLedgerSnapshot, snapshotExecutor);
+        } catch (RejectedExecutionException e) {
+            snapshotExport.release();
+            throw new CommandFailedException(Errors.FAILURE, "", "ledger snapshots are not made, shutting down");
+        }
+    }
+
+    private void deleteExpiredLedgerSnapshots() {
+        long expiredAt = System.nanoTime() - LEDGER_SNAPSHOT_EXPIRATION.toNanos();
+        synchronized (ledgerSnapshots) {
+            ledgerSnapshots.values().removeIf(snapshot -> {
+                if (!snapshot.file.isDone() || snapshot.requestedAt - expiredAt > 0)
+                    return false;
+                deleteLedgerSnapshot(snapshot);
+                return true;
+            });
+        }
+    }
+
+    // deletes the file of the snapshot if it is made, being made ones are left to the expiration
+    private void deleteLedgerSnapshot(SnapshotFile snapshot) {
+        if (snapshot.file.isDone() && !snapshot.file.isCompletedExceptionally()) {
+            try {
+                Files.deleteIfExists(snapshot.file.join());
+            } catch (IOException e) {
+                log.e("failed to delete ledger snapshot: " + e);
+            }
+        }
+    }
+
+    private Path makeLedgerSnapshot() {
+        try {
+            Path file = Files.createTempFile("ledger", ".snapshot");
+            file.toFile().deleteOnExit();
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                long count = LedgerSnapshot.write(node.getLedger(), out, nodeKey);
+                log.log("ledger snapshot of " + count + " records is made");
+            } catch (Exception e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+            return file;
+        } catch (Exception e) {
+            log.e("failed to make ledger snapshot: " + e);
+            throw new CompletionException(e);
+        } finally {
+            snapshotExport.release();
+        }
+    }
+
+    /**
+     * Ledger digests are served to the other nodes only.
+     */
+    private LedgerDigest checkLedgerDigest(Session session) throws CommandFailedException {
+        checkNodeSession(session);
+        LedgerDigest digest = node.getLedger().getDigest();
+        if (digest == null)
+            throw new CommandFailedException(Errors.NOT_SUPPORTED, "", "ledger digest is not supported");
+        return digest;
+    }
+
+    /**
+     * Check the session is of the other node, which is known by its key.
+     */
+    private void checkNodeSession(Session session) throws CommandFailedException {
+        checkNode();
+        if (netConfig == null || netConfig.toList().stream().noneMatch(
+                n -> n.getPublicKey().equals(session.getPublicKey())))
+            throw new CommandFailedException(Errors.FORBIDDEN, "", "only the nodes could access the ledger");
+    }
+
     private void checkNode() throws CommandFailedException {
         if (node == null) {
             throw new CommandFailedException(Errors.NOT_READY, "", "please call again after a while");
@@ -259,12 +595,49 @@ public class ClientHTTPServer extends BasicHttpServer {
         this.parcelCache = cache;
     }
 
+    public ItemStore getItemStore() {
+        return itemStore;
+    }
+
+    public void setItemStore(ItemStore itemStore) {
+        this.itemStore = itemStore;
+    }
+
+    public ItemStore getParcelStore() {
+        return parcelStore;
+    }
+
+    public void setParcelStore(ItemStore parcelStore) {
+        this.parcelStore = parcelStore;
+    }
+
     public void setNetConfig(NetConfig netConfig) {
         this.netConfig = netConfig;
     }
 
     public void setNode(Node node) {
         this.node = node;
+        metrics.include(node.getMetrics());
+    }
+
+    /**
+     * Serve the statistics of the secure "stats" command to anyone on the plain "/stats" and "/stats.json" paths too,
+     * e.g. for the monitoring that has no client key. Off by default, as they tell much about the node and its load,
+     * and could not be turned off once on.
+     *
+     * @param publicStats true to serve the statistics without the session
+     */
+    public void setPublicStats(boolean publicStats) {
+        if (!publicStats || this.publicStats)
+            return;
+        this.publicStats = true;
+
+        addEndpoint("/stats", (Binder params, Result result) -> result.putAll(getStats()));
+
+        on("/stats.json", (request, response) -> {
+            response.getHeaders().put("Content-Type", "application/json");
+            response.setBody(JsonTool.toJson(getStats()).toString());
+        });
     }
 
     public boolean isLocalCors() {
@@ -12,6 +12,7 @@ import com.icodici.crypto.PrivateKey;
 import com.icodici.crypto.SymmetricKey;
 import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
+import net.sergeych.tools.Metrics;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -64,6 +65,8 @@ public abstract class DatagramAdapter {
 
     protected List<Function<String, String>> errorCallbacks = new ArrayList<>();
 
+    protected final Metrics metrics = new Metrics();
+
     /**
      * Create an instance that listens for the incoming datagrams using the specified configurations. The adapter should
      * start serving incoming datagrams immediately upon creation.
@@ -97,6 +100,13 @@ public abstract class DatagramAdapter {
         errorCallbacks.add(fn);
     }
 
+    /**
+     * @return counters of sent, retransmitted and dropped blocks, and the queue sizes
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     public void receive(Consumer<byte[]> receiver) {
         byte[] payload;
         // first set the receiver so the queue won't be grow
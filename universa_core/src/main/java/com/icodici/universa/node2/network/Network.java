@@ -11,13 +11,18 @@ import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
 import com.icodici.universa.contract.Parcel;
 import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.LedgerDigest;
 import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
 import com.icodici.universa.node2.Notification;
+import net.sergeych.tools.Metrics;
 
 import java.io.IOException;
 import java.time.Duration;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
@@ -28,10 +33,19 @@ public abstract class Network {
 
     private NetConfig netConfig;
 
+    protected final Metrics metrics = new Metrics();
+
     public Network(NetConfig netConfig) {
         this.netConfig = netConfig;
     }
 
+    /**
+     * @return counters and latencies of the network operations, including the ones of the underlying transport
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     public NodeInfo getInfo(int number) {
         return netConfig.getInfo(number);
     }
@@ -102,12 +116,47 @@ public abstract class Network {
         return netConfig.toList();
     }
 
+    /**
+     * @return new bitset with the numbers of all nodes set, see {@link NodeInfo#getNumber()}
+     */
+    public BitSet allNodeNumbers() {
+        return netConfig.getNumbers();
+    }
+
     public void shutdown() {}
 
     public ItemResult getItemState(NodeInfo nodeInfo, HashId id) throws IOException {
         return null;
     }
 
+    /**
+     * Get the nodes of the ledger digest of the other node, to compare with the local one.
+     *
+     * @param nodeInfo node to ask
+     * @param nodes    numbers of the digest nodes, see {@link LedgerDigest#getNodes(int[])}
+     *
+     * @return values of the nodes, or null if the network can't get them
+     *
+     * @throws IOException if the node has failed to answer
+     */
+    public long[] getLedgerDigest(NodeInfo nodeInfo, int[] nodes) throws IOException {
+        return null;
+    }
+
+    /**
+     * Get the settled records of the ledger digest bucket of the other node.
+     *
+     * @param nodeInfo node to ask
+     * @param bucket   number, see {@link LedgerDigest#getBucket(int)}
+     *
+     * @return item ids and states, or null if the network can't get them
+     *
+     * @throws IOException if the node has failed to answer
+     */
+    public Map<HashId, ItemState> getLedgerBucket(NodeInfo nodeInfo, int bucket) throws IOException {
+        return null;
+    }
+
 
     public void addNode(NodeInfo nodeInfo) {
         netConfig.addNode(nodeInfo);
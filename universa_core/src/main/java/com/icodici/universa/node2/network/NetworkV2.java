@@ -14,11 +14,13 @@ import com.icodici.universa.HashId;
 import com.icodici.universa.contract.Parcel;
 import com.icodici.universa.contract.TransactionPack;
 import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
 import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
 import com.icodici.universa.node2.Notification;
 import net.sergeych.boss.Boss;
 import net.sergeych.tools.Do;
+import net.sergeych.tools.Histogram;
 import net.sergeych.utils.LogPrinter;
 
 import java.io.IOException;
@@ -26,6 +28,7 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 public class NetworkV2 extends Network {
@@ -40,6 +43,16 @@ public class NetworkV2 extends Network {
     protected int verboseLevel = DatagramAdapter.VerboseLevel.NOTHING;
     private Consumer<Notification> consumer;
 
+    private final LongAdder notificationsSent = metrics.counter("network.notificationsSent");
+    private final LongAdder notificationsReceived = metrics.counter("network.notificationsReceived");
+    private final LongAdder badNotifications = metrics.counter("network.badNotifications");
+    private final LongAdder downloadFailures = metrics.counter("network.downloadFailures");
+    private final Histogram getItemTime = metrics.histogram("network.getItem");
+    private final Histogram getParcelTime = metrics.histogram("network.getParcel");
+    private final Histogram getItemStateTime = metrics.histogram("network.getItemState");
+    private final Histogram getLedgerDigestTime = metrics.histogram("network.getLedgerDigest");
+    private final Histogram getLedgerBucketTime = metrics.histogram("network.getLedgerBucket");
+
     public NetworkV2(NetConfig netConfig, NodeInfo myInfo, PrivateKey myKey) throws IOException {
         super(netConfig);
         this.myInfo = myInfo;
@@ -49,6 +62,7 @@ public class NetworkV2 extends Network {
 //        adapter.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
         adapter.receive(this::onReceived);
         adapter.addErrorsCallback(this::exceptionCallback);
+        metrics.include(adapter.getMetrics());
     }
 
     private final void onReceived(byte[] packedNotifications) {
@@ -56,14 +70,17 @@ public class NetworkV2 extends Network {
             if (consumer != null) {
                 List<Notification> nn = unpack(packedNotifications);
                 for (Notification n : nn) {
-                    if( n == null )
+                    if( n == null ) {
+                        badNotifications.increment();
                         report(getLabel(), "bad notification skipped", DatagramAdapter.VerboseLevel.BASE);
-                    else {
+                    } else {
+                        notificationsReceived.increment();
                         consumer.accept(n);
                     }
                 }
             }
         } catch (IOException e) {
+            badNotifications.increment();
             report(getLabel(), "ignoring notification, " + e, DatagramAdapter.VerboseLevel.BASE);
         }
     }
@@ -123,6 +140,7 @@ public class NetworkV2 extends Network {
         try {
             byte[] data = packNotifications(myInfo, Do.listOf(notification));
             adapter.send(toNode, data);
+            notificationsSent.increment();
         } catch (InterruptedException e) {
             report(getLabel(), "Expected interrupted exception");
         } catch (Exception e) {
@@ -139,60 +157,103 @@ public class NetworkV2 extends Network {
 
     @Override
     public Approvable getItem(HashId itemId, NodeInfo nodeInfo, Duration maxTimeout) throws InterruptedException {
+        long started = System.nanoTime();
         try {
 //            URL url = new URL("http://localhost:8080/contracts/" + itemId.toBase64String());
             URL url = new URL(nodeInfo.publicUrlString() + "/contracts/" + itemId.toBase64String());
             HttpURLConnection connection = (HttpURLConnection) url.openConnection();
             connection.setRequestProperty("User-Agent", "Universa JAVA API Client");
             connection.setRequestMethod("GET");
-            if (200 != connection.getResponseCode())
+            if (200 != connection.getResponseCode()) {
+                downloadFailures.increment();
                 return null;
+            }
             byte[] data = Do.read(connection.getInputStream());
             TransactionPack tp = TransactionPack.unpack(data, true);
 //            tp.trace();
 //            Contract c = Contract.fromPackedTransaction(data);
             return tp.getContract();
         } catch (Exception e) {
+            downloadFailures.increment();
             report(getLabel(), "download failure. from: " + nodeInfo.getNumber() + " by: " + myInfo.getNumber() +" reason: " + e, DatagramAdapter.VerboseLevel.BASE);
             e.printStackTrace();
             return null;
+        } finally {
+            getItemTime.recordMicrosSince(started);
         }
     }
 
     @Override
     public Parcel getParcel(HashId itemId, NodeInfo nodeInfo, Duration maxTimeout) throws InterruptedException {
+        long started = System.nanoTime();
         try {
 //            URL url = new URL("http://localhost:8080/contracts/" + itemId.toBase64String());
             URL url = new URL(nodeInfo.publicUrlString() + "/parcels/" + itemId.toBase64String());
             HttpURLConnection connection = (HttpURLConnection) url.openConnection();
             connection.setRequestProperty("User-Agent", "Universa JAVA API Client");
             connection.setRequestMethod("GET");
-            if (200 != connection.getResponseCode())
+            if (200 != connection.getResponseCode()) {
+                downloadFailures.increment();
                 return null;
+            }
             byte[] data = Do.read(connection.getInputStream());
             Parcel parcel = Parcel.unpack(data);
 //            tp.trace();
 //            Contract c = Contract.fromPackedTransaction(data);
             return parcel;
         } catch (Exception e) {
+            downloadFailures.increment();
             report(getLabel(), "download failure. from: " + nodeInfo.getNumber() + " by: " + myInfo.getNumber() +" reason: " + e);
             return null;
+        } finally {
+            getParcelTime.recordMicrosSince(started);
         }
     }
 
     private final Map<NodeInfo,Client> cachedClients = new HashMap<>();
 
-    @Override
-    public ItemResult getItemState(NodeInfo nodeInfo, HashId id) throws IOException {
-        Client client;
+    private Client getClient(NodeInfo nodeInfo) throws IOException {
         synchronized (cachedClients) {
-            client = cachedClients.get(nodeInfo);
+            Client client = cachedClients.get(nodeInfo);
             if( client == null ) {
                 client = new Client(myKey, nodeInfo, null);
                 cachedClients.put(nodeInfo, client);
             }
+            return client;
+        }
+    }
+
+    @Override
+    public ItemResult getItemState(NodeInfo nodeInfo, HashId id) throws IOException {
+        Client client = getClient(nodeInfo);
+        long started = System.nanoTime();
+        try {
+            return client.getState(id);
+        } finally {
+            getItemStateTime.recordMicrosSince(started);
+        }
+    }
+
+    @Override
+    public long[] getLedgerDigest(NodeInfo nodeInfo, int[] nodes) throws IOException {
+        Client client = getClient(nodeInfo);
+        long started = System.nanoTime();
+        try {
+            return client.getLedgerDigest(nodes);
+        } finally {
+            getLedgerDigestTime.recordMicrosSince(started);
+        }
+    }
+
+    @Override
+    public Map<HashId, ItemState> getLedgerBucket(NodeInfo nodeInfo, int bucket) throws IOException {
+        Client client = getClient(nodeInfo);
+        long started = System.nanoTime();
+        try {
+            return client.getLedgerBucket(bucket);
+        } finally {
+            getLedgerBucketTime.recordMicrosSince(started);
         }
-        return client.getState(id);
     }
 
     private String exceptionCallback(String message) {
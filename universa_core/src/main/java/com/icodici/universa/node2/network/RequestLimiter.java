@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.node.TokenBucketRateCounter;
+import net.sergeych.tools.Binder;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the request rate of each client (its public key for secure commands, its address for plain HTTP paths) to
+ * each endpoint separately, with a {@link TokenBucketRateCounter} per client and endpoint pair. The limits are
+ * configured per endpoint, the default applies to the rest.
+ * <p>
+ * Nothing is locked on the request path. The counters of clients that have stopped calling are dropped when there
+ * are too many of them, so the limiter can't be used itself to fill the memory.
+ */
+public class RequestLimiter {
+
+    /**
+     * When the number of counters exceeds this value, idle ones are dropped
+     */
+    static final int SWEEP_THRESHOLD = 10_000;
+
+    private static class Limit {
+        final int limit;
+        final Duration period;
+
+        Limit(int limit, Duration period) {
+            this.limit = limit;
+            this.period = period;
+        }
+    }
+
+    private static class Key {
+        final Object client;
+        final String endpoint;
+        final int hashCode;
+
+        Key(Object client, String endpoint) {
+            this.client = client;
+            this.endpoint = endpoint;
+            hashCode = client.hashCode() * 31 + endpoint.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return endpoint.equals(other.endpoint) && client.equals(other.client);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private volatile Limit defaultLimit;
+    private final ConcurrentHashMap<String, Limit> limits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Key, TokenBucketRateCounter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> rejections = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    /**
+     * @param defaultLimit  requests allowed per period to any endpoint without its own limit
+     * @param defaultPeriod the period
+     */
+    public RequestLimiter(int defaultLimit, Duration defaultPeriod) {
+        this.defaultLimit = new Limit(defaultLimit, defaultPeriod);
+    }
+
+    /**
+     * Set the limit for the endpoint. Takes effect for clients that have no counter yet, that is for new ones and for
+     * those who have been idle for a while.
+     *
+     * @param endpoint command name or path
+     * @param limit    requests allowed per period per client
+     * @param period   the period
+     */
+    public void setLimit(@NonNull String endpoint, int limit, @NonNull Duration period) {
+        limits.put(endpoint, new Limit(limit, period));
+    }
+
+    public void setDefaultLimit(int limit, @NonNull Duration period) {
+        defaultLimit = new Limit(limit, period);
+    }
+
+    /**
+     * Count the request and check it is allowed.
+     *
+     * @param client   any object identifying the client and implementing equals and hashCode, e.g. its public key
+     * @param endpoint command name or path
+     *
+     * @return true if the request could be served, false if the client exceeds the limit
+     */
+    public boolean allow(@NonNull Object client, @NonNull String endpoint) {
+        Key key = new Key(client, endpoint);
+        TokenBucketRateCounter counter = counters.get(key);
+        boolean created = false;
+        if (counter == null) {
+            Limit limit = limits.getOrDefault(endpoint, defaultLimit);
+            counter = counters.computeIfAbsent(key, k -> new TokenBucketRateCounter(limit.limit, limit.period));
+            created = true;
+        }
+        boolean allowed = counter.countPulse();
+        // after the pulse is counted, so the new counter is not idle
+        if (created && counters.size() > SWEEP_THRESHOLD)
+            sweep();
+        if (!allowed)
+            rejections.computeIfAbsent(endpoint, k -> new LongAdder()).increment();
+        return allowed;
+    }
+
+    /**
+     * Drop counters of clients that have not called for a while, so their buckets are full again.
+     */
+    void sweep() {
+        if (sweeping.compareAndSet(false, true)) {
+            try {
+                counters.values().removeIf(TokenBucketRateCounter::isIdle);
+            } finally {
+                sweeping.set(false);
+            }
+        }
+    }
+
+    /**
+     * @return number of client and endpoint pairs being tracked
+     */
+    public int getClientsCount() {
+        return counters.size();
+    }
+
+    /**
+     * @param endpoint command name or path
+     *
+     * @return number of requests rejected to this endpoint since start
+     */
+    public long getRejected(@NonNull String endpoint) {
+        LongAdder adder = rejections.get(endpoint);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * @return counters and total rejections to each endpoint, to report in the node status
+     */
+    public Binder getStats() {
+        Binder rejected = new Binder();
+        rejections.forEach((endpoint, adder) -> rejected.put(endpoint, adder.sum()));
+        return Binder.of(
+                "clients", counters.size(),
+                "rejected", rejected
+        );
+    }
+}
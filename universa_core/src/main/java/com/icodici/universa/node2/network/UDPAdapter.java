@@ -26,6 +26,7 @@ import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 import static java.util.Arrays.asList;
@@ -45,6 +46,16 @@ public class UDPAdapter extends DatagramAdapter {
 
     private Timer timer = new Timer();
 
+    private final LongAdder packetsSent = metrics.counter("udp.packetsSent");
+    private final LongAdder packetsReceived = metrics.counter("udp.packetsReceived");
+    private final LongAdder packetsResent = metrics.counter("udp.packetsResent");
+    private final LongAdder packetsLost = metrics.counter("udp.packetsLostInTestMode");
+    private final LongAdder blocksSent = metrics.counter("udp.blocksSent");
+    private final LongAdder blocksRetransmitted = metrics.counter("udp.blocksRetransmitted");
+    private final LongAdder blocksDropped = metrics.counter("udp.blocksDropped");
+    private final LongAdder repeatedBlocks = metrics.counter("udp.repeatedBlocksReceived");
+    private final LongAdder errors = metrics.counter("udp.errors");
+
     /**
      * Create an instance that listens for the incoming datagrams using the specified configurations. The adapter should
      * start serving incoming datagrams immediately upon creation.
@@ -70,6 +81,12 @@ public class UDPAdapter extends DatagramAdapter {
                 checkUnsent();
             }
         }, RETRANSMIT_TIME, RETRANSMIT_TIME);
+
+        metrics.gauge("udp.sessions", sessionsById::size);
+        metrics.gauge("udp.sendingBlocks",
+                () -> sessionsById.values().stream().mapToInt(s -> s.sendingBlocksQueue.size()).sum());
+        metrics.gauge("udp.waitingBlocks",
+                () -> sessionsById.values().stream().mapToInt(s -> s.waitingBlocksQueue.size()).sum());
     }
 
 
@@ -180,6 +197,10 @@ public class UDPAdapter extends DatagramAdapter {
         List<DatagramPacket> outs = new ArrayList(block.datagrams.values());
 
         block.sendAttempts++;
+        if (block.sendAttempts > 1)
+            blocksRetransmitted.increment();
+        else
+            blocksSent.increment();
         if(block.type != PacketTypes.PACKET_ACK &&
                 block.type != PacketTypes.ACK &&
                 block.type != PacketTypes.NACK) {
@@ -195,10 +216,12 @@ public class UDPAdapter extends DatagramAdapter {
                 if(testMode == TestModes.LOST_PACKETS || testMode == TestModes.LOST_AND_SHUFFLE_PACKETS) {
                     if (new Random().nextInt(100) < lostPacketsPercent) {
                         report(getLabel(), "Lost packet in block: " + block.blockId);
+                        packetsLost.increment();
                         continue;
                     }
                 }
                 socket.send(d);
+                packetsSent.increment();
             }
         } catch (IOException e) {
             report(getLabel(), "send block error, socket already closed");
@@ -382,6 +405,7 @@ public class UDPAdapter extends DatagramAdapter {
                         if(block.sendAttempts >= RETRANSMIT_MAX_ATTEMPTS) {
                             report(getLabel(), "block " + block.blockId + " type " + block.type + " will be removed");
                             blocksToRemove.add(block);
+                            blocksDropped.increment();
                         } else {
                             sendBlock(block, session);
                         }
@@ -430,6 +454,7 @@ public class UDPAdapter extends DatagramAdapter {
             try {
                 if(datagram != null) {
                     socket.send(datagram);
+                    packetsResent.increment();
                     report(getLabel(), " datagram was resent");
                 } else {
                     report(getLabel(), " datagram unexpected became null");
@@ -464,6 +489,7 @@ public class UDPAdapter extends DatagramAdapter {
 
 
     protected void callErrorCallbacks(String message) {
+        errors.increment();
         for(Function<String, String> fn : errorCallbacks) {
             fn.apply(message);
         }
@@ -510,6 +536,7 @@ public class UDPAdapter extends DatagramAdapter {
                 if(active) {
 
                     byte[] data = Arrays.copyOfRange(receivedDatagram.getData(), 0, receivedDatagram.getLength());
+                    packetsReceived.increment();
 
                     Packet packet = new Packet();
                     Block waitingBlock = null;
@@ -524,6 +551,7 @@ public class UDPAdapter extends DatagramAdapter {
                             if (obtainedBlocks.containsKey(packet.blockId)) {
                                 // Do nothing, cause we got and obtained this block already
                                 report(getLabel(), " warning: repeated block given, with id " + packet.blockId);
+                                repeatedBlocks.increment();
                             } else {
                                 waitingBlock = new Block(packet.senderNodeId, packet.receiverNodeId,
                                         packet.blockId, packet.type,
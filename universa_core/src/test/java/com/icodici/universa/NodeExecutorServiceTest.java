@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa;
+
+import com.icodici.universa.NodeExecutorService.Stage;
+import net.sergeych.tools.Binder;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NodeExecutorServiceTest {
+
+    @Test
+    public void untracedByDefault() throws Exception {
+        NodeExecutorService es = new NodeExecutorService(1);
+        HashId id = HashId.createRandom();
+        es.submit(() -> {}, "node", id, Stage.ITEM_CHECK).get();
+        assertNull(es.getTrace());
+        es.shutdown();
+    }
+
+    @Test
+    public void traceRuns() throws Exception {
+        NodeExecutorService es = new NodeExecutorService(1);
+        es.setTracing(4);
+        HashId id = HashId.createRandom();
+        for (int i = 0; i < 6; i++)
+            es.submit(() -> {}, "node", id, Stage.ITEM_CHECK).get();
+        es.schedule(() -> {}, 10, TimeUnit.MILLISECONDS, "node", null, Stage.POLLING).get();
+
+        NodeExecutorService.Trace trace = es.getTrace();
+        assertEquals(7, trace.getTotalCount());
+        List<NodeExecutorService.Record> records = trace.getRecords();
+        assertEquals(4, records.size());
+        assertEquals(Stage.ITEM_CHECK, records.get(0).getStage());
+        assertEquals(id, records.get(0).getItemId());
+        NodeExecutorService.Record last = records.get(3);
+        assertEquals(Stage.POLLING, last.getStage());
+        assertTrue(last.getStartedAt() >= last.getDueAt() - 1000000);
+        assertTrue(last.getFinishedAt() >= last.getStartedAt());
+        assertTrue(last.toString().startsWith("node :: POLLING"));
+
+        Binder summary = trace.getSummary();
+        assertEquals(3L, summary.getBinderOrThrow("ITEM_CHECK").getBinderOrThrow("run").getLongOrThrow("count"));
+        assertEquals(1L, summary.getBinderOrThrow("POLLING").getBinderOrThrow("wait").getLongOrThrow("count"));
+        es.shutdown();
+    }
+
+    @Test
+    public void tracePeriodicAndQueued() throws Exception {
+        NodeExecutorService es = new NodeExecutorService(1);
+        es.setTracing(100);
+        HashId id = HashId.createRandom();
+        CountDownLatch runs = new CountDownLatch(3);
+        ScheduledFuture<?> poller = es.scheduleAtFixedRate(runs::countDown, 1, 1, TimeUnit.MILLISECONDS,
+                "node", id, Stage.POLLING);
+        assertTrue(runs.await(5, TimeUnit.SECONDS));
+        poller.cancel(false);
+        assertTrue(poller.isCancelled());
+        List<NodeExecutorService.Record> records = es.getTrace().getRecords();
+        assertTrue(records.size() >= 3);
+        assertTrue(records.get(1).getDueAt() > records.get(0).getDueAt());
+
+        ScheduledFuture<?> delayed = es.schedule(() -> {}, 1, TimeUnit.HOURS, "node", id, Stage.RESYNC_NOTIFICATION);
+        assertTrue(es.tracePools().contains("node > item " + id + " :: RESYNC_NOTIFICATION"));
+        delayed.cancel(false);
+        es.shutdownNow();
+    }
+}
@@ -1094,6 +1094,39 @@ public class ContractTest extends ContractTestBase {
         assertFalse(anonPublishedContract.getSealedByKeys().contains(key.getPublicKey()));
     }
 
+    /**
+     * Unpacking and checking the contract with 10 new items, every one signed with the same key, as the node does it
+     * with the contracts it receives. Each contract unpacks its own instances of the signer keys.
+     */
+    @Ignore("benchmark, start it manually")
+    @Test
+    public void benchmarkCheck() throws Exception {
+        final PrivateKey key = new PrivateKey(Do.read(rootPath + "_xer0yfe2nn1xthc.private.unikey"));
+        Contract contract = new Contract(key);
+        for (int i = 0; i < 10; i++) {
+            Contract n = new Contract(key);
+            n.seal();
+            contract.addNewItems(n);
+        }
+        contract.seal();
+        byte[] packed = contract.getPackedTransaction();
+
+        int repetitions = 200;
+        for (int round = 0; round < 10; round++) {
+            long unpackTime = 0, checkTime = 0;
+            for (int i = 0; i < repetitions; i++) {
+                long t = System.nanoTime();
+                Contract c = Contract.fromPackedTransaction(packed);
+                long unpacked = System.nanoTime();
+                assertTrue(c.check());
+                checkTime += System.nanoTime() - unpacked;
+                unpackTime += unpacked - t;
+            }
+            System.out.println(String.format("unpack %6.3f ms, check %6.3f ms",
+                    unpackTime / 1e6 / repetitions, checkTime / 1e6 / repetitions));
+        }
+    }
+
     /**
      * Imitate procedure of contract processing as it will be on the Node.
      * Gte contract from param, create from it new contract,
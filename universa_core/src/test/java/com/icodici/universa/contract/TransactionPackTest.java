@@ -11,23 +11,32 @@ import com.icodici.crypto.EncryptionError;
 import com.icodici.crypto.PrivateKey;
 import com.icodici.crypto.PublicKey;
 import com.icodici.universa.Approvable;
+import com.icodici.universa.ErrorRecord;
 import com.icodici.universa.HashId;
+import com.icodici.universa.contract.permissions.ModifyDataPermission;
+import com.icodici.universa.contract.roles.RoleLink;
 import com.icodici.universa.node.ItemResult;
 import com.icodici.universa.node.network.TestKeys;
 import com.icodici.universa.node2.Main;
 import com.icodici.universa.node2.Quantiser;
 import com.icodici.universa.node2.network.Client;
 import com.icodici.universa.node2.network.ClientError;
+import net.sergeych.boss.Boss;
+import net.sergeych.tools.Binder;
 import net.sergeych.utils.Base64;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
@@ -126,6 +135,256 @@ public class TransactionPackTest {
         checkPackWithKeys(tp1);
     }
 
+    @Test
+    public void lazyUnpack() throws Exception {
+        byte[] packedTp = c.getTransactionPack().pack();
+
+        TransactionPack tp = TransactionPack.unpack(packedTp, true, true);
+        assertTrue(tp.isLazy());
+        Contract c1 = tp.getContract();
+        assertEquals(c.getId(), c1.getId());
+        // nothing but the main contract is decoded yet, and repacking does not need it
+        assertEquals(3, tp.getPendingReferencesCount());
+        assertEquals(tp.pack().length, packedTp.length);
+        assertEquals(c.getId(), TransactionPack.unpack(tp.pack()).getContract().getId());
+
+        Contract r1 = tp.getReference(r0.getId());
+        assertEquals(r0.getId(), r1.getId());
+        assertSame(r1, tp.getReference(r0.getId()));
+        assertEquals(2, tp.getPendingReferencesCount());
+        assertNull(tp.getReference(HashId.createRandom()));
+
+        assertEquals(TransactionPack.unpack(packedTp).getContract().check(), c1.check());
+        assertTrue(c1.getRevokingItems().contains(r1));
+        checkSimplePack(tp);
+    }
+
+    @Test
+    public void lazySubItemsConcurrently() throws Exception {
+        PrivateKey key = TestKeys.privateKey(0);
+        Contract parent = new Contract(key);
+        parent.seal();
+        Contract contract = parent.createRevision(key);
+        for (int i = 0; i < 20; i++) {
+            Contract n = new Contract(key);
+            n.seal();
+            contract.addNewItems(n);
+        }
+        contract.seal();
+        byte[] packed = contract.getPackedTransaction();
+
+        for (int round = 0; round < 20; round++) {
+            Contract lazy = Contract.fromPackedTransaction(packed, true);
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger failures = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                        // no reader sees the sets while they are being filled
+                        if (lazy.getNewItems().size() != 20 || lazy.getRevokingItems().size() != 1)
+                            failures.incrementAndGet();
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads)
+                thread.join();
+            assertEquals(0, failures.get());
+            Contract eager = Contract.fromPackedTransaction(packed);
+            assertEquals(eager.check(), lazy.check());
+            assertEquals(
+                    eager.getErrors().stream().map(ErrorRecord::toString).collect(Collectors.toList()),
+                    lazy.getErrors().stream().map(ErrorRecord::toString).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void lazyCheckIsTheSame() throws Exception {
+        PrivateKey key = TestKeys.privateKey(0);
+        Contract revision = new Contract(key);
+        HashMap<String, Object> fields = new HashMap<>();
+        fields.put("revision", null);
+        revision.addPermission(new ModifyDataPermission(new RoleLink("@owner", "owner"), Binder.of("fields", fields)));
+        revision.seal();
+        for (int i = 0; i < 10; i++) {
+            revision = revision.createRevision(key);
+            revision.getStateData().set("revision", i);
+            revision.seal();
+        }
+        Contract sibling = new Contract(key);
+        sibling.seal();
+        revision.addNewItems(sibling);
+        revision.seal();
+        byte[] good = revision.getPackedTransaction();
+
+        // the new item changes the state it should not, and the parent is not signed by the owner
+        Contract bad = revision.createRevision();
+        bad.addNewItems(sibling);
+        bad.getStateData().set("foo", "bar");
+        bad.seal();
+        byte[] badPack = bad.getPackedTransaction();
+
+        for (byte[] packed : new byte[][]{good, badPack}) {
+            Contract eager = TransactionPack.unpack(packed).getContract();
+            Contract lazy = TransactionPack.unpack(packed, true, true).getContract();
+            assertEquals(eager.getId(), lazy.getId());
+            assertEquals(eager.check(), lazy.check());
+            assertEquals(
+                    eager.getErrors().stream().map(ErrorRecord::toString).collect(Collectors.toList()),
+                    lazy.getErrors().stream().map(ErrorRecord::toString).collect(Collectors.toList()));
+            assertEquals(eager.getTransactionPack().getReferences().keySet(),
+                    lazy.getTransactionPack().getReferences().keySet());
+        }
+        assertTrue(TransactionPack.unpack(good, true, true).getContract().check());
+        assertFalse(TransactionPack.unpack(badPack, true, true).getContract().check());
+    }
+
+    @Test
+    public void packIsCached() throws Exception {
+        TransactionPack tp = new TransactionPack(c);
+        byte[] packed = tp.pack();
+        assertSame(packed, tp.pack());
+        assertArrayEquals(Boss.pack(tp), packed);
+
+        // received pack is sent on as is, lazy or not
+        assertSame(packed, TransactionPack.unpack(packed).pack());
+        TransactionPack lazy = TransactionPack.unpack(packed, true, true);
+        lazy.getReference(r0.getId());
+        assertSame(packed, lazy.pack());
+
+        tp.addKeys(TestKeys.publicKey(1));
+        byte[] withKeys = tp.pack();
+        assertNotSame(packed, withKeys);
+        assertArrayEquals(Boss.pack(tp), withKeys);
+
+        // resealed reference invalidates the cache, though it is not a good idea to reseal it
+        n0.seal();
+        byte[] resealed = tp.pack();
+        assertNotSame(withKeys, resealed);
+        assertArrayEquals(Boss.pack(tp), resealed);
+        assertSame(resealed, tp.pack());
+
+        Contract extra = new Contract(TestKeys.privateKey(0));
+        extra.seal();
+        tp.addReference(extra);
+        assertEquals(4, TransactionPack.unpack(tp.pack()).getReferences().size());
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Eager and lazy unpacking of the deep revision chain: time to get the contract, time to get and check it, and the
+     * heap held by the unpacked pack.
+     */
+    @Ignore("benchmark, start it manually")
+    @Test
+    public void benchmarkLazyRevisionChain() throws Exception {
+        PrivateKey key = TestKeys.privateKey(0);
+        HashMap<String, Object> fields = new HashMap<>();
+        fields.put("revision", null);
+        for (int depth : new int[]{10, 50, 200}) {
+            Contract revision = new Contract(key);
+            revision.addPermission(new ModifyDataPermission(new RoleLink("@owner", "owner"), Binder.of("fields", fields)));
+            revision.seal();
+            for (int i = 0; i < depth; i++) {
+                revision = revision.createRevision(key);
+                revision.getStateData().set("revision", i);
+                revision.seal();
+            }
+            byte[] packed = revision.getPackedTransaction();
+
+            int repetitions = 5;
+            for (boolean lazy : new boolean[]{false, true, false, true}) {
+                long unpackTime = 0, checkTime = 0;
+                for (int i = 0; i < repetitions; i++) {
+                    long t = System.nanoTime();
+                    Contract c = TransactionPack.unpack(packed, true, lazy).getContract();
+                    unpackTime += System.nanoTime() - t;
+                    assertTrue(c.check());
+                    checkTime += System.nanoTime() - t;
+                }
+                TransactionPack tp = TransactionPack.unpack(packed, true, lazy);
+                long held = usedHeap();
+                assertEquals(revision.getId(), tp.getContract().getId());
+                tp = null;
+                held -= usedHeap();
+                System.out.println(String.format("depth %3d, %5s: unpack %8.2f ms, unpack and check %8.2f ms, " +
+                                "heap held %7d kb",
+                        depth, lazy ? "lazy" : "eager", unpackTime / 1e6 / repetitions,
+                        checkTime / 1e6 / repetitions, held / 1024));
+            }
+        }
+    }
+
+    /**
+     * Repacking the pack of 100 references: from scratch the former way, when nothing is changed, when one reference is
+     * added, and when the main contract is resealed so the new pack is built.
+     */
+    @Ignore("benchmark, start it manually")
+    @Test
+    public void benchmarkRepack() throws Exception {
+        PrivateKey key = TestKeys.privateKey(0);
+        Contract contract = new Contract(key);
+        for (int i = 0; i < 100; i++) {
+            Contract n = new Contract(key);
+            n.seal();
+            contract.addNewItems(n);
+        }
+        contract.seal();
+        TransactionPack tp = contract.getTransactionPack();
+        System.out.println("pack size: " + tp.pack().length);
+        List<Contract> extra = new ArrayList<>();
+        int repetitions = 500;
+        for (int i = 0; i < repetitions; i++) {
+            Contract n = new Contract(key);
+            n.seal();
+            extra.add(n);
+        }
+
+        for (int round = 0; round < 6; round++) {
+            long t = System.nanoTime();
+            for (int i = 0; i < repetitions; i++)
+                Boss.pack(tp);
+            long full = System.nanoTime() - t;
+
+            t = System.nanoTime();
+            for (int i = 0; i < repetitions; i++)
+                contract.getPackedTransaction();
+            long cached = System.nanoTime() - t;
+
+            long added = 0;
+            for (Contract n : extra) {
+                TransactionPack other = new TransactionPack(contract);
+                other.pack();
+                t = System.nanoTime();
+                other.addReference(n);
+                other.pack();
+                added += System.nanoTime() - t;
+            }
+
+            t = System.nanoTime();
+            for (int i = 0; i < repetitions; i++)
+                new TransactionPack(contract).pack();
+            long rebuilt = System.nanoTime() - t;
+
+            System.out.println(String.format("Boss.pack %6.1f us, cached %6.2f us, reference added %6.1f us, " +
+                            "new pack %6.1f us",
+                    full / 1e3 / repetitions, cached / 1e3 / repetitions, added / 1e3 / repetitions,
+                    rebuilt / 1e3 / repetitions));
+        }
+    }
+
     public void checkSimplePack(TransactionPack tp) {
         assertEquals(3, tp.getReferences().size());
         assertEquals(c.getId(), tp.getContract().getId());
@@ -0,0 +1,159 @@
+package com.icodici.universa.contract.roles;
+
+import com.icodici.crypto.AbstractKey;
+import com.icodici.crypto.EncryptionError;
+import com.icodici.crypto.PrivateKey;
+import com.icodici.crypto.PublicKey;
+import com.icodici.universa.contract.Contract;
+import com.icodici.universa.contract.KeyRecord;
+import com.icodici.universa.node.network.TestKeys;
+import net.sergeych.tools.StopWatch;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoleEvaluatorTest {
+
+    static final int QUORUM_KEYS = 24;
+
+    static List<PrivateKey> keys = new ArrayList<>();
+
+    static {
+        for (int i = 0; i < QUORUM_KEYS; i++)
+            try {
+                keys.add(TestKeys.privateKey(i));
+            } catch (EncryptionError encryptionError) {
+                encryptionError.printStackTrace();
+            }
+    }
+
+    /**
+     * Quorum role of all test keys, every third sub-role is anonymized.
+     */
+    private static ListRole quorumRole(String name, int quorum) {
+        List<Role> subRoles = new ArrayList<>();
+        for (int i = 0; i < QUORUM_KEYS; i++) {
+            SimpleRole r = new SimpleRole("key" + i, new KeyRecord(keys.get(i).getPublicKey()));
+            if (i % 3 == 0)
+                r.anonymize();
+            subRoles.add(r);
+        }
+        return new ListRole(name, quorum, subRoles);
+    }
+
+    private static Set<PublicKey> publicKeys(int from, int to) {
+        Set<PublicKey> result = new HashSet<>();
+        for (int i = from; i < to; i++)
+            result.add(keys.get(i).getPublicKey());
+        return result;
+    }
+
+    @Test
+    public void sameVerdictsAsRoles() throws Exception {
+        ListRole quorum = quorumRole("quorum", 16);
+        ListRole all = new ListRole("all", ListRole.Mode.ALL, new ArrayList<>(quorum.getRoles()));
+        ListRole any = new ListRole("any", ListRole.Mode.ANY, new ArrayList<>(quorum.getRoles()));
+
+        for (int n : new int[]{0, 1, 15, 16, QUORUM_KEYS}) {
+            Set<PublicKey> signers = publicKeys(0, n);
+            RoleEvaluator evaluator = new RoleEvaluator(signers);
+            for (Role r : new Role[]{quorum, all, any}) {
+                assertEquals(r.toString() + " with " + n + " keys", r.isAllowedForKeys(signers), evaluator.isAllowed(r));
+                // memoised verdict is the same
+                assertEquals(r.isAllowedForKeys(signers), evaluator.isAllowed(r));
+            }
+        }
+        assertTrue(new RoleEvaluator(publicKeys(0, 16)).isAllowed(quorum));
+        assertFalse(new RoleEvaluator(publicKeys(1, 16)).isAllowed(quorum));
+        assertFalse(new RoleEvaluator(publicKeys(0, 16)).isAllowed(null));
+    }
+
+    @Test
+    public void privateKeysAndAnonymousIds() throws Exception {
+        SimpleRole role = new SimpleRole("anon", new KeyRecord(keys.get(3).getPublicKey()));
+        role.anonymize();
+        Set<AbstractKey> signers = new HashSet<>();
+        signers.add(keys.get(3));
+        RoleEvaluator evaluator = new RoleEvaluator(signers);
+        assertTrue(evaluator.isAllowed(role));
+        assertTrue(evaluator.hasKey(keys.get(3).getPublicKey()));
+        assertFalse(evaluator.hasKey(keys.get(4).getPublicKey()));
+        assertFalse(new RoleEvaluator(publicKeys(4, 6)).isAllowed(role));
+    }
+
+    @Test
+    public void resolvesLinks() throws Exception {
+        Contract c = new Contract(keys.get(0));
+        ListRole quorum = quorumRole("signers", 2);
+        c.registerRole(quorum);
+        RoleLink link = new RoleLink("link", "signers");
+        c.registerRole(link);
+        assertTrue(new RoleEvaluator(publicKeys(5, 7)).isAllowed(link));
+        assertFalse(new RoleEvaluator(publicKeys(5, 6)).isAllowed(link));
+    }
+
+    @Test
+    public void contractWithQuorumIssuer() throws Exception {
+        Contract c = createQuorumContract(16, 16);
+        assertTrue(c.check());
+
+        c = createQuorumContract(16, 15);
+        assertFalse(c.check());
+    }
+
+    private static Contract createQuorumContract(int quorum, int signers) {
+        Contract c = new Contract(keys.get(0));
+        // creator and owner are links to the issuer
+        c.registerRole(quorumRole("issuer", quorum));
+        for (int i = 1; i < signers; i++)
+            c.addSignerKey(keys.get(i));
+        c.seal();
+        return c;
+    }
+
+    @Ignore("benchmark, start it manually")
+    @Test
+    public void benchmarkQuorumRoles() throws Exception {
+        int repetitions = 200;
+        // isSignedBy, permissions and references typically evaluate the same role several times per check
+        int checksPerContract = 8;
+        ListRole quorum = quorumRole("quorum", 16);
+        Set<PublicKey> signers = publicKeys(0, 16);
+
+        // warm up
+        for (int i = 0; i < 20; i++) {
+            quorum.isAllowedForKeys(signers);
+            new RoleEvaluator(signers).isAllowed(quorum);
+        }
+
+        long direct = StopWatch.measure(() -> {
+            for (int i = 0; i < repetitions; i++)
+                for (int j = 0; j < checksPerContract; j++)
+                    assertTrue(quorum.isAllowedForKeys(signers));
+        });
+        long evaluated = StopWatch.measure(() -> {
+            for (int i = 0; i < repetitions; i++) {
+                RoleEvaluator evaluator = new RoleEvaluator(signers);
+                for (int j = 0; j < checksPerContract; j++)
+                    assertTrue(evaluator.isAllowed(quorum));
+            }
+        });
+        System.out.println("quorum 16 of " + QUORUM_KEYS + ", " + repetitions + " contracts x " + checksPerContract +
+                " checks: direct " + direct + "ms, evaluator " + evaluated + "ms");
+
+        Contract c = createQuorumContract(16, QUORUM_KEYS);
+        long checks = StopWatch.measure(() -> {
+            for (int i = 0; i < repetitions; i++)
+                assertTrue(c.check());
+        });
+        System.out.println("contract with quorum issuer, " + repetitions + " checks: " + checks + "ms");
+    }
+}
@@ -4,14 +4,26 @@ import com.icodici.crypto.digest.Gost3411_2012_256;
 import com.icodici.crypto.digest.Sha3_256;
 import com.icodici.crypto.digest.Sha512_256;
 import com.icodici.universa.HashId;
+import com.icodici.universa.HashIdMap;
 import net.sergeych.tools.Do;
+import net.sergeych.tools.StopWatch;
 import net.sergeych.utils.Base64;
 import net.sergeych.utils.Base64u;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.Assert.*;
@@ -84,4 +96,118 @@ HashIdTest {
 //        System.out.println("src: "+ Base64.encodeString(src));
 //        System.out.println("hid: "+ Base64.encodeString(hid));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void parallelAndStreamingDigest() throws Exception {
+        for (int size : new int[]{0, 1000, HashId.CompositeDigest.DEFAULT_PARALLEL_THRESHOLD, 3 * 1024 * 1024 + 17}) {
+            byte[] src = Do.randomBytes(size);
+            byte[] sequential = new HashId.CompositeDigest(Integer.MAX_VALUE).digest(src);
+            assertArrayEquals(sequential, HashId.of(src).getDigest());
+            assertArrayEquals(sequential, HashId.of(new ByteArrayInputStream(src)).getDigest());
+
+            Path file = Files.createTempFile("hashid", ".bin");
+            try {
+                Files.write(file, src);
+                assertEquals(HashId.of(src), HashId.of(file));
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Ignore("benchmark, start it manually")
+    @Test
+    public void benchmarkCompositeDigest() throws Exception {
+        for (int size : new int[]{1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024, 10 * 1024 * 1024}) {
+            byte[] src = Do.randomBytes(size);
+            int repetitions = Math.max(3, 50 * 1024 * 1024 / size);
+            for (int warmup = 0; warmup < 2; warmup++) {
+                new HashId.CompositeDigest(Integer.MAX_VALUE).digest(src);
+                HashId.of(src);
+            }
+            long sequential = StopWatch.measure(() -> {
+                for (int i = 0; i < repetitions; i++)
+                    new HashId.CompositeDigest(Integer.MAX_VALUE).digest(src);
+            });
+            long parallel = StopWatch.measure(() -> {
+                for (int i = 0; i < repetitions; i++)
+                    HashId.of(src);
+            });
+            System.out.println(String.format("%8d bytes x %5d: sequential %5dms, parallel %5dms",
+                    size, repetitions, sequential, parallel));
+        }
+    }
+
+    @Test
+    public void hashIdMap() throws Exception {
+        HashIdMap<Integer> map = new HashIdMap<>();
+        Map<HashId, Integer> expected = new HashMap<>();
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            HashId id = HashId.createRandom();
+            ids.add(id);
+            assertNull(map.put(id, i));
+            expected.put(id, i);
+        }
+        assertEquals(1000, map.size());
+        assertEquals(Integer.valueOf(7), map.put(HashId.withDigest(ids.get(7).getDigest()), 77));
+        expected.put(ids.get(7), 77);
+
+        // remove every third to exercise backward shifting
+        for (int i = 0; i < ids.size(); i += 3) {
+            assertEquals(expected.remove(ids.get(i)), map.remove(ids.get(i)));
+            assertNull(map.remove(ids.get(i)));
+        }
+        assertEquals(expected.size(), map.size());
+        for (HashId id : ids)
+            assertEquals(expected.get(id), map.get(HashId.withDigest(id.getDigest())));
+        assertEquals(expected.size(), map.keys().size());
+        map.forEach((k, v) -> assertEquals(expected.get(k), v));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(ids.get(1)));
+    }
+
+    @Ignore("benchmark, start it manually")
+    @Test
+    public void benchmarkHashIdMap() throws Exception {
+        int threads = 8;
+        int lookups = 2000000;
+        HashId[] ids = new HashId[10000];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = HashId.of(Do.randomBytes(64));
+        // lookups are done with equal but not the same instances, as it happens in the node
+        HashId[] keys = new HashId[ids.length];
+        for (int i = 0; i < ids.length; i++)
+            keys[i] = HashId.withDigest(ids[i].getDigest());
+
+        ConcurrentHashMap<HashId, HashId> chm = new ConcurrentHashMap<>();
+        HashIdMap<HashId> him = new HashIdMap<>();
+        for (HashId id : ids) {
+            chm.put(id, id);
+            him.put(id, id);
+        }
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        for (int round = 0; round < 3; round++) {
+            long t1 = StopWatch.measure(() -> runLookups(es, threads, lookups, keys, k -> chm.get(k)));
+            long t2 = StopWatch.measure(() -> runLookups(es, threads, lookups, keys, k -> him.get(k)));
+            System.out.println("" + threads + " threads x " + lookups + " lookups: ConcurrentHashMap " + t1 +
+                    "ms, HashIdMap " + t2 + "ms");
+        }
+        es.shutdown();
+    }
+
+    private static void runLookups(ExecutorService es, int threads, int lookups, HashId[] keys,
+                                   java.util.function.Function<HashId, HashId> getter) throws Exception {
+        List<Future<?>> ff = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            ff.add(es.submit(() -> {
+                for (int i = 0; i < lookups; i++)
+                    assertNotNull(getter.apply(keys[i % keys.length]));
+            }));
+        }
+        for (Future<?> f : ff)
+            f.get();
+    }
+}
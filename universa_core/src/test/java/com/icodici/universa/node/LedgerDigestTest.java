@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Do;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LedgerDigestTest extends TestCase {
+    private static final int[] ALL_NODES = new int[2 * LedgerDigest.BUCKETS - 1];
+
+    static {
+        for (int i = 0; i < ALL_NODES.length; i++)
+            ALL_NODES[i] = i + 1;
+    }
+
+    private Path directory;
+    private List<Ledger> ledgers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("digest");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ledgers.forEach(Ledger::close);
+        Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> {
+            try {
+                Files.delete(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private MappedLedger mappedLedger(String name) throws Exception {
+        MappedLedger ledger = new MappedLedger(directory.resolve(name).toString());
+        ledgers.add(ledger);
+        return ledger;
+    }
+
+    private SqliteLedger sqliteLedger(String name) throws Exception {
+        SqliteLedger ledger = new SqliteLedger("jdbc:sqlite:" + directory.resolve(name));
+        ledgers.add(ledger);
+        return ledger;
+    }
+
+    /**
+     * Create the records of the ids in the various states, then change and destroy some of them.
+     */
+    private void fill(Ledger ledger, List<HashId> ids) {
+        ItemState[] states = {ItemState.APPROVED, ItemState.REVOKED, ItemState.DECLINED, ItemState.PENDING};
+        ledger.transaction(() -> {
+            for (int i = 0; i < ids.size(); i++) {
+                StateRecord r = ledger.findOrCreate(ids.get(i));
+                r.setState(states[i % states.length]);
+                r.save();
+            }
+            return null;
+        });
+        for (int i = 0; i < ids.size(); i += 7) {
+            StateRecord r = ledger.getRecord(ids.get(i));
+            if (i % 2 == 0)
+                r.destroy();
+            else {
+                r.setState(ItemState.REVOKED);
+                r.save();
+            }
+        }
+    }
+
+    private static List<HashId> randomIds(int count) {
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            ids.add(HashId.withDigest(Do.randomNegativeBytes(64)));
+        return ids;
+    }
+
+    @Test
+    public void bucketRanges() throws Exception {
+        for (HashId id : randomIds(1000)) {
+            int bucket = LedgerDigest.bucketOf(id);
+            assertTrue(compareUnsigned(id.getDigest(), LedgerDigest.bucketStart(bucket)) >= 0);
+            if (bucket < LedgerDigest.BUCKETS - 1)
+                assertTrue(compareUnsigned(id.getDigest(), LedgerDigest.bucketStart(bucket + 1)) < 0);
+        }
+        assertEquals(0, LedgerDigest.bucketOf(HashId.withDigest(LedgerDigest.bucketStart(0))));
+        assertEquals(LedgerDigest.BUCKETS - 1,
+                LedgerDigest.bucketOf(HashId.withDigest(LedgerDigest.bucketStart(LedgerDigest.BUCKETS - 1))));
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int d = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (d != 0)
+                return d;
+        }
+        return a.length - b.length;
+    }
+
+    @Test
+    public void sameRecordsSameDigest() throws Exception {
+        List<HashId> ids = randomIds(3000);
+        Ledger mapped = mappedLedger("mapped");
+        Ledger sqlite = sqliteLedger("sqlite.db");
+        fill(mapped, ids);
+        fill(sqlite, ids);
+
+        long[] expected = mapped.getDigest().getNodes(ALL_NODES);
+        assertNotEquals(0, expected[0]);
+        assertArrayEquals(expected, sqlite.getDigest().getNodes(ALL_NODES));
+
+        // pending records are not taken into account
+        mapped.findOrCreate(HashId.createRandom());
+        assertArrayEquals(expected, mapped.getDigest().getNodes(ALL_NODES));
+
+        // rebuilt on opening
+        ledgers.forEach(Ledger::close);
+        ledgers.clear();
+        assertArrayEquals(expected, mappedLedger("mapped").getDigest().getNodes(ALL_NODES));
+        assertArrayEquals(expected, sqliteLedger("sqlite.db").getDigest().getNodes(ALL_NODES));
+    }
+
+    @Test
+    public void findDifferingRecord() throws Exception {
+        List<HashId> ids = randomIds(2000);
+        Ledger mapped = mappedLedger("mapped");
+        Ledger sqlite = sqliteLedger("sqlite.db");
+        fill(mapped, ids);
+        fill(sqlite, ids);
+        // load all the buckets before the change, so the one of the changed record is reloaded
+        sqlite.getDigest().getNodes(new int[]{1});
+
+        HashId changed = ids.get(1);
+        StateRecord r = sqlite.getRecord(changed);
+        assertEquals(ItemState.REVOKED, r.getState());
+        r.setState(ItemState.APPROVED);
+        r.save();
+
+        long[] a = mapped.getDigest().getNodes(ALL_NODES);
+        long[] b = sqlite.getDigest().getNodes(ALL_NODES);
+        int bucket = LedgerDigest.bucketOf(changed);
+        for (int n = LedgerDigest.BUCKETS + bucket; n > 0; n >>= 1) {
+            assertNotEquals(a[n - 1], b[n - 1]);
+            a[n - 1] = b[n - 1];
+        }
+        assertArrayEquals(a, b);
+
+        Map<HashId, ItemState> expected = mapped.getDigest().getBucket(bucket);
+        Map<HashId, ItemState> actual = sqlite.getDigest().getBucket(bucket);
+        assertEquals(ItemState.REVOKED, expected.get(changed));
+        assertEquals(ItemState.APPROVED, actual.get(changed));
+        actual.put(changed, ItemState.REVOKED);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void sameBuckets() throws Exception {
+        List<HashId> ids = randomIds(2000);
+        Ledger mapped = mappedLedger("mapped");
+        Ledger sqlite = sqliteLedger("sqlite.db");
+        fill(mapped, ids);
+        fill(sqlite, ids);
+        for (int i = 0; i < ids.size(); i += 50) {
+            int bucket = LedgerDigest.bucketOf(ids.get(i));
+            assertEquals(sqlite.getDigest().getBucket(bucket), mapped.getDigest().getBucket(bucket));
+        }
+
+        // the buckets of the slots are rebuilt on opening
+        mapped.close();
+        mapped = mappedLedger("mapped");
+        for (int i = 0; i < ids.size(); i += 50) {
+            int bucket = LedgerDigest.bucketOf(ids.get(i));
+            assertEquals(sqlite.getDigest().getBucket(bucket), mapped.getDigest().getBucket(bucket));
+        }
+    }
+
+    @Test
+    public void sqliteDigestIsUpdatedWithoutReloads() throws Exception {
+        List<HashId> ids = randomIds(2000);
+        SqliteLedger sqlite = sqliteLedger("sqlite.db");
+        fill(sqlite, ids.subList(0, 1000));
+        LedgerDigest digest = sqlite.getDigest();
+        digest.getNodes(ALL_NODES);
+        long built = digest.getReloadedBuckets();
+
+        fill(sqlite, ids.subList(1000, 2000));
+        List<StateRecord> imported = new ArrayList<>();
+        for (HashId id : randomIds(100)) {
+            StateRecord r = new StateRecord(id);
+            r.setState(ItemState.APPROVED);
+            imported.add(r);
+        }
+        // the existing one is skipped
+        StateRecord existing = new StateRecord(ids.get(1));
+        existing.setState(ItemState.DECLINED);
+        imported.add(existing);
+        sqlite.importRecords(imported);
+        long[] updated = digest.getNodes(ALL_NODES);
+        assertEquals(built, digest.getReloadedBuckets());
+
+        // the rolled back changes are not known, their buckets are reloaded
+        sqlite.enableCache(false);
+        sqlite.transaction(() -> {
+            StateRecord r = sqlite.getRecord(ids.get(2));
+            r.setState(ItemState.REVOKED);
+            r.save();
+            throw new Ledger.Rollback();
+        });
+        assertArrayEquals(updated, digest.getNodes(ALL_NODES));
+        assertEquals(built + 1, digest.getReloadedBuckets());
+
+        ledgers.forEach(Ledger::close);
+        ledgers.clear();
+        assertArrayEquals(updated, sqliteLedger("sqlite.db").getDigest().getNodes(ALL_NODES));
+    }
+}
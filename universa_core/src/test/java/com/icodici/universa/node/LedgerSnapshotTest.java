@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import net.sergeych.boss.Boss;
+import net.sergeych.tools.Binder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LedgerSnapshotTest extends TestCase {
+    private Path directory;
+    private List<Ledger> ledgers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("snapshot");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ledgers.forEach(Ledger::close);
+        Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> {
+            try {
+                Files.delete(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private MappedLedger mappedLedger(String name) throws Exception {
+        MappedLedger ledger = new MappedLedger(directory.resolve(name).toString());
+        ledger.enableCache(false);
+        ledgers.add(ledger);
+        return ledger;
+    }
+
+    private SqliteLedger sqliteLedger(String name) throws Exception {
+        SqliteLedger ledger = new SqliteLedger("jdbc:sqlite:" + directory.resolve(name));
+        ledger.enableCache(false);
+        ledgers.add(ledger);
+        return ledger;
+    }
+
+    /**
+     * @return records of the ledger filled with 2500 approved records, one of them locked by the pending one, and one
+     * expired
+     */
+    private List<StateRecord> fill(Ledger ledger) throws Exception {
+        List<StateRecord> records = new ArrayList<>();
+        ledger.transaction(() -> {
+            for (int i = 0; i < 2500; i++) {
+                StateRecord r = ledger.findOrCreate(HashId.createRandom());
+                r.setState(ItemState.APPROVED);
+                r.save();
+                records.add(r);
+            }
+            return null;
+        });
+        StateRecord owner = ledger.findOrCreate(HashId.createRandom());
+        owner.lockToRevoke(records.get(10).getId());
+        records.get(10).reload();
+        records.add(owner);
+        StateRecord expired = records.remove(20);
+        expired.setExpiresAt(ZonedDateTime.now().minusHours(1));
+        expired.save();
+        return records;
+    }
+
+    private void checkCopy(List<StateRecord> records, Ledger copy) throws Exception {
+        assertEquals(records.size(), copy.countRecords());
+        for (StateRecord r : records) {
+            StateRecord c = copy.getRecord(r.getId());
+            assertEquals(r.getState(), c.getState());
+            assertAlmostSame(r.getCreatedAt(), c.getCreatedAt());
+            assertAlmostSame(r.getExpiresAt(), c.getExpiresAt());
+        }
+        StateRecord locked = copy.getRecord(records.get(10).getId());
+        assertEquals(ItemState.LOCKED, locked.getState());
+        assertEquals(records.get(records.size() - 1).getId(), copy.getLockOwnerOf(locked).getId());
+    }
+
+    private byte[] export(Ledger ledger, long expectedCount) throws IOException {
+        assertTrue(ledger.canExportRecords());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(expectedCount, LedgerSnapshot.write(ledger, out, getNodeKey(0)));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void mappedToSqlite() throws Exception {
+        Ledger source = mappedLedger("source");
+        List<StateRecord> records = fill(source);
+        byte[] snapshot = export(source, records.size() + 1);
+
+        Ledger copy = sqliteLedger("copy.db");
+        assertEquals(records.size() + 1, LedgerSnapshot.read(new ByteArrayInputStream(snapshot), copy,
+                getNodePublicKey(0)));
+        checkCopy(records, copy);
+    }
+
+    @Test
+    public void sqliteToMapped() throws Exception {
+        Ledger source = sqliteLedger("source.db");
+        List<StateRecord> records = fill(source);
+        byte[] snapshot = export(source, records.size() + 1);
+
+        Ledger copy = mappedLedger("copy");
+        // existing records are kept
+        StateRecord existing = copy.findOrCreate(records.get(0).getId());
+        assertEquals(records.size() + 1, LedgerSnapshot.read(new ByteArrayInputStream(snapshot), copy,
+                getNodePublicKey(0)));
+        assertEquals(ItemState.PENDING, copy.getRecord(existing.getId()).getState());
+        existing.setState(ItemState.APPROVED);
+        existing.save();
+        checkCopy(records, copy);
+    }
+
+    @Test
+    public void damagedSnapshot() throws Exception {
+        Ledger source = mappedLedger("source");
+        List<StateRecord> records = fill(source);
+        byte[] snapshot = export(source, records.size() + 1);
+
+        byte[] damaged = snapshot.clone();
+        damaged[damaged.length / 2] ^= 0x55;
+        assertThrows(IOException.class, () ->
+                LedgerSnapshot.read(new ByteArrayInputStream(damaged), mappedLedger("damaged"),
+                        getNodePublicKey(0)));
+
+        byte[] truncated = Arrays.copyOf(snapshot, snapshot.length - 100);
+        assertThrows(IOException.class, () ->
+                LedgerSnapshot.read(new ByteArrayInputStream(truncated), mappedLedger("truncated"),
+                        getNodePublicKey(0)));
+
+        assertThrows(IOException.class, () ->
+                LedgerSnapshot.read(new ByteArrayInputStream(new byte[0]), mappedLedger("empty"),
+                        getNodePublicKey(0)));
+    }
+
+    @Test
+    public void signedSnapshot() throws Exception {
+        Ledger source = mappedLedger("source");
+        List<StateRecord> records = fill(source);
+        byte[] snapshot = export(source, records.size() + 1);
+
+        assertEquals(records.size() + 1,
+                LedgerSnapshot.verify(new ByteArrayInputStream(snapshot), getNodePublicKey(0)));
+        assertThrows(IOException.class, () ->
+                LedgerSnapshot.verify(new ByteArrayInputStream(snapshot), getNodePublicKey(1)));
+
+        // the records of the other snapshot, with the valid chunk digests, under the same signature
+        Ledger other = mappedLedger("other");
+        fill(other);
+        List<Object> forged = readObjects(export(other, records.size() + 1));
+        List<Object> signed = readObjects(snapshot);
+        forged.set(forged.size() - 1, signed.get(signed.size() - 1));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Boss.Writer writer = new Boss.Writer(out);
+        writer.setStreamMode();
+        for (Object x : forged)
+            writer.writeObject(x);
+        writer.flush();
+        assertThrows(IOException.class, () ->
+                LedgerSnapshot.verify(new ByteArrayInputStream(out.toByteArray()), getNodePublicKey(0)));
+        // while the snapshot itself is rewritten well
+        out.reset();
+        writer = new Boss.Writer(out);
+        writer.setStreamMode();
+        for (Object x : signed)
+            writer.writeObject(x);
+        writer.flush();
+        assertEquals(records.size() + 1,
+                LedgerSnapshot.verify(new ByteArrayInputStream(out.toByteArray()), getNodePublicKey(0)));
+    }
+
+    private static List<Object> readObjects(byte[] snapshot) throws IOException {
+        Boss.Reader reader = new Boss.Reader(new ByteArrayInputStream(snapshot));
+        List<Object> objects = new ArrayList<>();
+        while (true) {
+            Object x = reader.read();
+            objects.add(x);
+            if (((Binder) x).containsKey("count"))
+                return objects;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import com.icodici.universa.HashId;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class MappedLedgerTest extends LedgerTestBase<MappedLedger> {
+    private Path directory;
+
+    @Override
+    protected MappedLedger createLedger() throws Exception {
+        directory = Files.createTempDirectory("mappedledger");
+        return new MappedLedger(directory.toString());
+    }
+
+    @Override
+    protected void enableCache(boolean enable) {
+        ledger.enableCache(enable);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ledger.close();
+        Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> {
+            try {
+                Files.delete(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private MappedLedger reopenLedger() throws IOException {
+        ledger.close();
+        ledger = new MappedLedger(directory.toString());
+        ledger.enableCache(false);
+        return ledger;
+    }
+
+    @Test
+    public void countRecords() throws Exception {
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        assertEquals(1, ledger.countRecords());
+        r.destroy();
+        assertEquals(0, ledger.countRecords());
+    }
+
+    @Test
+    public void rollbackCreation() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        HashId created = HashId.createRandom();
+        Object y = ledger.transaction(() -> {
+            r1.setState(ItemState.REVOKED);
+            r1.save();
+            assertNotNull(ledger.findOrCreate(created));
+            throw new Ledger.Rollback();
+        });
+        assertNull(y);
+        r1.reload();
+        assertEquals(ItemState.PENDING, r1.getState());
+        assertNull(ledger.getRecord(created));
+        assertEquals(1, ledger.countRecords());
+    }
+
+    @Test
+    public void transactionSeesOwnChanges() throws Exception {
+        StateRecord changed = ledger.findOrCreate(HashId.createRandom());
+        StateRecord destroyed = ledger.findOrCreate(HashId.createRandom());
+        StateRecord copy = ledger.getRecord(changed.getId());
+        ledger.transaction(() -> {
+            changed.setState(ItemState.APPROVED);
+            changed.save();
+            destroyed.destroy();
+            assertEquals(ItemState.APPROVED, ledger.getRecord(changed.getId()).getState());
+            assertNull(ledger.getRecord(destroyed.getId()));
+            copy.reload();
+            assertEquals(ItemState.APPROVED, copy.getState());
+            throw new Ledger.Rollback();
+        });
+        // others and the rolled back transaction see the committed state
+        assertEquals(ItemState.PENDING, ledger.getRecord(changed.getId()).getState());
+        assertNotNull(ledger.getRecord(destroyed.getId()));
+    }
+
+    @Test
+    public void reusedSlotIsNotLockOwner() throws Exception {
+        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
+        existing.approve();
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        r.lockToRevoke(existing.getId());
+        existing.reload();
+        assertSameRecords(r, ledger.getLockOwnerOf(existing));
+
+        // the slot of the destroyed owner is reused, but the new record is not the owner
+        r.destroy();
+        StateRecord next = ledger.findOrCreate(HashId.createRandom());
+        assertEquals((int) r.getRecordId(), (int) next.getRecordId());
+        assertNotEquals(r.getRecordId(), next.getRecordId());
+        assertNull(ledger.getLockOwnerOf(existing));
+    }
+
+    @Test
+    public void cleanup() throws Exception {
+        List<HashId> expired = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            if (i % 2 == 0) {
+                r.setExpiresAt(ZonedDateTime.now().minusMinutes(i + 1));
+                r.save();
+                expired.add(r.getId());
+            }
+        }
+        ledger.cleanup();
+        assertEquals(5, ledger.countRecords());
+        reopenLedger();
+        assertEquals(5, ledger.countRecords());
+        for (HashId id : expired)
+            assertNull(ledger.getRecord(id));
+    }
+
+    @Test
+    public void reopenAndRecover() throws Exception {
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            if (i % 3 == 0)
+                r.approve();
+            records.add(r);
+        }
+        for (int i = 0; i < 1000; i += 10)
+            records.get(i).destroy();
+
+        reopenLedger();
+        assertEquals(900, ledger.countRecords());
+        for (int i = 0; i < records.size(); i++) {
+            StateRecord r = records.get(i);
+            StateRecord loaded = ledger.getRecord(r.getId());
+            if (i % 10 == 0)
+                assertNull(loaded);
+            else
+                assertSameRecords(r, loaded);
+        }
+        // freed slots are reused
+        ledger.findOrCreate(HashId.createRandom());
+        assertEquals(901, ledger.countRecords());
+    }
+
+    @Test
+    public void replayLog() throws Exception {
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            records.add(ledger.findOrCreate(HashId.createRandom()));
+        records.get(0).approve();
+        records.get(1).destroy();
+        // the log is all that survives the crash, and its last batch is torn
+        byte[] log = Files.readAllBytes(directory.resolve("wal"));
+        ledger.close();
+        Files.delete(directory.resolve("records"));
+        Files.write(directory.resolve("wal"), Arrays.copyOf(log, log.length + 10));
+
+        ledger = new MappedLedger(directory.toString());
+        ledger.enableCache(false);
+        assertEquals(99, ledger.countRecords());
+        assertEquals(ItemState.APPROVED, ledger.getRecord(records.get(0).getId()).getState());
+        assertNull(ledger.getRecord(records.get(1).getId()));
+        for (int i = 2; i < records.size(); i++)
+            assertSameRecords(records.get(i), ledger.getRecord(records.get(i).getId()));
+        assertEquals(0, Files.size(directory.resolve("wal")));
+    }
+
+    @Test
+    public void concurrentCreation() throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        HashId[] ids = new HashId[200];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = HashId.createRandom();
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int n = 0; n < 8; n++)
+            futures.add(es.submit(() -> {
+                long sum = 0;
+                for (HashId id : ids)
+                    sum += ledger.findOrCreate(id).getRecordId();
+                return sum;
+            }));
+        long sum = futures.get(0).get();
+        for (Future<Long> f : futures)
+            assertEquals(sum, (long) f.get());
+        es.shutdown();
+        assertEquals(ids.length, ledger.countRecords());
+        assertTrue(ledger.getMetrics().getStats().getBinderOrThrow("counters").getLongOrThrow("ledger.walSyncs") <= ids.length * 8);
+    }
+}
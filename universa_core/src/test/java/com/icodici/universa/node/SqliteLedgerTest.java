@@ -1,51 +1,35 @@
 package com.icodici.universa.node;
 
 import com.icodici.universa.HashId;
-import net.sergeych.tools.Do;
 import net.sergeych.tools.StopWatch;
-import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.File;
-import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
-@Ignore("some methods are outdated")
-public class SqliteLedgerTest extends TestCase {
-    private SqliteLedger ledger;
+public class SqliteLedgerTest extends LedgerTestBase<SqliteLedger> {
 
-    @Before
-    public void setUp() throws Exception {
+    @Override
+    protected SqliteLedger createLedger() throws Exception {
         new File("testledger").delete();
-        ledger = new SqliteLedger("jdbc:sqlite:testledger");
-        ledger.enableCache(false);
+        new File("testledger-wal").delete();
+        new File("testledger-shm").delete();
+        return new SqliteLedger("jdbc:sqlite:testledger");
     }
 
-    @Test
-    public void checkNegatoveBytesInId() throws Exception {
-        HashId id = HashId.withDigest(Do.randomNegativeBytes(64));
-        StateRecord r1 = ledger.findOrCreate(id);
-        r1.setState(ItemState.DECLINED);
-        r1.save();
-        StateRecord r2 = ledger.getRecord(id);
-        assertNotNull(r2);
-        assertNotSame(r1, r2);
-        assertEquals(r1.getState(), r2.getState());
-
-        ledger.enableCache(true);
-        StateRecord r3 = ledger.getRecord(id);
-        StateRecord r4 = ledger.getRecord(id);
-        assertEquals(r3.toString(), r4.toString());
-        // why?
-        assertSame(r3, r4);
+    @Override
+    protected void enableCache(boolean enable) {
+        ledger.enableCache(enable);
     }
 
 //    @Test
@@ -91,179 +75,96 @@ public class SqliteLedgerTest extends TestCase {
     }
 
     @Test
-    public void createOutputLockRecord() throws Exception {
-        ledger.enableCache(true);
-        StateRecord owner = ledger.findOrCreate(HashId.createRandom());
-        StateRecord other = ledger.findOrCreate(HashId.createRandom());
-
-        HashId id = HashId.createRandom();
-        StateRecord r1 = owner.createOutputLockRecord(id);
-        r1.reload();
-        assertEquals(id, r1.getId());
-        assertEquals(ItemState.LOCKED_FOR_CREATION, r1.getState());
-        assertEquals(owner.getRecordId(), r1.getLockedByRecordId());
-        StateRecord r2 = owner.createOutputLockRecord(id);
-        assertSame(r2, r1);
-        assertNull(owner.createOutputLockRecord(other.getId()));
-        // And hacked low level operation must fail too
-        assertNull(ledger.createOutputLockRecord(owner.getRecordId(), other.getId()));
+    public void countRecords() throws Exception {
+        ledger.findOrCreate(HashId.createRandom());
+        ledger.findOrCreate(HashId.createRandom());
+        assertEquals(2, ledger.countRecords());
     }
 
     @Test
-    public void findOrCreateAndGet() throws Exception {
-        // Atomic new record creation
-        HashId id = HashId.createRandom();
-        StateRecord r = ledger.findOrCreate(id);
-        assertNotNull(r);
-        assertEquals(id, r.getId());
-        assertEquals(ItemState.PENDING, r.getState());
-        assertAlmostSame(ZonedDateTime.now(), r.getCreatedAt());
-
-        // returning existing record
-        StateRecord r1 = ledger.findOrCreate(id);
-        assertSameRecords(r, r1);
-
-        StateRecord r2 = ledger.getRecord(id);
-        assertSameRecords(r, r2);
-
-        StateRecord r3 = ledger.getRecord(HashId.createRandom());
-        assert (r3 == null);
-    }
-
-
-    @Test
-    public void saveAndTransaction() throws Exception {
+    public void readWhileWriting() throws Exception {
         StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
-        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
-        int x = ledger.transaction(() -> {
+        CountDownLatch written = new CountDownLatch(1);
+        CountDownLatch read = new CountDownLatch(1);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Future<?> writer = es.submit(() -> ledger.transaction(() -> {
             r1.setState(ItemState.APPROVED);
-            r2.setState(ItemState.DECLINED);
             r1.save();
-            r2.save();
-            return 5;
-        });
-        assertEquals(5, x);
-        r1.reload();
-        StateRecord r3 = ledger.getRecord(r1.getId());
-        assertEquals(ItemState.APPROVED, r1.getState());
-        assertEquals(ItemState.APPROVED, r3.getState());
-        r2.reload();
-        assertEquals(ItemState.DECLINED, r2.getState());
-        Object y = ledger.transaction(() -> {
-            r1.setState(ItemState.REVOKED);
-            r2.setState(ItemState.DISCARDED);
-            r1.save();
-            r2.save();
-            throw new Ledger.Rollback();
-        });
-        assert (y == null);
-        r1.reload();
-        assertEquals(ItemState.APPROVED, r1.getState());
-        r2.reload();
-        assertEquals(ItemState.DECLINED, r2.getState());
-    }
-
-    @Test
-    public void approve() throws Exception {
-        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
-        assertFalse(r1.isApproved());
-        r1.approve();
-        assertEquals(ItemState.APPROVED, r1.getState());
-        assert (r1.isApproved());
-        r1.reload();
-        assert (r1.isApproved());
-        assertThrows(IllegalStateException.class, () -> {
-            r1.approve();
+            // the writing thread sees its own changes
+            assertEquals(ItemState.APPROVED, ledger.getRecord(r1.getId()).getState());
+            written.countDown();
+            assertTrue(read.await(5, TimeUnit.SECONDS));
             return null;
-        });
+        }));
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        // others are not blocked by the transaction and see the committed state
+        assertEquals(ItemState.PENDING, ledger.getRecord(r1.getId()).getState());
+        assertEquals(1, ledger.countRecords());
+        read.countDown();
+        writer.get();
+        es.shutdown();
+        assertEquals(ItemState.APPROVED, ledger.getRecord(r1.getId()).getState());
     }
 
     @Test
-    public void lockForRevoking() throws Exception {
-        ledger.enableCache(true);
-        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
-        existing.approve();
-
-        StateRecord existing2 = ledger.findOrCreate(HashId.createRandom());
-        existing2.approve();
-
-        StateRecord r = ledger.findOrCreate(HashId.createRandom());
-        StateRecord r1 = r.lockToRevoke(existing.getId());
-
-        existing.reload();
-        r.reload();
-
-        assertSameRecords(existing, r1);
-        assertEquals(ItemState.LOCKED, existing.getState());
-        assertEquals(r.getRecordId(), existing.getLockedByRecordId());
-
-        StateRecord r2 = r.lockToRevoke(existing.getId());
-
-        existing.reload();
-        r.reload();
-
-        assertSameRecords(existing, r1);
-        assertSameRecords(existing, r2);
-        assertSame(r1, r2);
-        assertEquals(ItemState.LOCKED, existing.getState());
-        assertEquals(r.getRecordId(), existing.getLockedByRecordId());
-
-        StateRecord r3 = r.lockToRevoke(existing2.getId());
-        existing2.reload();
-        assertSameRecords(existing2, r3);
-        assertEquals(ItemState.LOCKED, existing2.getState());
-        assertEquals(r.getRecordId(), existing2.getLockedByRecordId());
-    }
-
-    @Test
-    public void revoke() throws Exception {
-        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
-        assertFalse(r1.isApproved());
-        assertTrue(r1.isPending());
-        assertFalse(r1.isArchived());
-        r1.approve();
-        r1.reload();
-        assertTrue(r1.isApproved());
-        assertFalse(r1.isPending());
-        assertFalse(r1.isArchived());
-        r1.setState(ItemState.LOCKED);
-        r1.revoke();
-        assertFalse(r1.isPending());
-        assertFalse(r1.isApproved());
-        assertTrue(r1.isArchived());
-    }
-
-    @Test
-    public void destroy() throws Exception {
-        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
-        r1.destroy();
-        assertNull(ledger.getRecord(r1.getId()));
+    public void asyncOperations() throws Exception {
+        HashId id = HashId.createRandom();
+        Thread caller = Thread.currentThread();
+        CompletableFuture<Thread> runner = ledger.async(() -> Thread.currentThread());
+        assertNotSame(caller, runner.get(5, TimeUnit.SECONDS));
+
+        StateRecord r = ledger.findOrCreateAsync(id)
+                .thenCompose(record -> record.setState(ItemState.APPROVED).saveAsync())
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(ItemState.APPROVED, ledger.getRecordAsync(id).get(5, TimeUnit.SECONDS).getState());
+        assertSameRecords(r, ledger.getRecord(id));
+
+        // the failure of the operation completes the future
+        CompletableFuture<Object> failed = ledger.transactionAsync(() -> {
+            r.setState(ItemState.REVOKED);
+            r.save();
+            throw new IllegalStateException("test");
+        });
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail("must throw");
+        } catch (ExecutionException e) {
+            // as it is thrown by the transaction, or wrapped by the ledger
+            assertNotNull(e.getCause());
+        }
+        assertEquals(ItemState.APPROVED, ledger.getRecord(id).getState());
+
+        ledger.close();
+        try {
+            ledger.getRecordAsync(id).get(5, TimeUnit.SECONDS);
+            fail("must throw");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof Ledger.Failure);
+        }
     }
 
     @Test
-    public void recordExpiration() throws Exception {
-        // todo: expired can't be get - it should be dropped by the database
-        HashId hashId = HashId.createRandom();
-        StateRecord r = ledger.findOrCreate(hashId);
-        long recordId = r.getRecordId();
-
-        ZonedDateTime inFuture = ZonedDateTime.now().plusHours(2);
-        r.setExpiresAt(inFuture);
-
-        StateRecord r1 = ledger.getRecord(hashId);
-        assertNotEquals(r1.getExpiresAt(), inFuture);
-
-        r.save();
-        r1 = ledger.getRecord(hashId);
-        assertAlmostSame(r.getExpiresAt(), r1.getExpiresAt());
-
-        r.setExpiresAt(ZonedDateTime.now().minusHours(1));
-        r.save();
-
-        r1 = ledger.getRecord(hashId);
-        assertNull(r1);
-
-
+    public void saveAsyncTakesValues() throws Exception {
+        HashId id = HashId.createRandom();
+        StateRecord r = ledger.findOrCreate(id);
+        CompletableFuture<StateRecord> saving = r.setState(ItemState.PENDING_POSITIVE).saveAsync();
+        // changed after the call, not saved by it and stays dirty
+        r.setState(ItemState.APPROVED);
+        saving.get(5, TimeUnit.SECONDS);
+        assertEquals(ItemState.PENDING_POSITIVE, ledger.getRecord(id).getState());
+        assertTrue(r.isDirty());
+        r.saveAsync().get(5, TimeUnit.SECONDS);
+        assertEquals(ItemState.APPROVED, ledger.getRecord(id).getState());
+        assertFalse(r.isDirty());
+
+        // failed save leaves it dirty
+        r.setState(ItemState.REVOKED);
+        ledger.close();
+        try {
+            r.saveAsync().get(5, TimeUnit.SECONDS);
+            fail("must throw");
+        } catch (ExecutionException e) {
+            assertTrue(r.isDirty());
+        }
     }
-
 }
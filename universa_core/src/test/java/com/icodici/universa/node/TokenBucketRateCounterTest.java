@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketRateCounterTest {
+
+    @Test
+    public void burstAndRefill() throws Exception {
+        TokenBucketRateCounter rc = new TokenBucketRateCounter(5, Duration.ofMillis(500));
+
+        assertEquals(5, rc.pulsesLeft());
+        assertEquals(5, rc.getPulseLimit());
+        assertEquals(500, rc.getDuration().toMillis());
+        assertTrue(rc.isIdle());
+
+        for (int i = 0; i < 5; i++)
+            assertTrue(rc.countPulse());
+        assertFalse(rc.isIdle());
+        assertFalse(rc.countPulse());
+        // rejected pulse is not counted
+        assertEquals(0, rc.pulsesLeft());
+        long wait = rc.millisecondsLeft();
+        assertTrue(wait > 0 && wait <= 100);
+
+        // one pulse is refilled in 100ms
+        Thread.sleep(wait + 10);
+        assertTrue(rc.countPulse());
+        assertFalse(rc.countPulse());
+
+        // and the full bucket in the whole period
+        Thread.sleep(600);
+        assertEquals(5, rc.pulsesLeft());
+        assertTrue(rc.isIdle());
+        assertEquals(0, rc.millisecondsLeft());
+    }
+
+    @Test
+    public void concurrentPulses() throws Exception {
+        TokenBucketRateCounter rc = new TokenBucketRateCounter(1000, Duration.ofHours(1));
+        AtomicInteger allowed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 500; i++)
+                    if (rc.countPulse())
+                        allowed.incrementAndGet();
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        // no pulse is lost or counted twice
+        assertEquals(1000, allowed.get());
+        assertEquals(0, rc.pulsesLeft());
+    }
+
+    @Test
+    public void serialization() throws Exception {
+        TokenBucketRateCounter rc = new TokenBucketRateCounter(3, Duration.ofHours(1));
+        rc.countPulse();
+        rc.countPulse();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(rc);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+            TokenBucketRateCounter restored = (TokenBucketRateCounter) in.readObject();
+            assertEquals(3, restored.getPulseLimit());
+            assertEquals(1, restored.pulsesLeft());
+            assertTrue(restored.countPulse());
+            assertFalse(restored.countPulse());
+        }
+    }
+}
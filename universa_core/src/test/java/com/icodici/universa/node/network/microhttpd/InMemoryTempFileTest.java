@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node.network.microhttpd;
+
+import net.sergeych.tools.Do;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class InMemoryTempFileTest {
+
+    @Test
+    public void inMemory() throws Exception {
+        byte[] data = Do.randomBytes(1000);
+        try (InMemoryTempFile f = new InMemoryTempFile(2000)) {
+            assertSame(f, InMemoryTempFile.getFileByName(f.getName()));
+            f.reserve(data.length);
+            f.write(ByteBuffer.wrap(data));
+            assertFalse(f.isSpilled());
+            assertEquals(1000, f.getSize());
+            byte[] bytes = f.getBytes();
+            assertArrayEquals(data, bytes);
+            // exactly filled array is not copied
+            assertSame(bytes, f.getBytes());
+            assertArrayEquals(data, Do.read(f.getInputStream()));
+        }
+    }
+
+    @Test
+    public void spillsToDisk() throws Exception {
+        byte[] data = Do.randomBytes(5000);
+        InMemoryTempFile f = new InMemoryTempFile(2000);
+        try (OutputStream out = f.open()) {
+            // goes to disk in the middle of writing
+            for (int i = 0; i < data.length; i += 700)
+                out.write(data, i, Math.min(700, data.length - i));
+        }
+        assertTrue(f.isSpilled());
+        assertEquals(5000, f.getSize());
+        assertArrayEquals(data, f.getBytes());
+        try (InputStream in = f.getInputStream()) {
+            assertArrayEquals(data, Do.read(in));
+        }
+        f.delete();
+        assertNull(InMemoryTempFile.getFileByName(f.getName()));
+
+        // direct buffer of known size goes straight to disk
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        try (InMemoryTempFile f2 = new InMemoryTempFile(2000)) {
+            f2.reserve(data.length);
+            assertTrue(f2.isSpilled());
+            f2.write(direct);
+            assertFalse(direct.hasRemaining());
+            assertArrayEquals(data, f2.getBytes());
+        }
+    }
+
+    @Test
+    public void byteBufferInputStream() throws Exception {
+        byte[] data = Do.randomBytes(300);
+        ByteBuffer b = ByteBuffer.wrap(data);
+        b.position(100);
+        ByteBufferInputStream in = new ByteBufferInputStream(b);
+        assertEquals(200, in.available());
+        assertEquals(data[100] & 0xFF, in.read());
+        assertEquals(9, in.skip(9));
+        assertArrayEquals(Arrays.copyOfRange(data, 110, 300), Do.read(in));
+        assertEquals(-1, in.read());
+        // source buffer is not affected
+        assertEquals(100, b.position());
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    /**
+     * Heap allocated per request on the way in (upload of the parsed body into the temp file and reading it) and on
+     * the way out (stored item sent as the response), with the former byte array based code and the current one.
+     */
+    @Ignore("benchmark, start it manually")
+    @Test
+    public void benchmarkRequestHeap() throws Exception {
+        int repetitions = 20;
+        for (int size : new int[]{10_000, 200_000, 1_000_000}) {
+            ByteBuffer body = ByteBuffer.wrap(Do.randomBytes(size));
+            ByteBuffer mapped = ByteBuffer.allocateDirect(size);
+            mapped.put(body.duplicate()).flip();
+
+            long before = allocatedBytes();
+            for (int i = 0; i < repetitions; i++) {
+                // upload: former InMemoryTempFile over the growing ByteArrayOutputStream, then toByteArray()
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+                bos.write(body.array(), 0, size);
+                byte[] upload = bos.toByteArray();
+                // download: the stored item copied to the array body
+                byte[] response = new byte[size];
+                mapped.duplicate().get(response);
+                assertEquals(upload.length, response.length);
+            }
+            long former = (allocatedBytes() - before) / repetitions;
+
+            before = allocatedBytes();
+            byte[] buffer = new byte[8192];
+            for (int i = 0; i < repetitions; i++) {
+                try (InMemoryTempFile f = new InMemoryTempFile()) {
+                    f.reserve(size);
+                    f.write(body.duplicate());
+                    try (InputStream in = f.getInputStream()) {
+                        while (in.read(buffer) > 0) ;
+                    }
+                }
+                // download: streamed from the mapped buffer
+                try (InputStream in = new ByteBufferInputStream(mapped)) {
+                    while (in.read(buffer) > 0) ;
+                }
+            }
+            long current = (allocatedBytes() - before) / repetitions;
+            System.out.println(String.format("%8d bytes body: %9d bytes allocated per request before, %9d now",
+                    size, former, current));
+        }
+    }
+}
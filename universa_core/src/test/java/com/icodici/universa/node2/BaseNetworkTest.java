@@ -3160,7 +3160,128 @@ public class BaseNetworkTest extends TestCase {
         assertEquals(ItemState.UNDEFINED, node.waitItem(parcel.getPayloadContract().getId(), 8000).state);
     }
 
+    @Test(timeout = 90000)
+    public void declinedPaymentReleasesPayloadLocks() throws Exception {
+
+        PrivateKey key = new PrivateKey(Do.read(ROOT_PATH + "_xer0yfe2nn1xthc.private.unikey"));
+        Contract c = Contract.fromDslFile(ROOT_PATH + "coin100.yml");
+        c.addSignerKey(key);
+        assertTrue(c.check());
+        c.seal();
+        registerAndCheckApproved(c);
+
+        // payload revokes approved contract, it could be checked and locked while the payment is voted
+        Contract c1 = ContractsService.createSplit(c, 30, "amount", new HashSet<PrivateKey>(Arrays.asList(key)));
+        Contract c2 = c1.getNew().get(0);
+
+        PrivateKey manufacturePrivateKey = new PrivateKey(Do.read(ROOT_PATH + "keys/tu_key.private.unikey"));
+        Contract stepaTU = Contract.fromDslFile(ROOT_PATH + "StepaTU.yml");
+        stepaTU.addSignerKey(manufacturePrivateKey);
+        stepaTU.seal();
+        stepaTU.check();
+        node.registerItem(stepaTU);
+        assertEquals(ItemState.APPROVED, node.waitItem(stepaTU.getId(), 8000).state);
+
+        Contract paymentDecreased = stepaTU.createRevision();
+        paymentDecreased.getStateData().set("transaction_units", stepaTU.getStateData().getIntOrThrow("transaction_units") - 50);
+        paymentDecreased.seal();
+
+        Parcel parcel = new Parcel(c1.getTransactionPack(), paymentDecreased.getTransactionPack());
 
+        node.registerParcel(parcel);
+        node.waitParcel(parcel.getId(), 8000);
+        assertEquals(ItemState.DECLINED, node.waitItem(parcel.getPaymentContract().getId(), 8000).state);
+        assertEquals(ItemState.UNDEFINED, node.waitItem(c1.getId(), 8000).state);
+
+        // payload locks are rolled back
+        assertEquals(ItemState.APPROVED, node.getLedger().getRecord(c.getId()).getState());
+        assertNull(node.getLedger().getRecord(c2.getId()));
+
+        // and the contract could be revoked by another transaction
+        Contract c3 = ContractsService.createSplit(c, 30, "amount", new HashSet<PrivateKey>(Arrays.asList(key)));
+        registerAndCheckApproved(c3);
+        assertEquals(ItemState.REVOKED, node.waitItem(c.getId(), 5000).state);
+        assertEquals(ItemState.APPROVED, node.waitItem(c3.getNew().get(0).getId(), 5000).state);
+    }
+
+    @Test(timeout = 90000)
+    public void declinedPaymentDoesNotLockContractOfOtherParcel() throws Exception {
+        boolean wasPipelined = config.isPipelinedParcelProcessing();
+        config.setPipelinedParcelProcessing(true);
+        try {
+            PrivateKey key = new PrivateKey(Do.read(ROOT_PATH + "_xer0yfe2nn1xthc.private.unikey"));
+            Contract c = Contract.fromDslFile(ROOT_PATH + "coin100.yml");
+            c.addSignerKey(key);
+            assertTrue(c.check());
+            c.seal();
+            registerAndCheckApproved(c);
+
+            // both payloads revoke the same contract
+            Contract unpaidPayload = ContractsService.createSplit(c, 30, "amount", new HashSet<PrivateKey>(Arrays.asList(key)));
+            Contract paidPayload = ContractsService.createSplit(c, 20, "amount", new HashSet<PrivateKey>(Arrays.asList(key)));
+
+            PrivateKey manufacturePrivateKey = new PrivateKey(Do.read(ROOT_PATH + "keys/tu_key.private.unikey"));
+            Contract stepaTU = Contract.fromDslFile(ROOT_PATH + "StepaTU.yml");
+            stepaTU.addSignerKey(manufacturePrivateKey);
+            stepaTU.seal();
+            stepaTU.check();
+            node.registerItem(stepaTU);
+            assertEquals(ItemState.APPROVED, node.waitItem(stepaTU.getId(), 8000).state);
+
+            // not signed by the owner, so it is declined by the check
+            Contract paymentDecreased = stepaTU.createRevision();
+            paymentDecreased.getStateData().set("transaction_units", stepaTU.getStateData().getIntOrThrow("transaction_units") - 50);
+            paymentDecreased.seal();
+            Parcel unpaid = new Parcel(unpaidPayload.getTransactionPack(), paymentDecreased.getTransactionPack());
+
+            Set<PrivateKey> stepaPrivateKeys = new HashSet<>();
+            stepaPrivateKeys.add(new PrivateKey(Do.read(ROOT_PATH + "keys/stepan_mamontov.private.unikey")));
+            Parcel paid = createParcelWithFreshTU(paidPayload, stepaPrivateKeys);
+
+            // the unpaid parcel comes first, its payload should not lock the contract
+            node.registerParcel(unpaid);
+            node.registerParcel(paid);
+            node.waitParcel(unpaid.getId(), 8000);
+            node.waitParcel(paid.getId(), 8000);
+
+            assertEquals(ItemState.DECLINED, node.waitItem(unpaid.getPaymentContract().getId(), 8000).state);
+            assertEquals(ItemState.UNDEFINED, node.waitItem(unpaidPayload.getId(), 8000).state);
+            assertEquals(ItemState.APPROVED, node.waitItem(paid.getPaymentContract().getId(), 8000).state);
+            assertEquals(ItemState.APPROVED, node.waitItem(paidPayload.getId(), 8000).state);
+            assertEquals(ItemState.REVOKED, node.waitItem(c.getId(), 8000).state);
+            assertNull(node.getLedger().getRecord(unpaidPayload.getNew().get(0).getId()));
+        } finally {
+            config.setPipelinedParcelProcessing(wasPipelined);
+        }
+    }
+
+
+
+    @Test(timeout = 90000)
+    public void registerLazilyUnpackedItems() throws Exception {
+        // as the client API does it, the referenced contracts are decoded when the check walks through them
+        PrivateKey manufacturePrivateKey = new PrivateKey(Do.read(ROOT_PATH + "keys/tu_key.private.unikey"));
+        Contract stepaTU = Contract.fromDslFile(ROOT_PATH + "StepaTU.yml");
+        stepaTU.addSignerKey(manufacturePrivateKey);
+        Contract sibling = new Contract(manufacturePrivateKey);
+        sibling.seal();
+        stepaTU.addNewItems(sibling);
+        stepaTU.seal();
+
+        Contract lazy = Contract.fromPackedTransaction(stepaTU.getPackedTransaction(), true);
+        assertTrue(lazy.getTransactionPack().isLazy());
+        node.registerItem(lazy);
+        assertEquals(ItemState.APPROVED, node.waitItem(stepaTU.getId(), 8000).state);
+        assertEquals(ItemState.APPROVED, node.waitItem(sibling.getId(), 8000).state);
+
+        // not signed by the owner, so it is declined by the check of the lazily decoded parent
+        Contract revision = stepaTU.createRevision(manufacturePrivateKey);
+        revision.getStateData().set("transaction_units", stepaTU.getStateData().getIntOrThrow("transaction_units") - 50);
+        revision.seal();
+        node.registerItem(Contract.fromPackedTransaction(revision.getPackedTransaction(), true));
+        assertEquals(ItemState.DECLINED, node.waitItem(revision.getId(), 8000).state);
+        assertEquals(ItemState.APPROVED, node.waitItem(stepaTU.getId(), 8000).state);
+    }
 
     @Test(timeout = 90000)
     public void declineItemFromoutWhiteList() throws Exception {
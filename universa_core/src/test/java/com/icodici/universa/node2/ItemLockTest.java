@@ -8,10 +8,25 @@
 package com.icodici.universa.node2;
 
 import com.icodici.universa.HashId;
+import net.sergeych.tools.StopWatch;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 @Ignore("in the sequence  causes SIGSEGV in java machine in sqlite module")
 public class ItemLockTest {
@@ -29,25 +44,245 @@ public class ItemLockTest {
 
             count = 0;
 
-            ItemLock il = new ItemLock();
+            ItemLock il = new ItemLock(100);
+            // rounded to the power of 2
+            assertEquals(128, il.size());
 
-            il.synchronize(id, (__) -> count++);
-            il.synchronize(id, (__) -> count++);
+            Object lock = il.synchronize(id, (l) -> { count++; return l; });
+            // the same id always gets the same lock, which is held while the callable runs
+            assertSame(lock, il.synchronize(HashId.withDigest(id.getDigest()), (l) -> {
+                count++;
+                assertTrue(Thread.holdsLock(l));
+                return l;
+            }));
             il.synchronize(id, (__) -> count++);
 
             assertEquals(3, count);
-            assertEquals(1, il.size());
-            id = null;
-            for (int i = 0; i < 10; i++) {
-                System.gc();
-                System.runFinalization();
-                if (il.size() == 0)
-                    break;
-                Thread.sleep(100);
+            assertFalse(Thread.holdsLock(lock));
+            assertEquals(3, il.getAcquisitions());
+            assertEquals(0, il.getContentions());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void contention() throws Exception {
+        // single stripe: all the ids share the lock
+        ItemLock il = new ItemLock(1);
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            try {
+                il.synchronize(HashId.createRandom(), (__) -> {
+                    locked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        holder.start();
+        locked.await();
+        Thread waiter = new Thread(() -> {
+            try {
+                il.synchronize(HashId.createRandom(), (__) -> null);
+            } catch (Exception e) {
+                e.printStackTrace();
             }
-            assertEquals(0, il.size());
+        });
+        waiter.start();
+        while (il.getAcquisitions() < 2)
+            Thread.sleep(5);
+        release.countDown();
+        holder.join();
+        waiter.join();
+        assertEquals(2, il.getAcquisitions());
+        assertEquals(1, il.getContentions());
 
+        ParcelLock pl = new ParcelLock(16);
+        assertEquals(16, pl.size());
+        HashId id = HashId.createRandom();
+        assertSame(pl.synchronize(id, (l) -> l), pl.synchronize(id, (l) -> l));
+        assertEquals(0, pl.getContentions());
+    }
+
+    @Test(timeout = 30000)
+    public void synchronizeAll() throws Exception {
+        // few ids, so the sets intersect all the time, and every set comes in random order
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            ids.add(HashId.createRandom());
+        int[] counters = new int[ids.size()];
+
+        ItemLock il = new ItemLock();
+        int threads = 8;
+        int iterations = 2000;
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            es.execute(() -> {
+                Random random = new Random(seed);
+                try {
+                    for (int n = 0; n < iterations; n++) {
+                        List<HashId> set = new ArrayList<>(ids);
+                        Collections.shuffle(set, random);
+                        List<HashId> subset = set.subList(0, 1 + random.nextInt(set.size()));
+                        il.synchronizeAll(subset, (__) -> {
+                            // not atomic, will lose updates unless all the ids are really locked
+                            for (HashId id : subset)
+                                counters[ids.indexOf(id)]++;
+                            return null;
+                        });
+                        // single locks should not conflict with the sets
+                        HashId single = subset.get(0);
+                        il.synchronize(single, (__) -> counters[ids.indexOf(single)]++);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(25, TimeUnit.SECONDS));
+        es.shutdown();
+
+        // replay the same random sequences to get expected counts
+        int[] expected = new int[ids.size()];
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            for (int n = 0; n < iterations; n++) {
+                List<HashId> set = new ArrayList<>(ids);
+                Collections.shuffle(set, random);
+                List<HashId> subset = set.subList(0, 1 + random.nextInt(set.size()));
+                for (HashId id : subset)
+                    expected[ids.indexOf(id)]++;
+                expected[ids.indexOf(subset.get(0))]++;
+            }
         }
+        for (int i = 0; i < ids.size(); i++)
+            assertEquals(expected[i], counters[i]);
+
+        // duplicates are ok
+        HashId id = ids.get(0);
+        assertEquals(1, (int) il.synchronizeAll(Arrays.asList(id, id, id), (__) -> 1));
     }
 
-}
\ No newline at end of file
+    /**
+     * Simulates rollbacks of unrelated items, each one locks the item and a couple of its records and holds the locks
+     * for a while (like for the ledger transaction). With per-item locks the throughput should grow with the number
+     * of workers, with the single global lock it stays the same.
+     */
+    @Ignore("benchmark, start it manually")
+    @Test
+    public void benchmarkRollbackLocks() throws Exception {
+        int rollbacks = 400;
+        Object globalLock = new Object();
+        for (int workers : new int[]{1, 2, 4, 8, 16}) {
+            long global = runRollbacks(workers, rollbacks, (ids, job) -> {
+                synchronized (globalLock) {
+                    job.run();
+                }
+            });
+            ItemLock il = new ItemLock();
+            long perItem = runRollbacks(workers, rollbacks, (ids, job) ->
+                    il.synchronizeAll(ids, (__) -> {
+                        job.run();
+                        return null;
+                    }));
+            System.out.println(String.format("%2d workers: global lock %5d rollbacks/s, item locks %5d rollbacks/s",
+                    workers, rollbacks * 1000L / global, rollbacks * 1000L / perItem));
+        }
+    }
+
+    private interface RollbackLocker {
+        void lockAndRun(List<HashId> ids, Runnable job) throws Exception;
+    }
+
+    private long runRollbacks(int workers, int rollbacks, RollbackLocker locker) throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(workers);
+        AtomicInteger left = new AtomicInteger(rollbacks);
+        CountDownLatch done = new CountDownLatch(workers);
+        long millis = StopWatch.measure(() -> {
+            for (int w = 0; w < workers; w++) {
+                es.execute(() -> {
+                    try {
+                        while (left.decrementAndGet() >= 0) {
+                            List<HashId> ids = new ArrayList<>();
+                            for (int i = 0; i < 3; i++)
+                                ids.add(HashId.createRandom());
+                            locker.lockAndRun(ids, () -> {
+                                try {
+                                    // ledger transaction
+                                    Thread.sleep(2);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            });
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                });
+            }
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        es.shutdown();
+        return millis;
+    }
+
+    /**
+     * 64 threads locking random items, each holding the lock for a short while. With a single stripe it is the same
+     * as one global lock, the default striping should let almost all of them work in parallel.
+     */
+    @Ignore("benchmark, start it manually")
+    @Test
+    public void benchmarkStripes() throws Exception {
+        int threads = 64;
+        int locksPerThread = 20000;
+        HashId[] ids = new HashId[4096];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = HashId.createRandom();
+        for (int stripes : new int[]{1, 16, 256, 1024, 4096}) {
+            ItemLock il = new ItemLock(stripes);
+            ExecutorService es = Executors.newFixedThreadPool(threads);
+            CountDownLatch done = new CountDownLatch(threads);
+            long millis = StopWatch.measure(() -> {
+                for (int t = 0; t < threads; t++) {
+                    int seed = t;
+                    es.execute(() -> {
+                        Random random = new Random(seed);
+                        try {
+                            for (int n = 0; n < locksPerThread; n++) {
+                                il.synchronize(ids[random.nextInt(ids.length)], (__) -> {
+                                    // some work under the lock
+                                    long x = 0;
+                                    for (int i = 0; i < 200; i++)
+                                        x += i * seed;
+                                    return x;
+                                });
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                        done.countDown();
+                    });
+                }
+                done.await();
+            });
+            es.shutdown();
+            System.out.println(String.format("%d threads, %4d stripes: %6d locks/ms, contended %.2f%%",
+                    threads, il.size(), il.getAcquisitions() / Math.max(1, millis),
+                    il.getContentions() * 100.0 / il.getAcquisitions()));
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Do;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class ItemStoreTest {
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("itemstore");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static ZonedDateTime inDays(int days) {
+        return ZonedDateTime.now().plusDays(days);
+    }
+
+    @Test
+    public void putAndGet() throws Exception {
+        try (ItemStore store = new ItemStore(directory, 4096)) {
+            byte[] data = Do.randomBytes(1000);
+            HashId id = HashId.of(data);
+            assertNull(store.get(id));
+            assertTrue(store.put(id, data, inDays(1)));
+            // content-addressed: second put does nothing
+            assertFalse(store.put(id, data, inDays(1)));
+            assertArrayEquals(data, store.get(id));
+            assertTrue(store.contains(id));
+            assertEquals(1, store.size());
+
+            try (ItemStore.Slice slice = store.open(id)) {
+                assertEquals(data.length, slice.getLength());
+                assertArrayEquals(data, Do.read(slice));
+            }
+            assertNull(store.open(HashId.createRandom()));
+
+            // empty data and data larger than the segment
+            byte[] empty = new byte[0];
+            store.put(HashId.of(empty), empty, inDays(1));
+            assertArrayEquals(empty, store.get(HashId.of(empty)));
+            byte[] large = Do.randomBytes(10000);
+            store.put(HashId.of(large), large, inDays(1));
+            assertArrayEquals(large, store.get(HashId.of(large)));
+            assertArrayEquals(data, store.get(id));
+            assertEquals(3, store.size());
+        }
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        List<byte[]> items = new ArrayList<>();
+        try (ItemStore store = new ItemStore(directory, 64 * 1024)) {
+            // enough to grow the index and to fill several segments
+            for (int i = 0; i < 3000; i++) {
+                byte[] data = Do.randomBytes(10 + i % 100);
+                items.add(data);
+                store.put(HashId.of(data), data, inDays(1));
+            }
+        }
+        try (ItemStore store = new ItemStore(directory, 64 * 1024)) {
+            assertEquals(items.size(), store.size());
+            assertTrue(store.getSegmentsCount() > 1);
+            for (byte[] data : items)
+                assertArrayEquals(data, store.get(HashId.of(data)));
+        }
+        // lost index is rebuilt from segments
+        Files.delete(directory.resolve("index"));
+        try (ItemStore store = new ItemStore(directory, 64 * 1024)) {
+            assertEquals(items.size(), store.size());
+            for (byte[] data : items)
+                assertArrayEquals(data, store.get(HashId.of(data)));
+        }
+    }
+
+    @Test
+    public void brokenTail() throws Exception {
+        byte[] data1 = Do.randomBytes(100);
+        byte[] data2 = Do.randomBytes(100);
+        try (ItemStore store = new ItemStore(directory, 4096)) {
+            store.put(HashId.of(data1), data1, inDays(1));
+        }
+        // the index has been saved with only the first record, the second one is written but broken
+        Path index = directory.resolve("index");
+        byte[] savedIndex = Files.readAllBytes(index);
+        try (ItemStore store = new ItemStore(directory, 4096)) {
+            store.put(HashId.of(data2), data2, inDays(1));
+        }
+        Files.write(index, savedIndex);
+        // header, id, data and checksum of the first record, then somewhere in the data of the second one
+        int idLength = HashId.of(data1).getDigest().length;
+        corruptByte(directory.resolve("00000001.seg"), 18 + idLength + 100 + 4 + 18 + idLength + 50);
+
+        try (ItemStore store = new ItemStore(directory, 4096)) {
+            assertEquals(1, store.size());
+            assertArrayEquals(data1, store.get(HashId.of(data1)));
+            assertNull(store.get(HashId.of(data2)));
+            // and the broken record space is reused
+            store.put(HashId.of(data2), data2, inDays(1));
+            assertArrayEquals(data2, store.get(HashId.of(data2)));
+        }
+    }
+
+    private long countSegmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.toString().endsWith(".seg")).count();
+        }
+    }
+
+    private static void corruptByte(Path file, int position) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[position] ^= 0x55;
+        Files.write(file, bytes);
+    }
+
+    @Test
+    public void expirationAndCompaction() throws Exception {
+        List<byte[]> live = new ArrayList<>();
+        List<byte[]> expiring = new ArrayList<>();
+        ItemStore.Slice kept;
+        byte[] extended;
+        try (ItemStore store = new ItemStore(directory, 16 * 1024)) {
+            for (int i = 0; i < 1000; i++) {
+                byte[] data = Do.randomBytes(100);
+                // most of the items expire soon
+                boolean isLive = i % 5 == 0;
+                (isLive ? live : expiring).add(data);
+                store.put(HashId.of(data), data, isLive ? inDays(10) : inDays(1));
+            }
+            // extending the expiration of the expiring item makes it live
+            extended = expiring.remove(0);
+            store.put(HashId.of(extended), extended, inDays(20));
+            live.add(extended);
+
+            int segmentsBefore = store.getSegmentsCount();
+            kept = store.open(HashId.of(live.get(0)));
+
+            assertEquals(0, store.removeExpired(Instant.now()));
+            assertEquals(expiring.size(), store.removeExpired(Instant.now().plusSeconds(2 * 24 * 3600)));
+            assertEquals(live.size(), store.size());
+            for (byte[] data : expiring)
+                assertNull(store.get(HashId.of(data)));
+
+            assertTrue(store.compact(0.5) > 0);
+            assertTrue(store.getSegmentsCount() < segmentsBefore);
+            for (byte[] data : live)
+                assertArrayEquals(data, store.get(HashId.of(data)));
+            // the segment of the slice opened before compaction is kept until the slice is closed
+            assertEquals(store.getSegmentsCount() + 1, countSegmentFiles());
+            assertArrayEquals(live.get(0), Do.read(kept));
+            kept.close();
+            assertEquals(store.getSegmentsCount(), countSegmentFiles());
+            kept.close();
+        }
+        // and everything survives reopening, also with the rebuilt index
+        try (ItemStore store = new ItemStore(directory, 16 * 1024)) {
+            assertEquals(live.size(), store.size());
+            for (byte[] data : live)
+                assertArrayEquals(data, store.get(HashId.of(data)));
+        }
+        Files.delete(directory.resolve("index"));
+        try (ItemStore store = new ItemStore(directory, 16 * 1024)) {
+            // the rebuilt index drops only what has expired by now, so not compacted records are back until the next
+            // retention pass
+            store.removeExpired(Instant.now().plusSeconds(2 * 24 * 3600));
+            assertEquals(live.size(), store.size());
+            for (byte[] data : live)
+                assertArrayEquals(data, store.get(HashId.of(data)));
+            // the extended expiration has been saved with the record
+            assertEquals(live.size() - 1, store.removeExpired(Instant.now().plusSeconds(15 * 24 * 3600)));
+            assertArrayEquals(extended, store.get(HashId.of(extended)));
+        }
+    }
+
+    @Test
+    public void limitedExpiration() throws Exception {
+        byte[] revoked = Do.randomBytes(100);
+        byte[] approved = Do.randomBytes(100);
+        try (ItemStore store = new ItemStore(directory, 16 * 1024)) {
+            store.put(HashId.of(revoked), revoked, inDays(10));
+            store.put(HashId.of(approved), approved, inDays(10));
+            assertTrue(store.limitExpiration(HashId.of(revoked), inDays(1)));
+            // it is never extended this way
+            assertTrue(store.limitExpiration(HashId.of(approved), inDays(20)));
+            assertFalse(store.limitExpiration(HashId.of(Do.randomBytes(100)), inDays(1)));
+        }
+        // the limited expiration has been saved with the record
+        Files.delete(directory.resolve("index"));
+        try (ItemStore store = new ItemStore(directory, 16 * 1024)) {
+            assertEquals(1, store.removeExpired(Instant.now().plusSeconds(2 * 24 * 3600)));
+            assertNull(store.get(HashId.of(revoked)));
+            assertEquals(1, store.removeExpired(Instant.now().plusSeconds(11 * 24 * 3600)));
+        }
+    }
+}
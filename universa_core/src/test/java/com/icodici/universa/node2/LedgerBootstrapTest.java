@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.*;
+import net.sergeych.tools.BufferedLogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LedgerBootstrapTest extends TestCase {
+    private Path directory;
+    private List<Ledger> ledgers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("bootstrap");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ledgers.forEach(Ledger::close);
+        Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> {
+            try {
+                Files.delete(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private SqliteLedger sqliteLedger(String name) throws Exception {
+        SqliteLedger ledger = new SqliteLedger("jdbc:sqlite:" + directory.resolve(name));
+        ledger.enableCache(false);
+        ledgers.add(ledger);
+        return ledger;
+    }
+
+    private static List<HashId> randomIds(int count) {
+        List<HashId> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            ids.add(HashId.createRandom());
+        return ids;
+    }
+
+    private static void save(Ledger ledger, List<HashId> ids, ItemState state) {
+        ledger.transaction(() -> {
+            for (HashId id : ids) {
+                StateRecord r = ledger.findOrCreate(id);
+                r.setState(state);
+                r.save();
+            }
+            return null;
+        });
+    }
+
+    private static LedgerBootstrap.Witness witness(Ledger ledger) {
+        return new LedgerBootstrap.Witness() {
+            @Override
+            public long[] getLedgerDigest(int[] nodes) throws Exception {
+                return ledger.getDigest().getNodes(nodes);
+            }
+
+            @Override
+            public Map<HashId, ItemState> getLedgerBucket(int bucket) throws Exception {
+                return ledger.getDigest().getBucket(bucket);
+            }
+        };
+    }
+
+    @Test
+    public void disputedRecordsAreDropped() throws Exception {
+        List<HashId> agreed = randomIds(3000);
+        List<HashId> disputed = randomIds(10);
+        List<HashId> unknown = randomIds(20);
+        List<HashId> missing = randomIds(5);
+
+        Ledger witness = sqliteLedger("witness.db");
+        save(witness, agreed, ItemState.APPROVED);
+        save(witness, disputed, ItemState.APPROVED);
+        save(witness, missing, ItemState.APPROVED);
+
+        Ledger loaded = sqliteLedger("loaded.db");
+        save(loaded, agreed, ItemState.APPROVED);
+        save(loaded, disputed, ItemState.REVOKED);
+        save(loaded, unknown, ItemState.APPROVED);
+
+        LedgerBootstrap bootstrap = new LedgerBootstrap(loaded, getNodeKey(0), new BufferedLogger(100));
+        assertEquals(disputed.size() + unknown.size(), bootstrap.dropDisputed(witness(witness)));
+        for (HashId id : disputed)
+            assertNull(loaded.getRecord(id));
+        for (HashId id : unknown)
+            assertNull(loaded.getRecord(id));
+        for (HashId id : agreed)
+            assertEquals(ItemState.APPROVED, loaded.getRecord(id).getState());
+        // the missing ones are left to the anti-entropy
+        assertEquals(agreed.size(), loaded.countRecords());
+        assertEquals(0, bootstrap.dropDisputed(witness(witness)));
+    }
+}
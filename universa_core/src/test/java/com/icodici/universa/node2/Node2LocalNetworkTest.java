@@ -19,6 +19,7 @@ import com.icodici.universa.node2.network.DatagramAdapter;
 import com.icodici.universa.node2.network.Network;
 import net.sergeych.tools.AsyncEvent;
 import net.sergeych.tools.Binder;
+import net.sergeych.tools.Do;
 import net.sergeych.tools.StopWatch;
 import net.sergeych.utils.Bytes;
 import net.sergeych.utils.LogPrinter;
@@ -239,6 +240,50 @@ public class Node2LocalNetworkTest extends BaseNetworkTest {
     }
 
 
+    /**
+     * Time from registering the parcel to its processing is finished, with the payload checked only after the payment
+     * is approved and with the payload prepared while the payment is voted.
+     */
+    @Ignore("benchmark, start it manually")
+    @Test
+    public void benchmarkPipelinedParcelLatency() throws Exception {
+        PrivateKey key = new PrivateKey(Do.read(ROOT_PATH + "_xer0yfe2nn1xthc.private.unikey"));
+        Set<PrivateKey> stepaPrivateKeys = new HashSet<>();
+        stepaPrivateKeys.add(new PrivateKey(Do.read(ROOT_PATH + "keys/stepan_mamontov.private.unikey")));
+        int repetitions = 20;
+        boolean wasPipelined = config_s.isPipelinedParcelProcessing();
+        try {
+            for (boolean pipelined : new boolean[]{false, true, false, true}) {
+                config_s.setPipelinedParcelProcessing(pipelined);
+                long total = 0;
+                long max = 0;
+                for (int i = 0; i < repetitions; i++) {
+                    Contract c = Contract.fromDslFile(ROOT_PATH + "coin100.yml");
+                    c.addSignerKey(key);
+                    c.seal();
+                    Parcel parcel;
+                    synchronized (tuContractLock) {
+                        parcel = createParcelWithClassTU(c, stepaPrivateKeys);
+                        tuContract = parcel.getPaymentContract();
+                    }
+                    long started = System.nanoTime();
+                    node_s.registerParcel(parcel);
+                    node_s.waitParcel(parcel.getId(), 30000);
+                    long elapsed = System.nanoTime() - started;
+                    total += elapsed;
+                    max = Math.max(max, elapsed);
+                    assertEquals(ItemState.APPROVED, node_s.waitItem(parcel.getPayloadContract().getId(), 8000).state);
+                }
+                System.out.println(String.format("%s: %d parcels, average %.1f ms, max %.1f ms",
+                        pipelined ? "pipelined" : "sequential", repetitions,
+                        total / 1e6 / repetitions, max / 1e6));
+            }
+        } finally {
+            config_s.setPipelinedParcelProcessing(wasPipelined);
+        }
+    }
+
+
     // This test will no
 //    @Test(timeout = 300000)
 //    public void resync() throws Exception {
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.Approvable;
+import com.icodici.universa.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+/**
+ * Rollbacks of the items whose commit has failed, on a single node with the ledger failing to save approved records.
+ */
+public class Node2RollbackTest extends TestCase {
+
+    private static final String LEDGER_FILE = "rollbacktest.db";
+
+    private FailingLedger ledger;
+    private Node node;
+
+    /**
+     * Fails to save approved records when {@link #barrier} is set, making the failing saves to wait for each other so
+     * the rollbacks run at the same time.
+     */
+    private static class FailingLedger extends SqliteLedger {
+        volatile CyclicBarrier barrier;
+
+        FailingLedger(String connectionString) throws SQLException {
+            super(connectionString);
+        }
+
+        @Override
+        public void save(StateRecord stateRecord) {
+            if (barrier != null && stateRecord.getState() == ItemState.APPROVED) {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    // fail anyway
+                }
+                throw new Ledger.Failure("test failure");
+            }
+            super.save(stateRecord);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        deleteLedger();
+        ledger = new FailingLedger("jdbc:sqlite:" + LEDGER_FILE);
+        // read what is saved, not the cached records the failed commit has changed
+        ledger.enableCache(false);
+
+        Config config = new Config();
+        config.setPositiveConsensus(1);
+        config.setNegativeConsensus(1);
+        config.setResyncBreakConsensus(1);
+
+        NodeInfo myInfo = new NodeInfo(getNodePublicKey(0), 1, "node1", "localhost", 7101, 7102, 7104);
+        TestSingleNetwork network = new TestSingleNetwork(new NetConfig(asList(myInfo)));
+        node = new Node(config, myInfo, ledger, network);
+        network.addNode(myInfo, node);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        node.shutdown();
+        ledger.close();
+        deleteLedger();
+    }
+
+    private static void deleteLedger() {
+        for (String suffix : new String[]{"", "-wal", "-shm"})
+            new File(LEDGER_FILE + suffix).delete();
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentRollbacksOfOverlappingItems() throws Exception {
+        int itemsCount = 8;
+        // with this many records per item the sets of item locks the rollbacks take intersect
+        int newItemsCount = 32;
+        List<TestItem> items = new ArrayList<>();
+        for (int i = 0; i < itemsCount; i++) {
+            TestItem item = new TestItem(true);
+            for (int j = 0; j < newItemsCount; j++)
+                item.addNewItems(new TestItem(true));
+            items.add(item);
+        }
+
+        // the first approved save of every item, of its first new item, fails, all at once
+        ledger.barrier = new CyclicBarrier(itemsCount);
+        for (TestItem item : items)
+            node.registerItem(item);
+
+        for (TestItem item : items) {
+            ItemResult result = node.waitItem(item.getId(), 30000);
+            assertNotEquals(ItemState.APPROVED, result.state);
+            // the records locked for creation are released
+            for (Approvable newItem : item.getNewItems())
+                assertNull(ledger.getRecord(newItem.getId()));
+        }
+    }
+}
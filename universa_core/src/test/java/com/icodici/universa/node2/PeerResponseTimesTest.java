@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PeerResponseTimesTest {
+
+    @Test
+    public void estimates() throws Exception {
+        PeerResponseTimes times = new PeerResponseTimes(Duration.ofMillis(1000));
+        assertEquals(1000000, times.getMean(1));
+
+        times.update(1, 10000);
+        assertEquals(10000, times.getMean(1));
+        for (int i = 0; i < 100; i++)
+            times.update(1, 20000);
+        assertTrue(Math.abs(times.getMean(1) - 20000) < 100);
+        // not answered nodes are supposed to be slower than the answered ones
+        assertTrue(times.getMean(2) > times.getMean(1));
+    }
+
+    @Test
+    public void timeouts() throws Exception {
+        PeerResponseTimes times = new PeerResponseTimes(Duration.ofMillis(1000));
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long expected = 1000000L << Math.min(attempt - 1, 3);
+            long timeout = times.getTimeout(5, attempt);
+            assertTrue(timeout >= expected * 3 / 4);
+            assertTrue(timeout <= expected * 5 / 4);
+        }
+        // stable fast node gets the timeout near its response time, but not less than 1/20 of the initial one
+        for (int i = 0; i < 100; i++)
+            times.update(5, 1000);
+        long timeout = times.getTimeout(5, 1);
+        assertTrue(timeout >= 50000 * 3 / 4);
+        assertTrue(timeout <= 50000 * 5 / 4);
+        for (int i = 0; i < 100; i++)
+            times.update(5, i % 2 == 0 ? 100000 : 200000);
+        timeout = times.getTimeout(5, 1);
+        assertTrue(timeout > 150000);
+        assertTrue(timeout < 600000);
+    }
+}
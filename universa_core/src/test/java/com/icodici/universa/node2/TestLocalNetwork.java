@@ -15,6 +15,8 @@ import com.icodici.universa.contract.Contract;
 import com.icodici.universa.contract.Parcel;
 import com.icodici.universa.contract.TransactionPack;
 import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.LedgerDigest;
 import com.icodici.universa.node2.network.DatagramAdapter;
 import com.icodici.universa.node2.network.Network;
 import com.icodici.universa.node2.network.UDPAdapter;
@@ -239,6 +241,26 @@ public class TestLocalNetwork extends Network {
         return nodes.get(nodeInfo).checkItem(id);
     }
 
+    @Override
+    public long[] getLedgerDigest(NodeInfo nodeInfo, int[] nodes) throws IOException {
+        LedgerDigest digest = this.nodes.get(nodeInfo).getLedger().getDigest();
+        try {
+            return digest == null ? null : digest.getNodes(nodes);
+        } catch (Exception e) {
+            throw new IOException("failed to get ledger digest", e);
+        }
+    }
+
+    @Override
+    public Map<HashId, ItemState> getLedgerBucket(NodeInfo nodeInfo, int bucket) throws IOException {
+        LedgerDigest digest = nodes.get(nodeInfo).getLedger().getDigest();
+        try {
+            return digest == null ? null : digest.getBucket(bucket);
+        } catch (Exception e) {
+            throw new IOException("failed to get ledger bucket", e);
+        }
+    }
+
     // redo it to work right in the local network
 //    @Override
 //    public ItemResult getItemState(NodeInfo nodeInfo, HashId id) throws IOException {
@@ -8,13 +8,28 @@
 package com.icodici.universa.node2.network;
 
 import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.Errors;
 import com.icodici.universa.node.TestCase;
+import com.icodici.universa.node.network.BasicHTTPService;
 import com.icodici.universa.node.network.TestKeys;
+import com.icodici.universa.node.network.microhttpd.InMemoryTempFile;
+import net.sergeych.boss.Boss;
 import net.sergeych.tools.Binder;
 import net.sergeych.tools.BufferedLogger;
+import net.sergeych.tools.Do;
+import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class BasicHttpServerTest extends TestCase {
 
@@ -60,4 +75,169 @@ public class BasicHttpServerTest extends TestCase {
         assertThrows(CommandFailedException.class, ()->c.command("test_error"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void rateLimit() throws Exception {
+        PrivateKey nodeKey = TestKeys.privateKey(1);
+        PrivateKey clientKey = TestKeys.privateKey(2);
+        BasicHttpServer s = new BasicHttpServer(nodeKey, 15600, 32, log);
+        RequestLimiter limiter = new RequestLimiter(1000, Duration.ofSeconds(1));
+        limiter.setLimit("limited", 2, Duration.ofHours(1));
+        s.setRequestLimiter(limiter);
+        s.addSecureEndpoint("limited", (params, session) -> Binder.of("ok", true));
+
+        BasicHttpClient c = new BasicHttpClient("http://localhost:15600");
+        c.start(clientKey, nodeKey.getPublicKey(), null);
+        c.command("limited");
+        c.command("limited");
+        try {
+            c.command("limited");
+            fail("must be rejected");
+        } catch (CommandFailedException e) {
+            assertEquals(Errors.TOO_MANY_REQUESTS, e.getErrorRecord().getError());
+        }
+        // built-in commands are not limited
+        assertEquals("spong", c.command("sping").getStringOrThrow("sping"));
+        assertEquals(1, limiter.getRejected("limited"));
+        s.shutdown();
+    }
+
+    @Test
+    public void commandMetrics() throws Exception {
+        PrivateKey nodeKey = TestKeys.privateKey(1);
+        PrivateKey clientKey = TestKeys.privateKey(2);
+        BasicHttpServer s = new BasicHttpServer(nodeKey, 15600, 32, log);
+        s.addSecureEndpoint("slow", (params, session) -> {
+            Thread.sleep(20);
+            return Binder.of("ok", true);
+        });
+
+        BasicHttpClient c = new BasicHttpClient("http://localhost:15600");
+        c.start(clientKey, nodeKey.getPublicKey(), null);
+        c.command("slow");
+        c.command("slow");
+
+        Binder histograms = s.getMetrics().getStats().getBinderOrThrow("histograms");
+        Binder slow = histograms.getBinderOrThrow("http.command.slow");
+        assertEquals(2, slow.getLongOrThrow("count"));
+        assertTrue(slow.getLongOrThrow("p50") >= 20000);
+        // both go through the /command path
+        assertTrue(histograms.getBinderOrThrow("http.command").getLongOrThrow("count") >= 2);
+        s.shutdown();
+    }
+
+    private static BasicHTTPService.Request uploadRequest(InMemoryTempFile file) {
+        BasicHTTPService.FileUpload upload = new BasicHTTPService.FileUpload() {
+            @Override
+            public String getFileName() {
+                return file.getName();
+            }
+
+            @Override
+            public byte[] getBytes() {
+                try {
+                    return file.getBytes();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                try {
+                    return file.getInputStream();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        Binder params = Binder.of("requestData", upload);
+        return new BasicHTTPService.Request() {
+            @Override
+            public String getPath() {
+                return "/command";
+            }
+
+            @Override
+            public String getDomain() {
+                return "localhost";
+            }
+
+            @Override
+            public Binder getParams() {
+                return params;
+            }
+
+            @Override
+            public Binder getHeaders() {
+                return new Binder();
+            }
+
+            @Override
+            public String getMethod() {
+                return "POST";
+            }
+        };
+    }
+
+    private static InMemoryTempFile upload(byte[] body) throws IOException {
+        InMemoryTempFile file = new InMemoryTempFile();
+        file.reserve(body.length);
+        file.write(body, 0, body.length);
+        return file;
+    }
+
+    @Test
+    public void extractParamsFromUpload() throws Exception {
+        BasicHttpServer s = new BasicHttpServer(TestKeys.privateKey(1), 15600, 32, log);
+        for (int size : new int[]{1000, InMemoryTempFile.SPILL_THRESHOLD * 2}) {
+            byte[] data = Do.randomBytes(size);
+            byte[] body = Boss.pack(Binder.of("session_id", 17, "params", data));
+            try (InMemoryTempFile file = upload(body)) {
+                assertEquals(size > InMemoryTempFile.SPILL_THRESHOLD, file.isSpilled());
+                Binder params = s.extractParams(uploadRequest(file));
+                assertEquals(17, params.getIntOrThrow("session_id"));
+                assertArrayEquals(data, params.getBinaryOrThrow("params"));
+            }
+        }
+        s.shutdown();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    /**
+     * Heap allocated by {@link BasicHttpServer#extractParams} per command upload of the given size, with the former
+     * code that loaded the whole upload to decode it, and the current one decoding it from the stream. The decoded
+     * params hold the command data, so at least its size is allocated anyway.
+     */
+    @Ignore("benchmark, start it manually")
+    @Test
+    public void benchmarkExtractParamsHeap() throws Exception {
+        BasicHttpServer s = new BasicHttpServer(TestKeys.privateKey(1), 15600, 32, log);
+        int repetitions = 20;
+        for (int size : new int[]{10_000, 200_000, 1_000_000, 5_000_000}) {
+            byte[] body = Boss.pack(Binder.of("session_id", 17, "params", Do.randomBytes(size)));
+            try (InMemoryTempFile file = upload(body)) {
+                BasicHTTPService.Request request = uploadRequest(file);
+
+                long before = allocatedBytes();
+                for (int i = 0; i < repetitions; i++) {
+                    BasicHTTPService.FileUpload rd =
+                            (BasicHTTPService.FileUpload) request.getParams().get("requestData");
+                    assertEquals(17, Boss.unpack(rd.getBytes()).getIntOrThrow("session_id"));
+                }
+                long former = (allocatedBytes() - before) / repetitions;
+
+                before = allocatedBytes();
+                for (int i = 0; i < repetitions; i++)
+                    assertEquals(17, s.extractParams(request).getIntOrThrow("session_id"));
+                long current = (allocatedBytes() - before) / repetitions;
+                System.out.println(String.format("%8d bytes upload: %9d bytes allocated per request before, %9d now",
+                        size, former, current));
+            }
+        }
+        s.shutdown();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import net.sergeych.tools.Binder;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+public class RequestLimiterTest {
+
+    @Test
+    public void perClientAndEndpoint() throws Exception {
+        RequestLimiter limiter = new RequestLimiter(3, Duration.ofHours(1));
+        limiter.setLimit("approve", 1, Duration.ofHours(1));
+
+        for (int i = 0; i < 3; i++)
+            assertTrue(limiter.allow("client1", "status"));
+        assertFalse(limiter.allow("client1", "status"));
+        // other clients and other endpoints are not affected
+        assertTrue(limiter.allow("client2", "status"));
+        assertTrue(limiter.allow("client1", "approve"));
+        assertFalse(limiter.allow("client1", "approve"));
+        assertTrue(limiter.allow("client2", "approve"));
+
+        assertEquals(1, limiter.getRejected("status"));
+        assertEquals(1, limiter.getRejected("approve"));
+        assertEquals(0, limiter.getRejected("getState"));
+        Binder stats = limiter.getStats();
+        assertEquals(4, stats.getIntOrThrow("clients"));
+        assertEquals(1, stats.getBinderOrThrow("rejected").getIntOrThrow("status"));
+    }
+
+    @Test
+    public void idleClientsAreDropped() throws Exception {
+        RequestLimiter limiter = new RequestLimiter(2, Duration.ofMillis(100));
+        for (int i = 0; i < RequestLimiter.SWEEP_THRESHOLD; i++)
+            limiter.allow(i, "status");
+        assertEquals(RequestLimiter.SWEEP_THRESHOLD, limiter.getClientsCount());
+        Thread.sleep(150);
+        // buckets are full again, so the counters are dropped with no harm
+        limiter.allow(-1, "status");
+        assertEquals(1, limiter.getClientsCount());
+    }
+
+    @Test
+    public void admission() throws Exception {
+        AdmissionController ac = new AdmissionController(10);
+        assertTrue(ac.tryAcquire(8));
+        assertFalse(ac.tryAcquire(3));
+        assertTrue(ac.tryAcquire(2));
+        assertFalse(ac.tryAcquire(1));
+        assertEquals(10, ac.getPending());
+        assertEquals(2, ac.getRejected());
+
+        ac.release(8);
+        assertTrue(ac.tryAcquire(5));
+        Binder stats = ac.getStats();
+        assertEquals(7, stats.getIntOrThrow("pending"));
+        assertEquals(2, stats.getIntOrThrow("rejected"));
+        assertEquals(15, stats.getIntOrThrow("admitted"));
+    }
+}